@@ -7,13 +7,14 @@ package org.geogit.api;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.logging.Level;
 
 import org.geogit.api.RevObject.TYPE;
 import org.geogit.repository.CommitBuilder;
 import org.geogit.repository.Repository;
 import org.geogit.repository.StagingArea;
 import org.geogit.repository.Tuple;
-import org.geogit.storage.ObjectInserter;
+import org.geogit.storage.BatchObjectInserter;
 import org.geogit.storage.WrappedSerialisingFactory;
 import org.opengis.geometry.BoundingBox;
 
@@ -172,10 +173,21 @@ public class CommitOp extends AbstractGeoGitOp<RevCommit> {
             if (getProgressListener().isCanceled()) {
                 return null;
             }
-            ObjectInserter objectInserter = repository.newObjectInserter();
-            commitId = objectInserter.insert(WrappedSerialisingFactory.getInstance().createCommitWriter(cb.build(ObjectId.NULL)));
+            BatchObjectInserter objectInserter = repository.newBatchInserter();
+            try {
+                commitId = objectInserter.insert(WrappedSerialisingFactory.getInstance().createCommitWriter(cb.build(ObjectId.NULL)));
+            } finally {
+                objectInserter.close();
+            }
         }
         final RevCommit commit = repository.getCommit(commitId);
+        try {
+            repository.getChangedPathIndex().index(repository.getObjectDatabase(), commitId,
+                    currentRootTreeId, newTreeId);
+        } catch (RuntimeException e) {
+            // not fatal, log queries will fall back to diffing this commit
+            LOGGER.log(Level.WARNING, "Unable to compute changed paths of commit " + commitId, e);
+        }
         // set the HEAD pointing to the new commit
         final Ref newHead = repository.updateRef(new Ref(Ref.HEAD, commitId, TYPE.COMMIT));
         LOGGER.fine("New head: " + newHead);
@@ -10,12 +10,16 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 import org.geogit.api.DiffEntry.ChangeType;
 import org.geogit.api.RevObject.TYPE;
 import org.geogit.repository.DepthSearch;
 import org.geogit.repository.Tuple;
 import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.RevSHA1Tree;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
@@ -122,10 +126,31 @@ public class DiffTreeWalk {
         Preconditions.checkState(oldTree.isNormalized());
         Preconditions.checkState(newTree.isNormalized());
 
-        return new TreeDiffEntryIterator(basePath, fromCommit, toCommit, oldTree, newTree, objectDb);
+        return newTreeDiffIterator(basePath, fromCommit, toCommit, oldTree, newTree, objectDb);
 
     }
 
+    /**
+     * Creates an iterator over the differences between two trees, pairing up their bucket
+     * subtrees if both of them are split at the same depth so that unchanged buckets are not even
+     * loaded.
+     */
+    private static Iterator<DiffEntry> newTreeDiffIterator(final List<String> basePath,
+            final ObjectId fromCommit, final ObjectId toCommit, final RevTree oldTree,
+            final RevTree newTree, final ObjectDatabase db) {
+
+        if (oldTree instanceof RevSHA1Tree && newTree instanceof RevSHA1Tree) {
+            RevSHA1Tree oldBuckets = (RevSHA1Tree) oldTree;
+            RevSHA1Tree newBuckets = (RevSHA1Tree) newTree;
+            if (oldBuckets.isSplit() && newBuckets.isSplit()
+                    && oldBuckets.getDepth() == newBuckets.getDepth()) {
+                return new BucketDiffIterator(basePath, fromCommit, toCommit, oldBuckets,
+                        newBuckets, db);
+            }
+        }
+        return new TreeDiffEntryIterator(basePath, fromCommit, toCommit, oldTree, newTree, db);
+    }
+
     /**
      * @param commitId
      */
@@ -347,8 +372,7 @@ public class DiffTreeWalk {
                 // not the same object (blob or tree), find out whether it's an addition or a
                 // deletion. Uses the same ordering than RevTree's iteration order to perform the
                 // comparison
-                final int comparison = ObjectId.forString(oldEntryName).compareTo(
-                        ObjectId.forString(newEntryName));
+                final int comparison = nextOld.getNameHash().compareTo(nextNew.getNameHash());
                 Preconditions.checkState(comparison != 0,
                         "Comparison can't be 0 if reached this point!");
 
@@ -400,7 +424,7 @@ public class DiffTreeWalk {
                 Preconditions.checkState(RevObject.TYPE.TREE.equals(nextNew.getType()));
                 RevTree oldChildTree = objectDb.getTree(oldRef.getObjectId());
                 RevTree newChildTree = objectDb.getTree(newRef.getObjectId());
-                changesIterator = new TreeDiffEntryIterator(childPath, oldCommit, newCommit,
+                changesIterator = newTreeDiffIterator(childPath, oldCommit, newCommit,
                         oldChildTree, newChildTree, objectDb);
                 break;
             }
@@ -417,6 +441,83 @@ public class DiffTreeWalk {
 
     }
 
+    /**
+     * Walks the bucket subtrees of two split trees of the same depth in bucket order, skipping the
+     * buckets whose subtree ids are the same on both sides and only descending into the ones that
+     * differ, so that the cost of the diff is proportional to the size of the change rather than to
+     * the size of the trees.
+     * 
+     * @author groldan
+     */
+    private static class BucketDiffIterator extends AbstractDiffIterator {
+
+        private final ObjectId oldCommit;
+
+        private final ObjectId newCommit;
+
+        private final RevSHA1Tree oldTree;
+
+        private final RevSHA1Tree newTree;
+
+        private final Map<Integer, Ref> oldBuckets;
+
+        private final Map<Integer, Ref> newBuckets;
+
+        private final Iterator<Integer> buckets;
+
+        private Iterator<DiffEntry> currBucket;
+
+        private final ObjectDatabase objectDb;
+
+        public BucketDiffIterator(final List<String> basePath, final ObjectId fromCommit,
+                final ObjectId toCommit, final RevSHA1Tree fromTree, final RevSHA1Tree toTree,
+                final ObjectDatabase db) {
+            super(basePath);
+            this.oldCommit = fromCommit;
+            this.newCommit = toCommit;
+            this.oldTree = fromTree;
+            this.newTree = toTree;
+            this.objectDb = db;
+            this.oldBuckets = fromTree.getBuckets();
+            this.newBuckets = toTree.getBuckets();
+
+            SortedSet<Integer> allBuckets = new TreeSet<Integer>(oldBuckets.keySet());
+            allBuckets.addAll(newBuckets.keySet());
+            this.buckets = allBuckets.iterator();
+        }
+
+        @Override
+        protected DiffEntry computeNext() {
+            while (currBucket == null || !currBucket.hasNext()) {
+                if (!buckets.hasNext()) {
+                    return endOfData();
+                }
+                final Integer bucket = buckets.next();
+                final Ref oldRef = oldBuckets.get(bucket);
+                final Ref newRef = newBuckets.get(bucket);
+                if (oldRef == null) {
+                    RevTree added = newTree.getBucketTree(newRef.getObjectId());
+                    currBucket = new AddRemoveAllTreeIterator(ChangeType.ADD, basePath,
+                            oldCommit, newCommit, added, objectDb);
+                } else if (newRef == null) {
+                    RevTree removed = oldTree.getBucketTree(oldRef.getObjectId());
+                    currBucket = new AddRemoveAllTreeIterator(ChangeType.DELETE, basePath,
+                            oldCommit, newCommit, removed, objectDb);
+                } else if (oldRef.getObjectId().equals(newRef.getObjectId())) {
+                    // unchanged bucket, no need to even load it
+                    currBucket = null;
+                } else {
+                    RevTree oldBucketTree = oldTree.getBucketTree(oldRef.getObjectId());
+                    RevTree newBucketTree = newTree.getBucketTree(newRef.getObjectId());
+                    // bucket subtrees are not part of the path
+                    currBucket = newTreeDiffIterator(basePath, oldCommit, newCommit,
+                            oldBucketTree, newBucketTree, objectDb);
+                }
+            }
+            return currBucket.next();
+        }
+    }
+
     private static class RewindableIterator<T> extends AbstractIterator<T> {
 
         private Iterator<T> subject;
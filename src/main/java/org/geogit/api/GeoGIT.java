@@ -177,6 +177,20 @@ public class GeoGIT {
         return new MergeOp(repository);
     }
 
+    /**
+     * Find the best common ancestor of two commits
+     */
+    public MergeBaseOp mergeBase() {
+        return new MergeBaseOp(repository);
+    }
+
+    /**
+     * Index the commit history to speed up history queries
+     */
+    public WriteCommitGraphOp writeCommitGraph() {
+        return new WriteCommitGraphOp(repository);
+    }
+
     /**
      * Fetch from and merge with another repository or a local branch
      */
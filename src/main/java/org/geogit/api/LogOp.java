@@ -12,9 +12,13 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
+import org.geogit.repository.ChangedPathFilter;
+import org.geogit.repository.ChangedPathIndex;
+import org.geogit.repository.CommitGraph;
 import org.geogit.repository.Repository;
 import org.geotools.util.Range;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
@@ -156,45 +160,55 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
             }
         }
 
-        Iterator<RevCommit> linearHistory = new LinearHistoryIterator(newestCommitId, repository);
-        LogFilter filter = new LogFilter(repository, oldestCommitId, timeRange, paths);
-        Iterator<RevCommit> filteredCommits = Iterators.filter(linearHistory, filter);
+        final CommitGraph graph = repository.getCommitGraph();
+        Iterator<ObjectId> linearHistory = new LinearHistoryIterator(newestCommitId,
+                oldestCommitId, graph);
+        LogFilter filter = new LogFilter(repository, graph, repository.getChangedPathIndex(),
+                timeRange, paths);
+        Iterator<ObjectId> filteredIds = Iterators.filter(linearHistory, filter);
         if (limit != null) {
-            filteredCommits = Iterators.limit(filteredCommits, limit.intValue());
+            filteredIds = Iterators.limit(filteredIds, limit.intValue());
         }
+        // only deserialize the commits that are to be returned
+        Iterator<RevCommit> filteredCommits = Iterators.transform(filteredIds,
+                new Function<ObjectId, RevCommit>() {
+                    @Override
+                    public RevCommit apply(final ObjectId commitId) {
+                        return repository.getCommit(commitId);
+                    }
+                });
         return filteredCommits;
     }
 
     /**
-     * Iterator that traverses the commit history backwards starting from the provided commmit
+     * Iterator that traverses the first parent commit history backwards starting from the provided
+     * commit, and up to the oldest one, exclusive, using the repository's {@link CommitGraph}
      * 
      * @author groldan
      * 
      */
-    private static class LinearHistoryIterator extends AbstractIterator<RevCommit> {
+    private static class LinearHistoryIterator extends AbstractIterator<ObjectId> {
 
-        private ObjectId nextCommitId;
+        private final Iterator<ObjectId> history;
 
-        private final Repository repo;
+        private final ObjectId oldestCommitId;
 
-        public LinearHistoryIterator(final ObjectId tip, final Repository repo) {
-            this.nextCommitId = tip;
-            this.repo = repo;
+        public LinearHistoryIterator(final ObjectId tip, final ObjectId oldestCommitId,
+                final CommitGraph graph) {
+            this.history = graph.firstParentHistory(tip);
+            this.oldestCommitId = oldestCommitId;
         }
 
         @Override
-        protected RevCommit computeNext() {
-            if (nextCommitId.isNull()) {
+        protected ObjectId computeNext() {
+            if (!history.hasNext()) {
                 return endOfData();
             }
-            final RevCommit commit = repo.getCommit(nextCommitId);
-            List<ObjectId> parentIds = commit.getParentIds();
-            Preconditions.checkNotNull(parentIds);
-            Preconditions.checkState(parentIds.size() > 0);
-
-            nextCommitId = commit.getParentIds().get(0);
-
-            return commit;
+            final ObjectId commitId = history.next();
+            if (oldestCommitId.equals(commitId)) {
+                return endOfData();
+            }
+            return commitId;
         }
 
     }
@@ -204,11 +218,7 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
      * 
      * @return {@code true} if the commit satisfies the filter criteria set to this op
      */
-    private static class LogFilter implements Predicate<RevCommit> {
-
-        private boolean toReached;
-
-        private final ObjectId oldestCommitId;
+    private static class LogFilter implements Predicate<ObjectId> {
 
         private final Range<Long> timeRange;
 
@@ -216,25 +226,34 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
 
         private final Repository repo;
 
+        private final CommitGraph graph;
+
+        private final ChangedPathIndex pathIndex;
+
         /**
          * @param repo
          *            the repository where to get the commits from
-         * @param oldestCommitId
-         *            the oldest commit, exclusive. Indicates when to stop evaluating.
+         * @param graph
+         *            the commit graph where to get the commit timestamps and parents from
+         * @param pathIndex
+         *            the changed path filters used to avoid diffing commits that did not touch
+         *            any of the {@code paths}
          * @param timeRange
          *            extra time range filter besides oldest commit
          * @param paths
          *            extra filter on content, indicates to return only commits that affected any of
          *            the provided paths
          */
-        public LogFilter(final Repository repo, final ObjectId oldestCommitId,
-                final Range<Long> timeRange, final Set<List<String>> paths) {
+        public LogFilter(final Repository repo, final CommitGraph graph,
+                final ChangedPathIndex pathIndex, final Range<Long> timeRange,
+                final Set<List<String>> paths) {
             Preconditions.checkNotNull(repo);
-            Preconditions.checkNotNull(oldestCommitId);
+            Preconditions.checkNotNull(graph);
             Preconditions.checkNotNull(timeRange);
 
             this.repo = repo;
-            this.oldestCommitId = oldestCommitId;
+            this.graph = graph;
+            this.pathIndex = pathIndex;
             this.timeRange = timeRange;
             this.paths = paths;
         }
@@ -244,28 +263,27 @@ public class LogOp extends AbstractGeoGitOp<Iterator<RevCommit>> {
          * @see com.google.common.base.Predicate#apply(java.lang.Object)
          */
         @Override
-        public boolean apply(final RevCommit commit) {
-            if (toReached) {
-                return false;
-            }
-            if (oldestCommitId.equals(commit.getId())) {
-                toReached = true;
-                return false;
-            }
-            boolean applies = timeRange.contains(Long.valueOf(commit.getTimestamp()));
+        public boolean apply(final ObjectId commitId) {
+            boolean applies = timeRange.contains(Long.valueOf(graph.getTimestamp(commitId)));
             if (!applies) {
                 return false;
             }
             if (paths != null && paths.size() > 0) {
                 // did this commit touch any of the paths?
+                final ChangedPathFilter changedPaths = pathIndex.get(commitId);
                 for (List<String> path : paths) {
+                    if (changedPaths != null && !changedPaths.mightContain(path)) {
+                        // definitely not
+                        applies = false;
+                        continue;
+                    }
                     DiffOp diff = new DiffOp(repo);
-                    ObjectId parentId = commit.getParentIds().get(0);
+                    ObjectId parentId = graph.getFirstParent(commitId);
                     Iterator<DiffEntry> diffResult;
                     try {
-                        diff.setOldVersion(parentId).setNewVersion(commit.getId()).setFilter(path);
+                        diff.setOldVersion(parentId).setNewVersion(commitId).setFilter(path);
                         diffResult = diff.call();
-                        applies = applies && diffResult.hasNext();
+                        applies = diffResult.hasNext();
                         if (applies) {
                             break;
                         }
@@ -0,0 +1,49 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.api;
+
+import org.geogit.repository.CommitGraph;
+import org.geogit.repository.Repository;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Finds the best common ancestor of two commits, as a starting point for a three-way merge.
+ * 
+ * @author groldan
+ * @see CommitGraph#mergeBase(ObjectId, ObjectId)
+ */
+public class MergeBaseOp extends AbstractGeoGitOp<ObjectId> {
+
+    private ObjectId left;
+
+    private ObjectId right;
+
+    public MergeBaseOp(final Repository repository) {
+        super(repository);
+    }
+
+    public MergeBaseOp setLeft(final ObjectId left) {
+        this.left = left;
+        return this;
+    }
+
+    public MergeBaseOp setRight(final ObjectId right) {
+        this.right = right;
+        return this;
+    }
+
+    /**
+     * @return the id of the merge base of the two commits, or {@link ObjectId#NULL} if they have
+     *         no common history
+     * @see org.geogit.api.AbstractGeoGitOp#call()
+     */
+    @Override
+    public ObjectId call() throws Exception {
+        Preconditions.checkState(left != null, "Left commit not specified");
+        Preconditions.checkState(right != null, "Right commit not specified");
+        return getRepository().getCommitGraph().mergeBase(left, right);
+    }
+}
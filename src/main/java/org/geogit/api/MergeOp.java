@@ -12,12 +12,11 @@ import org.geogit.api.DiffEntry.ChangeType;
 import org.geogit.api.RevObject.TYPE;
 import org.geogit.api.config.RefIO;
 import org.geogit.repository.CommitBuilder;
+import org.geogit.repository.CommitGraph;
 import org.geogit.repository.Repository;
 import org.geogit.storage.ObjectInserter;
 import org.geogit.storage.WrappedSerialisingFactory;
 
-import com.google.common.collect.Iterators;
-
 /**
  * Very simple merge; to push the HEAD up to the current remotes head.
  * 
@@ -69,10 +68,11 @@ public class MergeOp extends AbstractGeoGitOp<MergeResult> {
         /**
          * Work out if this is a rebase or a merge
          */
-        LogOp l = new LogOp(getRepository());
-        Iterator<RevCommit> s = l.setSince(oldHead.getId()).call();
+        final CommitGraph graph = getRepository().getCommitGraph();
 
-        if (Iterators.contains(s, oldHead)){ /*rebase*/
+        if (graph.isAncestor(branch.getObjectId(), oldHead.getId())) { /*already up to date*/
+            return mergeResult;
+        } else if (graph.isAncestor(oldHead.getId(), branch.getObjectId())) { /*rebase*/
             rebase();
         } else { /*merge - new commit head and add parents of both branches*/
 
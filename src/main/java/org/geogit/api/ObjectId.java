@@ -1,197 +1,351 @@
-/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
- * This code is licensed under the GPL 2.0 license, available at the root
- * application directory.
- */
-package org.geogit.api;
-
-import java.security.MessageDigest;
-import java.util.Arrays;
-
-import com.google.common.base.Preconditions;
-import com.sleepycat.persist.model.Persistent;
-
-/**
- * A semi-mutable SHA-1 abstraction.
- * <p>
- * An ObjectId is mutable as long as it has not been assigned a raw value already
- * </p>
- */
-@Persistent
-public class ObjectId implements Comparable<ObjectId> {
-    public static final ObjectId NULL = new ObjectId(new byte[20]);
-
-    private byte[] raw;
-
-    public ObjectId() {
-        this(NULL.raw);
-    }
-
-    public ObjectId(byte[] raw) {
-        Preconditions.checkNotNull(raw);
-        Preconditions.checkArgument(raw.length == 20);
-        this.raw = raw;
-    }
-
-    public boolean isNull() {
-        return NULL.equals(this);
-    }
-
-    @Override
-    public boolean equals(Object o) {
-        if (!(o instanceof ObjectId)) {
-            return false;
-        }
-        return Arrays.equals(raw, ((ObjectId) o).raw);
-    }
-
-    @Override
-    public int hashCode() {
-        final int hashCode = readInt(raw, 4);
-        return hashCode;
-    }
-
-    /**
-     * @return a human friendly representation of this SHA1
-     * @see java.lang.Object#toString()
-     */
-    @Override
-    public String toString() {
-        final byte[] hash = this.raw;
-        return toString(hash);
-    }
-
-    /**
-     * Returns the objectid represented by its string form, this method is the inverse of
-     * {@link #toString()}
-     * 
-     * @return
-     */
-    public static ObjectId valueOf(final String hash) {
-        Preconditions.checkNotNull(hash);
-        Preconditions.checkArgument(hash.length() == 40);
-
-        // this is perhaps the worse way of doing this...
-
-        final byte[] raw = new byte[20];
-        final int radix = 16;
-        for (int i = 0; i < 20; i++) {
-            raw[i] = (byte) Integer.parseInt(hash.substring(2 * i, 2 * i + 2), radix);
-        }
-        return new ObjectId(raw);
-    }
-
-    public static byte[] toRaw(final String hash) {
-        Preconditions.checkNotNull(hash);
-        for (int i = 0; i < hash.length(); i++) {
-            char c = hash.charAt(i);
-            if (-1 == Character.digit(c, 16)) {
-                throw new IllegalArgumentException("At index " + i
-                        + ": partialId is not a valid hash subsequence '" + hash + "'");
-            }
-        }
-
-        final byte[] raw = new byte[hash.length() / 2];
-        final int radix = 16;
-        for (int i = 0; i < raw.length; i++) {
-            raw[i] = (byte) Integer.parseInt(hash.substring(2 * i, 2 * i + 2), radix);
-        }
-        return raw;
-    }
-
-    public static String toString(final byte[] hash) {
-        // not sure if there's an utility someplace to convert the hash to an hex string, took this
-        // from the web
-        StringBuilder buf = new StringBuilder();
-        for (int i = 0; i < hash.length; i++) {
-            int halfbyte = (hash[i] >>> 4) & 0x0F;
-            int two_halfs = 0;
-            do {
-                if ((0 <= halfbyte) && (halfbyte <= 9))
-                    buf.append((char) ('0' + halfbyte));
-                else
-                    buf.append((char) ('a' + (halfbyte - 10)));
-                halfbyte = hash[i] & 0x0F;
-            } while (two_halfs++ < 1);
-        }
-        return buf.toString();
-    }
-
-    /**
-     * @see java.lang.Comparable#compareTo(java.lang.Object)
-     */
-    public int compareTo(final ObjectId o) {
-        int c;
-        for (int i = 0; i < raw.length; i++) {
-            c = raw[i] - o.raw[i];
-            if (c != 0) {
-                return c;
-            }
-        }
-        return 0;
-        // int i1 = readInt(raw, 0);
-        // int i2 = readInt(o.raw, 0);
-        // if (i1 != i2) {
-        // return i2 - i1;
-        // }
-        //
-        // i1 = readInt(raw, 4);
-        // i2 = readInt(o.raw, 4);
-        // if (i1 != i2) {
-        // return i2 - i1;
-        // }
-        //
-        // i1 = readInt(raw, 8);
-        // i2 = readInt(o.raw, 8);
-        // if (i1 != i2) {
-        // return i2 - i1;
-        // }
-        //
-        // i1 = readInt(raw, 16);
-        // i2 = readInt(o.raw, 16);
-        //
-        // return i2 - i1;
-    }
-
-    private static final int readInt(final byte[] raw, final int from) {
-        int ch1 = raw[from] << 24;
-        int ch2 = raw[from + 1] << 16;
-        int ch3 = raw[from + 2] << 8;
-        int ch4 = raw[from + 3] << 0;
-
-        return ch1 + ch2 + ch3 + ch4;
-    }
-
-    public byte[] getRawValue() {
-        return raw.clone();
-    }
-
-    /**
-     * Creates a new SHA-1 ObjectId for the byte[] contents of the given string.
-     * <p>
-     * Note this method is to hash a string, not to convert the string representation of an ObjectId
-     * </p>
-     * 
-     * @param strToHash
-     * @return
-     */
-    public static ObjectId forString(final String strToHash) {
-        Preconditions.checkNotNull(strToHash);
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA1");
-            byte[] raw = md.digest(strToHash.getBytes("UTF-8"));
-            return new ObjectId(raw);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-    
-    /**
-     * Prints the object ID just like the git command "0000000..0000000"
-     * @return
-     */
-    public String printSmallId(){
-        String out = toString();
-        return out.substring(0, 7)+".."+out.substring(out.length()-7, out.length());
-    }
-
-}
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.api;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+import com.sleepycat.persist.model.Persistent;
+
+/**
+ * A semi-mutable SHA-1 abstraction.
+ * <p>
+ * An ObjectId is mutable as long as it has not been assigned a raw value already
+ * </p>
+ * <p>
+ * The 20 bytes of the hash are held as five big endian ints, so ids are compared, hashed and
+ * checked for equality a word at a time, and no byte array is retained. {@link #compareTo} orders
+ * ids as unsigned byte sequences, same as their hex representation sorts.
+ * </p>
+ */
+@Persistent
+public class ObjectId implements Comparable<ObjectId> {
+
+    /**
+     * Length in bytes of the raw value of an id
+     */
+    public static final int NUM_BYTES = 20;
+
+    public static final ObjectId NULL = new ObjectId(new byte[NUM_BYTES]);
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Value of each hex digit indexed by char, {@code -1} for non hex digits
+     */
+    private static final byte[] HEX_VALUES = new byte['f' + 1];
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private static final ThreadLocal<MessageDigest> SHA1 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private int w1;
+
+    private int w2;
+
+    private int w3;
+
+    private int w4;
+
+    private int w5;
+
+    public ObjectId() {
+        // NULL
+    }
+
+    /**
+     * @param raw
+     *            the 20 bytes of the hash, the array is not retained
+     */
+    public ObjectId(byte[] raw) {
+        this(checkLength(raw), 0);
+    }
+
+    private static byte[] checkLength(final byte[] raw) {
+        Preconditions.checkNotNull(raw);
+        Preconditions.checkArgument(raw.length == NUM_BYTES);
+        return raw;
+    }
+
+    private ObjectId(final byte[] raw, final int offset) {
+        this.w1 = readInt(raw, offset);
+        this.w2 = readInt(raw, offset + 4);
+        this.w3 = readInt(raw, offset + 8);
+        this.w4 = readInt(raw, offset + 12);
+        this.w5 = readInt(raw, offset + 16);
+    }
+
+    private ObjectId(final int w1, final int w2, final int w3, final int w4, final int w5) {
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.w4 = w4;
+        this.w5 = w5;
+    }
+
+    /**
+     * Creates an id out of the 20 bytes of {@code raw} starting at {@code offset}
+     */
+    public static ObjectId fromRaw(final byte[] raw, final int offset) {
+        Preconditions.checkNotNull(raw);
+        Preconditions.checkArgument(offset >= 0 && offset + NUM_BYTES <= raw.length);
+        return new ObjectId(raw, offset);
+    }
+
+    /**
+     * Creates an id out of the next 20 bytes of {@code buffer}, advancing its position
+     */
+    public static ObjectId readFrom(final ByteBuffer buffer) {
+        return new ObjectId(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(),
+                buffer.getInt());
+    }
+
+    public boolean isNull() {
+        return (w1 | w2 | w3 | w4 | w5) == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ObjectId)) {
+            return false;
+        }
+        ObjectId id = (ObjectId) o;
+        return w1 == id.w1 && w2 == id.w2 && w3 == id.w3 && w4 == id.w4 && w5 == id.w5;
+    }
+
+    /**
+     * The bits of a SHA-1 hash are already evenly distributed, so any of its words is as good a
+     * hash code as it gets, at no cost.
+     */
+    @Override
+    public int hashCode() {
+        return w2;
+    }
+
+    /**
+     * @return a human friendly representation of this SHA1
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        char[] hex = new char[2 * NUM_BYTES];
+        appendHex(w1, hex, 0);
+        appendHex(w2, hex, 8);
+        appendHex(w3, hex, 16);
+        appendHex(w4, hex, 24);
+        appendHex(w5, hex, 32);
+        return new String(hex);
+    }
+
+    private static void appendHex(final int word, final char[] target, final int offset) {
+        for (int i = 0; i < 8; i++) {
+            target[offset + i] = HEX_DIGITS[(word >>> (28 - 4 * i)) & 0x0F];
+        }
+    }
+
+    /**
+     * Returns the objectid represented by its string form, this method is the inverse of
+     * {@link #toString()}
+     *
+     * @return
+     */
+    public static ObjectId valueOf(final String hash) {
+        Preconditions.checkNotNull(hash);
+        Preconditions.checkArgument(hash.length() == 2 * NUM_BYTES);
+        return new ObjectId(toRaw(hash), 0);
+    }
+
+    public static byte[] toRaw(final String hash) {
+        Preconditions.checkNotNull(hash);
+        final byte[] raw = new byte[hash.length() / 2];
+        for (int i = 0; i < hash.length(); i++) {
+            final int value = hexValue(hash.charAt(i));
+            if (value == -1) {
+                throw new IllegalArgumentException("At index " + i
+                        + ": partialId is not a valid hash subsequence '" + hash + "'");
+            }
+            if (i / 2 < raw.length) {
+                raw[i / 2] |= (i % 2 == 0 ? value << 4 : value);
+            }
+        }
+        return raw;
+    }
+
+    private static int hexValue(final char c) {
+        return c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+    }
+
+    public static String toString(final byte[] hash) {
+        char[] hex = new char[2 * hash.length];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(hash[i] >>> 4) & 0x0F];
+            hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Compares ids as unsigned byte sequences.
+     *
+     * @see java.lang.Comparable#compareTo(java.lang.Object)
+     */
+    public int compareTo(final ObjectId o) {
+        if (w1 != o.w1) {
+            return compareUnsigned(w1, o.w1);
+        }
+        if (w2 != o.w2) {
+            return compareUnsigned(w2, o.w2);
+        }
+        if (w3 != o.w3) {
+            return compareUnsigned(w3, o.w3);
+        }
+        if (w4 != o.w4) {
+            return compareUnsigned(w4, o.w4);
+        }
+        return w5 == o.w5 ? 0 : compareUnsigned(w5, o.w5);
+    }
+
+    private static int compareUnsigned(final int i1, final int i2) {
+        // flipping the sign bit maps unsigned order to signed order
+        return (i1 ^ Integer.MIN_VALUE) < (i2 ^ Integer.MIN_VALUE) ? -1 : 1;
+    }
+
+    private static final int readInt(final byte[] raw, final int from) {
+        return ((raw[from] & 0xFF) << 24) | ((raw[from + 1] & 0xFF) << 16)
+                | ((raw[from + 2] & 0xFF) << 8) | (raw[from + 3] & 0xFF);
+    }
+
+    private static void writeInt(final int word, final byte[] target, final int offset) {
+        target[offset] = (byte) (word >>> 24);
+        target[offset + 1] = (byte) (word >>> 16);
+        target[offset + 2] = (byte) (word >>> 8);
+        target[offset + 3] = (byte) word;
+    }
+
+    /**
+     * @return a new array with the 20 bytes of this id
+     */
+    public byte[] getRawValue() {
+        byte[] raw = new byte[NUM_BYTES];
+        copyRawValue(raw, 0);
+        return raw;
+    }
+
+    /**
+     * Copies the 20 bytes of this id to {@code target} starting at {@code offset}, for callers
+     * that can reuse a buffer instead of getting a new array out of {@link #getRawValue()}.
+     */
+    public void copyRawValue(final byte[] target, final int offset) {
+        writeInt(w1, target, offset);
+        writeInt(w2, target, offset + 4);
+        writeInt(w3, target, offset + 8);
+        writeInt(w4, target, offset + 12);
+        writeInt(w5, target, offset + 16);
+    }
+
+    /**
+     * Writes the 20 bytes of this id to {@code buffer}, advancing its position
+     */
+    public void writeTo(final ByteBuffer buffer) {
+        buffer.putInt(w1).putInt(w2).putInt(w3).putInt(w4).putInt(w5);
+    }
+
+    /**
+     * @return the {@code index}th big endian int of the 5 ints making up this id
+     */
+    public int intN(final int index) {
+        switch (index) {
+        case 0:
+            return w1;
+        case 1:
+            return w2;
+        case 2:
+            return w3;
+        case 3:
+            return w4;
+        case 4:
+            return w5;
+        default:
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+    }
+
+    /**
+     * @return the {@code index}th byte of this id
+     */
+    public int byteN(final int index) {
+        Preconditions.checkElementIndex(index, NUM_BYTES);
+        final int word;
+        switch (index / 4) {
+        case 0:
+            word = w1;
+            break;
+        case 1:
+            word = w2;
+            break;
+        case 2:
+            word = w3;
+            break;
+        case 3:
+            word = w4;
+            break;
+        default:
+            word = w5;
+        }
+        return (word >>> (24 - 8 * (index % 4))) & 0xFF;
+    }
+
+    /**
+     * Creates a new SHA-1 ObjectId for the byte[] contents of the given string.
+     * <p>
+     * Note this method is to hash a string, not to convert the string representation of an ObjectId
+     * </p>
+     *
+     * @param strToHash
+     * @return
+     */
+    public static ObjectId forString(final String strToHash) {
+        Preconditions.checkNotNull(strToHash);
+        MessageDigest md = SHA1.get();
+        md.reset();
+        try {
+            byte[] raw = md.digest(strToHash.getBytes("UTF-8"));
+            return new ObjectId(raw, 0);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Prints the object ID just like the git command "0000000..0000000"
+     * @return
+     */
+    public String printSmallId(){
+        String out = toString();
+        return out.substring(0, 7)+".."+out.substring(out.length()-7, out.length());
+    }
+
+}
@@ -11,7 +11,7 @@ import org.geogit.api.config.RefIO;
 import org.geogit.repository.Repository;
 import org.geogit.repository.remote.payload.IPayload;
 import org.geogit.storage.BlobWriter;
-import org.geogit.storage.ObjectInserter;
+import org.geogit.storage.BatchObjectInserter;
 import org.geogit.storage.WrappedSerialisingFactory;
 import org.geotools.util.logging.Logging;
 
@@ -43,34 +43,37 @@ public class PayloadUtil {
         int deltas = 0;
 
         WrappedSerialisingFactory fact = WrappedSerialisingFactory.getInstance();
-        ObjectInserter objectInserter = getRepository().newObjectInserter();
-
-        /**
-         * Update the local repos commits
-         */
-        for (RevCommit commit : payload.getCommitUpdates()) {
-            commits++;
-            ObjectId commitId = objectInserter.insert(fact.createCommitWriter(commit));
-            getRepository().getRefDatabase().put(new Ref(branchName, commitId, TYPE.COMMIT));
-            LOGGER.info("Adding commit: " + commit.toString());
-        }
+        BatchObjectInserter objectInserter = getRepository().newBatchInserter();
+        try {
+            /**
+             * Update the local repos commits
+             */
+            for (RevCommit commit : payload.getCommitUpdates()) {
+                commits++;
+                ObjectId commitId = objectInserter.insert(fact.createCommitWriter(commit));
+                getRepository().getRefDatabase().put(new Ref(branchName, commitId, TYPE.COMMIT));
+                LOGGER.info("Adding commit: " + commit.toString());
+            }
 
-        /**
-         * Update the local repos trees
-         */
-        for (RevTree tree : payload.getTreeUpdates()) {
-            ObjectId treeId = objectInserter.insert(fact.createRevTreeWriter(tree));
-            getRepository().getRefDatabase().put(new Ref(branchName, treeId, TYPE.TREE));
-            LOGGER.info("Adding tree: " + tree.toString());
-        }
+            /**
+             * Update the local repos trees
+             */
+            for (RevTree tree : payload.getTreeUpdates()) {
+                ObjectId treeId = objectInserter.insert(fact.createRevTreeWriter(tree));
+                getRepository().getRefDatabase().put(new Ref(branchName, treeId, TYPE.TREE));
+                LOGGER.info("Adding tree: " + tree.toString());
+            }
 
-        /**
-         * Update the local repos blobs
-         */
-        for (RevBlob blob : payload.getBlobUpdates()) {
-            deltas++;
-            ObjectId blobId = objectInserter.insert(new BlobWriter((byte[]) blob.getParsed()));
-            getRepository().getRefDatabase().put(new Ref(branchName, blobId, TYPE.BLOB));
+            /**
+             * Update the local repos blobs
+             */
+            for (RevBlob blob : payload.getBlobUpdates()) {
+                deltas++;
+                ObjectId blobId = objectInserter.insert(new BlobWriter((byte[]) blob.getParsed()));
+                getRepository().getRefDatabase().put(new Ref(branchName, blobId, TYPE.BLOB));
+            }
+        } finally {
+            objectInserter.close();
         }
 
         /**
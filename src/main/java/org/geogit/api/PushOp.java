@@ -54,7 +54,7 @@ public class PushOp extends AbstractGeoGitOp<PushResult> {
 
             HttpPost post = new HttpPost(upstream);
             post.setHeader(Ref.HEAD,originMaster.get(Ref.HEAD)); /*Set a header ID so the server can reject/accept*/
-            post.setEntity(new PayloadEntity(payload));
+            post.setEntity(new PayloadEntity(payload, getRepository().getObjectDatabase()));
 
             HttpResponse response = httpclient.execute(post);
             if (response.getStatusLine().getStatusCode()!= HttpStatus.SC_OK){
@@ -44,6 +44,11 @@ public class Ref {
 
     private ObjectId objectId;
 
+    /**
+     * SHA-1 hash of the name, computed on first use
+     */
+    private volatile ObjectId nameHash;
+
     public Ref(final String name, final ObjectId oid, final RevObject.TYPE type) {
         Preconditions.checkNotNull(name);
         Preconditions.checkNotNull(oid);
@@ -67,6 +72,20 @@ public class Ref {
         return objectId;
     }
 
+    /**
+     * @return the SHA-1 hash of this ref's name, as used to place it in a tree and to sort tree
+     *         entries
+     * @see ObjectId#forString(String)
+     */
+    public ObjectId getNameHash() {
+        ObjectId hash = nameHash;
+        if (hash == null) {
+            hash = ObjectId.forString(name);
+            nameHash = hash;
+        }
+        return hash;
+    }
+
     public RevObject.TYPE getType() {
         return type;
     }
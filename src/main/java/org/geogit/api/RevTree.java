@@ -7,6 +7,8 @@ package org.geogit.api;
 import java.math.BigInteger;
 import java.util.Iterator;
 
+import org.opengis.geometry.BoundingBox;
+
 import com.google.common.base.Predicate;
 
 public interface RevTree extends RevObject {
@@ -19,6 +21,21 @@ public interface RevTree extends RevObject {
 
     public abstract Iterator<Ref> iterator(Predicate<Ref> filter);
 
+    /**
+     * Returns an iterator over the {@link SpatialRef}s of this tree whose bounds intersect the
+     * given ones, in no particular order.
+     * <p>
+     * Stored trees answer this query through a {@link org.geogit.storage.SpatialIndex spatial
+     * index}, built the first time it is needed and shared by all the trees with the same id.
+     * </p>
+     * 
+     * @param bounds
+     *            the query bounds, in the same coordinate reference system than the tree contents
+     * @param filter
+     *            an additional filter for the returned refs, may be {@code null}
+     */
+    public abstract Iterator<Ref> iterator(BoundingBox bounds, Predicate<Ref> filter);
+
     public abstract boolean isNormalized();
 
     public abstract MutableTree mutable();
@@ -0,0 +1,69 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.api;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.repository.ChangedPathIndex;
+import org.geogit.repository.CommitGraph;
+import org.geogit.repository.Repository;
+import org.geogit.storage.ObjectDatabase;
+
+/**
+ * Maintenance operation that adds every commit reachable from the repository refs to the
+ * {@link CommitGraph}, and computes the {@link ChangedPathIndex changed path filters} of the ones
+ * that don't have one yet, such as the commits made before filters were computed at commit time or
+ * the ones fetched from a remote.
+ * 
+ * @author groldan
+ */
+public class WriteCommitGraphOp extends AbstractGeoGitOp<Integer> {
+
+    public WriteCommitGraphOp(final Repository repository) {
+        super(repository);
+    }
+
+    /**
+     * @return the number of commits whose changed path filter was computed
+     * @see org.geogit.api.AbstractGeoGitOp#call()
+     */
+    @Override
+    public Integer call() throws Exception {
+        final Repository repository = getRepository();
+        final ObjectDatabase objectDb = repository.getObjectDatabase();
+        final CommitGraph graph = repository.getCommitGraph();
+        final ChangedPathIndex pathIndex = repository.getChangedPathIndex();
+
+        LinkedList<ObjectId> pending = new LinkedList<ObjectId>();
+        for (Ref ref : repository.getRefDatabase().getRefs("")) {
+            if (TYPE.COMMIT.equals(ref.getType()) && !ref.getObjectId().isNull()) {
+                pending.add(ref.getObjectId());
+            }
+        }
+
+        getProgressListener().started();
+        int indexed = 0;
+        Set<ObjectId> visited = new HashSet<ObjectId>();
+        while (!pending.isEmpty()) {
+            if (getProgressListener().isCanceled()) {
+                break;
+            }
+            final ObjectId commitId = pending.removeFirst();
+            if (!visited.add(commitId)) {
+                continue;
+            }
+            if (!pathIndex.contains(commitId)) {
+                pathIndex.index(objectDb, objectDb.getCommit(commitId));
+                indexed++;
+            }
+            pending.addAll(graph.getParents(commitId));
+        }
+        getProgressListener().complete();
+        return Integer.valueOf(indexed);
+    }
+}
@@ -0,0 +1,181 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.repository;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.geogit.api.DiffEntry;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A bloom filter over the paths changed by a commit, used to discard the commits that did not
+ * touch a given path without diffing them.
+ * <p>
+ * Every prefix of every changed path is added to the filter, so querying a path answers whether
+ * the commit changed anything at or below it. To bound the filter size, prefixes longer than
+ * {@link #getMaxDepth() maxDepth} are not added, and paths deeper than that are queried by their
+ * prefix of that length, which can only produce more false positives.
+ * </p>
+ *
+ * @author groldan
+ * @see ChangedPathIndex
+ */
+public final class ChangedPathFilter {
+
+    /**
+     * namespace, type name and feature id
+     */
+    static final int DEFAULT_MAX_DEPTH = 3;
+
+    /**
+     * Once there are more distinct prefixes than this, the deepest level of prefixes is dropped
+     */
+    static final int MAX_ENTRIES = 8 * 1024;
+
+    private static final int BITS_PER_ENTRY = 10;
+
+    private static final int NUM_HASHES = 7;
+
+    private final int maxDepth;
+
+    private final long[] bits;
+
+    ChangedPathFilter(final int maxDepth, final long[] bits) {
+        Preconditions.checkArgument(maxDepth >= 0);
+        Preconditions.checkArgument(bits.length > 0);
+        this.maxDepth = maxDepth;
+        this.bits = bits;
+    }
+
+    /**
+     * Builds the filter for the changes reported by {@code changes}
+     */
+    public static ChangedPathFilter build(final Iterator<DiffEntry> changes) {
+        int maxDepth = DEFAULT_MAX_DEPTH;
+        List<Set<List<String>>> prefixesByDepth = new ArrayList<Set<List<String>>>();
+        for (int d = 0; d < maxDepth; d++) {
+            prefixesByDepth.add(new HashSet<List<String>>());
+        }
+        int entries = 0;
+        while (changes.hasNext()) {
+            final List<String> path = changes.next().getPath();
+            final int depth = Math.min(maxDepth, path.size());
+            for (int d = 1; d <= depth; d++) {
+                if (prefixesByDepth.get(d - 1).add(new ArrayList<String>(path.subList(0, d)))) {
+                    entries++;
+                }
+            }
+            while (entries > MAX_ENTRIES && maxDepth > 0) {
+                entries -= prefixesByDepth.remove(maxDepth - 1).size();
+                maxDepth--;
+            }
+        }
+
+        final int numBits = Math.max(64, entries * BITS_PER_ENTRY);
+        ChangedPathFilter filter = new ChangedPathFilter(maxDepth, new long[(numBits + 63) / 64]);
+        for (Set<List<String>> prefixes : prefixesByDepth) {
+            for (List<String> prefix : prefixes) {
+                filter.add(prefix);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * @return the length of the longest path prefixes added to the filter, {@code 0} meaning the
+     *         commit changed too many paths to tell any of them apart
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    private void add(final List<String> path) {
+        final long hash = hash(path);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        final long numBits = 64L * bits.length;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int combined = h1 + i * h2;
+            long bit = (combined & 0x7FFFFFFF) % numBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return {@code false} if the commit definitely did not change anything at or below
+     *         {@code path}, {@code true} if it might have
+     */
+    public boolean mightContain(final List<String> path) {
+        if (path.isEmpty() || maxDepth == 0) {
+            return true;
+        }
+        final List<String> prefix = path.size() > maxDepth ? path.subList(0, maxDepth) : path;
+        final long hash = hash(prefix);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        final long numBits = 64L * bits.length;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int combined = h1 + i * h2;
+            long bit = (combined & 0x7FFFFFFF) % numBits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 64-bit FNV-1a over the path components, with a zero char between them
+     */
+    private static long hash(final List<String> path) {
+        long hash = 0xcbf29ce484222325L;
+        for (String component : path) {
+            for (int i = 0; i < component.length(); i++) {
+                hash ^= component.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            // component separator
+            hash *= 0x100000001b3L;
+        }
+        // FNV-1a disperses the low bits poorly for short keys, finish with a mix step
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    void write(final DataOutput out) throws IOException {
+        out.writeByte(maxDepth);
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    static ChangedPathFilter read(final DataInput in) throws IOException {
+        final int maxDepth = in.readByte();
+        final int numWords = in.readInt();
+        long[] bits = new long[numWords];
+        for (int i = 0; i < numWords; i++) {
+            bits[i] = in.readLong();
+        }
+        return new ChangedPathFilter(maxDepth, bits);
+    }
+
+    /**
+     * @return the number of bytes {@link #write} takes
+     */
+    int serializedSize() {
+        return 1 + 4 + 8 * bits.length;
+    }
+}
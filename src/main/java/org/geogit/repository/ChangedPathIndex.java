@@ -0,0 +1,204 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.repository;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geogit.api.DiffEntry;
+import org.geogit.api.DiffTreeWalk;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.storage.ObjectDatabase;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+/**
+ * Holds the {@link ChangedPathFilter}s of the commits that have one, persisted next to the
+ * {@link CommitGraph} as an append-only file of {@code [20 bytes commit id][filter]} records.
+ *
+ * @author groldan
+ * @see Repository#getChangedPathIndex()
+ */
+public class ChangedPathIndex {
+
+    private static final Logger LOGGER = Logging.getLogger(ChangedPathIndex.class);
+
+    public static final String FILE_NAME = "commit-graph-paths";
+
+    /**
+     * "GGCP"
+     */
+    private static final int MAGIC = 0x47474350;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+
+    private final File file;
+
+    private DataOutputStream out;
+
+    private final Map<ObjectId, ChangedPathFilter> filters = new HashMap<ObjectId, ChangedPathFilter>();
+
+    /**
+     * @param file
+     *            the file where to persist the filters, or {@code null} to hold them in memory only
+     */
+    public ChangedPathIndex(final File file) {
+        this.file = file;
+        if (file != null) {
+            try {
+                open();
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        if (file.exists() && file.length() >= HEADER_SIZE) {
+            final long validLength = load();
+            if (validLength < file.length()) {
+                LOGGER.warning("Discarding truncated changed path records at the end of " + file);
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+        } else {
+            file.getParentFile().mkdirs();
+            DataOutputStream header = new DataOutputStream(new FileOutputStream(file));
+            try {
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+            } finally {
+                header.close();
+            }
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    private long load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IllegalStateException(file + " is not a changed paths file");
+            }
+            long validLength = HEADER_SIZE;
+            while (true) {
+                byte[] rawId = new byte[20];
+                ChangedPathFilter filter;
+                try {
+                    in.readFully(rawId);
+                    filter = ChangedPathFilter.read(in);
+                } catch (EOFException partialRecord) {
+                    break;
+                }
+                filters.put(new ObjectId(rawId), filter);
+                validLength += 20 + filter.serializedSize();
+            }
+            return validLength;
+        } finally {
+            in.close();
+        }
+    }
+
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error closing changed paths file " + file, e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * @return the filter of the given commit, or {@code null} if it hasn't been computed
+     */
+    public synchronized ChangedPathFilter get(final ObjectId commitId) {
+        return filters.get(commitId);
+    }
+
+    public synchronized boolean contains(final ObjectId commitId) {
+        return filters.containsKey(commitId);
+    }
+
+    /**
+     * Stores the filter for the given commit, unless it already has one.
+     */
+    public synchronized void put(final ObjectId commitId, final ChangedPathFilter filter) {
+        Preconditions.checkNotNull(commitId);
+        Preconditions.checkNotNull(filter);
+        if (filters.containsKey(commitId)) {
+            return;
+        }
+        filters.put(commitId, filter);
+        if (out != null) {
+            try {
+                out.write(commitId.getRawValue());
+                filter.write(out);
+                out.flush();
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    /**
+     * Computes and stores the filter of a commit by diffing its tree against the one of its first
+     * parent, unless it already has one.
+     *
+     * @return the commit's filter
+     */
+    public ChangedPathFilter index(final ObjectDatabase objectDb, final RevCommit commit) {
+        ChangedPathFilter filter = get(commit.getId());
+        if (filter == null) {
+            ObjectId parentTreeId = ObjectId.NULL;
+            final ObjectId parentId = commit.getParentIds().isEmpty() ? ObjectId.NULL : commit
+                    .getParentIds().get(0);
+            if (!parentId.isNull()) {
+                parentTreeId = objectDb.getCommit(parentId).getTreeId();
+            }
+            filter = index(objectDb, commit.getId(), parentTreeId, commit.getTreeId());
+        }
+        return filter;
+    }
+
+    /**
+     * Computes and stores the filter of a commit given the trees it changed from and to.
+     */
+    public ChangedPathFilter index(final ObjectDatabase objectDb, final ObjectId commitId,
+            final ObjectId oldTreeId, final ObjectId newTreeId) {
+        Ref oldTree = new Ref("", oldTreeId, TYPE.TREE);
+        Ref newTree = new Ref("", newTreeId, TYPE.TREE);
+        Iterator<DiffEntry> changes = new DiffTreeWalk(objectDb, oldTree, newTree).get();
+        ChangedPathFilter filter = ChangedPathFilter.build(changes);
+        put(commitId, filter);
+        return filter;
+    }
+}
@@ -0,0 +1,558 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.repository;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevCommit;
+import org.geogit.storage.ObjectDatabase;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * A compact representation of the commit history, used to answer ancestry questions without
+ * deserializing commits.
+ * <p>
+ * Each known commit gets a dense index, and its timestamp, generation number and the indexes of
+ * its parents are held in primitive arrays. The generation number of a root commit is {@code 1},
+ * and the one of any other commit is one more than the maximum generation of its parents, so a
+ * commit can only be an ancestor of commits with a greater generation number, which allows to
+ * prune most of the history when walking it.
+ * </p>
+ * <p>
+ * Commits are added lazily, the first time they or any of their descendants are queried, always
+ * after all of their parents. When backed by a file, every added commit is appended to it as
+ * {@code [20 bytes id][long timestamp][int parent count][int parent index]*}, so that indexes are
+ * stable and the generation numbers can be recomputed on load.
+ * </p>
+ *
+ * @author groldan
+ * @see Repository#getCommitGraph()
+ */
+public class CommitGraph {
+
+    private static final Logger LOGGER = Logging.getLogger(CommitGraph.class);
+
+    public static final String FILE_NAME = "commit-graph";
+
+    /**
+     * "GGCG"
+     */
+    private static final int MAGIC = 0x47474347;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ObjectDatabase objectDb;
+
+    private final File file;
+
+    private DataOutputStream out;
+
+    private final Map<ObjectId, Integer> indexes = new HashMap<ObjectId, Integer>();
+
+    private int size;
+
+    private ObjectId[] ids = new ObjectId[INITIAL_CAPACITY];
+
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+
+    private int[] generations = new int[INITIAL_CAPACITY];
+
+    /**
+     * The parents of commit {@code i} are {@code parents[parentOffsets[i]]} to
+     * {@code parents[parentOffsets[i + 1] - 1]}
+     */
+    private int[] parentOffsets = new int[INITIAL_CAPACITY + 1];
+
+    private int[] parents = new int[INITIAL_CAPACITY];
+
+    /**
+     * Creates a commit graph that's only held in memory.
+     */
+    public CommitGraph(final ObjectDatabase objectDb) {
+        this(objectDb, null);
+    }
+
+    /**
+     * @param objectDb
+     *            where to load the commits from
+     * @param file
+     *            the file where to persist the graph, or {@code null} to hold it in memory only
+     */
+    public CommitGraph(final ObjectDatabase objectDb, final File file) {
+        Preconditions.checkNotNull(objectDb);
+        this.objectDb = objectDb;
+        this.file = file;
+        if (file != null) {
+            try {
+                open();
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        long validLength = HEADER_SIZE;
+        if (file.exists() && file.length() >= HEADER_SIZE) {
+            validLength = load();
+            if (validLength < file.length()) {
+                LOGGER.warning("Discarding truncated commit graph records at the end of " + file);
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+        } else {
+            file.getParentFile().mkdirs();
+            DataOutputStream header = new DataOutputStream(new FileOutputStream(file));
+            try {
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+            } finally {
+                header.close();
+            }
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    /**
+     * @return the length of the valid part of the file
+     */
+    private long load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                file)));
+        try {
+            final int magic = in.readInt();
+            final int version = in.readInt();
+            if (magic != MAGIC || version != VERSION) {
+                throw new IllegalStateException(file + " is not a commit graph file");
+            }
+            long validLength = HEADER_SIZE;
+            byte[] rawId = new byte[20];
+            while (true) {
+                int[] parentIndexes;
+                long timestamp;
+                try {
+                    in.readFully(rawId);
+                    timestamp = in.readLong();
+                    int parentCount = in.readInt();
+                    parentIndexes = new int[parentCount];
+                    for (int i = 0; i < parentCount; i++) {
+                        parentIndexes[i] = in.readInt();
+                    }
+                } catch (EOFException partialRecord) {
+                    break;
+                }
+                for (int p : parentIndexes) {
+                    Preconditions.checkState(p >= 0 && p < size, "Corrupt commit graph file %s",
+                            file);
+                }
+                add(new ObjectId(rawId.clone()), timestamp, parentIndexes);
+                validLength += 20 + 8 + 4 + 4 * parentIndexes.length;
+            }
+            return validLength;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Releases the file this graph is persisted to, if any.
+     */
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error closing commit graph file " + file, e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * @return the number of commits currently held by this graph
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return whether {@code commitId} is already part of the graph, without adding it
+     */
+    public synchronized boolean contains(final ObjectId commitId) {
+        return indexes.containsKey(commitId);
+    }
+
+    public synchronized int getGeneration(final ObjectId commitId) {
+        return generations[indexOf(commitId)];
+    }
+
+    public synchronized long getTimestamp(final ObjectId commitId) {
+        return timestamps[indexOf(commitId)];
+    }
+
+    public synchronized List<ObjectId> getParents(final ObjectId commitId) {
+        final int index = indexOf(commitId);
+        List<ObjectId> parentIds = new ArrayList<ObjectId>(2);
+        for (int p = parentOffsets[index]; p < parentOffsets[index + 1]; p++) {
+            parentIds.add(ids[parents[p]]);
+        }
+        return parentIds;
+    }
+
+    /**
+     * @return the first parent of {@code commitId}, or {@link ObjectId#NULL} if it's a root commit
+     */
+    public synchronized ObjectId getFirstParent(final ObjectId commitId) {
+        final int index = indexOf(commitId);
+        if (parentOffsets[index] == parentOffsets[index + 1]) {
+            return ObjectId.NULL;
+        }
+        return ids[parents[parentOffsets[index]]];
+    }
+
+    /**
+     * @return {@code true} if {@code ancestor} is {@code descendant} or one of its ancestors
+     */
+    public synchronized boolean isAncestor(final ObjectId ancestor, final ObjectId descendant) {
+        Preconditions.checkNotNull(ancestor);
+        Preconditions.checkNotNull(descendant);
+        if (ancestor.equals(descendant)) {
+            return true;
+        }
+        if (ancestor.isNull() || descendant.isNull()) {
+            return false;
+        }
+        final int target = indexOf(ancestor);
+        final int start = indexOf(descendant);
+        final int minGeneration = generations[target];
+
+        BitSet visited = new BitSet(size);
+        int[] stack = new int[16];
+        int top = 0;
+        stack[top++] = start;
+        while (top > 0) {
+            final int current = stack[--top];
+            for (int p = parentOffsets[current]; p < parentOffsets[current + 1]; p++) {
+                final int parent = parents[p];
+                if (parent == target) {
+                    return true;
+                }
+                // a commit can't be an ancestor of one with the same or lower generation
+                if (generations[parent] > minGeneration && !visited.get(parent)) {
+                    visited.set(parent);
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, 2 * top);
+                    }
+                    stack[top++] = parent;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds a best common ancestor of two commits, that is, a common ancestor that's not an
+     * ancestor of any other common ancestor.
+     * <p>
+     * Both histories are walked in decreasing generation order, marking each commit with the side
+     * it's reachable from. Since all the descendants of a commit are visited before it, the first
+     * commit found reachable from both sides is a best common ancestor.
+     * </p>
+     *
+     * @return the merge base, or {@link ObjectId#NULL} if the two commits have no common history
+     */
+    public synchronized ObjectId mergeBase(final ObjectId left, final ObjectId right) {
+        Preconditions.checkNotNull(left);
+        Preconditions.checkNotNull(right);
+        if (left.isNull() || right.isNull()) {
+            return ObjectId.NULL;
+        }
+        if (left.equals(right)) {
+            return left;
+        }
+        final byte LEFT = 1, RIGHT = 2, BOTH = LEFT | RIGHT;
+        final int leftIndex = indexOf(left);
+        final int rightIndex = indexOf(right);
+
+        final byte[] flags = new byte[size];
+        PriorityQueue<Integer> queue = new PriorityQueue<Integer>(16, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return generations[o2.intValue()] - generations[o1.intValue()];
+            }
+        });
+        flags[leftIndex] |= LEFT;
+        flags[rightIndex] |= RIGHT;
+        queue.add(Integer.valueOf(leftIndex));
+        queue.add(Integer.valueOf(rightIndex));
+
+        final BitSet queued = new BitSet(size);
+        queued.set(leftIndex);
+        queued.set(rightIndex);
+        while (!queue.isEmpty()) {
+            final int current = queue.poll().intValue();
+            final byte currentFlags = flags[current];
+            if (currentFlags == BOTH) {
+                return ids[current];
+            }
+            for (int p = parentOffsets[current]; p < parentOffsets[current + 1]; p++) {
+                final int parent = parents[p];
+                flags[parent] |= currentFlags;
+                if (!queued.get(parent)) {
+                    queued.set(parent);
+                    queue.add(Integer.valueOf(parent));
+                }
+            }
+        }
+        return ObjectId.NULL;
+    }
+
+    /**
+     * Computes the commits reachable from any of {@code wants} that are not reachable from any of
+     * {@code haves}, as needed to tell which commits a peer that has {@code haves} is missing.
+     * <p>
+     * Both sets of histories are walked together in decreasing generation order, propagating the
+     * "reachable from a have" mark to parents, and the walk stops as soon as every pending commit
+     * is reachable from a have, so the cost tracks the number of missing commits rather than the
+     * length of the history.
+     * </p>
+     *
+     * @return the missing commits, descendants before their ancestors
+     */
+    public synchronized List<ObjectId> missingCommits(final Collection<ObjectId> wants,
+            final Collection<ObjectId> haves) {
+        final byte WANT = 1, HAVE = 2, QUEUED = 4;
+        PriorityQueue<Integer> queue = new PriorityQueue<Integer>(16, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return generations[o2.intValue()] - generations[o1.intValue()];
+            }
+        });
+
+        // resolve everything first, as it may grow the graph
+        List<Integer> wantIndexes = new ArrayList<Integer>(wants.size());
+        for (ObjectId want : wants) {
+            if (!want.isNull()) {
+                wantIndexes.add(Integer.valueOf(indexOf(want)));
+            }
+        }
+        List<Integer> haveIndexes = new ArrayList<Integer>(haves.size());
+        for (ObjectId have : haves) {
+            if (!have.isNull()) {
+                haveIndexes.add(Integer.valueOf(indexOf(have)));
+            }
+        }
+        final byte[] marks = new byte[size];
+
+        int pendingInteresting = 0;
+        for (Integer have : haveIndexes) {
+            if ((marks[have.intValue()] & QUEUED) == 0) {
+                marks[have.intValue()] = (byte) (HAVE | QUEUED);
+                queue.add(have);
+            }
+        }
+        for (Integer want : wantIndexes) {
+            final int w = want.intValue();
+            if ((marks[w] & QUEUED) == 0) {
+                marks[w] = (byte) (WANT | QUEUED);
+                queue.add(want);
+                pendingInteresting++;
+            }
+        }
+
+        List<ObjectId> missing = new ArrayList<ObjectId>();
+        while (pendingInteresting > 0) {
+            final int current = queue.poll().intValue();
+            final byte currentFlags = marks[current];
+            if ((currentFlags & HAVE) == 0) {
+                pendingInteresting--;
+                missing.add(ids[current]);
+            }
+            for (int p = parentOffsets[current]; p < parentOffsets[current + 1]; p++) {
+                final int parent = parents[p];
+                final byte parentFlags = marks[parent];
+                final byte newFlags = (byte) (parentFlags | (currentFlags & (WANT | HAVE)) | QUEUED);
+                if ((parentFlags & QUEUED) == 0) {
+                    queue.add(Integer.valueOf(parent));
+                    if ((newFlags & HAVE) == 0) {
+                        pendingInteresting++;
+                    }
+                } else if ((parentFlags & HAVE) == 0 && (newFlags & HAVE) != 0) {
+                    pendingInteresting--;
+                }
+                marks[parent] = newFlags;
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Returns the ids of {@code tip} and its first parent ancestors, most recent first, without
+     * deserializing any commit that's already part of the graph.
+     */
+    public Iterator<ObjectId> firstParentHistory(final ObjectId tip) {
+        Preconditions.checkNotNull(tip);
+        if (tip.isNull()) {
+            return Collections.<ObjectId> emptyList().iterator();
+        }
+        return new AbstractIterator<ObjectId>() {
+
+            private int next = resolve(tip);
+
+            @Override
+            protected ObjectId computeNext() {
+                synchronized (CommitGraph.this) {
+                    if (next < 0) {
+                        return endOfData();
+                    }
+                    final int current = next;
+                    final int firstParent = parentOffsets[current];
+                    next = firstParent == parentOffsets[current + 1] ? -1 : parents[firstParent];
+                    return ids[current];
+                }
+            }
+        };
+    }
+
+    private synchronized int resolve(final ObjectId commitId) {
+        return indexOf(commitId);
+    }
+
+    /**
+     * Returns the index of the given commit, adding it and any of its ancestors not yet in the
+     * graph.
+     */
+    private int indexOf(final ObjectId commitId) {
+        Preconditions.checkNotNull(commitId);
+        Preconditions.checkArgument(!commitId.isNull(), "The null id is not a commit");
+        Integer index = indexes.get(commitId);
+        if (index != null) {
+            return index.intValue();
+        }
+        try {
+            addWithAncestors(commitId);
+            if (out != null) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        return indexes.get(commitId).intValue();
+    }
+
+    /**
+     * Adds {@code commitId} and its missing ancestors, parents first, without recursion.
+     */
+    private void addWithAncestors(final ObjectId commitId) throws IOException {
+        LinkedList<RevCommit> pending = new LinkedList<RevCommit>();
+        pending.push(getCommit(commitId));
+        while (!pending.isEmpty()) {
+            final RevCommit commit = pending.peek();
+            if (indexes.containsKey(commit.getId())) {
+                // reached through more than one path
+                pending.pop();
+                continue;
+            }
+            boolean parentsResolved = true;
+            for (ObjectId parentId : commit.getParentIds()) {
+                if (!parentId.isNull() && !indexes.containsKey(parentId)) {
+                    pending.push(getCommit(parentId));
+                    parentsResolved = false;
+                }
+            }
+            if (!parentsResolved) {
+                continue;
+            }
+            pending.pop();
+            List<ObjectId> parentIds = commit.getParentIds();
+            int[] parentIndexes = new int[parentIds.size()];
+            int parentCount = 0;
+            for (ObjectId parentId : parentIds) {
+                if (!parentId.isNull()) {
+                    parentIndexes[parentCount++] = indexes.get(parentId).intValue();
+                }
+            }
+            parentIndexes = Arrays.copyOf(parentIndexes, parentCount);
+            add(commit.getId(), commit.getTimestamp(), parentIndexes);
+            if (out != null) {
+                out.write(commit.getId().getRawValue());
+                out.writeLong(commit.getTimestamp());
+                out.writeInt(parentIndexes.length);
+                for (int p : parentIndexes) {
+                    out.writeInt(p);
+                }
+            }
+        }
+    }
+
+    private RevCommit getCommit(final ObjectId commitId) {
+        RevCommit commit = objectDb.getCommit(commitId);
+        Preconditions.checkArgument(commit != null, "Commit %s does not exist", commitId);
+        return commit;
+    }
+
+    private void add(final ObjectId id, final long timestamp, final int[] parentIndexes) {
+        final int index = size;
+        if (index == ids.length) {
+            final int capacity = 2 * ids.length;
+            ids = Arrays.copyOf(ids, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            generations = Arrays.copyOf(generations, capacity);
+            parentOffsets = Arrays.copyOf(parentOffsets, capacity + 1);
+        }
+        final int parentsStart = parentOffsets[index];
+        final int parentsEnd = parentsStart + parentIndexes.length;
+        if (parentsEnd > parents.length) {
+            parents = Arrays.copyOf(parents, Math.max(parentsEnd, 2 * parents.length));
+        }
+        int generation = 1;
+        for (int i = 0; i < parentIndexes.length; i++) {
+            parents[parentsStart + i] = parentIndexes[i];
+            generation = Math.max(generation, generations[parentIndexes[i]] + 1);
+        }
+        ids[index] = id;
+        timestamps[index] = timestamp;
+        generations[index] = generation;
+        parentOffsets[index + 1] = parentsEnd;
+        indexes.put(id, Integer.valueOf(index));
+        size++;
+    }
+}
@@ -1,13 +1,17 @@
 package org.geogit.repository;
 
-import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import org.geogit.api.DiffEntry;
 import org.geogit.api.DiffEntry.ChangeType;
@@ -19,9 +23,9 @@ import org.geogit.api.RevObject.TYPE;
 import org.geogit.api.RevTree;
 import org.geogit.api.SpatialRef;
 import org.geogit.api.TreeVisitor;
+import org.geogit.storage.BatchObjectInserter;
 import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.ObjectWriter;
-import org.geogit.storage.RawObjectWriter;
 import org.geogit.storage.StagingDatabase;
 import org.geogit.storage.WrappedSerialisingFactory;
 import org.geotools.util.NullProgressListener;
@@ -199,32 +203,39 @@ public class Index implements StagingArea {
         Triplet<ObjectWriter<?>, BoundingBox, List<String>> triplet;
         int count = 0;
 
-        while (objects.hasNext()) {
-            count++;
-            if (progress.isCanceled()) {
-                return Collections.emptyList();
-            }
-            if (size != null) {
-                progress.progress((float) (count * 100) / size.intValue());
-            }
+        final BatchObjectInserter objectInserter = indexDatabase.getObjectDatabase()
+                .newBatchInserter();
+        try {
+            while (objects.hasNext()) {
+                count++;
+                if (progress.isCanceled()) {
+                    return Collections.emptyList();
+                }
+                if (size != null) {
+                    progress.progress((float) (count * 100) / size.intValue());
+                }
 
-            triplet = objects.next();
-            ObjectWriter<?> object = triplet.getFirst();
-            BoundingBox bounds = triplet.getMiddle();
-            List<String> path = triplet.getLast();
+                triplet = objects.next();
+                ObjectWriter<?> object = triplet.getFirst();
+                BoundingBox bounds = triplet.getMiddle();
+                List<String> path = triplet.getLast();
 
-            final String nodeId = path.get(path.size() - 1);
+                final String nodeId = path.get(path.size() - 1);
 
-            ObjectId objectId = indexDatabase.getObjectDatabase().put(object);
-            Ref objectRef;
-            if (bounds == null) {
-                objectRef = new Ref(nodeId, objectId, TYPE.BLOB);
-            } else {
-                objectRef = new SpatialRef(nodeId, objectId, TYPE.BLOB, bounds);
+                ObjectId objectId = objectInserter.insert(object);
+                Ref objectRef;
+                if (bounds == null) {
+                    objectRef = new Ref(nodeId, objectId, TYPE.BLOB);
+                } else {
+                    objectRef = new SpatialRef(nodeId, objectId, TYPE.BLOB, bounds);
+                }
+                inserted.add(objectRef);
+                DiffEntry diffEntry = DiffEntry.newInstance(null, null, null, objectRef, path);
+                indexDatabase.putUnstaged(diffEntry);
             }
-            inserted.add(objectRef);
-            DiffEntry diffEntry = DiffEntry.newInstance(null, null, null, objectRef, path);
-            indexDatabase.putUnstaged(diffEntry);
+        } finally {
+            // unstaged entries may already reference the pending objects
+            objectInserter.close();
         }
         progress.complete();
         return inserted;
@@ -233,17 +244,8 @@ public class Index implements StagingArea {
     @Override
     public void stage(final ProgressListener progress, final String... path) throws Exception {
         List<String> path2 = path == null ? null : Arrays.asList(path);
-        final int numChanges = indexDatabase.countUnstaged(path2);
-        int i = 0;
         progress.started();
-        Iterator<DiffEntry> unstaged = indexDatabase.getUnstaged(path2);
-        while (unstaged.hasNext()) {
-            i++;
-            progress.progress((float) (i * 100) / numChanges);
-
-            DiffEntry entry = unstaged.next();
-            indexDatabase.stage(entry);
-        }
+        indexDatabase.stageAll(path2, progress);
         progress.complete();
     }
 
@@ -303,56 +305,67 @@ public class Index implements StagingArea {
 
         Iterator<DiffEntry> staged = indexDatabase.getStaged(pathFilter);
 
+        // changed trees by path, the empty path being the root
         Map<List<String>, MutableTree> changedTrees = new HashMap<List<String>, MutableTree>();
+        changedTrees.put(Collections.<String> emptyList(), oldRoot.mutable());
 
-        DiffEntry diffEntry;
-        int i = 0;
-        while (staged.hasNext()) {
-            progress.progress((float) (++i * 100) / numChanges);
-            if (progress.isCanceled()) {
-                return null;
-            }
+        final ObjectMover mover = new ObjectMover(indexDatabase, repositoryDatabase);
+        try {
+            // staged entries are sorted by path, so the ones with the same parent come together
+            List<String> parentPath = null;
+            MutableTree parentTree = null;
+
+            DiffEntry diffEntry;
+            int i = 0;
+            while (staged.hasNext()) {
+                progress.progress((float) (++i * 100) / numChanges);
+                if (progress.isCanceled()) {
+                    return null;
+                }
 
-            diffEntry = staged.next();
+                diffEntry = staged.next();
 
-            final List<String> entryPath = diffEntry.getPath();
+                final List<String> entryPath = diffEntry.getPath();
 
-            final List<String> entryParentPath = entryPath.subList(0, entryPath.size() - 1);
-            MutableTree parentTree = changedTrees.get(entryParentPath);
-            if (parentTree == null) {
-                parentTree = repositoryDatabase.getOrCreateSubTree(oldRoot, entryParentPath);
-                changedTrees.put(entryParentPath, parentTree);
+                final List<String> entryParentPath = entryPath.subList(0, entryPath.size() - 1);
+                if (!entryParentPath.equals(parentPath)) {
+                    parentPath = entryParentPath;
+                    parentTree = changedTrees.get(entryParentPath);
+                    if (parentTree == null) {
+                        parentTree = repositoryDatabase.getOrCreateSubTree(oldRoot,
+                                entryParentPath);
+                        changedTrees.put(entryParentPath, parentTree);
+                    }
+                }
+
+                final Ref oldObject = diffEntry.getOldObject();
+                final Ref newObject = diffEntry.getNewObject();
+                final ChangeType type = diffEntry.getType();
+                switch (type) {
+                case ADD:
+                case MODIFY:
+                    parentTree.put(newObject);
+                    mover.move(newObject);
+                    break;
+                case DELETE:
+                    parentTree.remove(oldObject.getName());
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown change type " + type + " for diff "
+                            + diffEntry);
+                }
             }
 
-            final Ref oldObject = diffEntry.getOldObject();
-            final Ref newObject = diffEntry.getNewObject();
-            final ChangeType type = diffEntry.getType();
-            switch (type) {
-            case ADD:
-            case MODIFY:
-                parentTree.put(newObject);
-                deepMove(newObject, indexDatabase, repositoryDatabase);
-                break;
-            case DELETE:
-                parentTree.remove(oldObject.getName());
-                break;
-            default:
-                throw new IllegalStateException("Unknown change type " + type + " for diff "
-                        + diffEntry);
+            if (progress.isCanceled()) {
+                return null;
             }
+            mover.flush();
+        } finally {
+            mover.close();
         }
 
-        if (progress.isCanceled()) {
-            return null;
-        }
-        // now write back all changed trees
-        ObjectId newTargetRootId = toTreeId;
-        for (Map.Entry<List<String>, MutableTree> e : changedTrees.entrySet()) {
-            List<String> treePath = e.getKey();
-            MutableTree tree = e.getValue();
-            RevTree newRoot = repositoryDatabase.getTree(newTargetRootId);
-            newTargetRootId = repositoryDatabase.writeBack(newRoot.mutable(), tree, treePath);
-        }
+        final ObjectId newTargetRootId = writeChangedTrees(repositoryDatabase, oldRoot,
+                changedTrees);
 
         indexDatabase.removeStaged(pathFilter);
 
@@ -362,48 +375,164 @@ public class Index implements StagingArea {
     }
 
     /**
-     * Transfers the object referenced by {@code objectRef} from the given object database to the
-     * given objectInserter as well as any child object if {@code objectRef} references a tree.
+     * Writes the changed trees bottom up, each one once its changed children are in place, adding
+     * to the changed trees the ancestors that weren't.
      * 
-     * @param newObject
-     * @param repositoryObjectInserter
-     * @throws Exception
+     * @param changedTrees
+     *            the changed trees by path, including the root as the empty path
+     * @return the id of the new root tree
+     */
+    private ObjectId writeChangedTrees(final ObjectDatabase db, final RevTree oldRoot,
+            final Map<List<String>, MutableTree> changedTrees) throws Exception {
+
+        final WrappedSerialisingFactory factory = WrappedSerialisingFactory.getInstance();
+        final SortedMap<List<String>, MutableTree> pending;
+        pending = new TreeMap<List<String>, MutableTree>(DEEPEST_FIRST);
+        pending.putAll(changedTrees);
+
+        while (true) {
+            final List<String> path = pending.firstKey();
+            final MutableTree tree = pending.remove(path);
+            final ObjectId treeId = db.put(factory.createRevTreeWriter(tree));
+            if (path.isEmpty()) {
+                // the root goes last
+                return treeId;
+            }
+            final List<String> parentPath = path.subList(0, path.size() - 1);
+            MutableTree parent = pending.get(parentPath);
+            if (parent == null) {
+                parent = db.getOrCreateSubTree(oldRoot, parentPath);
+                pending.put(parentPath, parent);
+            }
+            parent.put(new Ref(path.get(path.size() - 1), treeId, TYPE.TREE));
+        }
+    }
+
+    /**
+     * Orders paths from the deepest to the root, and the ones at the same depth by their elements
+     */
+    private static final Comparator<List<String>> DEEPEST_FIRST = new Comparator<List<String>>() {
+        @Override
+        public int compare(final List<String> p1, final List<String> p2) {
+            if (p1.size() != p2.size()) {
+                return p1.size() > p2.size() ? -1 : 1;
+            }
+            for (int i = 0; i < p1.size(); i++) {
+                final String e1 = p1.get(i);
+                final String e2 = p2.get(i);
+                if (e1 == null || e2 == null) {
+                    if (e1 != e2) {
+                        return e1 == null ? -1 : 1;
+                    }
+                    continue;
+                }
+                final int c = e1.compareTo(e2);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * Moves objects and, for trees, everything they reference, from one object database to
+     * another in batches. Each batch is copied in its stored representation and written to the
+     * target before being deleted from the source.
+     * <p>
+     * Batches are flushed halfway through a tree as well, so at most {@link #BATCH_SIZE} objects
+     * plus the ids of the trees being walked are held in memory. A tree and its bucket subtrees
+     * are only scheduled once their walk is complete, since they're read from the source.
      */
-    private void deepMove(final Ref objectRef, final ObjectDatabase from, final ObjectDatabase to)
-            throws Exception {
+    private static class ObjectMover {
 
-        final InputStream raw = from.getRaw(objectRef.getObjectId());
-        final ObjectId insertedId;
-        try {
-            insertedId = to.put(new RawObjectWriter(raw));
-            from.delete(objectRef.getObjectId());
+        private static final int BATCH_SIZE = BatchObjectInserter.DEFAULT_MAX_OBJECTS;
 
-            Preconditions.checkState(objectRef.getObjectId().equals(insertedId));
-            Preconditions.checkState(to.exists(insertedId));
+        private final ObjectDatabase from;
 
-        } finally {
-            raw.close();
+        private final ObjectDatabase to;
+
+        private final BatchObjectInserter inserter;
+
+        private final Set<ObjectId> pending = new LinkedHashSet<ObjectId>();
+
+        public ObjectMover(final ObjectDatabase from, final ObjectDatabase to) {
+            this.from = from;
+            this.to = to;
+            this.inserter = to.newBatchInserter();
         }
 
-        if (TYPE.TREE.equals(objectRef.getType())) {
-            RevTree tree = from.getTree(objectRef.getObjectId());
+        /**
+         * Schedules the object referenced by {@code objectRef} to be moved, as well as any child
+         * object if it references a tree.
+         */
+        public void move(final Ref objectRef) throws Exception {
+            if (TYPE.TREE.equals(objectRef.getType())) {
+                moveTree(objectRef.getObjectId());
+            } else {
+                schedule(objectRef.getObjectId());
+            }
+        }
+
+        private void moveTree(final ObjectId treeId) throws Exception {
+            final List<ObjectId> subtrees = new LinkedList<ObjectId>();
+            RevTree tree = from.getTree(treeId);
             tree.accept(new TreeVisitor() {
 
                 @Override
                 public boolean visitEntry(final Ref ref) {
                     try {
-                        deepMove(ref, from, to);
+                        move(ref);
                     } catch (Exception e) {
-                        Throwables.propagate(e);
+                        throw Throwables.propagate(e);
                     }
                     return true;
                 }
 
                 @Override
-                public boolean visitSubTree(int bucket, ObjectId treeId) {
+                public boolean visitSubTree(int bucket, ObjectId subtreeId) {
+                    subtrees.add(subtreeId);
                     return true;
                 }
             });
+            for (ObjectId subtreeId : subtrees) {
+                schedule(subtreeId);
+            }
+            schedule(treeId);
+        }
+
+        private void schedule(final ObjectId id) throws Exception {
+            pending.add(id);
+            if (pending.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Moves the objects pending to be moved
+         */
+        public void flush() throws Exception {
+            if (pending.isEmpty()) {
+                return;
+            }
+            final int found = inserter.insertAll(from, pending);
+            if (found != pending.size()) {
+                // objects referenced more than once may have been moved by an earlier batch
+                for (ObjectId id : pending) {
+                    Preconditions.checkArgument(from.exists(id) || to.exists(id),
+                            "object to move does not exist: %s", id);
+                }
+            }
+            inserter.flush();
+            from.deleteAll(pending);
+            pending.clear();
+        }
+
+        /**
+         * Disposes the inserter. Objects still pending are left in the source database.
+         */
+        public void close() throws Exception {
+            inserter.close();
         }
     }
 
@@ -0,0 +1,118 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.repository;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.geogit.storage.EncodedObject;
+import org.geogit.storage.ObjectWriter;
+import org.opengis.geometry.BoundingBox;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Iterator decorator that encodes (serializes, compresses and hashes) the objects of the wrapped
+ * iterator on a pool of worker threads, and returns them as {@link EncodedObject}s in their
+ * original order.
+ * <p>
+ * The wrapped iterator is only accessed from the thread consuming this iterator, and at most a
+ * bounded number of objects are being encoded ahead of the consumer at any time. The consumer
+ * (usually {@link StagingArea#inserted(Iterator, org.opengis.util.ProgressListener, Integer)}) acts
+ * as the single writer stage, storing the already encoded objects.
+ * </p>
+ * <p>
+ * {@link #close()} must be called once done, whether the iterator was exhausted or not, in order
+ * to release the worker threads.
+ * </p>
+ * 
+ * @author groldan
+ */
+class ParallelEncodingIterator extends
+        AbstractIterator<Triplet<ObjectWriter<?>, BoundingBox, List<String>>> {
+
+    private final Iterator<Triplet<ObjectWriter<?>, BoundingBox, List<String>>> source;
+
+    private final ExecutorService executor;
+
+    private final int maxPending;
+
+    private final LinkedList<Future<Triplet<ObjectWriter<?>, BoundingBox, List<String>>>> pending;
+
+    /**
+     * @param source
+     *            the objects to encode
+     * @param threads
+     *            number of worker threads
+     */
+    public ParallelEncodingIterator(
+            final Iterator<Triplet<ObjectWriter<?>, BoundingBox, List<String>>> source,
+            final int threads) {
+        Preconditions.checkNotNull(source);
+        Preconditions.checkArgument(threads > 0, "threads shall be positive");
+        this.source = source;
+        this.maxPending = 4 * threads;
+        this.pending = new LinkedList<Future<Triplet<ObjectWriter<?>, BoundingBox, List<String>>>>();
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("geogit-encoder-%d").build());
+    }
+
+    @Override
+    protected Triplet<ObjectWriter<?>, BoundingBox, List<String>> computeNext() {
+        while (pending.size() < maxPending && source.hasNext()) {
+            final Triplet<ObjectWriter<?>, BoundingBox, List<String>> triplet = source.next();
+            pending.add(executor.submit(new EncodeTask(triplet)));
+        }
+        final Future<Triplet<ObjectWriter<?>, BoundingBox, List<String>>> next = pending.poll();
+        if (next == null) {
+            return endOfData();
+        }
+        try {
+            return next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Cancels any pending encoding task and shuts down the worker threads.
+     */
+    public void close() {
+        for (Future<?> f : pending) {
+            f.cancel(true);
+        }
+        pending.clear();
+        executor.shutdownNow();
+    }
+
+    private static class EncodeTask implements
+            Callable<Triplet<ObjectWriter<?>, BoundingBox, List<String>>> {
+
+        private final Triplet<ObjectWriter<?>, BoundingBox, List<String>> triplet;
+
+        public EncodeTask(final Triplet<ObjectWriter<?>, BoundingBox, List<String>> triplet) {
+            this.triplet = triplet;
+        }
+
+        @Override
+        public Triplet<ObjectWriter<?>, BoundingBox, List<String>> call() throws Exception {
+            EncodedObject encoded = EncodedObject.encode(triplet.getFirst());
+            return new Triplet<ObjectWriter<?>, BoundingBox, List<String>>(encoded,
+                    triplet.getMiddle(), triplet.getLast());
+        }
+    }
+}
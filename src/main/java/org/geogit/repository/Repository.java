@@ -19,11 +19,14 @@ import org.geogit.api.RevObject;
 import org.geogit.api.RevTag;
 import org.geogit.api.RevTree;
 import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.BatchObjectInserter;
 import org.geogit.storage.ObjectInserter;
+import org.geogit.storage.ObjectSerialisingFactory;
 import org.geogit.storage.ObjectReader;
 import org.geogit.storage.RefDatabase;
 import org.geogit.storage.RepositoryDatabase;
 import org.geogit.storage.WrappedSerialisingFactory;
+import org.geotools.factory.Hints;
 import org.geotools.util.logging.Logging;
 import org.opengis.feature.Feature;
 import org.opengis.feature.type.FeatureType;
@@ -57,6 +60,10 @@ public class Repository {
      * This is stored here for the convenience of knowing where to load the configuration file from
      */
     private final File repositoryHome;
+
+    private CommitGraph commitGraph;
+
+    private ChangedPathIndex changedPathIndex;
     
     public Repository(final RepositoryDatabase repoDb, File envHome) {
         Preconditions.checkNotNull(repoDb);
@@ -84,6 +91,16 @@ public class Repository {
     }
 
     public void close() {
+        synchronized (this) {
+            if (commitGraph != null) {
+                commitGraph.close();
+                commitGraph = null;
+            }
+            if (changedPathIndex != null) {
+                changedPathIndex.close();
+                changedPathIndex = null;
+            }
+        }
         repoDb.close();
     }
 
@@ -188,11 +205,9 @@ public class Repository {
         return getRef(Ref.HEAD);
     }
 
-    public synchronized Ref updateRef(final Ref ref) {
+    public Ref updateRef(final Ref ref) {
         boolean updated = getRefDatabase().put(ref);
         Preconditions.checkState(updated);
-        Ref ref2 = getRef(ref.getName());
-        Preconditions.checkState(ref.equals(ref2));
         return ref;
     }
 
@@ -208,6 +223,36 @@ public class Repository {
         return true;
     }
 
+    /**
+     * @return the commit graph used to answer ancestry queries, persisted in the repository home
+     *         directory if there's one
+     */
+    public synchronized CommitGraph getCommitGraph() {
+        if (commitGraph == null) {
+            File graphFile = null;
+            if (repositoryHome != null) {
+                graphFile = new File(repositoryHome, CommitGraph.FILE_NAME);
+            }
+            commitGraph = new CommitGraph(getObjectDatabase(), graphFile);
+        }
+        return commitGraph;
+    }
+
+    /**
+     * @return the changed path filters of the commits, stored alongside the
+     *         {@link #getCommitGraph() commit graph}
+     */
+    public synchronized ChangedPathIndex getChangedPathIndex() {
+        if (changedPathIndex == null) {
+            File indexFile = null;
+            if (repositoryHome != null) {
+                indexFile = new File(repositoryHome, ChangedPathIndex.FILE_NAME);
+            }
+            changedPathIndex = new ChangedPathIndex(indexFile);
+        }
+        return changedPathIndex;
+    }
+
     public RevCommit getCommit(final ObjectId commitId) {
         Preconditions.checkNotNull(commitId, "commitId");
         return getObjectDatabase().getCommit(commitId);
@@ -269,9 +314,18 @@ public class Repository {
         return getObjectDatabase().newObjectInserter();
     }
 
+    /**
+     * @return a {@link BatchObjectInserter} to insert objects into the object database in
+     *         batches, which shall be closed for the objects to be found in the database
+     */
+    public BatchObjectInserter newBatchInserter() {
+        return getObjectDatabase().newBatchInserter();
+    }
+
     public Feature getFeature(final FeatureType featureType, final String featureId,
             final ObjectId contentId) {
-        ObjectReader<Feature> reader = WrappedSerialisingFactory.getInstance().createFeatureReader(featureType, featureId);
+        Hints hints = new Hints(ObjectSerialisingFactory.SCHEMA_DATABASE, getObjectDatabase());
+        ObjectReader<Feature> reader = WrappedSerialisingFactory.getInstance().createFeatureReader(featureType, featureId, hints);
 //        BxmlFeatureReader reader = new BxmlFeatureReader(featureType, featureId);
         Feature feature;
         try {
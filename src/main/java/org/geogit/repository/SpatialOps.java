@@ -14,6 +14,7 @@ import org.opengis.geometry.Envelope;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.MathTransform;
 
+import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
@@ -29,6 +30,29 @@ public class SpatialOps {
 
     private static final GeometryFactory gfac = new GeometryFactory();
 
+    /**
+     * Returns a predicate that accepts the {@link SpatialRef}s whose bounds intersect
+     * {@code bounds}, comparing ordinates only.
+     */
+    public static Predicate<Ref> intersects(final BoundingBox bounds) {
+        final double minx = bounds.getMinX();
+        final double miny = bounds.getMinY();
+        final double maxx = bounds.getMaxX();
+        final double maxy = bounds.getMaxY();
+        final boolean empty = bounds.isEmpty();
+        return new Predicate<Ref>() {
+            @Override
+            public boolean apply(final Ref ref) {
+                if (empty || !(ref instanceof SpatialRef)) {
+                    return false;
+                }
+                BoundingBox b = ((SpatialRef) ref).getBounds();
+                return b != null && !b.isEmpty() && b.getMinX() <= maxx && b.getMaxX() >= minx
+                        && b.getMinY() <= maxy && b.getMaxY() >= miny;
+            }
+        };
+    }
+
     /**
      * @param target
      *            bounds to be expanded (or created if null) to include {@code include} and then be
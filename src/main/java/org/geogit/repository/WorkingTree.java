@@ -74,6 +74,12 @@ public class WorkingTree {
 
     private final Repository repository;
 
+    /**
+     * Number of threads used to encode features on insert/update, {@code 1} meaning encoding
+     * happens on the calling thread
+     */
+    private int encodingThreads = 1;
+
     private static final FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2(null);
 
     private static class RefToResourceId implements Function<Ref, FeatureId> {
@@ -92,11 +98,46 @@ public class WorkingTree {
         Preconditions.checkState(index != null);
     }
 
+    /**
+     * Sets the number of threads used to serialize, compress and hash features on
+     * {@link #insert insert} and {@link #update update}. With more than one thread objects are
+     * encoded in parallel while still being written to the index in the order they're provided.
+     * 
+     * @param encodingThreads
+     *            number of worker threads, {@code 1} (the default) to encode on the calling thread
+     */
+    public void setEncodingThreads(final int encodingThreads) {
+        Preconditions.checkArgument(encodingThreads > 0, "encodingThreads shall be positive");
+        this.encodingThreads = encodingThreads;
+    }
+
+    public int getEncodingThreads() {
+        return encodingThreads;
+    }
+
     public void init(final FeatureType featureType) throws Exception {
 
         final Name typeName = featureType.getName();
         List<String> path = Arrays.asList(typeName.getNamespaceURI(), typeName.getLocalPart());
         index.created(path);
+        storeSchema(featureType);
+    }
+
+    /**
+     * Stores the schema object features of the given type refer to, if the serialisation format
+     * has them.
+     * <p>
+     * Schemas go straight to the repository object database rather than the index, as they're not
+     * reachable from any tree and hence wouldn't be moved there on commit.
+     * </p>
+     */
+    private void storeSchema(final FeatureType featureType) throws Exception {
+        final WrappedSerialisingFactory factory = WrappedSerialisingFactory.getInstance();
+        if (featureType == null || !factory.supportsSchemas(featureType)) {
+            return;
+        }
+        final ObjectWriter<FeatureType> schemaWriter = factory.createFeatureTypeWriter(featureType);
+        repository.getObjectDatabase().put(schemaWriter);
     }
 
     public void delete(final Name typeName) throws Exception {
@@ -135,15 +176,23 @@ public class WorkingTree {
             final boolean forceUseProvidedFID, final ProgressListener listener) throws Exception {
 
         final int size = features.size();
+        storeSchema(features.getSchema());
 
         List<Ref> refs;
         Iterator<Feature> iterator = features.iterator();
+        ParallelEncodingIterator pipeline = null;
         try {
             Iterator<Triplet<ObjectWriter<?>, BoundingBox, List<String>>> objects;
             objects = Iterators.transform(iterator, new FeatureInserter(forceUseProvidedFID));
+            if (encodingThreads > 1) {
+                objects = pipeline = new ParallelEncodingIterator(objects, encodingThreads);
+            }
 
             refs = index.inserted(objects, listener, size <= 0 ? null : size);
         } finally {
+            if (pipeline != null) {
+                pipeline.close();
+            }
             features.close(iterator);
         }
         List<FeatureId> inserted = Lists.transform(refs, new RefToResourceId());
@@ -190,15 +239,23 @@ public class WorkingTree {
             throws Exception {
 
         final int size = newValues.size();
+        storeSchema(newValues.getSchema());
 
         Iterator<Feature> features = newValues.iterator();
+        ParallelEncodingIterator pipeline = null;
         try {
             Iterator<Triplet<ObjectWriter<?>, BoundingBox, List<String>>> objects;
             final boolean forceUseProvidedFID = true;
             objects = Iterators.transform(features, new FeatureInserter(forceUseProvidedFID));
+            if (encodingThreads > 1) {
+                objects = pipeline = new ParallelEncodingIterator(objects, encodingThreads);
+            }
 
             index.inserted(objects, listener, size <= 0 ? null : size);
         } finally {
+            if (pipeline != null) {
+                pipeline.close();
+            }
             newValues.close(features);
         }
     }
@@ -387,6 +444,34 @@ public class WorkingTree {
             return diffed;
         }
 
+        /**
+         * Queries the head version of the tree, which may be spatially indexed, discarding the
+         * staged deletes and updates, and adds the staged inserts and updates that intersect
+         * {@code bounds}.
+         */
+        @Override
+        public Iterator<Ref> iterator(final BoundingBox bounds, final Predicate<Ref> filter) {
+            Iterator<Ref> current = typeTree.iterator(bounds, null);
+            current = Iterators.filter(current, new Predicate<Ref>() {
+                @Override
+                public boolean apply(Ref input) {
+                    String name = input.getName();
+                    return !deletes.contains(name) && !updates.containsKey(name);
+                }
+            });
+
+            final Predicate<Ref> intersects = SpatialOps.intersects(bounds);
+            Iterator<Ref> staged = Iterators.filter(
+                    Iterators.concat(inserts.values().iterator(), updates.values().iterator()),
+                    intersects);
+
+            Iterator<Ref> diffed = Iterators.concat(staged, current);
+            if (filter != null) {
+                diffed = Iterators.filter(diffed, filter);
+            }
+            return diffed;
+        }
+
     }
 
 }
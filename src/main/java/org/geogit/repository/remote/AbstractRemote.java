@@ -4,11 +4,29 @@
  */
 package org.geogit.repository.remote;
 
+import java.util.Map;
+
+import org.geogit.repository.remote.payload.IPayload;
+import org.geogit.storage.ObjectDatabase;
+
 /**
  * Add common functionality to the IRemote
  * 
  * @author jhudson
  */
 public abstract class AbstractRemote implements IRemote {
-    /*nothing to see here*/
-}
\ No newline at end of file
+
+    /**
+     * This default implementation returns the whole {@link #requestFetchPayload(Map) payload},
+     * leaving it up to the caller to insert its objects, for remotes that already hold the
+     * payload in memory.
+     * 
+     * @see org.geogit.repository.remote.IRemote#requestFetchPayload(java.util.Map,
+     *      org.geogit.storage.ObjectDatabase)
+     */
+    @Override
+    public IPayload requestFetchPayload(final Map<String, String> branchHeads,
+            final ObjectDatabase target) {
+        return requestFetchPayload(branchHeads);
+    }
+}
@@ -7,8 +7,19 @@ package org.geogit.repository.remote;
 import java.util.Map;
 
 import org.geogit.repository.remote.payload.IPayload;
+import org.geogit.storage.ObjectDatabase;
 
 public interface IRemote {
     public void dispose();
     public IPayload requestFetchPayload( Map<String, String> branchHeads );
-}
\ No newline at end of file
+
+    /**
+     * Requests the payload like {@link #requestFetchPayload(Map)}, letting the remote insert the
+     * received objects straight into {@code target} as they arrive instead of holding them all in
+     * memory.
+     * 
+     * @return the received branch heads, along with the objects that were not inserted into
+     *         {@code target} if any
+     */
+    public IPayload requestFetchPayload(Map<String, String> branchHeads, ObjectDatabase target);
+}
@@ -5,25 +5,31 @@
 package org.geogit.repository.remote;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import org.geogit.api.GeoGIT;
-import org.geogit.api.LogOp;
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevBlob;
 import org.geogit.api.RevCommit;
 import org.geogit.api.RevObject;
 import org.geogit.api.RevTree;
-import org.geogit.api.TreeVisitor;
 import org.geogit.api.config.BranchConfigObject;
 import org.geogit.api.config.Config;
+import org.geogit.repository.CommitGraph;
 import org.geogit.repository.Repository;
 import org.geogit.repository.remote.payload.IPayload;
 import org.geogit.repository.remote.payload.Payload;
+import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.RepositoryDatabase;
+import org.geogit.storage.RevSHA1Tree;
+import org.geogit.storage.WrappedSerialisingFactory;
 import org.geogit.storage.bdbje.EntityStoreConfig;
 import org.geogit.storage.bdbje.EnvironmentBuilder;
 import org.geogit.storage.bdbje.JERepositoryDatabase;
@@ -52,90 +58,55 @@ public class LocalRemote extends AbstractRemote {
     }
 
     /**
-     * Create a set of changes it can be applied to a repository 1. Get the local repository local
-     * branches 2. Compare them to the ones the client has sent us 2. Create a set of changes since
-     * the clients id for each branch
+     * Create a set of changes it can be applied to a repository.
+     * <p>
+     * The {@code branchHeads} the client sends are the commits it already has. The commits
+     * reachable from this repository's heads but not from any of those are found through the
+     * {@link CommitGraph}, and for each of them only the trees and blobs that differ from the ones
+     * of its first parent are added, pruning whole subtrees and buckets whose ids didn't change.
+     * Every object is added once.
+     * </p>
      */
     @Override
     public IPayload requestFetchPayload(Map<String, String> branchHeads) {
-        /**
-         * not happy about this but need something to hold commit/blob/tree entries from the since
-         * commit which can be used to exclude them from the payload
-         * */
-        final Payload excludedPayload = new Payload();
         final Payload payload = new Payload();
+        final Repository repository = getRepository();
 
-        // for each branch
-        // grab the branch_name
-        // switch to branch_nane
-        // fill payload with branch updates
+        /**
+         * The commits the client advertises, the ones we don't know about are of no use
+         */
+        Set<ObjectId> haves = new HashSet<ObjectId>();
+        for (String headId : branchHeads.values()) {
+            if (headId == null) {
+                continue;
+            }
+            ObjectId have = ObjectId.valueOf(headId);
+            if (!have.isNull() && repository.commitExists(have)) {
+                haves.add(have);
+            }
+        }
 
         /**
          * Since there is no concept of branching and current branch, lets just grab the 'master' as
          * this is the only 'branch' the remote has
          */
-        String branchHeadId = branchHeads.get("HEAD");
-        final ObjectId branchId;
-        if (branchHeadId == null) {
-            branchId = ObjectId.NULL;
-        } else {
-            branchId = ObjectId.valueOf(branchHeadId);
-        }
-
-        LogOp logOp = new LogOp(getRepository());
-
-        if (!getRepository().getHead().getObjectId().equals(branchId)) {
-
-            /**
-             * If local has no commits don't set since, since we need all refs
-             */
-            if (!ObjectId.NULL/* THE HEAD */.equals(branchId)) {
-                if (getRepository().commitExists(branchId)) {
-                    logOp.setSince(branchId);
-                    
-                    RevCommit commit = getRepository().getCommit(branchId);
-                    ObjectId treeId = commit.getTreeId();
-                    RevTree tree = getRepository().getTree(treeId);
-
-                    /**
-                     * Add Trees to payload
-                     */
-                    excludedPayload.addTrees(tree);
-                    tree.accept(new CommitTreeVisitor(excludedPayload, new Payload()));
-                }
-            }
-
-            try {
-                Iterator<RevCommit> logs = logOp.call();
-                while (logs.hasNext()) {
-                    RevCommit commit = logs.next();
-                    payload.addCommits(commit);
-
-                    /**
-                     * ok we have the commit, this should be a reference to the tree,blob,tag
-                     * objects
-                     */
-                    ObjectId treeId = commit.getTreeId();
-                    RevTree tree = getRepository().getTree(treeId);
-
-                    /**
-                     * Add Trees to payload
-                     */
-                    payload.addTrees(tree);
-
-                    /**
-                     * Add the trees payload to the response
-                     */
-                    tree.accept(new CommitTreeVisitor(payload, excludedPayload));
-
-                    /**
-                     * Add Tags to payload, there are none for now...
-                     */
+        final ObjectId headId = repository.getHead().getObjectId();
+        if (!headId.isNull() && !haves.contains(headId)) {
+            final CommitGraph graph = repository.getCommitGraph();
+            final List<ObjectId> missingCommits = graph.missingCommits(
+                    Collections.singleton(headId), haves);
+
+            final MissingObjectsCollector collector = new MissingObjectsCollector(payload);
+            for (ObjectId commitId : missingCommits) {
+                RevCommit commit = repository.getCommit(commitId);
+                payload.addCommits(commit);
+
+                ObjectId parentTreeId = ObjectId.NULL;
+                ObjectId parentId = graph.getFirstParent(commitId);
+                if (!parentId.isNull()) {
+                    parentTreeId = repository.getCommit(parentId).getTreeId();
                 }
-
-            } catch (Exception e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                collector.addChanged(commit.getTreeId(), parentTreeId);
             }
         }
 
@@ -219,54 +190,90 @@ public class LocalRemote extends AbstractRemote {
         repository.close();
     }
 
-    private class CommitTreeVisitor implements TreeVisitor {
+    /**
+     * Adds to the payload the trees and blobs of a new tree that are not part of an old one,
+     * descending only into the subtrees and buckets whose ids differ.
+     */
+    private class MissingObjectsCollector {
+
+        private final Payload payload;
 
-        private Payload payload;
-        private Payload excludedPayload;
+        private final Set<ObjectId> added = new HashSet<ObjectId>();
 
-        public CommitTreeVisitor(final Payload payload, final Payload excludedPayload) {
-            super();
+        public MissingObjectsCollector(final Payload payload) {
             this.payload = payload;
-            this.excludedPayload = excludedPayload;
         }
 
-        @Override
-        public boolean visitSubTree(int bucket, ObjectId treeId) {
-            /**
-             * add any subtrees
-             */
-            RevTree tree = getRepository().getTree(treeId);
-
-            /**
-             * add the subtree to our tree store, then see if there are any blobs
-             */
-            if (!excludedPayload.getTreeUpdates().contains(tree)) {
-                payload.addTrees(tree);
+        public void addChanged(final ObjectId newTreeId, final ObjectId oldTreeId) {
+            if (newTreeId.isNull() || newTreeId.equals(oldTreeId) || added.contains(newTreeId)) {
+                return;
             }
-            
-            tree.accept(this);
-            return true;
+            RevTree newTree = getRepository().getTree(newTreeId);
+            RevTree oldTree = oldTreeId.isNull() ? null : getRepository().getTree(oldTreeId);
+            addChanged(newTree, oldTree);
         }
 
-        @Override
-        public boolean visitEntry(Ref ref) {
-            if (ref.getType().equals(RevObject.TYPE.TREE)) {
-                RevTree tree = getRepository().getTree(ref.getObjectId());
-                if (!excludedPayload.getTreeUpdates().contains(tree)) {
-                    payload.addTrees(tree);
+        private void addChanged(final RevTree newTree, final RevTree oldTree) {
+            if (!added.add(newTree.getId())) {
+                return;
+            }
+            payload.addTrees(newTree);
+
+            if (newTree instanceof RevSHA1Tree && ((RevSHA1Tree) newTree).isSplit()) {
+                final RevSHA1Tree buckets = (RevSHA1Tree) newTree;
+                Map<Integer, Ref> oldBuckets = Collections.emptyMap();
+                if (oldTree instanceof RevSHA1Tree && ((RevSHA1Tree) oldTree).isSplit()
+                        && ((RevSHA1Tree) oldTree).getDepth() == buckets.getDepth()) {
+                    oldBuckets = ((RevSHA1Tree) oldTree).getBuckets();
+                }
+                for (Map.Entry<Integer, Ref> bucket : buckets.getBuckets().entrySet()) {
+                    final ObjectId bucketId = bucket.getValue().getObjectId();
+                    final Ref oldBucket = oldBuckets.get(bucket.getKey());
+                    if (added.contains(bucketId)
+                            || (oldBucket != null && bucketId.equals(oldBucket.getObjectId()))) {
+                        continue;
+                    }
+                    RevTree oldBucketTree = oldBucket == null ? oldTree
+                            : ((RevSHA1Tree) oldTree).getBucketTree(oldBucket.getObjectId());
+                    addChanged(buckets.getBucketTree(bucketId), oldBucketTree);
+                }
+                return;
+            }
+
+            Iterator<Ref> children = newTree.iterator(null);
+            while (children.hasNext()) {
+                final Ref child = children.next();
+                final ObjectId childId = child.getObjectId();
+                final Ref oldChild = oldTree == null ? null : oldTree.get(child.getName());
+                if (oldChild != null && childId.equals(oldChild.getObjectId())) {
+                    continue;
                 }
-                tree.accept(this);
-            } else {
-                /**
-                 * Add BLOB to store
-                 */
-                RevBlob blob = getRepository().getObjectDatabase().getBlob(ref.getObjectId());
-                if (!excludedPayload.getBlobUpdates().contains(blob)) {
-                    payload.addBlobs(getRepository().getObjectDatabase().getBlob(ref.getObjectId()));
+                if (RevObject.TYPE.TREE.equals(child.getType())) {
+                    ObjectId oldChildId = ObjectId.NULL;
+                    if (oldChild != null && RevObject.TYPE.TREE.equals(oldChild.getType())) {
+                        oldChildId = oldChild.getObjectId();
+                    }
+                    addChanged(childId, oldChildId);
+                } else if (added.add(childId)) {
+                    addBlob(childId);
                 }
             }
-            return true;
+        }
 
+        /**
+         * Adds a blob along with the schema it refers to if it's a feature, since schemas are not
+         * reachable from any tree.
+         */
+        private void addBlob(final ObjectId blobId) {
+            final ObjectDatabase db = getRepository().getObjectDatabase();
+            final RevBlob blob = db.getBlob(blobId);
+            payload.addBlobs(blob);
+
+            final ObjectId schemaId = WrappedSerialisingFactory.getInstance().getFeatureSchemaId(
+                    (byte[]) blob.getParsed());
+            if (schemaId != null && added.add(schemaId) && db.exists(schemaId)) {
+                payload.addBlobs(db.getBlob(schemaId));
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -1,13 +1,25 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.0 license, available at the root
+ * application directory.
+ */
 package org.geogit.repository.remote;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
-import org.apache.http.util.ByteArrayBuffer;
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevBlob;
@@ -16,221 +28,396 @@ import org.geogit.api.RevObject.TYPE;
 import org.geogit.api.RevTree;
 import org.geogit.repository.remote.payload.IPayload;
 import org.geogit.repository.remote.payload.Payload;
+import org.geogit.storage.BatchObjectInserter;
 import org.geogit.storage.BlobReader;
-import org.geogit.storage.ObjectReader;
+import org.geogit.storage.BlobWriter;
+import org.geogit.storage.EncodedObject;
+import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.ObjectVisitor;
 import org.geogit.storage.ObjectWriter;
-import org.geogit.storage.hessian.HessianFactory;
+import org.geogit.storage.WrappedSerialisingFactory;
+
+import com.ning.compress.lzf.LZFInputStream;
 
 /**
  * <p>
- * Send and receive Payload objects with the GeoGIT protocol, as follows:
- * <p/>
- * 
- * The GeoGIT protocol is as follows:
- * <p/>
- * <p>
- * A Remote is a single end point of a request/response geogit instance which response is the geogit
- * protocol:
- * <p/>
- * <p>
- * This is a custom protocol which is used to transport all of the COMMIT/TREE/BLOB/BRANCH_HEAD objects to this
- * client this is the protocol: 
- * <p/>
+ * Send and receive Payload objects with the GeoGIT protocol.
+ * </p>
  * <p>
- * [{C/T/B/N}{00000000000000000000}{0000000000}{PAYLOAD}] 
- * <p/>
+ * The stream starts with a header made of a 4 byte magic number and a 4 byte protocol version,
+ * followed by a sequence of frames, each one being:
+ * </p>
  * <p>
- * first byte is a single character :
+ * [{C/T/B/N/E}{flags}{00000000000000000000}{length}{PAYLOAD}]
+ * </p>
  * <ul>
- * <li>'C' for a commit</li>
- * <li>'T' for a tree </li>
- * <li>'B' for a blob</li>
- * <li>'N' for branch head</li>
+ * <li>a single byte frame type: 'C' for a commit, 'T' for a tree, 'B' for a blob, 'N' for a branch
+ * head and 'E' for the end of the stream</li>
+ * <li>a single byte of flags, {@link #FLAG_LZF} meaning the payload is LZF compressed</li>
+ * <li>the object id - 20 bytes</li>
+ * <li>the payload length as a 4 byte big endian integer</li>
+ * <li>the payload bytes</li>
  * </ul>
- * </p>
- * <p> 
- * 2nd byte to the 21st byte are the objects ID - 20 bytes
- * </p>
- * <p> 
- * 22nd byte to the 31st byte is the objects length - 10 bytes
+ * <p>
+ * Objects are sent in their stored representation, that is, LZF compressed exactly as the
+ * {@link ObjectDatabase} holds them and whose SHA-1 hash is the object id, so they are copied
+ * straight out of the sending database and into the receiving one without being decoded and
+ * encoded back. Branch heads carry the UTF-8 encoded branch name. Object frames come in no
+ * particular order.
  * </p>
  * <p>
- * The rest is the payload in bytes
+ * This class holds no state, all the methods are safe to be called concurrently on different
+ * streams.
  * </p>
  * TODO: add tag support
- * 
+ *
  * @author jhudson
  * @since 1.2.0
  */
 public class NetworkIO {
 
-    private static char type_null = '\u0000';
-    private static char type = type_null;
-    private static int length = 0;
-    private static ObjectId objectId = null;
-    
     /**
-     * Send a payload using the GeoGIT protocol
+     * "GGNP", distinct from the on disk pack files magic
+     */
+    static final int MAGIC = 0x47474E50;
+
+    static final int VERSION = 2;
+
+    static final byte COMMIT = 'C';
+
+    static final byte TREE = 'T';
+
+    static final byte BLOB = 'B';
+
+    static final byte BRANCH = 'N';
+
+    static final byte END = 'E';
+
+    /**
+     * Frame flag indicating the frame payload is LZF compressed
+     */
+    static final int FLAG_LZF = 0x01;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private NetworkIO() {
+        // utility class
+    }
+
+    /**
+     * Send a payload using the GeoGIT protocol, encoding each object once from its in memory
+     * representation.
+     *
+     * @see #sendPayload(IPayload, ObjectDatabase, OutputStream)
+     */
+    public static void sendPayload(final IPayload payload, final OutputStream output)
+            throws Exception {
+        sendPayload(payload, null, output);
+    }
+
+    /**
+     * Send a payload using the GeoGIT protocol.
+     *
      * @param payload
-     * @param out
+     *            the objects and branch heads to send
+     * @param source
+     *            the database the payload objects come from, if given the objects it holds are
+     *            sent as stored instead of being encoded again. May be {@code null}.
+     * @param output
+     *            the stream to send the payload to, it's flushed but not closed
      */
-    public static void sendPayload(final IPayload payload, final OutputStream output) throws Exception {
-        
-        HessianFactory factory = new HessianFactory();
-        
-        int commits = 0;
-        for( RevCommit commit : payload.getCommitUpdates() ) {
-            output.write("C".getBytes());
-            output.write(commit.getId().getRawValue());            
-            ObjectWriter<RevCommit> cw = factory.createCommitWriter(commit);
-            ByteArrayOutputStream bufferedCount = new ByteArrayOutputStream();
-            cw.write(bufferedCount);
-            output.write(Arrays.copyOf((String.valueOf(bufferedCount.size())).getBytes(), 10));
-            cw.write(output);
-            commits++;
-            //System.out.println(commit);
-        }
-        //System.out.println("  " + commits + " new commits");
-
-        int trees = 0;
-        for( RevTree tree : payload.getTreeUpdates() ) {
-            output.write("T".getBytes());
-            output.write(tree.getId().getRawValue());         
-            ObjectWriter<RevTree> tw = factory.createRevTreeWriter(tree);
-            ByteArrayOutputStream bufferedCount = new ByteArrayOutputStream();
-            tw.write(bufferedCount);
-            output.write(Arrays.copyOf((String.valueOf(bufferedCount.size())).getBytes(), 10));
-            tw.write(output);
-            trees++;
-            //System.out.println( tree.getId() + " : " + bufferedCount.size() + " : " + tree);
-        }
-        //System.out.println("  " + trees + " new trees");
-
-        int blobs = 0;
-        for( RevBlob blob : payload.getBlobUpdates() ) {
-            byte[] blobBytes = (byte[])blob.getParsed();
-            int length = blobBytes.length;
-
-            output.write("B".getBytes());
-            output.write(blob.getId().getRawValue());
-            output.write(Arrays.copyOf(String.valueOf(length).getBytes(), 10));
-            output.write((byte[])blob.getParsed());
-
-            blobs++;
-            //System.out.println( blob.getId() + " : " + length + " : " + blob);
-        }
-        //System.out.println("  " + blobs + " new blobs");
+    public static void sendPayload(final IPayload payload, final ObjectDatabase source,
+            final OutputStream output) throws Exception {
+
+        final WrappedSerialisingFactory factory = WrappedSerialisingFactory.getInstance();
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output,
+                BUFFER_SIZE));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        final Set<ObjectId> sent = sendStored(payload, source, out);
+
+        for (RevCommit commit : payload.getCommitUpdates()) {
+            if (!sent.contains(commit.getId())) {
+                writeObject(out, COMMIT, commit.getId(), factory.createCommitWriter(commit));
+            }
+        }
+        for (RevTree tree : payload.getTreeUpdates()) {
+            if (!sent.contains(tree.getId())) {
+                writeObject(out, TREE, tree.getId(), factory.createRevTreeWriter(tree));
+            }
+        }
+        for (RevBlob blob : payload.getBlobUpdates()) {
+            if (!sent.contains(blob.getId())) {
+                writeObject(out, BLOB, blob.getId(), new BlobWriter((byte[]) blob.getParsed()));
+            }
+        }
 
         /**
          * Send the branch heads: which is the master for now
          */
-        int branches = 0;
-        for( String branchName : payload.getBranchUpdates().keySet() ) {
-            Ref branch = payload.getBranchUpdates().get(branchName);
-            output.write("N".getBytes());
-            output.write(branch.getObjectId().getRawValue());
-            output.write(Arrays.copyOf(String.valueOf(branch.getName().getBytes().length).getBytes(), 10));
-            output.write(branch.getName().getBytes());
-            branches++;
-            //System.out.println( branch );
-        }
-        //System.out.println("  " + branches + " new branches");
+        for (Ref branch : payload.getBranchUpdates().values()) {
+            if (branch != null) {
+                writeFrame(out, BRANCH, 0, branch.getObjectId(), branch.getName().getBytes("UTF-8"));
+            }
+        }
+        writeFrame(out, END, 0, ObjectId.NULL, EMPTY);
+        out.flush();
     }
-    
+
     /**
-     * Parses the actual payload from the server
+     * Sends the payload objects held in {@code source} as stored, in a single pass over the
+     * database and writing each frame as its object is read, so no more than one of them is held
+     * in memory at a time.
      * 
-     * @param instream
-     * @param response
-     * @return Payload
-     * @throws IOException
+     * @return the ids of the objects sent
      */
-    public static Payload receivePayload(InputStream instream) throws IOException {
-        final Payload payload = new Payload();
+    private static Set<ObjectId> sendStored(final IPayload payload, final ObjectDatabase source,
+            final DataOutputStream out) throws IOException {
+        final Set<ObjectId> sent = new HashSet<ObjectId>();
+        if (source == null) {
+            return sent;
+        }
+        final Map<ObjectId, Byte> types = new HashMap<ObjectId, Byte>();
+        for (RevCommit commit : payload.getCommitUpdates()) {
+            addId(types, commit.getId(), COMMIT);
+        }
+        for (RevTree tree : payload.getTreeUpdates()) {
+            addId(types, tree.getId(), TREE);
+        }
+        for (RevBlob blob : payload.getBlobUpdates()) {
+            addId(types, blob.getId(), BLOB);
+        }
         try {
-            ByteArrayBuffer payloadBuffer = new ByteArrayBuffer(0);
-
-            int c;
-
-            while ((c = instream.read()) != -1) {
+            source.getAll(types.keySet(), new ObjectVisitor() {
+                @Override
+                public boolean visit(ObjectId id, byte[] compressed) {
+                    try {
+                        writeFrame(out, types.get(id).byteValue(), FLAG_LZF, id, compressed);
+                    } catch (IOException e) {
+                        throw new WriteException(e);
+                    }
+                    sent.add(id);
+                    return true;
+                }
+            });
+        } catch (WriteException e) {
+            throw (IOException) e.getCause();
+        }
+        return sent;
+    }
 
-                type = (char) c;
+    /**
+     * Carries the output stream errors out of the {@link ObjectVisitor} that can't throw them
+     */
+    private static final class WriteException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
 
-                while (payloadBuffer.length() < 20) {
-                    int cc = instream.read();
-                    payloadBuffer.append(cc);
-                }
+        WriteException(final IOException cause) {
+            super(cause);
+        }
+    }
 
-                objectId = extractObjectId(payloadBuffer.toByteArray());
-                payloadBuffer = new ByteArrayBuffer(0);
+    private static void addId(final Map<ObjectId, Byte> types, final ObjectId id,
+            final byte type) {
+        if (id != null && !id.isNull()) {
+            types.put(id, Byte.valueOf(type));
+        }
+    }
 
-                while (payloadBuffer.length() < 10) {
-                    payloadBuffer.append(instream.read());
-                }
-                length = extractLength(payloadBuffer.toByteArray());
-                payloadBuffer = new ByteArrayBuffer(0);
+    private static void writeObject(final DataOutputStream out, final byte type,
+            final ObjectId id, final ObjectWriter<?> writer) throws Exception {
+        EncodedObject encoded = EncodedObject.encode(writer);
+        ObjectId frameId = id == null || id.isNull() ? encoded.getId() : id;
+        writeFrame(out, type, FLAG_LZF, frameId, encoded.getCompressed());
+    }
 
-                while (payloadBuffer.length() < length) {
-                    payloadBuffer.append(instream.read());
-                }
+    private static void writeFrame(final DataOutputStream out, final byte type, final int flags,
+            final ObjectId id, final byte[] body) throws IOException {
+        out.writeByte(type);
+        out.writeByte(flags);
+        out.write(id.getRawValue());
+        out.writeInt(body.length);
+        out.write(body);
+    }
 
-                if (type == 'C') {
-                    RevCommit commit = extractCommit(objectId, payloadBuffer.toByteArray());
-                    payload.addCommits(commit);
-                    //System.out.println(commit);
-                } else if (type == 'T') {
-                    RevTree tree = extractTree(objectId, payloadBuffer.toByteArray());
-                    payload.addTrees(tree);
-                    //System.out.println(tree);
-                } else if (type == 'B') {
-                    RevBlob blob = extractBlob(objectId, payloadBuffer.toByteArray());
-                    payload.addBlobs(blob);
-                    //System.out.println(blob);
-                } else if (type == 'N') {
-                    String branchName = new String(payloadBuffer.toByteArray());
-                    Ref branchRef = new Ref(branchName, objectId, TYPE.REMOTE);
-                    payload.addBranches(branchName, branchRef);
-                    //System.out.println(branchName + " added to payload");
+    /**
+     * Parses the actual payload from the server, decoding every object in memory.
+     *
+     * @param instream
+     *            the stream to read from, closed once the payload is read
+     * @return Payload
+     * @throws IOException
+     */
+    public static Payload receivePayload(final InputStream instream) throws IOException {
+        final Payload payload = new Payload();
+        final WrappedSerialisingFactory factory = WrappedSerialisingFactory.getInstance();
+        final FrameReader frames = new FrameReader(instream);
+        try {
+            while (frames.next()) {
+                InputStream body = frames.openBody();
+                try {
+                    switch (frames.type) {
+                    case COMMIT:
+                        payload.addCommits(factory.createCommitReader().read(frames.id, body));
+                        break;
+                    case TREE:
+                        payload.addTrees(factory.createRevTreeReader(null).read(frames.id, body));
+                        break;
+                    case BLOB:
+                        payload.addBlobs(new BlobReader().read(frames.id, body));
+                        break;
+                    case BRANCH:
+                        addBranch(payload, frames);
+                        break;
+                    default:
+                        throw new IOException("Unknown frame type: " + (char) frames.type);
+                    }
+                } finally {
+                    body.close();
                 }
-                payloadBuffer = new ByteArrayBuffer(0);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         } finally {
             instream.close();
         }
         return payload;
     }
 
-    private static RevTree extractTree(ObjectId objectId, byte[] buffer) throws IOException {
-        HessianFactory factory = new HessianFactory();
-        ByteArrayInputStream b = new ByteArrayInputStream(buffer);
-        ObjectReader<RevTree> tr = factory.createRevTreeReader(null);
-        RevTree tree = tr.read(objectId, b);
-        return tree;
+    /**
+     * Parses the payload from the server inserting the objects into {@code target} as they
+     * arrive, without decoding them.
+     * <p>
+     * Compressed objects are checked to hash to their advertised id before being inserted.
+     * </p>
+     *
+     * @param instream
+     *            the stream to read from, closed once the payload is read
+     * @param target
+     *            the database where to insert the received objects
+     * @return a payload holding only the received branch heads, since the objects are already in
+     *         {@code target}
+     */
+    public static Payload receivePayload(final InputStream instream, final ObjectDatabase target)
+            throws Exception {
+        final Payload payload = new Payload();
+        final FrameReader frames = new FrameReader(instream);
+        final MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+        final BatchObjectInserter inserter = target.newBatchInserter();
+        try {
+            while (frames.next()) {
+                switch (frames.type) {
+                case COMMIT:
+                case TREE:
+                case BLOB:
+                    if ((frames.flags & FLAG_LZF) != 0) {
+                        sha1.reset();
+                        if (!Arrays.equals(frames.id.getRawValue(), sha1.digest(frames.body))) {
+                            throw new IOException("Corrupt object received: " + frames.id);
+                        }
+                        inserter.insertRaw(frames.id, frames.body);
+                    } else {
+                        ObjectId id = inserter.insert(new BlobWriter(frames.body));
+                        if (!id.equals(frames.id)) {
+                            throw new IOException("Corrupt object received: " + frames.id);
+                        }
+                    }
+                    break;
+                case BRANCH:
+                    addBranch(payload, frames);
+                    break;
+                default:
+                    throw new IOException("Unknown frame type: " + (char) frames.type);
+                }
+            }
+        } finally {
+            try {
+                inserter.close();
+            } finally {
+                instream.close();
+            }
+        }
+        return payload;
     }
 
-    private static RevBlob extractBlob(ObjectId objectId, byte[] buffer) throws IOException {
-        ByteArrayInputStream b = new ByteArrayInputStream(buffer);
-        BlobReader br = new BlobReader();
-        RevBlob blob = br.read(objectId, b);
-        return blob;
+    private static void addBranch(final Payload payload, final FrameReader frames)
+            throws IOException {
+        String branchName = new String(frames.body, "UTF-8");
+        Ref branchRef = new Ref(branchName, frames.id, TYPE.REMOTE);
+        payload.addBranches(branchName, branchRef);
     }
 
-    private static RevCommit extractCommit(ObjectId objectId, byte[] buffer) throws IOException {
-        HessianFactory factory = new HessianFactory();
-        ByteArrayInputStream b = new ByteArrayInputStream(buffer);
-        ObjectReader<RevCommit> cr = factory.createCommitReader();
-        RevCommit commit = cr.read(objectId, b);
-        return commit;
-    }
+    /**
+     * Reads frames off a stream one at a time, exposing the last read one through its fields.
+     */
+    private static final class FrameReader {
 
-    private static ObjectId extractObjectId(byte[] byteArray) {
-        return new ObjectId(byteArray);
-    }
+        private final DataInputStream in;
+
+        byte type;
 
-    private static int extractLength(byte[] byteArray) {
-        String value = new String(byteArray).trim();
-        return Integer.parseInt(value);
+        int flags;
+
+        ObjectId id;
+
+        byte[] body;
+
+        private final byte[] rawId = new byte[20];
+
+        public FrameReader(final InputStream instream) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(instream, BUFFER_SIZE));
+            final int magic;
+            final int version;
+            try {
+                magic = in.readInt();
+                version = in.readInt();
+            } catch (EOFException e) {
+                throw new IOException("Empty or truncated payload stream");
+            }
+            if (magic != MAGIC) {
+                throw new IOException("Not a GeoGIT payload stream");
+            }
+            if (version != VERSION) {
+                throw new IOException("Unsupported payload protocol version: " + version);
+            }
+        }
+
+        /**
+         * @return {@code true} if a frame was read, {@code false} if the end frame was reached
+         */
+        public boolean next() throws IOException {
+            try {
+                type = in.readByte();
+                flags = in.readByte() & 0xFF;
+                in.readFully(rawId);
+                final int length = in.readInt();
+                if (length < 0) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                body = new byte[length];
+                in.readFully(body);
+            } catch (EOFException e) {
+                throw new IOException("Payload stream ended before its end frame");
+            }
+            if (type == END) {
+                id = null;
+                body = null;
+                return false;
+            }
+            id = new ObjectId(rawId);
+            return true;
+        }
+
+        /**
+         * @return the decompressed frame payload
+         */
+        public InputStream openBody() throws IOException {
+            InputStream bodyIn = new ByteArrayInputStream(body);
+            if ((flags & FLAG_LZF) != 0) {
+                bodyIn = new LZFInputStream(bodyIn);
+            }
+            return bodyIn;
+        }
     }
 }
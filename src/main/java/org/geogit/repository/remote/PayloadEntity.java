@@ -6,6 +6,9 @@ import java.io.OutputStream;
 
 import org.apache.http.entity.AbstractHttpEntity;
 import org.geogit.repository.remote.payload.IPayload;
+import org.geogit.storage.ObjectDatabase;
+
+import com.google.common.base.Throwables;
 
 /**
  * A payload entity object for sending over a httpdefaultclient
@@ -17,12 +20,25 @@ public class PayloadEntity extends AbstractHttpEntity {
 
     protected final IPayload payload;
 
+    protected final ObjectDatabase source;
+
     public PayloadEntity(final IPayload payload) {
+        this(payload, null);
+    }
+
+    /**
+     * @param source
+     *            the database the payload objects come from, so that they're streamed as stored
+     *            instead of encoded again, may be {@code null}
+     * @see NetworkIO#sendPayload(IPayload, ObjectDatabase, OutputStream)
+     */
+    public PayloadEntity(final IPayload payload, final ObjectDatabase source) {
         super();
         if (payload == null) {
             throw new IllegalArgumentException("Payload may not be null");
         }
         this.payload = payload;
+        this.source = source;
         setContentType("binary/octet-stream");
     }
 
@@ -40,10 +56,10 @@ public class PayloadEntity extends AbstractHttpEntity {
 
     public void writeTo(final OutputStream outstream) throws IOException {
         try {
-            NetworkIO.sendPayload(payload, outstream);
+            NetworkIO.sendPayload(payload, source, outstream);
         } catch (Exception e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            Throwables.propagateIfInstanceOf(e, IOException.class);
+            throw Throwables.propagate(e);
         }
     }
 
@@ -1,10 +1,7 @@
-<<<<<<< HEAD
-=======
 /* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
  * This code is licensed under the LGPL 2.0 license, available at the root
  * application directory.
  */
->>>>>>> upstream/master
 package org.geogit.repository.remote;
 
 import java.util.Map;
@@ -13,44 +10,12 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.DefaultHttpClient;
-<<<<<<< HEAD
-=======
-
-import org.apache.http.util.ByteArrayBuffer;
-import org.geogit.api.ObjectId;
-import org.geogit.api.Ref;
-import org.geogit.api.RevBlob;
-import org.geogit.api.RevCommit;
-import org.geogit.api.RevObject.TYPE;
-import org.geogit.api.RevTree;
-
->>>>>>> upstream/master
 import org.geogit.repository.remote.payload.IPayload;
 import org.geogit.repository.remote.payload.Payload;
+import org.geogit.storage.ObjectDatabase;
 
 /**
-<<<<<<< HEAD
  * Using the NetworkIO class retrieve a remote GeoGIT repository
-=======
- * A Remote is a single end point of a request/response geogit instance which response is the geogit
- * protocol:
- * 
- * This is a custom protocol which is used to transport all of the COMMIT/TREE/BLOB/BRANCH_HEAD objects to this
- * client this is the protocol: 
- * 
- * [{C/T/B}{00000000000000000000}{0000000000}{PAYLOAD}]
- * 
- * first byte is a single character : 
- * 'C' for a commit
- * 'T' for a tree
- * 'B' for a blob
- * 'N' for branch head
- * 
- * 2nd byte to the 21st byte are the objects ID - 20 bytes 
- * 22nd byte to the 31st byte is the objects length - 10 bytes
- * 
- * The rest is the payload in bytes
->>>>>>> upstream/master
  * 
  * @author jhudson
  */
@@ -69,11 +34,19 @@ public class Remote extends AbstractRemote {
 
     @Override
     public IPayload requestFetchPayload(Map<String, String> branchHeads) {
-<<<<<<< HEAD
+        return requestFetchPayload(branchHeads, null);
+    }
+
+    /**
+     * Inserts the received objects into {@code target} as they arrive, so the returned payload
+     * only holds the branch heads, unless {@code target} is {@code null} in which case all the
+     * received objects are decoded into the returned payload.
+     * 
+     * @see NetworkIO#receivePayload(java.io.InputStream, ObjectDatabase)
+     */
+    @Override
+    public IPayload requestFetchPayload(Map<String, String> branchHeads, ObjectDatabase target) {
 
-=======
-        
->>>>>>> upstream/master
         Payload payload = null;
 
         StringBuffer branchBuffer = new StringBuffer();
@@ -85,11 +58,7 @@ public class Remote extends AbstractRemote {
         String branches = branchBuffer.toString();
 
         if (branches.length() > 0) {
-<<<<<<< HEAD
-            branches = branches.substring(branches.length() - 1);
-=======
             branches = branches.substring(0,branches.length() - 1);
->>>>>>> upstream/master
         }
 
         DefaultHttpClient httpclient = new DefaultHttpClient();
@@ -98,7 +67,11 @@ public class Remote extends AbstractRemote {
             HttpGet httpget = new HttpGet(location + "?branches=" + branches);
             HttpResponse response = httpclient.execute(httpget);
             HttpEntity entity = response.getEntity();
-            payload = NetworkIO.receivePayload(entity.getContent());
+            if (target == null) {
+                payload = NetworkIO.receivePayload(entity.getContent());
+            } else {
+                payload = NetworkIO.receivePayload(entity.getContent(), target);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
@@ -7,13 +7,17 @@ package org.geogit.storage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
-import org.apache.commons.collections.map.LRUMap;
 import org.geogit.api.MutableTree;
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
@@ -24,28 +28,58 @@ import org.geogit.api.RevTree;
 import org.geogit.repository.DepthSearch;
 
 import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 import com.ning.compress.lzf.LZFInputStream;
 import com.ning.compress.lzf.LZFOutputStream;
 
 public abstract class AbstractObjectDatabase implements ObjectDatabase {
 
-    protected Map<ObjectId, Object> cache;
+    protected final ObjectCache cache;
 
-    @SuppressWarnings("unchecked")
+    private SpatialIndexStore spatialIndexStore = new SpatialIndexStore();
+
+    /**
+     * Creates an object database with a {@link WeightedObjectCache} of its own.
+     * <p>
+     * Objects are cached by id only, while the same id may be read through different readers
+     * (e.g. trees at different depths), so a cache shall not be shared with databases whose
+     * callers read objects differently.
+     * </p>
+     */
     public AbstractObjectDatabase() {
-        // TODO: use an external cache
-        final long maxMemMegs = Runtime.getRuntime().maxMemory() / 1024 / 1024;
-        final int maxSize;
-        if (maxMemMegs <= 64) {
-            maxSize = 16;
-        } else if (maxMemMegs <= 100) {
-            maxSize = 64;
-        } else if (maxMemMegs <= 200) {
-            maxSize = 128;
-        } else {
-            maxSize = 256;
-        }
-        cache = new LRUMap(maxSize);
+        this(new WeightedObjectCache());
+    }
+
+    /**
+     * @param cache
+     *            the cache used by {@link #getCached}
+     */
+    public AbstractObjectDatabase(final ObjectCache cache) {
+        Preconditions.checkNotNull(cache, "cache");
+        this.cache = cache;
+    }
+
+    /**
+     * @return the cache used by {@link #getCached}, for inspection of its statistics
+     */
+    public ObjectCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Defaults to a store that only holds the indexes in memory.
+     * 
+     * @see org.geogit.storage.ObjectDatabase#getSpatialIndexStore()
+     */
+    @Override
+    public SpatialIndexStore getSpatialIndexStore() {
+        return spatialIndexStore;
+    }
+
+    public void setSpatialIndexStore(final SpatialIndexStore spatialIndexStore) {
+        Preconditions.checkNotNull(spatialIndexStore, "spatialIndexStore");
+        this.spatialIndexStore = spatialIndexStore;
     }
 
     /**
@@ -62,15 +96,71 @@ public abstract class AbstractObjectDatabase implements ObjectDatabase {
 
     protected abstract List<ObjectId> lookUpInternal(byte[] raw);
 
+    /**
+     * This default implementation looks each object up in ascending id order, subclasses are
+     * encouraged to override in order to look them all up with a single cursor.
+     * 
+     * @see org.geogit.storage.ObjectDatabase#existsAll(java.lang.Iterable)
+     */
+    @Override
+    public Set<ObjectId> existsAll(final Iterable<ObjectId> ids) {
+        Set<ObjectId> found = new HashSet<ObjectId>();
+        for (ObjectId id : sorted(ids)) {
+            if (exists(id)) {
+                found.add(id);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * This default implementation fetches each object in ascending id order, subclasses are
+     * encouraged to override in order to fetch them all with a single cursor.
+     * 
+     * @see org.geogit.storage.ObjectDatabase#getAll(java.lang.Iterable,
+     *      org.geogit.storage.ObjectVisitor)
+     */
+    @Override
+    public void getAll(final Iterable<ObjectId> ids, final ObjectVisitor visitor)
+            throws IOException {
+        Preconditions.checkNotNull(visitor, "visitor");
+        for (ObjectId id : sorted(ids)) {
+            if (exists(id) && !visitor.visit(id, getCompressed(id))) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the distinct {@code ids} in ascending order, which matches the unsigned byte order
+     *         of their raw values
+     */
+    @SuppressWarnings("unchecked")
+    protected static SortedSet<ObjectId> sorted(final Iterable<ObjectId> ids) {
+        Preconditions.checkNotNull(ids, "ids");
+        if (ids instanceof SortedSet && ((SortedSet<ObjectId>) ids).comparator() == null) {
+            return (SortedSet<ObjectId>) ids;
+        }
+        SortedSet<ObjectId> sorted = new TreeSet<ObjectId>();
+        for (ObjectId id : ids) {
+            sorted.add(Preconditions.checkNotNull(id, "id"));
+        }
+        return sorted;
+    }
+
     /**
      * @see org.geogit.storage.ObjectDatabase#get(org.geogit.api.ObjectId,
      *      org.geogit.storage.ObjectReader)
      */
     @Override
+    @SuppressWarnings("unchecked")
     public <T> T get(final ObjectId id, final ObjectReader<T> reader) throws IOException {
         Preconditions.checkNotNull(id, "id");
         Preconditions.checkNotNull(reader, "reader");
 
+        if (reader instanceof BufferObjectReader) {
+            return DecodeBuffer.read(id, getCompressed(id), (BufferObjectReader<T>) reader);
+        }
         T object;
         InputStream raw = getRaw(id);
         try {
@@ -86,17 +176,41 @@ public abstract class AbstractObjectDatabase implements ObjectDatabase {
      *      org.geogit.storage.ObjectReader)
      */
     @Override
-    @SuppressWarnings("unchecked")
     public <T> T getCached(final ObjectId id, final ObjectReader<T> reader) throws IOException {
         Preconditions.checkNotNull(id, "id");
         Preconditions.checkNotNull(reader, "reader");
+        return readCached(this, cache, id, reader);
+    }
+
+    /**
+     * Gets an object from {@code cache}, or reads it from {@code db} and caches it weighed by its
+     * serialized size. Objects read through a {@link BufferObjectReader} are decoded in a pooled
+     * buffer, others are streamed.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T readCached(final ObjectDatabase db, final ObjectCache cache, final ObjectId id,
+            final ObjectReader<T> reader) throws IOException {
 
-        T object = (T) cache.get(id);
+        T object = (T) cache.getIfPresent(id);
         if (object == null) {
-            object = get(id, reader);
+            final long start = System.nanoTime();
+            final long size;
+            if (reader instanceof BufferObjectReader) {
+                final byte[] compressed = db.getCompressed(id);
+                size = DecodeBuffer.uncompressedLength(compressed);
+                object = DecodeBuffer.read(id, compressed, (BufferObjectReader<T>) reader);
+            } else {
+                CountingInputStream raw = new CountingInputStream(db.getRaw(id));
+                try {
+                    object = reader.read(id, raw);
+                } finally {
+                    raw.close();
+                }
+                size = raw.getCount();
+            }
             if (object != null) {
                 assert !(object instanceof MutableTree);
-                cache.put(id, object);
+                cache.put(id, object, size, System.nanoTime() - start);
             }
         }
         return object;
@@ -113,17 +227,54 @@ public abstract class AbstractObjectDatabase implements ObjectDatabase {
 
     protected abstract InputStream getRawInternal(ObjectId id) throws IOException;
 
+    /**
+     * @see org.geogit.storage.ObjectDatabase#getCompressed(org.geogit.api.ObjectId)
+     */
+    @Override
+    public byte[] getCompressed(final ObjectId id) throws IOException {
+        Preconditions.checkNotNull(id, "id");
+        InputStream in = getRawInternal(id);
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * This default implementation checks the object exists before getting it, subclasses are
+     * encouraged to override in order to look it up once.
+     * 
+     * @see org.geogit.storage.ObjectDatabase#getCompressedIfPresent(org.geogit.api.ObjectId)
+     */
+    @Override
+    public byte[] getCompressedIfPresent(final ObjectId id) throws IOException {
+        return exists(id) ? getCompressed(id) : null;
+    }
+
     /**
      * @see org.geogit.storage.ObjectDatabase#put(org.geogit.storage.ObjectWriter)
      */
     @Override
     public final <T> ObjectId put(final ObjectWriter<T> writer) throws Exception {
+        ByteArrayOutputStream rawOut = new ByteArrayOutputStream();
+        final ObjectId id = writeCompressed(writer, rawOut);
+        final byte[] rawData = rawOut.toByteArray();
+        putInternal(id, rawData, false);
+        return id;
+    }
+
+    /**
+     * Serializes the object through {@code writer}, LZF compressing it to {@code target}.
+     * 
+     * @return the object id, as the SHA-1 hash of its compressed representation
+     */
+    static ObjectId writeCompressed(final ObjectWriter<?> writer, final OutputStream target)
+            throws Exception {
         MessageDigest sha1;
         sha1 = MessageDigest.getInstance("SHA1");
 
-        ByteArrayOutputStream rawOut = new ByteArrayOutputStream();
-
-        DigestOutputStream keyGenOut = new DigestOutputStream(rawOut, sha1);
+        DigestOutputStream keyGenOut = new DigestOutputStream(target, sha1);
         // GZIPOutputStream cOut = new GZIPOutputStream(keyGenOut);
         LZFOutputStream cOut = new LZFOutputStream(keyGenOut);
 
@@ -135,15 +286,10 @@ public abstract class AbstractObjectDatabase implements ObjectDatabase {
             cOut.close();
             keyGenOut.flush();
             keyGenOut.close();
-            rawOut.flush();
-            rawOut.close();
         }
 
-        final byte[] rawData = rawOut.toByteArray();
         final byte[] rawKey = keyGenOut.getMessageDigest().digest();
-        final ObjectId id = new ObjectId(rawKey);
-        putInternal(id, rawData, false);
-        return id;
+        return new ObjectId(rawKey);
     }
 
     /**
@@ -166,6 +312,7 @@ public abstract class AbstractObjectDatabase implements ObjectDatabase {
             rawOut.close();
         }
         final byte[] rawData = rawOut.toByteArray();
+        cache.invalidate(id);
         return putInternal(id, rawData, true);
     }
 
@@ -182,6 +329,45 @@ public abstract class AbstractObjectDatabase implements ObjectDatabase {
     protected abstract boolean putInternal(ObjectId id, byte[] rawData, final boolean override)
             throws IOException;
 
+    /**
+     * Writes a batch of already compressed objects, not overriding existing ones.
+     * <p>
+     * This default implementation calls {@link #putInternal} for each object, subclasses are
+     * encouraged to override in order to write the whole batch in a single transaction.
+     * </p>
+     * 
+     * @param objects
+     *            compressed objects keyed by id
+     * @return the number of objects that didn't previously exist
+     * @throws IOException
+     */
+    protected int putAllInternal(final Map<ObjectId, byte[]> objects) throws IOException {
+        int inserted = 0;
+        for (Map.Entry<ObjectId, byte[]> e : objects.entrySet()) {
+            if (putInternal(e.getKey(), e.getValue(), false)) {
+                inserted++;
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * This default implementation deletes each object in ascending id order, subclasses are
+     * encouraged to override in order to delete them all in a single transaction.
+     * 
+     * @see org.geogit.storage.ObjectDatabase#deleteAll(java.lang.Iterable)
+     */
+    @Override
+    public int deleteAll(final Iterable<ObjectId> ids) {
+        int deleted = 0;
+        for (ObjectId id : sorted(ids)) {
+            if (delete(id)) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
     /**
      * @see org.geogit.storage.ObjectDatabase#newObjectInserter()
      */
@@ -190,6 +376,14 @@ public abstract class AbstractObjectDatabase implements ObjectDatabase {
         return new ObjectInserter(this);
     }
 
+    /**
+     * @see org.geogit.storage.ObjectDatabase#newBatchInserter()
+     */
+    @Override
+    public BatchObjectInserter newBatchInserter() {
+        return new BatchObjectInserter(this);
+    }
+
     @Override
     public RevBlob getBlob(ObjectId objectId) {
         try {
@@ -0,0 +1,164 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.geogit.api.ObjectId;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+/**
+ * An {@link ObjectInserter} that serializes and compresses objects as they're inserted, but holds
+ * them in memory and writes them to the database in batches of up to a given number of objects or
+ * bytes, each batch in a single transaction.
+ * <p>
+ * Objects are not guaranteed to be found in the database until the inserter is {@link #flush()
+ * flushed} or {@link #close() closed}. Instances of this class are not thread safe.
+ * </p>
+ * 
+ * @author groldan
+ * @see ObjectDatabase#newBatchInserter()
+ */
+public class BatchObjectInserter extends ObjectInserter {
+
+    public static final int DEFAULT_MAX_OBJECTS = 10000;
+
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private final AbstractObjectDatabase objectDb;
+
+    private final int maxObjects;
+
+    private final long maxBytes;
+
+    private Map<ObjectId, byte[]> batch;
+
+    private long batchBytes;
+
+    public BatchObjectInserter(final AbstractObjectDatabase objectDatabase) {
+        this(objectDatabase, DEFAULT_MAX_OBJECTS, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxObjects
+     *            number of objects after which the batch is flushed
+     * @param maxBytes
+     *            number of compressed bytes after which the batch is flushed
+     */
+    public BatchObjectInserter(final AbstractObjectDatabase objectDatabase, final int maxObjects,
+            final long maxBytes) {
+        super(objectDatabase);
+        Preconditions.checkArgument(maxObjects > 0, "maxObjects shall be positive");
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes shall be positive");
+        this.objectDb = objectDatabase;
+        this.maxObjects = maxObjects;
+        this.maxBytes = maxBytes;
+        this.batch = new LinkedHashMap<ObjectId, byte[]>();
+    }
+
+    /**
+     * Serializes and compresses the object and adds it to the current batch. If the writer is an
+     * {@link EncodedObject} its already compressed contents are used as is.
+     * 
+     * @return the id of the object
+     */
+    @Override
+    public ObjectId insert(final ObjectWriter<?> writer) throws Exception {
+        if (writer instanceof EncodedObject) {
+            EncodedObject encoded = (EncodedObject) writer;
+            insertRaw(encoded.getId(), encoded.getCompressed());
+            return encoded.getId();
+        }
+        ByteArrayOutputStream rawOut = new ByteArrayOutputStream();
+        final ObjectId id = AbstractObjectDatabase.writeCompressed(writer, rawOut);
+        insertRaw(id, rawOut.toByteArray());
+        return id;
+    }
+
+    /**
+     * Adds an already compressed object to the current batch.
+     * 
+     * @param id
+     *            the object id, that is, the SHA-1 hash of {@code compressed}
+     * @param compressed
+     *            the LZF compressed representation of the object
+     */
+    public void insertRaw(final ObjectId id, final byte[] compressed) throws Exception {
+        Preconditions.checkNotNull(id, "id");
+        Preconditions.checkNotNull(compressed, "compressed");
+        Preconditions.checkState(batch != null, "inserter is closed");
+        if (batch.put(id, compressed) == null) {
+            batchBytes += compressed.length;
+        }
+        if (batch.size() >= maxObjects || batchBytes >= maxBytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Adds the objects with the given ids from another database to the current batch in their
+     * stored representation, so they're neither decompressed, compressed nor hashed again.
+     * 
+     * @param source
+     *            the database to copy the objects from
+     * @param ids
+     *            the ids of the objects to copy
+     * @return the number of distinct objects found in {@code source}
+     */
+    public int insertAll(final ObjectDatabase source, final Iterable<ObjectId> ids)
+            throws Exception {
+        Preconditions.checkNotNull(source, "source");
+        final int[] found = new int[1];
+        source.getAll(ids, new ObjectVisitor() {
+            @Override
+            public boolean visit(ObjectId id, byte[] compressed) {
+                try {
+                    insertRaw(id, compressed);
+                } catch (Exception e) {
+                    throw Throwables.propagate(e);
+                }
+                found[0]++;
+                return true;
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * @return the number of objects pending to be written
+     */
+    public int getPendingCount() {
+        return batch == null ? 0 : batch.size();
+    }
+
+    /**
+     * Writes the current batch to the database.
+     */
+    @Override
+    public void flush() throws Exception {
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+        objectDb.putAllInternal(batch);
+        batch = new LinkedHashMap<ObjectId, byte[]>();
+        batchBytes = 0;
+    }
+
+    /**
+     * Writes the current batch to the database and disposes the inserter.
+     */
+    @Override
+    public void close() throws Exception {
+        try {
+            flush();
+        } finally {
+            batch = null;
+        }
+    }
+}
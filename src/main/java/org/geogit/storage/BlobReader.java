@@ -1,23 +1,32 @@
 package org.geogit.storage;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import org.geogit.api.ObjectId;
 import org.geogit.api.RevBlob;
 
-public class BlobReader implements ObjectReader<RevBlob> {
+import com.google.common.io.ByteStreams;
+
+public class BlobReader implements BufferObjectReader<RevBlob> {
 
     @Override
     public RevBlob read(ObjectId id, InputStream rawData) throws IOException,
             IllegalArgumentException {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        int c;
-        while ((c = rawData.read()) != -1) {
-            output.write(c);
-        }
-        return new RevBlob(id, output.toByteArray());
+        return new RevBlob(id, ByteStreams.toByteArray(rawData));
+    }
+
+    /**
+     * Copies the blob contents out of the decode buffer, which is the only copy a blob read takes.
+     * 
+     * @see org.geogit.storage.BufferObjectReader#read(org.geogit.api.ObjectId, java.nio.ByteBuffer)
+     */
+    @Override
+    public RevBlob read(ObjectId id, ByteBuffer data) throws IOException, IllegalArgumentException {
+        byte[] contents = new byte[data.remaining()];
+        data.get(contents);
+        return new RevBlob(id, contents);
     }
 
 }
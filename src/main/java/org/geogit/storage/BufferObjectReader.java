@@ -0,0 +1,36 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.geogit.api.ObjectId;
+
+/**
+ * An {@link ObjectReader} that can also parse an object out of its whole decompressed contents.
+ * <p>
+ * {@link AbstractObjectDatabase} decompresses the objects read through such readers straight into
+ * a buffer it reuses across reads from the same thread, instead of streaming them through an
+ * {@link com.ning.compress.lzf.LZFInputStream}. Hence the buffer is only valid for the duration of
+ * the {@link #read(ObjectId, ByteBuffer)} call, and implementations shall copy out anything they
+ * need to keep and never modify it.
+ * </p>
+ * 
+ * @author groldan
+ */
+public interface BufferObjectReader<T> extends ObjectReader<T> {
+
+    /**
+     * @param id
+     * @param data
+     *            the decompressed object, from its position to its limit
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *             if the provided buffer does not represents an object of the required type
+     */
+    public T read(ObjectId id, ByteBuffer data) throws IOException, IllegalArgumentException;
+}
@@ -0,0 +1,130 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.geogit.api.ObjectId;
+
+import com.ning.compress.lzf.LZFDecoder;
+
+/**
+ * Decompresses stored objects into a per thread buffer that's reused across reads, for
+ * {@link BufferObjectReader}s to parse them without any intermediate copy.
+ * <p>
+ * A buffer is {@link #acquire acquired} for the duration of a single read and shall be
+ * {@link #release released} afterwards. Should a reader trigger a nested read on the same thread,
+ * the nested one gets a buffer of its own.
+ * </p>
+ *
+ * @author groldan
+ */
+final class DecodeBuffer {
+
+    /**
+     * Objects larger than this are decompressed into a buffer of their own that's not retained
+     */
+    private static final int MAX_POOLED_SIZE = 1024 * 1024;
+
+    private static final int MIN_POOLED_SIZE = 8 * 1024;
+
+    private static final int LZF_HEADER_LENGTH = 3;
+
+    private static final byte BLOCK_TYPE_NON_COMPRESSED = 0;
+
+    private static final ThreadLocal<DecodeBuffer> POOL = new ThreadLocal<DecodeBuffer>() {
+        @Override
+        protected DecodeBuffer initialValue() {
+            return new DecodeBuffer();
+        }
+    };
+
+    private byte[] buffer = new byte[MIN_POOLED_SIZE];
+
+    private boolean inUse;
+
+    private DecodeBuffer() {
+        //
+    }
+
+    /**
+     * @param compressed
+     *            the LZF compressed object
+     * @return a heap buffer holding the decompressed object from position {@code 0} to its limit
+     */
+    public static ByteBuffer acquire(final byte[] compressed) throws IOException {
+        final int length = uncompressedLength(compressed);
+        final DecodeBuffer pooled = POOL.get();
+        byte[] target;
+        if (pooled.inUse || length > MAX_POOLED_SIZE) {
+            target = new byte[length];
+        } else {
+            if (pooled.buffer.length < length) {
+                pooled.buffer = new byte[Math.max(length, 2 * pooled.buffer.length)];
+            }
+            pooled.inUse = true;
+            target = pooled.buffer;
+        }
+        final int decoded = LZFDecoder.decode(compressed, target);
+        return ByteBuffer.wrap(target, 0, decoded);
+    }
+
+    /**
+     * Returns the buffer to the pool if it came from it
+     */
+    public static void release(final ByteBuffer data) {
+        final DecodeBuffer pooled = POOL.get();
+        if (data.array() == pooled.buffer) {
+            pooled.inUse = false;
+        }
+    }
+
+    /**
+     * Decompresses {@code compressed} into a buffer held for the duration of
+     * {@code reader.read(id, data)}.
+     */
+    public static <T> T read(final ObjectId id, final byte[] compressed,
+            final BufferObjectReader<T> reader) throws IOException {
+        final ByteBuffer data = acquire(compressed);
+        try {
+            return reader.read(id, data);
+        } finally {
+            release(data);
+        }
+    }
+
+    /**
+     * Adds up the uncompressed lengths declared by the headers of the LZF chunks in
+     * {@code compressed}.
+     */
+    static int uncompressedLength(final byte[] compressed) throws IOException {
+        int length = 0;
+        int offset = 0;
+        while (offset < compressed.length) {
+            if (offset + LZF_HEADER_LENGTH + 2 > compressed.length || compressed[offset] != 'Z'
+                    || compressed[offset + 1] != 'V') {
+                throw new IOException("Corrupt LZF data at offset " + offset);
+            }
+            final byte type = compressed[offset + 2];
+            final int chunkLength = uint16(compressed, offset + LZF_HEADER_LENGTH);
+            if (type == BLOCK_TYPE_NON_COMPRESSED) {
+                length += chunkLength;
+                offset += LZF_HEADER_LENGTH + 2 + chunkLength;
+            } else {
+                if (offset + LZF_HEADER_LENGTH + 4 > compressed.length) {
+                    throw new IOException("Corrupt LZF data at offset " + offset);
+                }
+                length += uint16(compressed, offset + LZF_HEADER_LENGTH + 2);
+                offset += LZF_HEADER_LENGTH + 4 + chunkLength;
+            }
+        }
+        return length;
+    }
+
+    private static int uint16(final byte[] data, final int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+}
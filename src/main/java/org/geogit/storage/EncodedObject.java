@@ -0,0 +1,81 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.geogit.api.ObjectId;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.ning.compress.lzf.LZFInputStream;
+
+/**
+ * An object that has already been serialized, compressed and hashed, the same way an
+ * {@link ObjectDatabase} would do when storing it.
+ * <p>
+ * Encoding is the CPU intensive part of storing an object, so it can be performed ahead of time
+ * (for example, by several threads at once) with {@link #encode(ObjectWriter)}, and then handed
+ * over to a {@link BatchObjectInserter}, which will store the compressed bytes as is.
+ * </p>
+ * <p>
+ * When written through any other means, the object is decompressed to its original serialized
+ * form.
+ * </p>
+ * 
+ * @author groldan
+ */
+public final class EncodedObject implements ObjectWriter<Object> {
+
+    private final ObjectId id;
+
+    private final byte[] compressed;
+
+    private EncodedObject(final ObjectId id, final byte[] compressed) {
+        this.id = id;
+        this.compressed = compressed;
+    }
+
+    /**
+     * Serializes, compresses and hashes the object written by {@code writer}.
+     */
+    public static EncodedObject encode(final ObjectWriter<?> writer) throws Exception {
+        Preconditions.checkNotNull(writer, "writer");
+        ByteArrayOutputStream rawOut = new ByteArrayOutputStream();
+        ObjectId id = AbstractObjectDatabase.writeCompressed(writer, rawOut);
+        return new EncodedObject(id, rawOut.toByteArray());
+    }
+
+    /**
+     * @return the id of the object, as computed by {@link ObjectDatabase#put(ObjectWriter)}
+     */
+    public ObjectId getId() {
+        return id;
+    }
+
+    /**
+     * @return the LZF compressed representation of the object
+     */
+    public byte[] getCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Writes the decompressed object
+     */
+    @Override
+    public void write(final OutputStream out) throws IOException {
+        InputStream in = new LZFInputStream(new ByteArrayInputStream(compressed));
+        try {
+            ByteStreams.copy(in, out);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.util.Iterator;
+
+import org.geogit.api.Ref;
+
+/**
+ * Immutable set of the entries of a {@link RevSHA1Tree} leaf, for serialization
+ * formats that can look entries up straight out of their encoded form instead of decoding them all
+ * into a map when the tree is read.
+ *
+ * @author groldan
+ * @see RevSHA1Tree#RevSHA1Tree(org.geogit.api.ObjectId, ObjectDatabase, int, LeafEntries,
+ *      java.util.TreeMap, java.math.BigInteger)
+ */
+public interface LeafEntries extends Iterable<Ref> {
+
+    /**
+     * @return the number of entries
+     */
+    public int size();
+
+    /**
+     * @return the entry named {@code name}, or {@code null} if there's no such entry
+     */
+    public Ref get(String name);
+
+    /**
+     * @return an iterator over the entries in ascending name order
+     */
+    @Override
+    public Iterator<Ref> iterator();
+
+    /**
+     * @return an iterator over the entries in ascending {@link Ref#getNameHash() name hash}
+     *         order, the order {@link RevSHA1Tree#iterator} returns them in
+     */
+    public Iterator<Ref> iteratorByNameHash();
+}
@@ -6,23 +6,80 @@ package org.geogit.storage;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.geogit.api.MutableTree;
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
+import org.geogit.repository.SpatialOps;
+import org.opengis.geometry.BoundingBox;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 class MutableRevSHA1Tree extends RevSHA1Tree implements MutableTree {
 
+    /**
+     * Whether the current thread is normalizing a bucket subtree on behalf of another tree, in
+     * which case it shall not submit more work to the pool it runs on
+     */
+    private static final ThreadLocal<Boolean> IN_WORKER = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return Boolean.FALSE;
+        }
+    };
+
+    private static int normalizeThreads = Integer.getInteger("geogit.normalizeThreads", 1)
+            .intValue();
+
+    private static ExecutorService normalizeExecutor;
+
+    static synchronized void setNormalizeThreads(final int threads) {
+        Preconditions.checkArgument(threads > 0, "threads shall be positive");
+        if (threads != normalizeThreads && normalizeExecutor != null) {
+            normalizeExecutor.shutdown();
+            normalizeExecutor = null;
+        }
+        normalizeThreads = threads;
+    }
+
+    static synchronized int getNormalizeThreads() {
+        return normalizeThreads;
+    }
+
+    /**
+     * @return the shared pool to normalize bucket subtrees on, or {@code null} if normalization
+     *         happens on the calling thread
+     */
+    private static synchronized ExecutorService getNormalizeExecutor() {
+        if (normalizeThreads == 1) {
+            return null;
+        }
+        if (normalizeExecutor == null) {
+            normalizeExecutor = Executors.newFixedThreadPool(normalizeThreads,
+                    new ThreadFactoryBuilder().setDaemon(true)
+                            .setNameFormat("geogit-normalizer-%d").build());
+        }
+        return normalizeExecutor;
+    }
+
     private BigInteger mutableSize;
 
     /**
@@ -31,6 +88,11 @@ class MutableRevSHA1Tree extends RevSHA1Tree implements MutableTree {
     public MutableRevSHA1Tree(final RevSHA1Tree copy) {
         super(copy.getId(), copy.db, copy.depth);
         this.mutableSize = copy.size();
+        if (copy.getLeafEntries() != null) {
+            for (Ref ref : copy.getLeafEntries()) {
+                super.myEntries.put(ref.getName(), ref);
+            }
+        }
         super.myEntries.putAll(copy.myEntries);
         super.mySubTrees.putAll(copy.mySubTrees);
     }
@@ -44,6 +106,21 @@ class MutableRevSHA1Tree extends RevSHA1Tree implements MutableTree {
         return this;
     }
 
+    /**
+     * Mutable trees may not match the contents of the stored tree they were copied from, so they
+     * can't use its spatial index and scan their contents instead. As with
+     * {@link #iterator(Predicate)}, the tree shall be {@link #normalize() normalized} first.
+     * 
+     * @see org.geogit.storage.RevSHA1Tree#iterator(org.opengis.geometry.BoundingBox,
+     *      com.google.common.base.Predicate)
+     */
+    @Override
+    public Iterator<Ref> iterator(final BoundingBox bounds, final Predicate<Ref> filter) {
+        Preconditions.checkNotNull(bounds, "bounds");
+        Iterator<Ref> matches = Iterators.filter(iterator(filter), SpatialOps.intersects(bounds));
+        return matches;
+    }
+
     /**
      * @return the number of elements in the tree, forces {@link #normalize()} if the tree has been
      *         modified since retrieved from the db
@@ -110,7 +187,8 @@ class MutableRevSHA1Tree extends RevSHA1Tree implements MutableTree {
     @Override
     public Ref remove(final String key) {
         Preconditions.checkNotNull(key, "key can't be null");
-        final Integer bucket = computeBucket(key);
+        final ObjectId keyHash = ObjectId.forString(key);
+        final Integer bucket = computeBucket(keyHash);
         if (null == mySubTrees.get(bucket)) {
             // we don't even have a subtree for this key's bucket, it's sure this tree doesn't
             // already hold a value for it
@@ -120,7 +198,7 @@ class MutableRevSHA1Tree extends RevSHA1Tree implements MutableTree {
             }
             return removed;
         } else {
-            Ref ref = this.get(key);
+            Ref ref = this.get(key, keyHash);
             // there's a subtree this key's bucket, we don't know if the subtree contains it at all
             // and it'd be too expensive to find out just now, use null value signaling the removal
             // of the entry. normalize() is gonna take care of removing it from the subtree
@@ -136,7 +214,13 @@ class MutableRevSHA1Tree extends RevSHA1Tree implements MutableTree {
 
     /**
      * Splits the cached entries into subtrees and saves them, making sure the tree contains either
-     * only entries or subtrees
+     * only entries or subtrees.
+     * <p>
+     * For a top level tree the bucket subtrees are normalized and saved on the
+     * {@link RevSHA1Tree#setNormalizeThreads(int) normalize thread pool}, if configured with more
+     * than one thread. Buckets don't share entries and trees are content addressed, so the
+     * resulting tree is the same whatever the order buckets are processed in.
+     * </p>
      */
     @Override
     public void normalize() {
@@ -149,16 +233,44 @@ class MutableRevSHA1Tree extends RevSHA1Tree implements MutableTree {
             mutableSize = BigInteger.valueOf(myEntries.size());
             return;
         }
-        final int childOrder = this.depth + 1;
         try {
-            // sort entries by the bucket they fall on
-            Map<Integer, Set<String>> entriesByBucket = new TreeMap<Integer, Set<String>>();
-            for (Object key : myEntries.keySet()) {
-                Integer bucket = computeBucket((String) key);
-                if (!entriesByBucket.containsKey(bucket)) {
-                    entriesByBucket.put(bucket, new HashSet<String>());
+            // sort entries by the bucket they fall on, a null value meaning a removal
+            Map<Integer, Map<String, Ref>> entriesByBucket = new TreeMap<Integer, Map<String, Ref>>();
+            for (Map.Entry<String, Ref> e : myEntries.entrySet()) {
+                Ref ref = e.getValue();
+                Integer bucket = ref == null ? computeBucket(e.getKey())
+                        : computeBucket(ref.getNameHash());
+                Map<String, Ref> bucketEntries = entriesByBucket.get(bucket);
+                if (bucketEntries == null) {
+                    bucketEntries = new HashMap<String, Ref>();
+                    entriesByBucket.put(bucket, bucketEntries);
+                }
+                bucketEntries.put(e.getKey(), e.getValue());
+            }
+            myEntries.clear();
+
+            List<BucketNormalizer> tasks = new ArrayList<BucketNormalizer>(entriesByBucket.size());
+            for (Map.Entry<Integer, Map<String, Ref>> e : entriesByBucket.entrySet()) {
+                Integer bucket = e.getKey();
+                tasks.add(new BucketNormalizer(bucket, mySubTrees.get(bucket), e.getValue()));
+            }
+            entriesByBucket = null;
+
+            final ExecutorService executor = this.depth == 0 && tasks.size() > 1
+                    && !IN_WORKER.get().booleanValue() ? getNormalizeExecutor() : null;
+            if (executor == null) {
+                for (BucketNormalizer task : tasks) {
+                    task.call();
+                }
+            } else {
+                List<Future<BucketNormalizer>> futures = executor.invokeAll(tasks);
+                for (Future<BucketNormalizer> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        throw Throwables.propagate(e.getCause());
+                    }
                 }
-                entriesByBucket.get(bucket).add((String) key);
             }
 
             BigInteger size = BigInteger.ZERO;
@@ -167,50 +279,79 @@ class MutableRevSHA1Tree extends RevSHA1Tree implements MutableTree {
             // already added
             Set<Ref> ignoreForSizeComputation = new HashSet<Ref>();
 
-            // for each bucket retrieve/create the bucket's subtree and set its entries
-            Iterator<Map.Entry<Integer, Set<String>>> it = entriesByBucket.entrySet().iterator();
+            for (BucketNormalizer task : tasks) {
+                size = size.add(task.size);
+                Ref subtreeRef = new Ref("", task.subtreeId, TYPE.TREE);
+                ignoreForSizeComputation.add(subtreeRef);
+                mySubTrees.put(task.bucket, subtreeRef);
+            }
 
-            Ref subtreeRef;
-            ObjectId subtreeId;
-            MutableTree subtree;
+            // compute the overall size
+            this.mutableSize = computeSize(size, ignoreForSizeComputation);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        // System.err.println("spliting complete.");
+    }
 
-            while (it.hasNext()) {
-                Entry<Integer, Set<String>> e = it.next();
-                Integer bucket = e.getKey();
-                Set<String> keys = e.getValue();
-                it.remove();
-                subtreeRef = mySubTrees.get(bucket);
+    /**
+     * Applies the changes that fall on a bucket to its subtree, creating it if needed, and saves
+     * it.
+     */
+    private class BucketNormalizer implements Callable<BucketNormalizer> {
+
+        final Integer bucket;
+
+        private final Ref subtreeRef;
+
+        private final Map<String, Ref> changes;
+
+        ObjectId subtreeId;
+
+        BigInteger size;
+
+        BucketNormalizer(final Integer bucket, final Ref subtreeRef, final Map<String, Ref> changes) {
+            this.bucket = bucket;
+            this.subtreeRef = subtreeRef;
+            this.changes = changes;
+        }
+
+        @Override
+        public BucketNormalizer call() throws Exception {
+            final boolean nested = IN_WORKER.get().booleanValue();
+            IN_WORKER.set(Boolean.TRUE);
+            try {
+                final int childOrder = depth + 1;
+                final WrappedSerialisingFactory factory = WrappedSerialisingFactory.getInstance();
+                MutableTree subtree;
                 if (subtreeRef == null) {
                     subtree = new MutableRevSHA1Tree(db, childOrder);
                 } else {
-                    subtreeId = subtreeRef.getObjectId();
-                    subtree = db.get(subtreeId, WrappedSerialisingFactory.getInstance().createRevTreeReader(db, childOrder)).mutable();
-//                    subtree = db.get(subtreeId, new BxmlRevTreeReader(db, childOrder)).mutable();
+                    subtree = db.get(subtreeRef.getObjectId(),
+                            factory.createRevTreeReader(db, childOrder)).mutable();
+                    // subtree = db.get(subtreeId, new BxmlRevTreeReader(db, childOrder)).mutable();
                 }
-                for (String key : keys) {
-                    Ref value = myEntries.remove(key);
+                for (Map.Entry<String, Ref> change : changes.entrySet()) {
+                    Ref value = change.getValue();
                     if (value == null) {
-                        subtree.remove(key);
+                        subtree.remove(change.getKey());
                     } else {
                         subtree.put(value);
                     }
                 }
-                size = size.add(subtree.size());
-                subtreeId = this.db.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(subtree));
-//                subtreeId = this.db.put(new BxmlRevTreeWriter(subtree));
-                subtreeRef = new Ref("", subtreeId, TYPE.TREE);
-                ignoreForSizeComputation.add(subtreeRef);
-                mySubTrees.put(bucket, subtreeRef);
+                size = subtree.size();
+                subtreeId = db.put(factory.createRevTreeWriter(subtree));
+                // subtreeId = this.db.put(new BxmlRevTreeWriter(subtree));
+            } finally {
+                IN_WORKER.set(Boolean.valueOf(nested));
             }
-
-            // compute the overall size
-            this.mutableSize = computeSize(size, ignoreForSizeComputation);
-        } catch (RuntimeException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            return this;
         }
-        // System.err.println("spliting complete.");
     }
 
     private BigInteger computeSize(final BigInteger initialSize,
@@ -0,0 +1,55 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import org.geogit.api.ObjectId;
+
+/**
+ * A cache of deserialized objects used by {@link ObjectDatabase#getCached} implementations.
+ * <p>
+ * Implementations shall be thread safe. Cached objects are meant to be immutable, as stated in
+ * {@link ObjectDatabase#getCached}.
+ * </p>
+ *
+ * @author groldan
+ * @see WeightedObjectCache
+ */
+public interface ObjectCache {
+
+    /**
+     * @return the cached object for {@code id}, or {@code null} if it's not cached
+     */
+    public Object getIfPresent(final ObjectId id);
+
+    /**
+     * Adds an object to the cache.
+     *
+     * @param id
+     *            the object id
+     * @param object
+     *            the object to cache
+     * @param weight
+     *            the weight of the object, usually its serialized size in bytes
+     * @param loadTimeNanos
+     *            the time it took to load the object, for statistics purposes
+     */
+    public void put(final ObjectId id, final Object object, final long weight,
+            final long loadTimeNanos);
+
+    /**
+     * Discards the cached object for {@code id}, if any.
+     */
+    public void invalidate(final ObjectId id);
+
+    /**
+     * Discards all cached objects.
+     */
+    public void invalidateAll();
+
+    /**
+     * @return a snapshot of the cache usage statistics
+     */
+    public ObjectCacheStats getStats();
+}
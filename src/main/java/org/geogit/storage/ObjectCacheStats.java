@@ -0,0 +1,104 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+/**
+ * Immutable snapshot of the usage statistics of an {@link ObjectCache}.
+ *
+ * @author groldan
+ */
+public final class ObjectCacheStats {
+
+    private final long hitCount;
+
+    private final long missCount;
+
+    private final long evictionCount;
+
+    private final long loadCount;
+
+    private final long totalLoadTime;
+
+    private final long size;
+
+    private final long weight;
+
+    public ObjectCacheStats(final long hitCount, final long missCount, final long evictionCount,
+            final long loadCount, final long totalLoadTime, final long size, final long weight) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.loadCount = loadCount;
+        this.totalLoadTime = totalLoadTime;
+        this.size = size;
+        this.weight = weight;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getRequestCount() {
+        return hitCount + missCount;
+    }
+
+    /**
+     * @return the ratio of requests that were served from the cache, {@code 1.0} if there were no
+     *         requests at all
+     */
+    public double getHitRate() {
+        long requestCount = getRequestCount();
+        return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public long getLoadCount() {
+        return loadCount;
+    }
+
+    /**
+     * @return the total time, in nanoseconds, spent loading objects that were added to the cache
+     */
+    public long getTotalLoadTime() {
+        return totalLoadTime;
+    }
+
+    /**
+     * @return the average time, in nanoseconds, spent loading an object
+     */
+    public double getAverageLoadPenalty() {
+        return loadCount == 0 ? 0.0 : (double) totalLoadTime / loadCount;
+    }
+
+    /**
+     * @return the number of objects in the cache at the time the snapshot was taken
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the sum of the weights of the objects in the cache at the time the snapshot was taken
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder("ObjectCacheStats[hits: ").append(hitCount).append(", misses: ")
+                .append(missCount).append(", evictions: ").append(evictionCount)
+                .append(", loads: ").append(loadCount).append(", load time: ")
+                .append(totalLoadTime / 1000000).append("ms, size: ").append(size)
+                .append(", weight: ").append(weight).append(']').toString();
+    }
+}
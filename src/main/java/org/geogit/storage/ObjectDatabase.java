@@ -7,6 +7,7 @@ package org.geogit.storage;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.Set;
 
 import org.geogit.api.MutableTree;
 import org.geogit.api.ObjectId;
@@ -32,8 +33,52 @@ public interface ObjectDatabase {
      */
     public abstract InputStream getRaw(final ObjectId id) throws IOException;
 
+    /**
+     * @return the object's stored representation, that is, its LZF compressed serialized form,
+     *         whose SHA-1 hash is the object id
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *             if an object with such id does not exist
+     */
+    public abstract byte[] getCompressed(final ObjectId id) throws IOException;
+
+    /**
+     * Same as {@link #getCompressed(ObjectId)} but looking the object up only once, for callers
+     * that would otherwise check whether it {@link #exists(ObjectId) exists} first.
+     * 
+     * @return the object's stored representation, or {@code null} if it does not exist
+     * @throws IOException
+     */
+    public byte[] getCompressedIfPresent(final ObjectId id) throws IOException;
+
     public List<ObjectId> lookUp(final String partialId);
 
+    /**
+     * Tells which of the given objects exist, looking them up in a single pass.
+     * 
+     * @param ids
+     *            the ids to look up, in any order and possibly with duplicates
+     * @return the subset of {@code ids} that exist in this database
+     */
+    public Set<ObjectId> existsAll(final Iterable<ObjectId> ids);
+
+    /**
+     * Fetches the stored representation of many objects in a single pass, usually cheaper than
+     * calling {@link #getCompressed(ObjectId)} for each of them.
+     * <p>
+     * Objects that don't exist are skipped, and no object is visited twice. Databases visit the
+     * objects in ascending id order, unless they're made of other databases.
+     * </p>
+     * 
+     * @param ids
+     *            the ids of the objects to fetch, in any order and possibly with duplicates
+     * @param visitor
+     *            receives each object found
+     * @throws IOException
+     */
+    public void getAll(final Iterable<ObjectId> ids, final ObjectVisitor visitor)
+            throws IOException;
+
     /**
      * @param <T>
      * @param id
@@ -93,6 +138,13 @@ public interface ObjectDatabase {
 
     public abstract ObjectInserter newObjectInserter();
 
+    /**
+     * @return an inserter that writes objects in batches, which shall be
+     *         {@link BatchObjectInserter#close() closed} for the inserted objects to be guaranteed
+     *         to be found in this database
+     */
+    public BatchObjectInserter newBatchInserter();
+
     public RevBlob getBlob(ObjectId objectId);
 
     public RevCommit getCommit(final ObjectId commitId);
@@ -120,4 +172,18 @@ public interface ObjectDatabase {
 
     public boolean delete(ObjectId objectId);
 
+    /**
+     * Deletes many objects at once, usually cheaper than calling {@link #delete(ObjectId)} for
+     * each of them.
+     * 
+     * @return the number of objects that existed and were deleted
+     */
+    public int deleteAll(Iterable<ObjectId> ids);
+
+    /**
+     * @return where the {@link SpatialIndex spatial indexes} of the trees in this database are
+     *         kept, apart from the objects themselves
+     */
+    public SpatialIndexStore getSpatialIndexStore();
+
 }
\ No newline at end of file
@@ -0,0 +1,119 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.geogit.api.ObjectId;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A thread safe bloom filter of object ids, telling for sure when an id was never
+ * {@link #add added}.
+ * <p>
+ * Object ids are SHA-1 hashes, so the filter takes its bit positions straight out of the id words
+ * instead of hashing them again. It's sized for about a 1% false positive rate at the expected
+ * number of ids, adding more ids than that raises the rate but never produces false negatives.
+ * {@link #isFull()} tells when that happened so that callers can move on to a bigger filter.
+ * </p>
+ *
+ * @author groldan
+ */
+public final class ObjectIdFilter {
+
+    private static final int BITS_PER_ID = 10;
+
+    private static final int NUM_PROBES = 7;
+
+    private static final long MAX_BITS = 1L << 31;
+
+    private final AtomicLongArray words;
+
+    private final long mask;
+
+    private final long capacity;
+
+    private final AtomicLong added = new AtomicLong();
+
+    /**
+     * @param expectedIds
+     *            the number of ids expected to be added
+     */
+    public ObjectIdFilter(final long expectedIds) {
+        Preconditions.checkArgument(expectedIds >= 0, "expectedIds shall not be negative");
+        long numBits = Long.highestOneBit(Math.max(64L, expectedIds * BITS_PER_ID - 1)) << 1;
+        numBits = Math.min(numBits, MAX_BITS);
+        this.words = new AtomicLongArray((int) (numBits >>> 6));
+        this.mask = numBits - 1;
+        this.capacity = numBits / BITS_PER_ID;
+    }
+
+    /**
+     * @return the number of ids the filter can take before its false positive rate goes over the
+     *         expected one
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return {@code true} if more ids than the {@link #getCapacity() capacity} were added.
+     *         Re-adding an id doesn't count, ids whose bits were all already set by others don't
+     *         either, so it's a slight underestimate.
+     */
+    public boolean isFull() {
+        return added.get() > capacity;
+    }
+
+    public void add(final ObjectId id) {
+        final long h1 = hash1(id);
+        final long h2 = hash2(id);
+        boolean changed = false;
+        for (int i = 0; i < NUM_PROBES; i++) {
+            final long bit = (h1 + i * h2) & mask;
+            final int index = (int) (bit >>> 6);
+            final long bitMask = 1L << bit;
+            long word;
+            do {
+                word = words.get(index);
+                if ((word & bitMask) != 0) {
+                    break;
+                }
+            } while (!words.compareAndSet(index, word, word | bitMask));
+            changed |= (word & bitMask) == 0;
+        }
+        if (changed) {
+            added.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return {@code false} if {@code id} was never added, {@code true} if it may have been
+     */
+    public boolean mightContain(final ObjectId id) {
+        final long h1 = hash1(id);
+        final long h2 = hash2(id);
+        for (int i = 0; i < NUM_PROBES; i++) {
+            final long bit = (h1 + i * h2) & mask;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash1(final ObjectId id) {
+        return ((long) id.intN(2) << 32) | (id.intN(3) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Odd so that the probes don't cycle within the power of two sized bit set
+     */
+    private static long hash2(final ObjectId id) {
+        return id.intN(4) | 1L;
+    }
+}
@@ -11,6 +11,10 @@ import org.geogit.api.ObjectId;
  * <p>
  * Use the same ObjectInserter for a single transaction
  * </p>
+ * <p>
+ * This implementation writes each object straight to the database, see {@link BatchObjectInserter}
+ * for one that groups writes.
+ * </p>
  * 
  * @author groldan
  * 
@@ -19,7 +23,6 @@ public class ObjectInserter {
 
     private ObjectDatabase objectDb;
 
-    // TODO: transaction management
     public ObjectInserter(ObjectDatabase objectDatabase) {
         objectDb = objectDatabase;
     }
@@ -29,4 +32,18 @@ public class ObjectInserter {
         return objectId;
     }
 
+    /**
+     * Makes sure all the objects inserted so far are written to the database. This implementation
+     * does nothing as objects are written as soon as they're inserted.
+     */
+    public void flush() throws Exception {
+        // nothing to do
+    }
+
+    /**
+     * Flushes any pending object, the inserter shall not be used afterwards.
+     */
+    public void close() throws Exception {
+        flush();
+    }
 }
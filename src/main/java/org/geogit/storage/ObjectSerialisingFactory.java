@@ -4,6 +4,7 @@
  */
 package org.geogit.storage;
 
+import org.geogit.api.ObjectId;
 import org.geogit.api.RevCommit;
 import org.geogit.api.RevTree;
 import org.geotools.factory.Hints;
@@ -19,6 +20,31 @@ import org.opengis.feature.type.FeatureType;
  */
 public interface ObjectSerialisingFactory {
 
+    /**
+     * Feature reader hint asking for features whose geometries are only parsed the first time
+     * they're accessed, for callers that may not need them at all. Defaults to {@code false}.
+     * 
+     * @see #createFeatureReader(FeatureType, String, Hints)
+     */
+    public static final Hints.Key LAZY_FEATURES = new Hints.Key(Boolean.class);
+
+    /**
+     * Feature reader hint asking for lazy features whose geometry attributes resolve to their
+     * envelope instead of the actual geometry, for callers that only need the features bounds.
+     * Implies {@link #LAZY_FEATURES}. Defaults to {@code false}.
+     * 
+     * @see #createFeatureReader(FeatureType, String, Hints)
+     */
+    public static final Hints.Key ENVELOPE_GEOMETRIES = new Hints.Key(Boolean.class);
+
+    /**
+     * Feature reader hint providing the {@link ObjectDatabase} where to look up the feature types
+     * referenced by the features being read, if they're not already known.
+     * 
+     * @see #createFeatureTypeWriter(FeatureType)
+     */
+    public static final Hints.Key SCHEMA_DATABASE = new Hints.Key(ObjectDatabase.class);
+
     /**
      * Creates an instance of a commit writer to serialise the provided RevCommit
      * 
@@ -86,10 +112,46 @@ public interface ObjectSerialisingFactory {
      * @param hints feature creation hints
      * @return feature reader
      * @see Hints#GEOMETRY_FACTORY
+     * @see #LAZY_FEATURES
+     * @see #ENVELOPE_GEOMETRIES
      */
     public ObjectReader<Feature> createFeatureReader(final FeatureType featureType,
             final String featureId, final Hints hints);
 
+    /**
+     * @param featureType FeatureType of the features to be written
+     * @return whether features of the given type refer to a schema object that shall be stored
+     *         with {@link #createFeatureTypeWriter(FeatureType)}
+     */
+    public boolean supportsSchemas(final FeatureType featureType);
+
+    /**
+     * Creates an instance of a FeatureType writer, for the feature type to be stored once as a
+     * schema object its features refer to.
+     * 
+     * @param featureType FeatureType to be written
+     * @return feature type writer, or {@code null} if this serialisation doesn't
+     *         {@link #supportsSchemas(FeatureType) support schema objects} for this feature type
+     */
+    public ObjectWriter<FeatureType> createFeatureTypeWriter(final FeatureType featureType);
+
+    /**
+     * Creates an instance of a FeatureType reader.
+     * 
+     * @return feature type reader, or {@code null} if this serialisation has no schema objects
+     */
+    public ObjectReader<FeatureType> createFeatureTypeReader();
+
+    /**
+     * Finds out the schema object a feature refers to, so that it can be sent along with the
+     * feature to another repository.
+     * 
+     * @param blob the uncompressed contents of a blob
+     * @return the id of the schema object the blob refers to, or {@code null} if it's not a
+     *         feature referring to a schema object
+     */
+    public ObjectId getFeatureSchemaId(final byte[] blob);
+
     /**
      * Creates a BlobPrinter that can parse serialised elements into a human-readable(ish)
      * representation, typically xml.
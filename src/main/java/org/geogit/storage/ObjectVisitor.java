@@ -0,0 +1,26 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import org.geogit.api.ObjectId;
+
+/**
+ * Receives the objects fetched in bulk through
+ * {@link ObjectDatabase#getAll(Iterable, ObjectVisitor)}.
+ *
+ * @author groldan
+ */
+public interface ObjectVisitor {
+
+    /**
+     * @param id
+     *            the object id
+     * @param compressed
+     *            the object's stored representation, as returned by
+     *            {@link ObjectDatabase#getCompressed(ObjectId)}
+     * @return {@code true} to keep on visiting objects, {@code false} to stop
+     */
+    public boolean visit(ObjectId id, byte[] compressed);
+}
@@ -0,0 +1,100 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+
+/**
+ * Number of entries in a set of paths, overall and under each path prefix, maintained as paths
+ * are added and removed so that counting doesn't need to scan the paths.
+ * <p>
+ * Only the proper prefixes of each path are tracked (e.g. {@code [ns]} and {@code [ns, type]} for
+ * {@code [ns, type, fid]}), so the counts take as many entries as trees there are rather than as
+ * many as paths.
+ * </p>
+ *
+ * @author groldan
+ * @see StagingDatabase
+ */
+final class PathCounts {
+
+    private final Map<List<String>, int[]> prefixCounts = new HashMap<List<String>, int[]>();
+
+    private int total;
+
+    public synchronized void add(final List<String> path) {
+        total++;
+        for (int i = 1; i < path.size(); i++) {
+            List<String> prefix = path.subList(0, i);
+            int[] count = prefixCounts.get(prefix);
+            if (count == null) {
+                count = new int[1];
+                prefixCounts.put(new ArrayList<String>(prefix), count);
+            }
+            count[0]++;
+        }
+    }
+
+    public synchronized void remove(final List<String> path) {
+        total--;
+        for (int i = 1; i < path.size(); i++) {
+            List<String> prefix = path.subList(0, i);
+            int[] count = prefixCounts.get(prefix);
+            if (count != null && --count[0] == 0) {
+                prefixCounts.remove(prefix);
+            }
+        }
+    }
+
+    /**
+     * @return the number of paths under {@code prefix}, not counting {@code prefix} itself, or
+     *         the total number of paths if {@code prefix} is {@code null} or empty
+     */
+    public synchronized int count(final List<String> prefix) {
+        if (prefix == null || prefix.isEmpty()) {
+            return total;
+        }
+        int[] count = prefixCounts.get(prefix);
+        return count == null ? 0 : count[0];
+    }
+
+    public synchronized void clear() {
+        prefixCounts.clear();
+        total = 0;
+    }
+
+    public synchronized void write(final TupleOutput out) {
+        out.writeInt(total);
+        out.writeInt(prefixCounts.size());
+        for (Map.Entry<List<String>, int[]> e : prefixCounts.entrySet()) {
+            List<String> prefix = e.getKey();
+            out.writeUnsignedByte(prefix.size());
+            for (String step : prefix) {
+                out.writeString(step);
+            }
+            out.writeInt(e.getValue()[0]);
+        }
+    }
+
+    public synchronized void read(final TupleInput in) {
+        clear();
+        total = in.readInt();
+        final int numPrefixes = in.readInt();
+        for (int i = 0; i < numPrefixes; i++) {
+            final int size = in.readUnsignedByte();
+            List<String> prefix = new ArrayList<String>(size);
+            for (int j = 0; j < size; j++) {
+                prefix.add(in.readString());
+            }
+            prefixCounts.put(prefix, new int[] { in.readInt() });
+        }
+    }
+}
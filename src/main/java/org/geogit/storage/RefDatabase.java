@@ -4,47 +4,110 @@
  */
 package org.geogit.storage;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.geogit.api.MutableTree;
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevObject.TYPE;
 import org.geogit.api.RevTree;
 
 import com.google.common.base.Preconditions;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Iterators;
+import com.google.common.base.Throwables;
 
 /**
  * Database of repository {@link Ref references}
  * <p>
- * It uses the {@link ObjectDatabase} to store the references in a {@link RevTree} under the
- * {@code ".geogit/refs"} key.
+ * All the refs are held in memory in an immutable snapshot that's replaced as a whole on each
+ * update, so reads never lock nor touch the disk. Writers build a new snapshot and install it
+ * through an atomic compare-and-set, retrying if another writer got in first, and then append the
+ * change to a {@link RefJournal journal} file that's replayed on {@link #create()}.
  * </p>
- * 
+ * <p>
+ * Refs used to be stored in the {@link ObjectDatabase} as a {@link RevTree} under the
+ * {@code ".geogit/refs"} key, if such a tree exists when the journal is created its refs are
+ * imported.
+ * </p>
+ *
  */
 public class RefDatabase {
 
+    public static final String JOURNAL_FILE_NAME = "refs";
+
     private static final String REFS_TREE_KEY = ".geogit/refs";
 
     private static final ObjectId REFS_TREE_ID = ObjectId.forString(REFS_TREE_KEY);
 
     private ObjectDatabase db;
 
+    private final RefJournal journal;
+
+    private final AtomicReference<SortedMap<String, Ref>> snapshot;
+
+    /**
+     * Creates a ref database that holds the refs in memory only
+     */
     public RefDatabase(final ObjectDatabase db) {
+        this(db, null);
+    }
+
+    /**
+     * @param journalFile
+     *            the file where to persist the refs, or {@code null} to hold them in memory only
+     */
+    public RefDatabase(final ObjectDatabase db, final File journalFile) {
         this.db = db;
+        this.journal = journalFile == null ? null : new RefJournal(journalFile);
+        SortedMap<String, Ref> empty = Collections.unmodifiableSortedMap(new TreeMap<String, Ref>());
+        this.snapshot = new AtomicReference<SortedMap<String, Ref>>(empty);
     }
 
     public void create() {
+        if (journal != null) {
+            synchronized (journal) {
+                TreeMap<String, Ref> refs = new TreeMap<String, Ref>();
+                try {
+                    if (!journal.exists()) {
+                        importRefsTree(refs);
+                    }
+                    journal.open(refs);
+                } catch (IOException e) {
+                    throw Throwables.propagate(e);
+                }
+                snapshot.set(Collections.unmodifiableSortedMap(refs));
+            }
+        }
         final String headRefName = Ref.HEAD;
         condCreate(headRefName, TYPE.COMMIT);
         final String master = Ref.MASTER;
         condCreate(master, TYPE.COMMIT);
     }
-    
+
+    private void importRefsTree(final Map<String, Ref> refs) {
+        if (!db.exists(REFS_TREE_ID)) {
+            return;
+        }
+        try {
+            RevTree refsTree = db.get(REFS_TREE_ID, WrappedSerialisingFactory.getInstance()
+                    .createRevTreeReader(db));
+            Iterator<Ref> legacyRefs = refsTree.iterator(null);
+            while (legacyRefs.hasNext()) {
+                Ref ref = legacyRefs.next();
+                refs.put(ref.getName(), ref);
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
     /**
      * Add a new tracked remote to the reference database
      * @param refName the name of the remote to track, no need to add the prefix, "remotes/".
@@ -54,67 +117,46 @@ public class RefDatabase {
     }
 
     private void condCreate(final String refName, TYPE type) {
-        RevTree refsTree = getRefsTree();
-
-        Ref child = refsTree.get(refName);
+        Ref child = getRef(refName);
         if (null == child) {
-            put(new Ref(refName, ObjectId.NULL, type));
+            compareAndPut(null, new Ref(refName, ObjectId.NULL, type));
         }
     }
 
-    private RevTree getRefsTree() {
-        RevTree refsTree;
-        try {
-            if (db.exists(REFS_TREE_ID)) {
-                refsTree = db.get(REFS_TREE_ID, WrappedSerialisingFactory.getInstance().createRevTreeReader(db));
-//                refsTree = db.get(REFS_TREE_ID, new BxmlRevTreeReader(db));
-            } else {
-                refsTree = new RevSHA1Tree(db);
-                db.put(REFS_TREE_ID, WrappedSerialisingFactory.getInstance().createRevTreeWriter(refsTree));
-//                db.put(REFS_TREE_ID, new BxmlRevTreeWriter(refsTree));
+    public void close() {
+        if (journal != null) {
+            synchronized (journal) {
+                journal.close();
             }
-        } catch (RuntimeException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
         }
-
-        return refsTree;
-    }
-
-    public void close() {
-        //
     }
 
     public Ref getRef(final String name) {
         Preconditions.checkNotNull(name, "Ref name can't be null");
-        RevTree refsTree = getRefsTree();
-        Ref child = refsTree.get(name);
-        return child;
+        return snapshot.get().get(name);
     }
 
     public List<Ref> getRefs(final String prefix) {
         Preconditions.checkNotNull(prefix, "Ref prefix can't be null");
         List<Ref> refs = new LinkedList<Ref>();
-        RevTree refsTree = getRefsTree();
-
-        Iterator<Ref> iterator = refsTree.iterator(new Predicate<Ref>() {
-            public boolean apply(Ref input) {
-                return input.getName().startsWith(prefix);
+        for (Ref ref : snapshot.get().tailMap(prefix).values()) {
+            if (!ref.getName().startsWith(prefix)) {
+                break;
             }
-        });
-
-        Iterators.addAll(refs, iterator);
+            refs.add(ref);
+        }
         return refs;
     }
 
     public List<Ref> getRefsPontingTo(final ObjectId oid) {
         Preconditions.checkNotNull(oid);
         List<Ref> refs = new LinkedList<Ref>();
-        RevTree refsTree = getRefsTree();
-        throw new UnsupportedOperationException(
-                "waiting for tree walking implementation to reliable implement this method");
-        // return refs;
+        for (Ref ref : snapshot.get().values()) {
+            if (oid.equals(ref.getObjectId())) {
+                refs.add(ref);
+            }
+        }
+        return refs;
     }
 
     /**
@@ -127,20 +169,69 @@ public class RefDatabase {
         Preconditions.checkNotNull(ref.getName());
         Preconditions.checkNotNull(ref.getObjectId());
 
-        RevTree refsTree = getRefsTree();
-        Ref oldTarget = refsTree.get(ref.getName());
-        if (oldTarget != null && oldTarget.equals(ref)) {
-            return false;
-        }
-        refsTree = refsTree.mutable();
-        ((MutableTree) refsTree).put(ref);
-        try {
-            db.put(REFS_TREE_ID, WrappedSerialisingFactory.getInstance().createRevTreeWriter(refsTree));
-//            db.put(REFS_TREE_ID, new BxmlRevTreeWriter(refsTree));
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        final Ref newRef = new Ref(ref.getName(), ref.getObjectId(), ref.getType());
+        while (true) {
+            final SortedMap<String, Ref> current = snapshot.get();
+            if (newRef.equals(current.get(newRef.getName()))) {
+                return false;
+            }
+            if (snapshot.compareAndSet(current, with(current, newRef))) {
+                break;
+            }
         }
+        persist(newRef.getName());
+        return true;
+    }
 
+    /**
+     * Atomically sets the ref to {@code newRef} only if its current value is {@code expected}.
+     *
+     * @param expected
+     *            the value the ref is expected to have, {@code null} meaning it shall not exist
+     * @return {@code true} if the ref was updated, {@code false} if its current value is not the
+     *         expected one
+     */
+    public boolean compareAndPut(final Ref expected, final Ref newRef) {
+        Preconditions.checkNotNull(newRef);
+        Preconditions.checkArgument(expected == null
+                || expected.getName().equals(newRef.getName()));
+
+        final Ref copy = new Ref(newRef.getName(), newRef.getObjectId(), newRef.getType());
+        while (true) {
+            final SortedMap<String, Ref> current = snapshot.get();
+            final Ref actual = current.get(copy.getName());
+            if (expected == null ? actual != null : !expected.equals(actual)) {
+                return false;
+            }
+            if (snapshot.compareAndSet(current, with(current, copy))) {
+                break;
+            }
+        }
+        persist(copy.getName());
         return true;
     }
+
+    private static SortedMap<String, Ref> with(final SortedMap<String, Ref> current, final Ref ref) {
+        TreeMap<String, Ref> updated = new TreeMap<String, Ref>(current);
+        updated.put(ref.getName(), ref);
+        return Collections.unmodifiableSortedMap(updated);
+    }
+
+    /**
+     * Appends the current value of the named ref to the journal. Concurrent writers may append in
+     * a different order than they installed their snapshots, but since the value appended is read
+     * while holding the journal lock, the last record for a ref is always its latest value.
+     */
+    private void persist(final String refName) {
+        if (journal == null) {
+            return;
+        }
+        synchronized (journal) {
+            try {
+                journal.append(snapshot.get().get(refName));
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
 }
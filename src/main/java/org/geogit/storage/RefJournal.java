@@ -0,0 +1,182 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevObject.TYPE;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.CountingInputStream;
+
+/**
+ * Append-only file of ref updates backing a {@link RefDatabase}, each record being
+ * {@code [UTF name][byte type][20 bytes object id]}, the last record for a given name being its
+ * current value.
+ * <p>
+ * Instances of this class are not thread safe, {@link RefDatabase} serializes access to them.
+ * </p>
+ *
+ * @author groldan
+ */
+class RefJournal {
+
+    private static final Logger LOGGER = Logging.getLogger(RefJournal.class);
+
+    /**
+     * "GGRF"
+     */
+    private static final int MAGIC = 0x47475246;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Number of superseded records after which the journal is rewritten on {@link #open}
+     */
+    private static final int COMPACT_THRESHOLD = 1024;
+
+    private final File file;
+
+    private DataOutputStream out;
+
+    private int records;
+
+    public RefJournal(final File file) {
+        Preconditions.checkNotNull(file);
+        this.file = file;
+    }
+
+    public boolean exists() {
+        return file.exists() && file.length() >= HEADER_SIZE;
+    }
+
+    /**
+     * Replays the journal into {@code refs} and opens it for appending, creating it if it doesn't
+     * exist, and rewriting it with only the current refs if it holds too many superseded records.
+     */
+    public void open(final Map<String, Ref> refs) throws IOException {
+        if (exists()) {
+            final long validLength = load(refs);
+            if (validLength < file.length()) {
+                LOGGER.warning("Discarding truncated ref records at the end of " + file);
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+            if (records - refs.size() > COMPACT_THRESHOLD) {
+                compact(refs);
+            }
+        } else {
+            write(file, refs);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    private long load(final Map<String, Ref> refs) throws IOException {
+        CountingInputStream counting = new CountingInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        DataInputStream in = new DataInputStream(counting);
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IllegalStateException(file + " is not a refs journal");
+            }
+            long validLength = HEADER_SIZE;
+            records = 0;
+            while (true) {
+                Ref ref;
+                try {
+                    ref = read(in);
+                } catch (EOFException partialRecord) {
+                    break;
+                }
+                refs.put(ref.getName(), ref);
+                records++;
+                validLength = counting.getCount();
+            }
+            return validLength;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void compact(final Map<String, Ref> refs) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        write(tmp, refs);
+        if (!tmp.renameTo(file)) {
+            // renameTo doesn't replace existing files on some platforms
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Unable to replace " + file + " by its compacted version");
+            }
+        }
+    }
+
+    private void write(final File target, final Map<String, Ref> refs) throws IOException {
+        target.getParentFile().mkdirs();
+        DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(target)));
+        try {
+            tmpOut.writeInt(MAGIC);
+            tmpOut.writeInt(VERSION);
+            for (Ref ref : refs.values()) {
+                write(tmpOut, ref);
+            }
+        } finally {
+            tmpOut.close();
+        }
+        records = refs.size();
+    }
+
+    public void append(final Ref ref) throws IOException {
+        Preconditions.checkState(out != null, "journal is not open");
+        write(out, ref);
+        out.flush();
+        records++;
+    }
+
+    public void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error closing refs journal " + file, e);
+            }
+            out = null;
+        }
+    }
+
+    private static void write(final DataOutputStream out, final Ref ref) throws IOException {
+        out.writeUTF(ref.getName());
+        out.writeByte(ref.getType().ordinal());
+        out.write(ref.getObjectId().getRawValue());
+    }
+
+    private static Ref read(final DataInputStream in) throws IOException {
+        final String name = in.readUTF();
+        final TYPE type = TYPE.valueOf(in.readUnsignedByte());
+        byte[] rawId = new byte[20];
+        in.readFully(rawId);
+        return new Ref(name, new ObjectId(rawId), type);
+    }
+}
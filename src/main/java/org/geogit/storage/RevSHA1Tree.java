@@ -5,10 +5,7 @@
 package org.geogit.storage;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
@@ -20,6 +17,8 @@ import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevTree;
 import org.geogit.api.TreeVisitor;
+import org.geogit.repository.SpatialOps;
+import org.opengis.geometry.BoundingBox;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
@@ -36,12 +35,26 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
 
     protected static final int NORMALIZED_SIZE_LIMIT = 4 * 1024;
 
+    /**
+     * Sets the number of threads top level trees save their bucket subtrees on when normalizing,
+     * {@code 1} meaning they're saved sequentially on the calling thread. Defaults to the value of
+     * the {@code geogit.normalizeThreads} system property, or {@code 1} if not set.
+     *
+     * @param threads
+     *            a positive number of threads
+     */
+    public static void setNormalizeThreads(final int threads) {
+        MutableRevSHA1Tree.setNormalizeThreads(threads);
+    }
+
+    public static int getNormalizeThreads() {
+        return MutableRevSHA1Tree.getNormalizeThreads();
+    }
+
     protected final int depth;
 
     protected final ObjectDatabase db;
 
-    protected MessageDigest md;
-
     // aggregated number of leaf nodes (data entries)
     private final BigInteger size;
 
@@ -53,6 +66,12 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
 
     protected final TreeMap<Integer, Ref> mySubTrees;
 
+    /**
+     * The entries of a leaf tree as read from its encoded form, in which case {@link #myEntries}
+     * is empty, or {@code null}
+     */
+    private final LeafEntries leaf;
+
     public RevSHA1Tree(final ObjectDatabase db) {
         this(null, db, 0);
     }
@@ -68,10 +87,25 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
 
     public RevSHA1Tree(final ObjectId id, final ObjectDatabase db, final int order,
             TreeMap<String, Ref> references, TreeMap<Integer, Ref> subTrees, final BigInteger size) {
+        this(id, db, order, references, null, subTrees, size);
+    }
+
+    /**
+     * Creates a tree whose entries are looked up in {@code leaf} instead of being held in a map.
+     */
+    public RevSHA1Tree(final ObjectId id, final ObjectDatabase db, final int order,
+            final LeafEntries leaf, TreeMap<Integer, Ref> subTrees, final BigInteger size) {
+        this(id, db, order, new TreeMap<String, Ref>(), leaf, subTrees, size);
+    }
+
+    private RevSHA1Tree(final ObjectId id, final ObjectDatabase db, final int order,
+            TreeMap<String, Ref> references, final LeafEntries leaf,
+            TreeMap<Integer, Ref> subTrees, final BigInteger size) {
         super(id, TYPE.TREE);
         this.db = db;
         this.depth = order;
         this.myEntries = references;
+        this.leaf = leaf;
         this.mySubTrees = subTrees;
         this.size = size;
     }
@@ -121,6 +155,16 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
     }
 
     private void accept(final TreeVisitor visitor, final Map<String, Ref> ignore) {
+        if (leaf != null) {
+            for (Ref value : leaf) {
+                if (ignore.containsKey(value.getName())) {
+                    continue;
+                }
+                if (!visitor.visitEntry(value)) {
+                    return;
+                }
+            }
+        }
         if (myEntries.size() > 0) {
             for (Map.Entry<String, Ref> e : myEntries.entrySet()) {
                 String key = e.getKey();
@@ -135,19 +179,75 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
         }
     }
 
+    /**
+     * @return the depth of this tree in its bucket hierarchy, {@code 0} for a top level tree
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return {@code true} if this tree holds no direct entries but only references to bucket
+     *         subtrees
+     */
+    public boolean isSplit() {
+        return numEntries() == 0 && !mySubTrees.isEmpty();
+    }
+
+    /**
+     * @return the number of entries held directly by this tree, including removal markers
+     */
+    protected final int numEntries() {
+        return leaf == null ? myEntries.size() : myEntries.size() + leaf.size();
+    }
+
+    /**
+     * @return the entries held directly by this tree, if it was read off a format that decodes
+     *         them lazily, or {@code null}
+     */
+    protected final LeafEntries getLeafEntries() {
+        return leaf;
+    }
+
+    /**
+     * @return an unmodifiable view of the references to this tree's bucket subtrees, keyed by
+     *         bucket index
+     */
+    public Map<Integer, Ref> getBuckets() {
+        return Collections.unmodifiableMap(mySubTrees);
+    }
+
+    /**
+     * Loads the bucket subtree addressed by {@code subtreeId}, which shall be one of the
+     * {@link #getBuckets() buckets} of this tree.
+     */
+    public RevSHA1Tree getBucketTree(final ObjectId subtreeId) {
+        try {
+            return (RevSHA1Tree) db.getCached(subtreeId, WrappedSerialisingFactory.getInstance()
+                    .createRevTreeReader(db, this.depth + 1));
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
     void put(Integer bucket, ObjectId subtreeId) {
         mySubTrees.put(bucket, new Ref("", subtreeId, TYPE.TREE));
     }
 
     protected final Integer computeBucket(final String key) {
-        byte[] hashedKey = hashKey(key);
+        return computeBucket(ObjectId.forString(key));
+    }
+
+    /**
+     * @param keyHash
+     *            the SHA-1 hash of the key, as given by {@link Ref#getNameHash()}
+     */
+    protected final Integer computeBucket(final ObjectId keyHash) {
         // int ch1 = hashedKey[2 * this.order] & 0xFF;
         // int ch2 = hashedKey[2 * this.order + 1] & 0xFF;
         // int b = (ch1 << 8) + (ch2 << 0);
         // final Integer bucket = Integer.valueOf(b);
-        final Integer bucket = Integer.valueOf(hashedKey[this.depth] & 0xFF);
-
-        return bucket;
+        return Integer.valueOf(keyHash.byteN(this.depth));
     }
 
     /**
@@ -159,16 +259,31 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
      */
     @Override
     public Ref get(final String key) {
+        return get(key, null);
+    }
+
+    /**
+     * @param keyHash
+     *            the SHA-1 hash of {@code key} if already known, so that it's computed only once
+     *            while descending through the subtrees, or {@code null}
+     */
+    Ref get(final String key, ObjectId keyHash) {
         Ref value = null;
-        if (myEntries.containsKey(key)) {
+        if (leaf != null) {
+            value = leaf.get(key);
+        }
+        if (value == null && myEntries.containsKey(key)) {
             value = myEntries.get(key);
             if (value == null) {
                 // key is marked as removed
                 return null;
             }
         }
-        if (value == null) {
-            final Integer bucket = computeBucket(key);
+        if (value == null && !mySubTrees.isEmpty()) {
+            if (keyHash == null) {
+                keyHash = ObjectId.forString(key);
+            }
+            final Integer bucket = computeBucket(keyHash);
             final Ref subTreeRef = mySubTrees.get(bucket);
             if (subTreeRef == null) {
                 value = null;
@@ -181,40 +296,29 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
                 } catch (IOException ioe) {
                     throw new RuntimeException(ioe);
                 }
-                value = subTree.get(key);
+                if (subTree instanceof RevSHA1Tree) {
+                    value = ((RevSHA1Tree) subTree).get(key, keyHash);
+                } else {
+                    value = subTree.get(key);
+                }
             }
         }
         return value;
     }
 
-    private synchronized byte[] hashKey(final String key) {
-        if (md == null) {
-            try {
-                md = MessageDigest.getInstance("SHA1");
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        try {
-            md.reset();
-            return md.digest(key.getBytes("UTF-8"));
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     @Override
     public boolean isNormalized() {
-        boolean normalized = (myEntries.size() <= NORMALIZED_SIZE_LIMIT && mySubTrees.isEmpty())
-                || (myEntries.isEmpty() && mySubTrees.isEmpty())
-                || (myEntries.isEmpty() && !mySubTrees.isEmpty());
+        final int numEntries = numEntries();
+        boolean normalized = (numEntries <= NORMALIZED_SIZE_LIMIT && mySubTrees.isEmpty())
+                || (numEntries == 0 && mySubTrees.isEmpty())
+                || (numEntries == 0 && !mySubTrees.isEmpty());
         return normalized;
     }
 
     @Override
     public String toString() {
         return new StringBuilder(getClass().getSimpleName()).append("[size: ")
-                .append(this.myEntries.size()).append(", order: ").append(this.depth)
+                .append(numEntries()).append(", order: ").append(this.depth)
                 .append(", subtrees: ").append(this.mySubTrees.size()).append(']').toString();
     }
 
@@ -233,7 +337,7 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
             filter = Predicates.alwaysTrue();
         }
 
-        if (myEntries.isEmpty() && mySubTrees.isEmpty()) {
+        if (numEntries() == 0 && mySubTrees.isEmpty()) {
             return Collections.EMPTY_SET.iterator();
         }
         if (!mySubTrees.isEmpty()) {
@@ -248,15 +352,43 @@ public class RevSHA1Tree extends AbstractRevObject implements RevTree {
         }
 
         // we have only content entries, return them in our internal order
+        if (leaf != null) {
+            // already stored in that order
+            return Iterators.filter(leaf.iteratorByNameHash(), filter);
+        }
         Map<ObjectId, Ref> sorted = new TreeMap<ObjectId, Ref>();
         for (Ref ref : myEntries.values()) {
             if (filter.apply(ref)) {
-                sorted.put(ObjectId.forString(ref.getName()), ref);
+                sorted.put(ref.getNameHash(), ref);
             }
         }
         return sorted.values().iterator();
     }
 
+    /**
+     * Returns the refs intersecting {@code bounds} through this tree's {@link SpatialIndex},
+     * building it if this is the first time this tree is spatially queried.
+     * 
+     * @see org.geogit.api.RevTree#iterator(org.opengis.geometry.BoundingBox,
+     *      com.google.common.base.Predicate)
+     */
+    @Override
+    public Iterator<Ref> iterator(final BoundingBox bounds, final Predicate<Ref> filter) {
+        Preconditions.checkNotNull(bounds, "bounds");
+        final ObjectId id = getId();
+        Iterator<Ref> matches;
+        if (id == null || id.isNull()) {
+            // not stored, hence can't be indexed
+            matches = Iterators.filter(iterator(null), SpatialOps.intersects(bounds));
+        } else {
+            matches = SpatialIndex.get(db.getSpatialIndexStore(), this).query(bounds);
+        }
+        if (filter != null) {
+            matches = Iterators.filter(matches, filter);
+        }
+        return matches;
+    }
+
     private static class LazySubtreeIterator implements Iterator<Ref> {
 
         private final ObjectDatabase db;
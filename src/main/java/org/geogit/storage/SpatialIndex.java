@@ -0,0 +1,396 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.collections.map.LRUMap;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.RevTree;
+import org.geogit.api.SpatialRef;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.geometry.BoundingBox;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * An immutable, Sort-Tile-Recursive packed R-tree over the {@link SpatialRef}s of a
+ * {@link RevTree}.
+ * <p>
+ * The index is built once from the whole contents of a tree (including its bucket subtrees) and
+ * kept in the {@link SpatialIndexStore} of the tree's object database, keyed by the tree id.
+ * Since trees are immutable, the same index serves any tree with the same id. Refs that are not
+ * {@link SpatialRef}s or have no bounds are not indexed.
+ * </p>
+ * <p>
+ * Only the leaf entries are persisted, in packed order. Leaf nodes are consecutive runs of
+ * {@link #getNodeCapacity() nodeCapacity} entries and each upper level node groups that many
+ * consecutive nodes of the level below, so the node bounds are recomputed in linear time when the
+ * index is read back.
+ * </p>
+ *
+ * @author groldan
+ * @see RevTree#iterator(BoundingBox, com.google.common.base.Predicate)
+ */
+public final class SpatialIndex {
+
+    public static final int DEFAULT_NODE_CAPACITY = 16;
+
+    private static final int FORMAT_VERSION = 1;
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, CoordinateReferenceSystem> crsCache = Collections
+            .synchronizedMap(new LRUMap(3));
+
+    private final int nodeCapacity;
+
+    private final SpatialRef[] entries;
+
+    /**
+     * {@code levels[0]} holds the bounds of the entries, {@code levels[levels.length - 1]} the
+     * bounds of the root node. Each node takes four consecutive ordinates: minx, miny, maxx, maxy.
+     */
+    private final double[][] levels;
+
+    private SpatialIndex(final SpatialRef[] entries, final int nodeCapacity) {
+        Preconditions.checkArgument(nodeCapacity > 1, "nodeCapacity shall be greater than 1");
+        this.nodeCapacity = nodeCapacity;
+        this.entries = entries;
+
+        List<double[]> levels = new ArrayList<double[]>();
+        double[] level = new double[4 * entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            BoundingBox b = entries[i].getBounds();
+            level[4 * i] = b.getMinX();
+            level[4 * i + 1] = b.getMinY();
+            level[4 * i + 2] = b.getMaxX();
+            level[4 * i + 3] = b.getMaxY();
+        }
+        levels.add(level);
+        while (level.length > 4) {
+            level = parentLevel(level, nodeCapacity);
+            levels.add(level);
+        }
+        this.levels = levels.toArray(new double[levels.size()][]);
+    }
+
+    private static double[] parentLevel(final double[] children, final int nodeCapacity) {
+        final int childCount = children.length / 4;
+        final int parentCount = (childCount + nodeCapacity - 1) / nodeCapacity;
+        final double[] parents = new double[4 * parentCount];
+        for (int p = 0; p < parentCount; p++) {
+            final int from = p * nodeCapacity;
+            final int to = Math.min(childCount, from + nodeCapacity);
+            double minx = Double.POSITIVE_INFINITY, miny = Double.POSITIVE_INFINITY;
+            double maxx = Double.NEGATIVE_INFINITY, maxy = Double.NEGATIVE_INFINITY;
+            for (int c = from; c < to; c++) {
+                minx = Math.min(minx, children[4 * c]);
+                miny = Math.min(miny, children[4 * c + 1]);
+                maxx = Math.max(maxx, children[4 * c + 2]);
+                maxy = Math.max(maxy, children[4 * c + 3]);
+            }
+            parents[4 * p] = minx;
+            parents[4 * p + 1] = miny;
+            parents[4 * p + 2] = maxx;
+            parents[4 * p + 3] = maxy;
+        }
+        return parents;
+    }
+
+    /**
+     * Returns the spatial index for {@code tree}, getting it from {@code store} if it was already
+     * built, or building and storing it otherwise.
+     *
+     * @param tree
+     *            a stored, and hence immutable, tree
+     */
+    public static SpatialIndex get(final SpatialIndexStore store, final RevTree tree) {
+        final ObjectId treeId = tree.getId();
+        Preconditions.checkArgument(treeId != null && !treeId.isNull(),
+                "Can't index a tree that has not been stored");
+        SpatialIndex index = store.get(treeId);
+        if (index == null) {
+            index = build(tree.iterator(null), DEFAULT_NODE_CAPACITY);
+            store.put(treeId, index);
+        }
+        return index;
+    }
+
+    /**
+     * Builds an index over the {@link SpatialRef}s returned by {@code refs}.
+     */
+    public static SpatialIndex build(final Iterator<Ref> refs, final int nodeCapacity) {
+        List<SpatialRef> spatialRefs = new ArrayList<SpatialRef>();
+        while (refs.hasNext()) {
+            Ref ref = refs.next();
+            if (ref instanceof SpatialRef && ((SpatialRef) ref).getBounds() != null
+                    && !((SpatialRef) ref).getBounds().isEmpty()) {
+                spatialRefs.add((SpatialRef) ref);
+            }
+        }
+        SpatialRef[] entries = spatialRefs.toArray(new SpatialRef[spatialRefs.size()]);
+        pack(entries, nodeCapacity);
+        return new SpatialIndex(entries, nodeCapacity);
+    }
+
+    /**
+     * Sorts {@code entries} in Sort-Tile-Recursive order: sliced vertically by center x into
+     * {@code sqrt(leafCount)} slices, each one sorted by center y.
+     */
+    private static void pack(final SpatialRef[] entries, final int nodeCapacity) {
+        final int leafCount = (entries.length + nodeCapacity - 1) / nodeCapacity;
+        final int sliceCount = (int) Math.ceil(Math.sqrt(leafCount));
+        final int sliceSize = Math.max(1, sliceCount * nodeCapacity);
+
+        Arrays.sort(entries, CENTER_X);
+        for (int from = 0; from < entries.length; from += sliceSize) {
+            Arrays.sort(entries, from, Math.min(entries.length, from + sliceSize), CENTER_Y);
+        }
+    }
+
+    private static final Comparator<SpatialRef> CENTER_X = new Comparator<SpatialRef>() {
+        @Override
+        public int compare(SpatialRef o1, SpatialRef o2) {
+            BoundingBox b1 = o1.getBounds();
+            BoundingBox b2 = o2.getBounds();
+            return Double.compare(b1.getMinX() + b1.getMaxX(), b2.getMinX() + b2.getMaxX());
+        }
+    };
+
+    private static final Comparator<SpatialRef> CENTER_Y = new Comparator<SpatialRef>() {
+        @Override
+        public int compare(SpatialRef o1, SpatialRef o2) {
+            BoundingBox b1 = o1.getBounds();
+            BoundingBox b2 = o2.getBounds();
+            return Double.compare(b1.getMinY() + b1.getMaxY(), b2.getMinY() + b2.getMaxY());
+        }
+    };
+
+    public int getNodeCapacity() {
+        return nodeCapacity;
+    }
+
+    /**
+     * @return the number of indexed refs
+     */
+    public int size() {
+        return entries.length;
+    }
+
+    /**
+     * Returns the indexed refs whose bounds intersect {@code bounds}, in index order.
+     * <p>
+     * The query bounds are expected to be in the same coordinate reference system than the indexed
+     * refs, only their ordinates are compared.
+     * </p>
+     */
+    public Iterator<Ref> query(final BoundingBox bounds) {
+        Preconditions.checkNotNull(bounds, "bounds");
+        if (entries.length == 0 || bounds.isEmpty()) {
+            return Collections.<Ref> emptyList().iterator();
+        }
+        return new QueryIterator(bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(),
+                bounds.getMaxY());
+    }
+
+    /**
+     * Depth first traversal of the nodes intersecting the query bounds, using an explicit stack of
+     * (level, node index) pairs.
+     */
+    private class QueryIterator extends AbstractIterator<Ref> {
+
+        private final double minx, miny, maxx, maxy;
+
+        private int[] stack = new int[64];
+
+        private int top;
+
+        QueryIterator(double minx, double miny, double maxx, double maxy) {
+            this.minx = minx;
+            this.miny = miny;
+            this.maxx = maxx;
+            this.maxy = maxy;
+            push(levels.length - 1, 0);
+        }
+
+        private void push(final int level, final int node) {
+            if (top + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+            }
+            stack[top++] = level;
+            stack[top++] = node;
+        }
+
+        private boolean intersects(final double[] level, final int node) {
+            return level[4 * node] <= maxx && level[4 * node + 2] >= minx
+                    && level[4 * node + 1] <= maxy && level[4 * node + 3] >= miny;
+        }
+
+        @Override
+        protected Ref computeNext() {
+            while (top > 0) {
+                final int node = stack[--top];
+                final int level = stack[--top];
+                if (!intersects(levels[level], node)) {
+                    continue;
+                }
+                if (level == 0) {
+                    return entries[node];
+                }
+                final int childCount = levels[level - 1].length / 4;
+                final int from = node * nodeCapacity;
+                final int to = Math.min(childCount, from + nodeCapacity);
+                // push in reverse order so children are visited in index order
+                for (int child = to - 1; child >= from; child--) {
+                    push(level - 1, child);
+                }
+            }
+            return endOfData();
+        }
+    }
+
+    private static String lookupIdentifier(final CoordinateReferenceSystem crs) {
+        if (crs == null) {
+            return "";
+        }
+        String srs;
+        try {
+            srs = CRS.toSRS(crs);
+        } catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
+        if (srs == null) {
+            throw new IllegalArgumentException("Can't find EPSG code for CRS " + crs.toWKT());
+        }
+        return srs;
+    }
+
+    private static CoordinateReferenceSystem lookupCrs(final String srs) {
+        if (srs.length() == 0) {
+            return null;
+        }
+        CoordinateReferenceSystem crs = crsCache.get(srs);
+        if (crs == null) {
+            try {
+                crs = CRS.decode(srs, false);
+                crsCache.put(srs, crs);
+            } catch (Exception e) {
+                throw Throwables.propagate(e);
+            }
+        }
+        return crs;
+    }
+
+    /**
+     * Writes the index entries in packed order, with a dictionary of the CRS identifiers they use.
+     */
+    static class SpatialIndexWriter implements ObjectWriter<SpatialIndex> {
+
+        private final SpatialIndex index;
+
+        public SpatialIndexWriter(final SpatialIndex index) {
+            this.index = index;
+        }
+
+        @Override
+        public void write(final OutputStream out) throws IOException {
+            final SpatialRef[] entries = index.entries;
+
+            Map<CoordinateReferenceSystem, Integer> crsIndexes = new HashMap<CoordinateReferenceSystem, Integer>();
+            List<String> srsDictionary = new ArrayList<String>();
+            int[] entryCrs = new int[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                CoordinateReferenceSystem crs = entries[i].getBounds()
+                        .getCoordinateReferenceSystem();
+                Integer crsIndex = crsIndexes.get(crs);
+                if (crsIndex == null) {
+                    crsIndex = Integer.valueOf(srsDictionary.size());
+                    srsDictionary.add(lookupIdentifier(crs));
+                    crsIndexes.put(crs, crsIndex);
+                }
+                entryCrs[i] = crsIndex.intValue();
+            }
+
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(FORMAT_VERSION);
+            data.writeInt(index.nodeCapacity);
+            data.writeInt(srsDictionary.size());
+            for (String srs : srsDictionary) {
+                data.writeUTF(srs);
+            }
+            data.writeInt(entries.length);
+            for (int i = 0; i < entries.length; i++) {
+                SpatialRef ref = entries[i];
+                BoundingBox bounds = ref.getBounds();
+                data.writeUTF(ref.getName());
+                data.write(ref.getObjectId().getRawValue());
+                data.writeByte(ref.getType().value());
+                data.writeShort(entryCrs[i]);
+                data.writeDouble(bounds.getMinX());
+                data.writeDouble(bounds.getMinY());
+                data.writeDouble(bounds.getMaxX());
+                data.writeDouble(bounds.getMaxY());
+            }
+            data.flush();
+        }
+    }
+
+    /**
+     * Reads back an index written by {@link SpatialIndexWriter}.
+     */
+    static class SpatialIndexReader implements ObjectReader<SpatialIndex> {
+
+        @Override
+        public SpatialIndex read(final ObjectId id, final InputStream rawData) throws IOException,
+                IllegalArgumentException {
+            DataInputStream data = new DataInputStream(rawData);
+            final int version = data.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unsupported spatial index version: "
+                        + version);
+            }
+            final int nodeCapacity = data.readInt();
+            final int crsCount = data.readInt();
+            CoordinateReferenceSystem[] crsDictionary = new CoordinateReferenceSystem[crsCount];
+            for (int i = 0; i < crsCount; i++) {
+                crsDictionary[i] = lookupCrs(data.readUTF());
+            }
+            final int size = data.readInt();
+            SpatialRef[] entries = new SpatialRef[size];
+            byte[] rawId = new byte[20];
+            for (int i = 0; i < size; i++) {
+                String name = data.readUTF();
+                data.readFully(rawId);
+                TYPE type = TYPE.valueOf(data.readByte());
+                CoordinateReferenceSystem crs = crsDictionary[data.readShort()];
+                double minx = data.readDouble();
+                double miny = data.readDouble();
+                double maxx = data.readDouble();
+                double maxy = data.readDouble();
+                BoundingBox bounds = new ReferencedEnvelope(minx, maxx, miny, maxy, crs);
+                entries[i] = new SpatialRef(name, new ObjectId(rawId.clone()), type, bounds);
+            }
+            return new SpatialIndex(entries, nodeCapacity);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geogit.api.ObjectId;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Keeps the {@link SpatialIndex}es of stored trees keyed by tree id, out of the object database
+ * since they're derived from the trees rather than content addressed objects of their own.
+ * <p>
+ * Indexes are held in memory through soft references and, if the store has a directory, also
+ * persisted there as one file per tree named after the tree id, so that they're built once per
+ * repository instead of once per process. Trees are immutable, so an index stays valid for as long
+ * as there's a tree with its id.
+ * </p>
+ *
+ * @author groldan
+ * @see ObjectDatabase#getSpatialIndexStore()
+ */
+public class SpatialIndexStore {
+
+    private static final Logger LOGGER = Logging.getLogger(SpatialIndexStore.class);
+
+    public static final String DIRECTORY_NAME = "spatial-index";
+
+    private final File directory;
+
+    private final ConcurrentMap<ObjectId, SpatialIndex> indexes = new MapMaker().softValues()
+            .makeMap();
+
+    /**
+     * Creates a store that only holds indexes in memory.
+     */
+    public SpatialIndexStore() {
+        this(null);
+    }
+
+    /**
+     * @param directory
+     *            where to persist the indexes, or {@code null} to only hold them in memory
+     */
+    public SpatialIndexStore(final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the index of the tree {@code treeId}, or {@code null} if it's not in the store
+     */
+    public SpatialIndex get(final ObjectId treeId) {
+        SpatialIndex index = indexes.get(treeId);
+        if (index == null && directory != null) {
+            File file = file(treeId);
+            if (file.exists()) {
+                index = read(treeId, file);
+                if (index != null) {
+                    indexes.put(treeId, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    public void put(final ObjectId treeId, final SpatialIndex index) {
+        indexes.put(treeId, index);
+        if (directory != null) {
+            try {
+                write(file(treeId), index);
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    private File file(final ObjectId treeId) {
+        return new File(directory, treeId.toString());
+    }
+
+    /**
+     * @return the index stored in {@code file}, or {@code null} if it can't be read, in which case
+     *         it'll be built and stored again
+     */
+    private SpatialIndex read(final ObjectId treeId, final File file) {
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                return new SpatialIndex.SpatialIndexReader().read(treeId, in);
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Unable to read spatial index " + file
+                    + ", it'll be built again", e);
+            return null;
+        }
+    }
+
+    private void write(final File file, final SpatialIndex index) throws IOException {
+        directory.mkdirs();
+        File tmp = new File(directory, file.getName() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+        try {
+            new SpatialIndex.SpatialIndexWriter(index).write(out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // renameTo doesn't replace existing files on some platforms
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Unable to store spatial index " + file);
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.geogit.storage;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -23,14 +24,22 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.opengis.geometry.BoundingBox;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.geotools.util.NullProgressListener;
+import org.opengis.util.ProgressListener;
 
+import com.ning.compress.lzf.LZFInputStream;
 import com.sleepycat.bind.tuple.TupleBinding;
 import com.sleepycat.bind.tuple.TupleInput;
 import com.sleepycat.bind.tuple.TupleOutput;
 import com.sleepycat.collections.StoredSortedMap;
+import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
 
 /**
  * The Index (or Staging Area) object database.
@@ -59,10 +68,26 @@ import com.sleepycat.je.Environment;
  */
 public class StagingDatabase implements ObjectDatabase {
 
+    /**
+     * Number of records moved per transaction by {@link #stageAll}
+     */
+    private static final int STAGE_BATCH_SIZE = 10000;
+
+    private static final byte[] STATS_KEY = { 'c', 'o', 'u', 'n', 't', 's' };
+
     private Database unstagedEntries;
 
     private Database stagedEntries;
 
+    /**
+     * Holds the staged and unstaged counts while the database is closed
+     */
+    private Database stats;
+
+    private final PathCounts stagedCounts = new PathCounts();
+
+    private final PathCounts unstagedCounts = new PathCounts();
+
     StoredSortedMap<List<String>, DiffEntry> staged;
 
     StoredSortedMap<List<String>, DiffEntry> unstaged;
@@ -82,6 +107,14 @@ public class StagingDatabase implements ObjectDatabase {
 
     private final ObjectDatabase repositoryDb;
 
+    /**
+     * Cache for {@link #getCached}, if {@code null} the call is delegated to the staging or
+     * repository databases
+     */
+    private final ObjectCache cache;
+
+    private final SpatialIndexStore spatialIndexStore = new StagingSpatialIndexStore();
+
     /**
      * @param referenceDatabase
      *            the repository reference database, used to get the head re
@@ -90,9 +123,20 @@ public class StagingDatabase implements ObjectDatabase {
      */
     public StagingDatabase(final ObjectDatabase repositoryDb, final ObjectDatabase stagingDb,
             final Environment env) {
+        this(repositoryDb, stagingDb, env, null);
+    }
+
+    /**
+     * @param cache
+     *            the cache to use for {@link #getCached}, or {@code null} to rely on the ones of
+     *            the staging and repository databases
+     */
+    public StagingDatabase(final ObjectDatabase repositoryDb, final ObjectDatabase stagingDb,
+            final Environment env, final ObjectCache cache) {
         this.repositoryDb = repositoryDb;
         this.stagingDb = stagingDb;
         this.env = env;
+        this.cache = cache;
     }
 
     public void create() {
@@ -118,6 +162,16 @@ public class StagingDatabase implements ObjectDatabase {
             staged = new StoredSortedMap<List<String>, DiffEntry>(this.stagedEntries,
                     this.keyPathBinding, this.diffEntryBinding, true);
         }
+        {
+            DatabaseConfig statsDbConfig = new DatabaseConfig();
+            statsDbConfig.setAllowCreate(true);
+            statsDbConfig.setTransactional(env.getConfig().getTransactional());
+            stats = env.openDatabase(null, "StagingStats", statsDbConfig);
+        }
+        if (!loadCounts()) {
+            countEntries(staged, stagedCounts);
+            countEntries(unstaged, unstagedCounts);
+        }
     }
 
     /**
@@ -126,13 +180,52 @@ public class StagingDatabase implements ObjectDatabase {
     public void close() {
         stagingDb.close();
 
+        saveCounts();
+        stats.close();
         unstagedEntries.close();
         stagedEntries.close();
     }
 
+    /**
+     * Loads the counts saved on the last {@link #close()}, and deletes them so that they're
+     * counted again if the database is not closed cleanly this time.
+     * 
+     * @return {@code false} if there were no saved counts
+     */
+    private boolean loadCounts() {
+        DatabaseEntry key = new DatabaseEntry(STATS_KEY);
+        DatabaseEntry data = new DatabaseEntry();
+        if (!OperationStatus.SUCCESS.equals(stats.get(null, key, data, LockMode.DEFAULT))) {
+            return false;
+        }
+        TupleInput in = new TupleInput(data.getData(), data.getOffset(), data.getSize());
+        stagedCounts.read(in);
+        unstagedCounts.read(in);
+        stats.delete(null, key);
+        return true;
+    }
+
+    private void saveCounts() {
+        TupleOutput out = new TupleOutput();
+        stagedCounts.write(out);
+        unstagedCounts.write(out);
+        DatabaseEntry data = new DatabaseEntry(out.getBufferBytes(), 0, out.getBufferLength());
+        stats.put(null, new DatabaseEntry(STATS_KEY), data);
+    }
+
+    private static void countEntries(final StoredSortedMap<List<String>, DiffEntry> entries,
+            final PathCounts counts) {
+        counts.clear();
+        for (List<String> path : entries.keySet()) {
+            counts.add(path);
+        }
+    }
+
     public void reset() {
         unstaged.clear();
+        unstagedCounts.clear();
         staged.clear();
+        stagedCounts.clear();
     }
 
     /**
@@ -140,6 +233,7 @@ public class StagingDatabase implements ObjectDatabase {
      */
     public void clearUnstaged() {
         this.unstaged.clear();
+        unstagedCounts.clear();
     }
 
     /**
@@ -147,20 +241,56 @@ public class StagingDatabase implements ObjectDatabase {
      */
     public void clearStaged() {
         this.staged.clear();
+        stagedCounts.clear();
     }
 
     // //////////////////////////////////////////////////////////////////////////////////////////
 
     public void putUnstaged(final DiffEntry diffEntry) {
-        unstaged.put(diffEntry.getPath(), diffEntry);
+        List<String> path = diffEntry.getPath();
+        if (unstaged.put(path, diffEntry) == null) {
+            unstagedCounts.add(path);
+        }
     }
 
     public void stage(DiffEntry diffEntry) {
         List<String> path = diffEntry.getPath();
         DiffEntry remove = unstaged.remove(path);
         if (remove != null) {
-            staged.put(path, diffEntry);
+            unstagedCounts.remove(path);
+            if (staged.put(path, diffEntry) == null) {
+                stagedCounts.add(path);
+            }
+        }
+    }
+
+    /**
+     * Stages all the unstaged entries at or under {@code pathFilter} by moving their records
+     * straight from the unstaged to the staged database under a cursor, without decoding the
+     * entries.
+     * <p>
+     * Records are moved in transactions visiting at most {@link #STAGE_BATCH_SIZE} records each,
+     * if the environment is transactional, so staging a large number of entries doesn't hold a
+     * single huge transaction. A failure or cancellation leaves the batches already committed
+     * staged.
+     * </p>
+     * 
+     * @param pathFilter
+     *            the path to stage, or {@code null} or empty for all the unstaged entries
+     * @return the number of entries staged
+     */
+    public int stageAll(final List<String> pathFilter, final ProgressListener progress) {
+        if (countUnstaged(pathFilter) == 0) {
+            return 0;
         }
+        return moveRecords(unstagedEntries, unstagedCounts, stagedEntries, stagedCounts,
+                pathFilter, progress);
+    }
+
+    private static byte[] copy(final DatabaseEntry entry) {
+        byte[] copy = new byte[entry.getSize()];
+        System.arraycopy(entry.getData(), entry.getOffset(), copy, 0, copy.length);
+        return copy;
     }
 
     private static class DiffEntryBinding extends TupleBinding<DiffEntry> {
@@ -315,23 +445,32 @@ public class StagingDatabase implements ObjectDatabase {
         }
     }
 
+    /**
+     * @return the number of unstaged entries at or under {@code pathFilter}, or all of them if
+     *         it's {@code null} or empty
+     */
     public int countUnstaged(final List<String> pathFilter) {
-        if (pathFilter == null || pathFilter.size() == 0) {
-            return unstaged.size();
-        }
-        SortedMap<List<String>, DiffEntry> subMap = unstaged.subMap(pathFilter, true, pathFilter,
-                true);
-        int size = subMap.size();
-        return size;
+        return count(unstaged, unstagedCounts, pathFilter);
     }
 
+    /**
+     * @return the number of staged entries at or under {@code pathFilter}, or all of them if it's
+     *         {@code null} or empty
+     */
     public int countStaged(final List<String> pathFilter) {
+        return count(staged, stagedCounts, pathFilter);
+    }
+
+    private static int count(final StoredSortedMap<List<String>, DiffEntry> entries,
+            final PathCounts counts, final List<String> pathFilter) {
         if (pathFilter == null || pathFilter.size() == 0) {
-            return staged.size();
+            return counts.count(null);
         }
-        SortedMap<List<String>, DiffEntry> subMap = staged.tailMap(pathFilter, true);
-        int size = subMap.size();
-        return size;
+        int count = counts.count(pathFilter);
+        if (entries.containsKey(pathFilter)) {
+            count++;
+        }
+        return count;
     }
 
     public Iterator<DiffEntry> getUnstaged(final List<String> pathFilter) {
@@ -350,26 +489,250 @@ public class StagingDatabase implements ObjectDatabase {
         return subMap.values().iterator();
     }
 
+    /**
+     * Removes the staged entries at or under {@code pathFilter}, or all of them if it's
+     * {@code null} or empty.
+     * 
+     * @return the number of entries removed
+     */
     public int removeStaged(final List<String> pathFilter) {
-        SortedMap<List<String>, DiffEntry> subMap = staged;
-
-        if (pathFilter != null && pathFilter.size() > 0) {
-            subMap = staged.tailMap(pathFilter, true);
+        if (pathFilter == null || pathFilter.size() == 0) {
+            int size = stagedCounts.count(null);
+            clearStaged();
+            return size;
         }
-        int size = subMap.size();
-        subMap.clear();
-        return size;
+        return moveRecords(stagedEntries, stagedCounts, null, null, pathFilter,
+                new NullProgressListener());
     }
 
+    /**
+     * Removes the unstaged entries at or under {@code pathFilter}, or all of them if it's
+     * {@code null} or empty.
+     * 
+     * @return the number of entries removed
+     */
     public int removeUnStaged(final List<String> pathFilter) {
-        SortedMap<List<String>, DiffEntry> subMap = unstaged;
+        if (pathFilter == null || pathFilter.size() == 0) {
+            int size = unstagedCounts.count(null);
+            clearUnstaged();
+            return size;
+        }
+        return moveRecords(unstagedEntries, unstagedCounts, null, null, pathFilter,
+                new NullProgressListener());
+    }
+
+    /**
+     * Moves the records at or under {@code pathFilter} from one entries database to another, or
+     * deletes them if {@code to} is {@code null}, under a cursor and without decoding the entries,
+     * keeping the counts of both up to date.
+     * <p>
+     * Records are moved in transactions visiting at most {@link #STAGE_BATCH_SIZE} records each,
+     * if the environment is transactional, so moving a large number of entries doesn't hold a
+     * single huge transaction. Only the records being moved are locked for writing. A failure or
+     * cancellation leaves the batches already committed moved.
+     * </p>
+     * 
+     * @return the number of records moved
+     */
+    private int moveRecords(final Database from, final PathCounts fromCounts, final Database to,
+            final PathCounts toCounts, final List<String> pathFilter,
+            final ProgressListener progress) {
+        // the path itself is not counted, but it's only for progress
+        final int numChanges = Math.max(1, fromCounts.count(pathFilter));
+        final boolean transactional = env.getConfig().getTransactional();
+
+        final DatabaseEntry key = new DatabaseEntry();
+        final DatabaseEntry data = new DatabaseEntry();
+        // the moved paths, only applied to the counts once their batch is committed
+        final List<List<String>> moved = new ArrayList<List<String>>();
+        final List<List<String>> overwritten = new ArrayList<List<String>>();
+
+        int count = 0;
+        OperationStatus status = null;
+        byte[] lastKey = null;
+        while (!OperationStatus.NOTFOUND.equals(status) && !progress.isCanceled()) {
+            final Transaction transaction = transactional ? env.beginTransaction(null, null)
+                    : null;
+            boolean committed = false;
+            try {
+                PrefixCursor cursor = new PrefixCursor(from.openCursor(transaction, null),
+                        pathFilter);
+                try {
+                    status = cursor.first(lastKey, key, data);
+                    while (OperationStatus.SUCCESS.equals(status)
+                            && cursor.visited < STAGE_BATCH_SIZE) {
+                        final List<String> path = keyPathBinding.entryToObject(key);
+                        boolean overwrote = false;
+                        if (to != null && OperationStatus.KEYEXIST.equals(to.putNoOverwrite(
+                                transaction, key, data))) {
+                            to.put(transaction, key, data);
+                            overwrote = true;
+                        }
+                        cursor.delete();
+                        if (transaction == null) {
+                            // nothing to roll back, so the counts follow each record
+                            updateCounts(path, overwrote, fromCounts, toCounts);
+                        } else {
+                            moved.add(path);
+                            if (overwrote) {
+                                overwritten.add(path);
+                            }
+                        }
+                        count++;
+                        status = cursor.next(key, data);
+                    }
+                    if (OperationStatus.SUCCESS.equals(status)) {
+                        lastKey = copy(key);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                if (transaction != null) {
+                    transaction.commit();
+                }
+                committed = true;
+            } finally {
+                if (transaction != null && !committed) {
+                    transaction.abort();
+                }
+            }
+            for (List<String> path : moved) {
+                updateCounts(path, false, fromCounts, toCounts);
+            }
+            for (List<String> path : overwritten) {
+                toCounts.remove(path);
+            }
+            moved.clear();
+            overwritten.clear();
+            progress.progress((float) (count * 100) / numChanges);
+        }
+        return count;
+    }
+
+    private static void updateCounts(final List<String> path, final boolean overwrote,
+            final PathCounts fromCounts, final PathCounts toCounts) {
+        fromCounts.remove(path);
+        if (toCounts != null && !overwrote) {
+            toCounts.add(path);
+        }
+    }
+
+    /**
+     * Walks the records at or under a path prefix, seeking past the ones that aren't rather than
+     * scanning them. Keys are ordered by path length first and then by path, so for each path
+     * length the records under the prefix are contiguous.
+     * <p>
+     * Records are read without locking them, and only the ones under the prefix are locked for
+     * writing before they're returned.
+     * </p>
+     */
+    private final class PrefixCursor {
+
+        private final Cursor cursor;
+
+        private final int prefixSize;
+
+        /**
+         * The encoded prefix without its leading path length
+         */
+        private final byte[] prefix;
+
+        /**
+         * Number of records the cursor went through, whether under the prefix or not
+         */
+        int visited;
+
+        PrefixCursor(final Cursor cursor, final List<String> pathFilter) {
+            this.cursor = cursor;
+            List<String> path = pathFilter == null ? new ArrayList<String>(0) : pathFilter;
+            DatabaseEntry entry = new DatabaseEntry();
+            keyPathBinding.objectToEntry(path, entry);
+            this.prefixSize = path.size();
+            this.prefix = new byte[entry.getSize() - 1];
+            System.arraycopy(entry.getData(), entry.getOffset() + 1, prefix, 0, prefix.length);
+        }
+
+        /**
+         * Positions the cursor on the first record under the prefix, at or after {@code fromKey}
+         * if it's not {@code null}
+         */
+        OperationStatus first(final byte[] fromKey, final DatabaseEntry key,
+                final DatabaseEntry data) {
+            key.setData(fromKey == null ? seekKey(prefixSize) : fromKey);
+            return skip(cursor.getSearchKeyRange(key, data, LockMode.READ_COMMITTED), key, data);
+        }
+
+        OperationStatus next(final DatabaseEntry key, final DatabaseEntry data) {
+            return skip(cursor.getNext(key, data, LockMode.READ_COMMITTED), key, data);
+        }
+
+        void delete() {
+            cursor.delete();
+        }
+
+        void close() {
+            cursor.close();
+        }
+
+        private OperationStatus skip(OperationStatus status, final DatabaseEntry key,
+                final DatabaseEntry data) {
+            while (OperationStatus.SUCCESS.equals(status)) {
+                visited++;
+                final int pathSize = key.getData()[key.getOffset()] & 0xFF;
+                final int seekSize;
+                if (pathSize < prefixSize) {
+                    seekSize = prefixSize;
+                } else {
+                    final int comparison = comparePrefix(key);
+                    if (comparison == 0) {
+                        status = cursor.getCurrent(key, data, LockMode.RMW);
+                        if (OperationStatus.SUCCESS.equals(status)) {
+                            return status;
+                        }
+                        // deleted since read
+                        status = cursor.getNext(key, data, LockMode.READ_COMMITTED);
+                        continue;
+                    }
+                    seekSize = comparison < 0 ? pathSize : pathSize + 1;
+                }
+                if (seekSize > 0xFF) {
+                    return OperationStatus.NOTFOUND;
+                }
+                key.setData(seekKey(seekSize));
+                status = cursor.getSearchKeyRange(key, data, LockMode.READ_COMMITTED);
+            }
+            return status;
+        }
+
+        /**
+         * Compares the start of the key, after its path length, to the prefix. Path steps are
+         * null terminated so an equal start means the first steps of the path are the prefix.
+         */
+        private int comparePrefix(final DatabaseEntry key) {
+            final byte[] bytes = key.getData();
+            final int offset = key.getOffset() + 1;
+            final int length = key.getSize() - 1;
+            for (int i = 0; i < prefix.length; i++) {
+                if (i == length) {
+                    return -1;
+                }
+                final int diff = (bytes[offset + i] & 0xFF) - (prefix[i] & 0xFF);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return 0;
+        }
 
-        if (pathFilter != null && pathFilter.size() > 0) {
-            subMap = staged.subMap(pathFilter, true, pathFilter, true);
+        /**
+         * @return the smallest key of the given path size under the prefix
+         */
+        private byte[] seekKey(final int pathSize) {
+            byte[] seekKey = new byte[1 + prefix.length];
+            seekKey[0] = (byte) pathSize;
+            System.arraycopy(prefix, 0, seekKey, 1, prefix.length);
+            return seekKey;
         }
-        int size = subMap.size();
-        subMap.clear();
-        return size;
     }
 
     public DiffEntry findStaged(final String... path) {
@@ -406,14 +769,79 @@ public class StagingDatabase implements ObjectDatabase {
         return exists;
     }
 
+    /**
+     * Looks the object up once in the staging database, falling back to the repository database.
+     */
     @Override
     public InputStream getRaw(ObjectId id) throws IOException {
-        if (stagingDb.exists(id)) {
-            return stagingDb.getRaw(id);
+        byte[] staged = stagingDb.getCompressedIfPresent(id);
+        if (staged != null) {
+            return new LZFInputStream(new ByteArrayInputStream(staged));
         }
         return repositoryDb.getRaw(id);
     }
 
+    @Override
+    public byte[] getCompressed(ObjectId id) throws IOException {
+        byte[] staged = stagingDb.getCompressedIfPresent(id);
+        if (staged != null) {
+            return staged;
+        }
+        return repositoryDb.getCompressed(id);
+    }
+
+    @Override
+    public byte[] getCompressedIfPresent(ObjectId id) throws IOException {
+        byte[] staged = stagingDb.getCompressedIfPresent(id);
+        if (staged != null) {
+            return staged;
+        }
+        return repositoryDb.getCompressedIfPresent(id);
+    }
+
+    @Override
+    public Set<ObjectId> existsAll(final Iterable<ObjectId> ids) {
+        Set<ObjectId> found = stagingDb.existsAll(ids);
+        Set<ObjectId> missing = new HashSet<ObjectId>();
+        for (ObjectId id : ids) {
+            if (!found.contains(id)) {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            found.addAll(repositoryDb.existsAll(missing));
+        }
+        return found;
+    }
+
+    /**
+     * Visits the staged objects first and then the ones only in the repository database, so the
+     * objects are not visited in overall id order.
+     * 
+     * @see org.geogit.storage.ObjectDatabase#getAll(java.lang.Iterable,
+     *      org.geogit.storage.ObjectVisitor)
+     */
+    @Override
+    public void getAll(final Iterable<ObjectId> ids, final ObjectVisitor visitor)
+            throws IOException {
+        final Set<ObjectId> missing = new HashSet<ObjectId>();
+        for (ObjectId id : ids) {
+            missing.add(id);
+        }
+        final boolean[] stopped = new boolean[1];
+        stagingDb.getAll(missing, new ObjectVisitor() {
+            @Override
+            public boolean visit(ObjectId id, byte[] compressed) {
+                missing.remove(id);
+                stopped[0] = !visitor.visit(id, compressed);
+                return !stopped[0];
+            }
+        });
+        if (!stopped[0] && !missing.isEmpty()) {
+            repositoryDb.getAll(missing, visitor);
+        }
+    }
+
     @Override
     public List<ObjectId> lookUp(String partialId) {
         Set<ObjectId> lookUp = new HashSet<ObjectId>(stagingDb.lookUp(partialId));
@@ -423,18 +851,41 @@ public class StagingDatabase implements ObjectDatabase {
 
     @Override
     public <T> T get(ObjectId id, ObjectReader<T> reader) throws IOException {
-        if (stagingDb.exists(id)) {
-            return stagingDb.get(id, reader);
+        byte[] staged = stagingDb.getCompressedIfPresent(id);
+        if (staged != null) {
+            return read(id, staged, reader);
         }
         return repositoryDb.get(id, reader);
     }
 
+    /**
+     * Without a cache of its own, delegates to the staging database if it has the object so its
+     * cache is used. Asking whether it exists is cheap for objects that are not staged, which are
+     * the most when walking trees, as the staging database is expected to keep a filter of its ids.
+     */
     @Override
     public <T> T getCached(ObjectId id, ObjectReader<T> reader) throws IOException {
-        if (stagingDb.exists(id)) {
-            return stagingDb.getCached(id, reader);
+        if (cache == null) {
+            if (stagingDb.exists(id)) {
+                return stagingDb.getCached(id, reader);
+            }
+            return repositoryDb.getCached(id, reader);
+        }
+        return AbstractObjectDatabase.readCached(this, cache, id, reader);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T read(final ObjectId id, final byte[] compressed, final ObjectReader<T> reader)
+            throws IOException {
+        if (reader instanceof BufferObjectReader) {
+            return DecodeBuffer.read(id, compressed, (BufferObjectReader<T>) reader);
+        }
+        InputStream raw = new LZFInputStream(new ByteArrayInputStream(compressed));
+        try {
+            return reader.read(id, raw);
+        } finally {
+            raw.close();
         }
-        return repositoryDb.getCached(id, reader);
     }
 
     @Override
@@ -444,6 +895,9 @@ public class StagingDatabase implements ObjectDatabase {
 
     @Override
     public boolean put(ObjectId id, ObjectWriter<?> writer) throws Exception {
+        if (cache != null) {
+            cache.invalidate(id);
+        }
         return stagingDb.put(id, writer);
     }
 
@@ -458,12 +912,18 @@ public class StagingDatabase implements ObjectDatabase {
         return stagingDb.newObjectInserter();
     }
 
+    @Override
+    public BatchObjectInserter newBatchInserter() {
+        return stagingDb.newBatchInserter();
+    }
+
     @Override
     public RevBlob getBlob(ObjectId objectId) {
-        if (stagingDb.exists(objectId)) {
-            return stagingDb.getBlob(objectId);
+        try {
+            return get(objectId, new BlobReader());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        return repositoryDb.getBlob(objectId);
     }
 
     @Override
@@ -512,6 +972,53 @@ public class StagingDatabase implements ObjectDatabase {
 
     @Override
     public boolean delete(ObjectId objectId) {
+        if (cache != null) {
+            cache.invalidate(objectId);
+        }
         return stagingDb.delete(objectId);
     }
+
+    @Override
+    public int deleteAll(Iterable<ObjectId> ids) {
+        if (cache != null) {
+            for (ObjectId id : ids) {
+                cache.invalidate(id);
+            }
+        }
+        return stagingDb.deleteAll(ids);
+    }
+
+    /**
+     * @return a store that persists indexes through the repository database's store only for
+     *         trees in the repository, and holds the ones of staged trees in memory
+     */
+    @Override
+    public SpatialIndexStore getSpatialIndexStore() {
+        return spatialIndexStore;
+    }
+
+    /**
+     * Keeps the indexes of staged, not yet committed, trees in memory, out of the repository
+     * store
+     */
+    private final class StagingSpatialIndexStore extends SpatialIndexStore {
+
+        @Override
+        public SpatialIndex get(final ObjectId treeId) {
+            SpatialIndex index = super.get(treeId);
+            if (index == null && repositoryDb.exists(treeId)) {
+                index = repositoryDb.getSpatialIndexStore().get(treeId);
+            }
+            return index;
+        }
+
+        @Override
+        public void put(final ObjectId treeId, final SpatialIndex index) {
+            if (repositoryDb.exists(treeId)) {
+                repositoryDb.getSpatialIndexStore().put(treeId, index);
+            } else {
+                super.put(treeId, index);
+            }
+        }
+    }
 }
@@ -0,0 +1,230 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geogit.api.ObjectId;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A thread safe, size bounded {@link ObjectCache} that evicts the least recently used objects once
+ * the sum of the weights of the cached objects exceeds a given budget.
+ * <p>
+ * Objects are weighted by their serialized size, so that a large {@link RevSHA1Tree} takes as much
+ * of the budget as the many small objects it's equivalent to. The cache is split in a number of
+ * independently locked segments to reduce contention among concurrent readers, each one getting an
+ * equal share of the budget.
+ * </p>
+ *
+ * @author groldan
+ */
+public class WeightedObjectCache implements ObjectCache {
+
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 4;
+
+    private final Segment[] segments;
+
+    private final long maxWeight;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private final AtomicLong loadCount = new AtomicLong();
+
+    private final AtomicLong totalLoadTime = new AtomicLong();
+
+    /**
+     * Creates a cache with a budget of a sixteenth of the maximum heap size.
+     */
+    public WeightedObjectCache() {
+        this(defaultMaxWeight());
+    }
+
+    /**
+     * @param maxWeight
+     *            the cache budget, in bytes of serialized objects
+     */
+    public WeightedObjectCache(final long maxWeight) {
+        this(maxWeight, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param maxWeight
+     *            the cache budget, in bytes of serialized objects
+     * @param concurrencyLevel
+     *            the number of independently locked segments
+     */
+    public WeightedObjectCache(final long maxWeight, final int concurrencyLevel) {
+        Preconditions.checkArgument(maxWeight >= 0, "maxWeight can't be negative");
+        Preconditions.checkArgument(concurrencyLevel > 0, "concurrencyLevel shall be positive");
+        this.maxWeight = maxWeight;
+        this.segments = new Segment[concurrencyLevel];
+        final long segmentWeight = maxWeight / concurrencyLevel;
+        for (int i = 0; i < concurrencyLevel; i++) {
+            segments[i] = new Segment(segmentWeight);
+        }
+    }
+
+    private static long defaultMaxWeight() {
+        return Runtime.getRuntime().maxMemory() / 16;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    private Segment segmentFor(final ObjectId id) {
+        int hash = id.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return segments[(hash & 0x7FFFFFFF) % segments.length];
+    }
+
+    /**
+     * @see org.geogit.storage.ObjectCache#getIfPresent(org.geogit.api.ObjectId)
+     */
+    @Override
+    public Object getIfPresent(final ObjectId id) {
+        Preconditions.checkNotNull(id, "id");
+        Object object = segmentFor(id).get(id);
+        if (object == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return object;
+    }
+
+    /**
+     * @see org.geogit.storage.ObjectCache#put(org.geogit.api.ObjectId, java.lang.Object, long,
+     *      long)
+     */
+    @Override
+    public void put(final ObjectId id, final Object object, final long weight,
+            final long loadTimeNanos) {
+        Preconditions.checkNotNull(id, "id");
+        Preconditions.checkNotNull(object, "object");
+        loadCount.incrementAndGet();
+        totalLoadTime.addAndGet(loadTimeNanos);
+        int evicted = segmentFor(id).put(id, object, Math.max(1, weight));
+        if (evicted > 0) {
+            evictionCount.addAndGet(evicted);
+        }
+    }
+
+    /**
+     * @see org.geogit.storage.ObjectCache#invalidate(org.geogit.api.ObjectId)
+     */
+    @Override
+    public void invalidate(final ObjectId id) {
+        segmentFor(id).remove(id);
+    }
+
+    /**
+     * @see org.geogit.storage.ObjectCache#invalidateAll()
+     */
+    @Override
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @see org.geogit.storage.ObjectCache#getStats()
+     */
+    @Override
+    public ObjectCacheStats getStats() {
+        long size = 0;
+        long weight = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+                weight += segment.weight;
+            }
+        }
+        return new ObjectCacheStats(hitCount.get(), missCount.get(), evictionCount.get(),
+                loadCount.get(), totalLoadTime.get(), size, weight);
+    }
+
+    private static final class Entry {
+        final Object value;
+
+        final long weight;
+
+        Entry(final Object value, final long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * An access ordered map guarded by its own monitor, evicting from the least recently used end
+     * until its weight fits in its budget.
+     */
+    private static final class Segment {
+
+        private final LinkedHashMap<ObjectId, Entry> entries;
+
+        private final long maxWeight;
+
+        private long weight;
+
+        Segment(final long maxWeight) {
+            this.maxWeight = maxWeight;
+            this.entries = new LinkedHashMap<ObjectId, Entry>(16, 0.75f, true);
+        }
+
+        synchronized Object get(final ObjectId id) {
+            Entry entry = entries.get(id);
+            return entry == null ? null : entry.value;
+        }
+
+        /**
+         * @return the number of entries evicted to make room for the new one
+         */
+        synchronized int put(final ObjectId id, final Object value, final long entryWeight) {
+            if (entryWeight > maxWeight) {
+                // would evict everything else and itself right away
+                return 0;
+            }
+            Entry previous = entries.put(id, new Entry(value, entryWeight));
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            weight += entryWeight;
+
+            int evicted = 0;
+            Iterator<Map.Entry<ObjectId, Entry>> lru = entries.entrySet().iterator();
+            while (weight > maxWeight && lru.hasNext()) {
+                Entry eldest = lru.next().getValue();
+                lru.remove();
+                weight -= eldest.weight;
+                evicted++;
+            }
+            return evicted;
+        }
+
+        synchronized void remove(final ObjectId id) {
+            Entry removed = entries.remove(id);
+            if (removed != null) {
+                weight -= removed.weight;
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            weight = 0;
+        }
+    }
+}
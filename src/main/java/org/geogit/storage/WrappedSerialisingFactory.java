@@ -4,6 +4,7 @@
  */
 package org.geogit.storage;
 
+import org.geogit.api.ObjectId;
 import org.geogit.api.RevCommit;
 import org.geogit.api.RevTree;
 import org.geogit.repository.ConfigurationContext;
@@ -40,6 +41,22 @@ public class WrappedSerialisingFactory implements ObjectSerialisingFactory {
         return wrappedFactory.createFeatureReader(featureType, featureId, hints);
     }
 
+    public boolean supportsSchemas(FeatureType featureType) {
+        return wrappedFactory.supportsSchemas(featureType);
+    }
+
+    public ObjectWriter<FeatureType> createFeatureTypeWriter(FeatureType featureType) {
+        return wrappedFactory.createFeatureTypeWriter(featureType);
+    }
+
+    public ObjectReader<FeatureType> createFeatureTypeReader() {
+        return wrappedFactory.createFeatureTypeReader();
+    }
+
+    public ObjectId getFeatureSchemaId(byte[] blob) {
+        return wrappedFactory.getFeatureSchemaId(blob);
+    }
+
     public ObjectReader<RevTree> createRevTreeReader(ObjectDatabase objectDb) {
         return wrappedFactory.createRevTreeReader(objectDb);
     }
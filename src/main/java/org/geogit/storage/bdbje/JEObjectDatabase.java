@@ -11,15 +11,25 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.geogit.api.ObjectId;
 import org.geogit.storage.AbstractObjectDatabase;
+import org.geogit.storage.ObjectCache;
 import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.ObjectIdFilter;
+import org.geogit.storage.ObjectVisitor;
 import org.geotools.util.logging.Logging;
 
 import com.google.common.base.Preconditions;
@@ -47,11 +57,53 @@ public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDa
 
     private CurrentTransaction txn;
 
+    private static final long MIN_FILTER_IDS = 64 * 1024;
+
+    private boolean useIdFilter;
+
+    /**
+     * Filter new ids are added to, {@code null} unless {@link #setUseIdFilter enabled}
+     */
+    private volatile ObjectIdFilter idFilter;
+
+    /**
+     * Filters that got {@link ObjectIdFilter#isFull() full} and were replaced by a bigger
+     * {@link #idFilter}, still holding the ids added to them
+     */
+    private volatile List<ObjectIdFilter> fullIdFilters = Collections.emptyList();
+
+    /**
+     * Shared by writes and deletes until they're committed, taken exclusively to reset the id
+     * filter so that it never drops the id of an object being written
+     */
+    private final ReadWriteLock idFilterLock = new ReentrantReadWriteLock();
+
     public JEObjectDatabase(final Environment env) {
         super();
         this.env = env;
     }
 
+    public JEObjectDatabase(final Environment env, final ObjectCache cache) {
+        super(cache);
+        this.env = env;
+    }
+
+    /**
+     * Sets whether to keep an in memory {@link ObjectIdFilter filter} of the stored ids, so that
+     * looking up objects that don't exist doesn't hit the database most of the time. The filter is
+     * filled up with all the stored ids on {@link #create()}, grows as objects are added, and is
+     * reset when the database is emptied. So it's meant for databases that are frequently asked
+     * for objects they don't have and don't hold too many, like the staging area's.
+     * 
+     * @param useIdFilter
+     *            whether to use the id filter, defaults to {@code false}. Shall be set before
+     *            {@link #create()}.
+     */
+    public void setUseIdFilter(final boolean useIdFilter) {
+        Preconditions.checkState(objectDb == null, "the database is already open");
+        this.useIdFilter = useIdFilter;
+    }
+
     /**
      * @see org.geogit.storage.ObjectDatabase#close()
      */
@@ -70,6 +122,113 @@ public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDa
         dbConfig.setAllowCreate(true);
         dbConfig.setTransactional(env.getConfig().getTransactional());
         this.objectDb = env.openDatabase(null, "BlobStore", dbConfig);
+        if (useIdFilter) {
+            this.idFilter = loadIdFilter();
+        }
+    }
+
+    /**
+     * @return a filter holding all the ids currently stored, sized for twice as many
+     */
+    private ObjectIdFilter loadIdFilter() {
+        final long count = objectDb.count();
+        final ObjectIdFilter filter = new ObjectIdFilter(Math.max(MIN_FILTER_IDS, 2 * count));
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry data = new DatabaseEntry();
+        data.setPartial(0, 0, true);// do not retrieve data
+        Cursor cursor = objectDb.openCursor(null, CursorConfig.READ_COMMITTED);
+        try {
+            while (SUCCESS.equals(cursor.getNext(key, data, LockMode.READ_COMMITTED))) {
+                filter.add(ObjectId.fromRaw(key.getData(), key.getOffset()));
+            }
+        } finally {
+            cursor.close();
+        }
+        LOGGER.fine("Loaded id filter with " + count + " objects");
+        return filter;
+    }
+
+    /**
+     * @return {@code true} if the id filter is not in use or says the object may exist
+     */
+    private boolean mightExist(final ObjectId id) {
+        final ObjectIdFilter filter = idFilter;
+        if (filter == null || filter.mightContain(id)) {
+            return true;
+        }
+        for (ObjectIdFilter full : fullIdFilters) {
+            if (full.mightContain(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addToIdFilter(final ObjectId id) {
+        final ObjectIdFilter filter = idFilter;
+        if (filter != null) {
+            filter.add(id);
+            if (filter.isFull()) {
+                growIdFilter(filter);
+            }
+        }
+    }
+
+    /**
+     * Replaces the {@code full} filter by one twice as big. The full one is kept around rather
+     * than reloading the ids from the database, since ids of uncommitted writes are only in the
+     * filters.
+     */
+    private synchronized void growIdFilter(final ObjectIdFilter full) {
+        if (idFilter != full) {
+            return;// already grown by another thread
+        }
+        List<ObjectIdFilter> filled = new ArrayList<ObjectIdFilter>(fullIdFilters);
+        filled.add(full);
+        // published before the new filter so that concurrent lookups never miss the full one
+        fullIdFilters = Collections.unmodifiableList(filled);
+        idFilter = new ObjectIdFilter(2 * full.getCapacity());
+        LOGGER.fine("Grew id filter to " + (2 * full.getCapacity()) + " objects");
+    }
+
+    /**
+     * Drops the id filter contents if the database is empty, like the staging area's after its
+     * objects were moved to the repository, so that it doesn't keep filling up.
+     * <p>
+     * The reset is skipped while other writes or deletes are in flight, the next delete that
+     * empties the database gets to do it. Inserts made in a thread's transaction are seen by the
+     * uncommitted read and keep the filter as is.
+     * </p>
+     */
+    private void resetIdFilterIfEmpty() {
+        if (idFilter == null) {
+            return;
+        }
+        final Lock lock = idFilterLock.writeLock();
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            key.setPartial(0, 0, true);
+            data.setPartial(0, 0, true);
+            final boolean empty;
+            Cursor cursor = objectDb.openCursor(null, null);
+            try {
+                empty = !SUCCESS.equals(cursor.getFirst(key, data, LockMode.READ_UNCOMMITTED));
+            } finally {
+                cursor.close();
+            }
+            if (empty) {
+                synchronized (this) {
+                    fullIdFilters = Collections.emptyList();
+                    idFilter = new ObjectIdFilter(MIN_FILTER_IDS);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
@@ -96,15 +255,8 @@ public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDa
             OperationStatus status = cursor.getSearchKeyRange(key, data, LockMode.DEFAULT);
             if (SUCCESS.equals(status)) {
                 matches = new ArrayList<ObjectId>(2);
-                final byte[] compKey = new byte[partialId.length];
-                while (SUCCESS.equals(status)) {
-                    byte[] keyData = key.getData();
-                    System.arraycopy(keyData, 0, compKey, 0, compKey.length);
-                    if (Arrays.equals(partialId, compKey)) {
-                        matches.add(new ObjectId(keyData));
-                    } else {
-                        break;
-                    }
+                while (SUCCESS.equals(status) && hasPrefix(key, partialId)) {
+                    matches.add(ObjectId.fromRaw(key.getData(), key.getOffset()));
                     status = cursor.getNext(key, data, LockMode.DEFAULT);
                 }
             } else {
@@ -116,12 +268,123 @@ public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDa
         }
     }
 
+    private static boolean hasPrefix(final DatabaseEntry key, final byte[] prefix) {
+        if (key.getSize() < prefix.length) {
+            return false;
+        }
+        final byte[] keyData = key.getData();
+        final int offset = key.getOffset();
+        for (int i = 0; i < prefix.length; i++) {
+            if (keyData[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks all the ids up with a single cursor.
+     * 
+     * @see org.geogit.storage.AbstractObjectDatabase#existsAll(java.lang.Iterable)
+     */
+    @Override
+    public Set<ObjectId> existsAll(final Iterable<ObjectId> ids) {
+        final Set<ObjectId> found = new HashSet<ObjectId>();
+        scan(sorted(ids), false, new ObjectVisitor() {
+            @Override
+            public boolean visit(ObjectId id, byte[] compressed) {
+                found.add(id);
+                return true;
+            }
+        });
+        return found;
+    }
+
+    /**
+     * Fetches all the objects with a single cursor.
+     * 
+     * @see org.geogit.storage.AbstractObjectDatabase#getAll(java.lang.Iterable,
+     *      org.geogit.storage.ObjectVisitor)
+     */
+    @Override
+    public void getAll(final Iterable<ObjectId> ids, final ObjectVisitor visitor)
+            throws IOException {
+        Preconditions.checkNotNull(visitor, "visitor");
+        scan(sorted(ids), true, visitor);
+    }
+
+    /**
+     * Walks a single cursor over the sorted {@code ids}, visiting the ones found.
+     * <p>
+     * Ids requested together are often close to each other in the B-tree, so before searching
+     * for an id the cursor is moved to the next key, which is either the id being looked up, or
+     * a key past it meaning the id doesn't exist. Only when the next key is still before the id
+     * the cursor is positioned with a search.
+     * </p>
+     */
+    private void scan(final SortedSet<ObjectId> ids, final boolean fetchData,
+            final ObjectVisitor visitor) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        final byte[] rawKey = new byte[ObjectId.NUM_BYTES];
+        final DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry data = newDataEntry(fetchData);
+
+        CursorConfig cursorConfig = new CursorConfig();
+        cursorConfig.setReadCommitted(true);
+
+        final LockMode lockMode = LockMode.READ_COMMITTED;
+        Cursor cursor = objectDb.openCursor(txn.getTransaction(), cursorConfig);
+        try {
+            // the id at the cursor position, null while the cursor is not positioned
+            ObjectId current = null;
+            for (ObjectId id : ids) {
+                if (!mightExist(id)) {
+                    continue;
+                }
+                if (current != null && current.compareTo(id) < 0) {
+                    data = newDataEntry(fetchData);
+                    if (!SUCCESS.equals(cursor.getNext(key, data, lockMode))) {
+                        return;// no more keys
+                    }
+                    current = ObjectId.fromRaw(key.getData(), key.getOffset());
+                }
+                if (current == null || current.compareTo(id) < 0) {
+                    id.copyRawValue(rawKey, 0);
+                    key.setData(rawKey);
+                    data = newDataEntry(fetchData);
+                    if (!SUCCESS.equals(cursor.getSearchKeyRange(key, data, lockMode))) {
+                        return;// the remaining ids are past the last key
+                    }
+                    current = ObjectId.fromRaw(key.getData(), key.getOffset());
+                }
+                if (current.equals(id) && !visitor.visit(id, data.getData())) {
+                    return;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static DatabaseEntry newDataEntry(final boolean fetchData) {
+        DatabaseEntry data = new DatabaseEntry();
+        if (!fetchData) {
+            data.setPartial(0, 0, true);
+        }
+        return data;
+    }
+
     /**
      * @see org.geogit.storage.ObjectDatabase#exists(org.geogit.api.ObjectId)
      */
     @Override
     public boolean exists(final ObjectId id) {
         Preconditions.checkNotNull(id, "id");
+        if (!mightExist(id)) {
+            return false;
+        }
 
         DatabaseEntry key = new DatabaseEntry(id.getRawValue());
         DatabaseEntry data = new DatabaseEntry();
@@ -139,7 +402,32 @@ public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDa
      */
     @Override
     protected InputStream getRawInternal(final ObjectId id) throws IOException {
+        return new ByteArrayInputStream(getCompressed(id));
+    }
+
+    /**
+     * Overrides to return the array JE read the record into, without copying it.
+     * 
+     * @see org.geogit.storage.AbstractObjectDatabase#getCompressed(org.geogit.api.ObjectId)
+     */
+    @Override
+    public byte[] getCompressed(final ObjectId id) throws IOException {
+        byte[] compressed = getCompressedIfPresent(id);
+        if (compressed == null) {
+            throw new IllegalArgumentException("Object does not exist: " + id.toString());
+        }
+        return compressed;
+    }
+
+    /**
+     * @see org.geogit.storage.AbstractObjectDatabase#getCompressedIfPresent(org.geogit.api.ObjectId)
+     */
+    @Override
+    public byte[] getCompressedIfPresent(final ObjectId id) throws IOException {
         Preconditions.checkNotNull(id, "id");
+        if (!mightExist(id)) {
+            return null;
+        }
         DatabaseEntry key = new DatabaseEntry(id.getRawValue());
         DatabaseEntry data = new DatabaseEntry();
 
@@ -147,11 +435,9 @@ public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDa
         Transaction transaction = txn.getTransaction();
         OperationStatus operationStatus = objectDb.get(transaction, key, data, lockMode);
         if (NOTFOUND.equals(operationStatus)) {
-            throw new IllegalArgumentException("Object does not exist: " + id.toString());
+            return null;
         }
-        final byte[] cData = data.getData();
-
-        return new ByteArrayInputStream(cData);
+        return data.getData();
     }
 
     /**
@@ -165,10 +451,18 @@ public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDa
         DatabaseEntry data = new DatabaseEntry(rawData);
 
         OperationStatus status;
-        if (override) {
-            status = objectDb.put(txn.getTransaction(), key, data);
-        } else {
-            status = objectDb.putNoOverwrite(txn.getTransaction(), key, data);
+        final Lock lock = idFilterLock.readLock();
+        lock.lock();
+        try {
+            // added before the object is visible, aborted writes just make for false positives
+            addToIdFilter(id);
+            if (override) {
+                status = objectDb.put(txn.getTransaction(), key, data);
+            } else {
+                status = objectDb.putNoOverwrite(txn.getTransaction(), key, data);
+            }
+        } finally {
+            lock.unlock();
         }
         final boolean didntExist = SUCCESS.equals(status);
 
@@ -180,13 +474,125 @@ public class JEObjectDatabase extends AbstractObjectDatabase implements ObjectDa
         return didntExist;
     }
 
+    /**
+     * Writes the whole batch in a single transaction, or in the current thread's transaction if
+     * there's one in progress.
+     * 
+     * @see org.geogit.storage.AbstractObjectDatabase#putAllInternal(java.util.Map)
+     */
+    @Override
+    protected int putAllInternal(final Map<ObjectId, byte[]> objects) throws IOException {
+        final Transaction current = txn.getTransaction();
+        final boolean ownTransaction = current == null && env.getConfig().getTransactional();
+        final Transaction transaction = ownTransaction ? env.beginTransaction(null, null) : current;
+
+        // sort by key for better locality on the B-tree, ObjectId's order matches JE's unsigned
+        // byte order
+        final Map<ObjectId, byte[]> sorted = new TreeMap<ObjectId, byte[]>(objects);
+
+        int inserted = 0;
+        boolean committed = false;
+        final Lock lock = idFilterLock.readLock();
+        lock.lock();
+        try {
+            // JE copies the key on put, so a single buffer serves the whole batch
+            final byte[] rawKey = new byte[ObjectId.NUM_BYTES];
+            DatabaseEntry key = new DatabaseEntry(rawKey);
+            DatabaseEntry data = new DatabaseEntry();
+            for (Map.Entry<ObjectId, byte[]> e : sorted.entrySet()) {
+                addToIdFilter(e.getKey());
+                e.getKey().copyRawValue(rawKey, 0);
+                data.setData(e.getValue());
+                OperationStatus status = objectDb.putNoOverwrite(transaction, key, data);
+                if (SUCCESS.equals(status)) {
+                    inserted++;
+                }
+            }
+            if (ownTransaction) {
+                transaction.commit();
+            }
+            committed = true;
+        } finally {
+            try {
+                if (ownTransaction && !committed) {
+                    transaction.abort();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.finer("Inserted " + inserted + " out of a batch of " + objects.size()
+                    + " objects");
+        }
+        return inserted;
+    }
+
+    /**
+     * Deletes all the objects in key order in a single transaction, or in the current thread's
+     * transaction if there's one in progress.
+     * 
+     * @see org.geogit.storage.AbstractObjectDatabase#deleteAll(java.lang.Iterable)
+     */
+    @Override
+    public int deleteAll(final Iterable<ObjectId> ids) {
+        final Transaction current = txn.getTransaction();
+        final boolean ownTransaction = current == null && env.getConfig().getTransactional();
+        final Transaction transaction = ownTransaction ? env.beginTransaction(null, null) : current;
+
+        int deleted = 0;
+        boolean committed = false;
+        final Lock lock = idFilterLock.readLock();
+        lock.lock();
+        try {
+            final byte[] rawKey = new byte[ObjectId.NUM_BYTES];
+            final DatabaseEntry key = new DatabaseEntry(rawKey);
+            for (ObjectId id : sorted(ids)) {
+                cache.invalidate(id);
+                id.copyRawValue(rawKey, 0);
+                if (SUCCESS.equals(objectDb.delete(transaction, key))) {
+                    deleted++;
+                }
+            }
+            if (ownTransaction) {
+                transaction.commit();
+            }
+            committed = true;
+        } finally {
+            try {
+                if (ownTransaction && !committed) {
+                    transaction.abort();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (deleted > 0 && current == null) {
+            resetIdFilterIfEmpty();
+        }
+        return deleted;
+    }
+
     @Override
     public boolean delete(final ObjectId id) {
         final byte[] rawKey = id.getRawValue();
         final DatabaseEntry key = new DatabaseEntry(rawKey);
 
-        final OperationStatus status = objectDb.delete(txn.getTransaction(), key);
+        cache.invalidate(id);
+        final Transaction transaction = txn.getTransaction();
+        final OperationStatus status;
+        final Lock lock = idFilterLock.readLock();
+        lock.lock();
+        try {
+            status = objectDb.delete(transaction, key);
+        } finally {
+            lock.unlock();
+        }
 
-        return SUCCESS.equals(status);
+        final boolean deleted = SUCCESS.equals(status);
+        if (deleted && transaction == null) {
+            resetIdFilterIfEmpty();
+        }
+        return deleted;
     }
 }
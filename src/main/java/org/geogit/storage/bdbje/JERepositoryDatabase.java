@@ -4,8 +4,11 @@
  */
 package org.geogit.storage.bdbje;
 
+import java.io.File;
+
 import org.geogit.storage.RefDatabase;
 import org.geogit.storage.RepositoryDatabase;
+import org.geogit.storage.SpatialIndexStore;
 import org.geogit.storage.StagingDatabase;
 
 import com.sleepycat.je.Environment;
@@ -28,9 +31,14 @@ public class JERepositoryDatabase implements RepositoryDatabase {
         this.repositoryEnvironment = repositoryEnvironment;
         this.stagingEnvironment = stagingEnvironment;
         this.repositoryObjectDb = new JEObjectDatabase(repositoryEnvironment);
-        this.referenceDatabase = new RefDatabase(repositoryObjectDb);
+        this.repositoryObjectDb.setSpatialIndexStore(new SpatialIndexStore(new File(
+                repositoryEnvironment.getHome(), SpatialIndexStore.DIRECTORY_NAME)));
+        this.referenceDatabase = new RefDatabase(repositoryObjectDb, new File(
+                repositoryEnvironment.getHome(), RefDatabase.JOURNAL_FILE_NAME));
 
         JEObjectDatabase stagingObjectDb = new JEObjectDatabase(stagingEnvironment);
+        // most lookups through the staging database are for repository objects
+        stagingObjectDb.setUseIdFilter(true);
         this.stagingDatabase = new StagingDatabase(repositoryObjectDb, stagingObjectDb,
                 stagingEnvironment);
     }
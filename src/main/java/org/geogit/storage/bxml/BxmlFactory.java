@@ -1,5 +1,6 @@
 package org.geogit.storage.bxml;
 
+import org.geogit.api.ObjectId;
 import org.geogit.api.RevCommit;
 import org.geogit.api.RevTree;
 import org.geogit.storage.BlobPrinter;
@@ -58,6 +59,38 @@ public class BxmlFactory implements ObjectSerialisingFactory {
 		return new BxmlFeatureWriter(feature);
 	}
 
+    /**
+     * @return {@code false}, bxml features carry their own type name, there are no schema objects
+     */
+    @Override
+    public boolean supportsSchemas(final FeatureType featureType) {
+        return false;
+    }
+
+    /**
+     * @return {@code null}, there are no schema objects
+     */
+    @Override
+    public ObjectWriter<FeatureType> createFeatureTypeWriter(final FeatureType featureType) {
+        return null;
+    }
+
+    /**
+     * @return {@code null}, there are no schema objects
+     */
+    @Override
+    public ObjectReader<FeatureType> createFeatureTypeReader() {
+        return null;
+    }
+
+    /**
+     * @return {@code null}, bxml features don't refer to schema objects
+     */
+    @Override
+    public ObjectId getFeatureSchemaId(byte[] blob) {
+        return null;
+    }
+
 	@Override
 	public ObjectWriter<RevTree> createRevTreeWriter(RevTree tree) {
 		return new BxmlRevTreeWriter(tree);
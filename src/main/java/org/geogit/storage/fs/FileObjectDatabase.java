@@ -14,6 +14,7 @@ import java.util.List;
 
 import org.geogit.api.ObjectId;
 import org.geogit.storage.AbstractObjectDatabase;
+import org.geogit.storage.ObjectCache;
 import org.geogit.storage.ObjectDatabase;
 
 public class FileObjectDatabase extends AbstractObjectDatabase implements ObjectDatabase {
@@ -27,6 +28,12 @@ public class FileObjectDatabase extends AbstractObjectDatabase implements Object
         this.environmentPath = environment.getAbsolutePath();
     }
 
+    public FileObjectDatabase(final File environment, final ObjectCache cache) {
+        super(cache);
+        this.environment = environment;
+        this.environmentPath = environment.getAbsolutePath();
+    }
+
     @Override
     public void close() {
         // TODO Auto-generated method stub
@@ -89,6 +96,7 @@ public class FileObjectDatabase extends AbstractObjectDatabase implements Object
 
     @Override
     public boolean delete(ObjectId objectId) {
+        cache.invalidate(objectId);
         return filePath(objectId).delete();
     }
 
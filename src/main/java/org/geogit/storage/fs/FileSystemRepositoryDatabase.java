@@ -23,7 +23,8 @@ public class FileSystemRepositoryDatabase implements RepositoryDatabase {
             final File stagingEnvironment) {
 
         this.repositoryObjectDb = new FileObjectDatabase(repositoryEnvironment);
-        this.referenceDatabase = new RefDatabase(repositoryObjectDb);
+        this.referenceDatabase = new RefDatabase(repositoryObjectDb, new File(
+                repositoryEnvironment, RefDatabase.JOURNAL_FILE_NAME));
 
         FileObjectDatabase stagingObjectDb = new FileObjectDatabase(stagingEnvironment);
         throw new UnsupportedOperationException("need to revisit here");
@@ -21,7 +21,21 @@ enum BlobType {
     /**
      * Blob encodes a Commit
      */
-    COMMIT(2);
+    COMMIT(2),
+    /**
+     * Blob encodes a RevTree whose entries are laid out column by column
+     * 
+     * @see ColumnarTreeLeaf
+     */
+    REVTREE_V2(3),
+    /**
+     * Blob encodes a feature type
+     */
+    SCHEMA(4),
+    /**
+     * Blob encodes a feature object that references its {@link #SCHEMA} by id
+     */
+    FEATURE_V2(5);
 
     private int value;
 
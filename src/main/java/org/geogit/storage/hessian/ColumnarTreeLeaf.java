@@ -0,0 +1,377 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.hessian;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.SpatialRef;
+import org.geogit.storage.LeafEntries;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.caucho.hessian.io.Hessian2Input;
+
+/**
+ * The entries of a {@link BlobType#REVTREE_V2} tree, decoded on demand out of their columns.
+ * <p>
+ * After the blob type and the tree size, such a blob holds:
+ * <ul>
+ * <li>the buckets column: a byte array with a {@code [bucket][20 bytes subtree id]} record per
+ * bucket subtree</li>
+ * <li>the number of entries as an int, and if it's not zero:</li>
+ * <li>the names column: a byte array with the UTF-8 encoded entry names in ascending order, each
+ * one as the varint length of the prefix it shares with the previous name, the varint length of
+ * the rest, and the rest. Every {@link #RESTART_INTERVAL}th name shares no prefix, so lookups
+ * binary search these restart points and only decode the names in between sequentially</li>
+ * <li>the types column: a byte array with a type byte per entry</li>
+ * <li>the ids column: a byte array with the 20 bytes of each entry id</li>
+ * <li>the CRS dictionary: the number of distinct CRS identifiers as an int and the identifiers as
+ * strings, an empty string standing for no CRS</li>
+ * <li>the CRS column: a byte array with an unsigned short per entry being {@code 0} if the entry
+ * has no bounds or the 1 based dictionary index of its CRS otherwise. Empty if no entry has
+ * bounds</li>
+ * <li>the bounds column: a byte array with {@code minx, maxx, miny, maxy} per entry as 32 bit
+ * floats, rounded outwards so they still contain the original bounds. Empty if no entry has
+ * bounds</li>
+ * <li>the hash order column: a byte array with the entry indexes as unsigned shorts, in ascending
+ * order of the SHA-1 hash of the entry names, so that entries can be iterated in the tree's
+ * iteration order without sorting them</li>
+ * </ul>
+ * </p>
+ *
+ * @author groldan
+ */
+final class ColumnarTreeLeaf implements LeafEntries {
+
+    static final int RESTART_INTERVAL = 16;
+
+    static final int BUCKET_RECORD_SIZE = 1 + ObjectId.NUM_BYTES;
+
+    static final int BOUNDS_RECORD_SIZE = 4 * 4;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int size;
+
+    private final byte[] names;
+
+    /**
+     * Offset in {@link #names} of each restart point
+     */
+    private final int[] restarts;
+
+    private final byte[] types;
+
+    private final byte[] ids;
+
+    private final String[] crsCodes;
+
+    private final CoordinateReferenceSystem[] crs;
+
+    private final byte[] crsIndexes;
+
+    private final byte[] bounds;
+
+    private final byte[] hashOrder;
+
+    ColumnarTreeLeaf(final int size, final byte[] names, final byte[] types, final byte[] ids,
+            final String[] crsCodes, final byte[] crsIndexes, final byte[] bounds,
+            final byte[] hashOrder) {
+        this.size = size;
+        this.names = names;
+        this.types = types;
+        this.ids = ids;
+        this.crsCodes = crsCodes;
+        this.crs = new CoordinateReferenceSystem[crsCodes.length];
+        this.crsIndexes = crsIndexes;
+        this.bounds = bounds;
+        this.hashOrder = hashOrder;
+        if (types.length != size || ids.length != size * ObjectId.NUM_BYTES
+                || hashOrder.length != 2 * size) {
+            throw new IllegalArgumentException("Corrupt tree leaf, column sizes don't match");
+        }
+        if (crsIndexes.length != 0
+                && (crsIndexes.length != 2 * size || bounds.length != size * BOUNDS_RECORD_SIZE)) {
+            throw new IllegalArgumentException("Corrupt tree leaf, bounds column sizes don't match");
+        }
+        this.restarts = new int[(size + RESTART_INTERVAL - 1) / RESTART_INTERVAL];
+        int[] offset = new int[1];
+        for (int i = 0; i < size; i++) {
+            final int start = offset[0];
+            final int shared = readVarInt(names, offset);
+            if (i % RESTART_INTERVAL == 0) {
+                if (shared != 0) {
+                    throw new IllegalArgumentException("Corrupt tree leaf names at entry " + i);
+                }
+                restarts[i / RESTART_INTERVAL] = start;
+            }
+            offset[0] += readVarInt(names, offset);
+        }
+        if (offset[0] != names.length) {
+            throw new IllegalArgumentException("Corrupt tree leaf, names column size doesn't match");
+        }
+    }
+
+    /**
+     * Reads the entry columns following the buckets column of a {@link BlobType#REVTREE_V2} blob.
+     *
+     * @return the leaf entries, or {@code null} if the tree holds no entries
+     */
+    static ColumnarTreeLeaf read(final Hessian2Input hin) throws IOException {
+        final int size = hin.readInt();
+        if (size == 0) {
+            return null;
+        }
+        byte[] names = hin.readBytes();
+        byte[] types = hin.readBytes();
+        byte[] ids = hin.readBytes();
+        String[] crsCodes = new String[hin.readInt()];
+        for (int i = 0; i < crsCodes.length; i++) {
+            crsCodes[i] = hin.readString();
+        }
+        byte[] crsIndexes = hin.readBytes();
+        byte[] bounds = hin.readBytes();
+        byte[] hashOrder = hin.readBytes();
+        return new ColumnarTreeLeaf(size, names, types, ids, crsCodes, crsIndexes, bounds,
+                hashOrder);
+    }
+
+    /**
+     * Adds the bucket subtrees held in a buckets column to {@code subtrees}
+     */
+    static void readBuckets(final byte[] column, final Map<Integer, Ref> subtrees) {
+        if (column.length % BUCKET_RECORD_SIZE != 0) {
+            throw new IllegalArgumentException("Corrupt tree buckets column");
+        }
+        for (int offset = 0; offset < column.length; offset += BUCKET_RECORD_SIZE) {
+            Integer bucket = Integer.valueOf(column[offset] & 0xFF);
+            ObjectId id = ObjectId.fromRaw(column, offset + 1);
+            subtrees.put(bucket, new Ref("", id, TYPE.TREE));
+        }
+    }
+
+    static void writeVarInt(final ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Reads a varint off {@code data} at {@code offset[0]}, advancing it
+     */
+    static int readVarInt(final byte[] data, final int[] offset) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (offset[0] >= data.length) {
+                throw new IllegalArgumentException("Corrupt tree leaf, truncated varint");
+            }
+            final byte b = data[offset[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Corrupt tree leaf, malformed varint");
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Binary searches the restart points for the block {@code name} would be in and scans it.
+     *
+     * @see org.geogit.storage.LeafEntries#get(java.lang.String)
+     */
+    @Override
+    public Ref get(final String name) {
+        int low = 0;
+        int high = restarts.length - 1;
+        int block = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int comparison = new NameCursor(mid).next().compareTo(name);
+            if (comparison == 0) {
+                return entry(mid * RESTART_INTERVAL, name);
+            } else if (comparison < 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (block == -1) {
+            return null;
+        }
+        final NameCursor cursor = new NameCursor(block);
+        cursor.next();
+        final int end = Math.min(size, (block + 1) * RESTART_INTERVAL);
+        while (cursor.index < end) {
+            final int index = cursor.index;
+            final String entryName = cursor.next();
+            final int comparison = entryName.compareTo(name);
+            if (comparison == 0) {
+                return entry(index, entryName);
+            } else if (comparison > 0) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Iterator<Ref> iterator() {
+        return new Iterator<Ref>() {
+
+            private final NameCursor cursor = new NameCursor(0);
+
+            @Override
+            public boolean hasNext() {
+                return cursor.index < size;
+            }
+
+            @Override
+            public Ref next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final int index = cursor.index;
+                return entry(index, cursor.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Decodes the names once, sequentially, and the entries one at a time in the order given by
+     * the hash order column.
+     *
+     * @see org.geogit.storage.LeafEntries#iteratorByNameHash()
+     */
+    @Override
+    public Iterator<Ref> iteratorByNameHash() {
+        final String[] entryNames = new String[size];
+        final NameCursor cursor = new NameCursor(0);
+        while (cursor.index < size) {
+            entryNames[cursor.index] = cursor.next();
+        }
+        return new Iterator<Ref>() {
+
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Ref next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final int index = ((hashOrder[2 * next] & 0xFF) << 8)
+                        | (hashOrder[2 * next + 1] & 0xFF);
+                next++;
+                if (index >= size) {
+                    throw new IllegalArgumentException("Corrupt tree leaf hash order column");
+                }
+                return entry(index, entryNames[index]);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private Ref entry(final int index, final String name) {
+        final TYPE type = TYPE.valueOf(types[index]);
+        final ObjectId id = ObjectId.fromRaw(ids, index * ObjectId.NUM_BYTES);
+        if (crsIndexes.length == 0) {
+            return new Ref(name, id, type);
+        }
+        final int crsIndex = ((crsIndexes[2 * index] & 0xFF) << 8)
+                | (crsIndexes[2 * index + 1] & 0xFF);
+        if (crsIndex == 0) {
+            return new Ref(name, id, type);
+        }
+        final int offset = index * BOUNDS_RECORD_SIZE;
+        double minx = readFloat(offset);
+        double maxx = readFloat(offset + 4);
+        double miny = readFloat(offset + 8);
+        double maxy = readFloat(offset + 12);
+        ReferencedEnvelope bbox = new ReferencedEnvelope(minx, maxx, miny, maxy,
+                crs(crsIndex - 1));
+        return new SpatialRef(name, id, type, bbox);
+    }
+
+    private float readFloat(final int offset) {
+        final int bits = ((bounds[offset] & 0xFF) << 24) | ((bounds[offset + 1] & 0xFF) << 16)
+                | ((bounds[offset + 2] & 0xFF) << 8) | (bounds[offset + 3] & 0xFF);
+        return Float.intBitsToFloat(bits);
+    }
+
+    private CoordinateReferenceSystem crs(final int dictionaryIndex) {
+        CoordinateReferenceSystem value = crs[dictionaryIndex];
+        if (value == null) {
+            final String code = crsCodes[dictionaryIndex];
+            if (code == null || code.length() == 0) {
+                return null;
+            }
+            // racy but harmless, the lookup is cached anyway
+            value = HessianRevReader.lookupCrs(code);
+            crs[dictionaryIndex] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Decodes the names sequentially starting at a restart point
+     */
+    private final class NameCursor {
+
+        private final int[] offset = new int[1];
+
+        private byte[] current = new byte[64];
+
+        int index;
+
+        NameCursor(final int restart) {
+            this.index = restart * RESTART_INTERVAL;
+            this.offset[0] = restarts[restart];
+        }
+
+        String next() {
+            final int shared = readVarInt(names, offset);
+            final int suffix = readVarInt(names, offset);
+            final int length = shared + suffix;
+            if (current.length < length) {
+                byte[] grown = new byte[Math.max(length, 2 * current.length)];
+                System.arraycopy(current, 0, grown, 0, shared);
+                current = grown;
+            }
+            System.arraycopy(names, offset[0], current, shared, suffix);
+            offset[0] += suffix;
+            index++;
+            return new String(current, 0, length, UTF8);
+        }
+    }
+}
@@ -18,12 +18,19 @@ import com.vividsolutions.jts.geom.Geometry;
  * created, with a new value, and the writers updated to use it. The readers should continue to
  * support both the old and new versions.
  * 
+ * The values are written as Hessian ints, which take a single byte for values up to 47.
+ * 
+ * The numeric array types {@link #DOUBLE_ARRAY}, {@link #FLOAT_ARRAY}, {@link #INT_ARRAY} and
+ * {@link #LONG_ARRAY} were written as nulls, and are superseded by their {@code PACKED_*}
+ * counterparts that hold the array elements as a single little endian block.
+ * 
  * @author mleslie
  */
 enum EntityType implements Serializable {
     STRING(0), BOOLEAN(1), BYTE(2), DOUBLE(3), BIGDECIMAL(4), FLOAT(5), INT(6), BIGINT(7), LONG(8), BOOLEAN_ARRAY(
             11), BYTE_ARRAY(12), CHAR_ARRAY(13), DOUBLE_ARRAY(14), FLOAT_ARRAY(15), INT_ARRAY(16), LONG_ARRAY(
-            17), GEOMETRY(9), NULL(10), UNKNOWN_SERIALISABLE(18), UNKNOWN(19);
+            17), GEOMETRY(9), NULL(10), UNKNOWN_SERIALISABLE(18), UNKNOWN(19), PACKED_DOUBLE_ARRAY(
+            20), PACKED_FLOAT_ARRAY(21), PACKED_INT_ARRAY(22), PACKED_LONG_ARRAY(23);
 
     public static EntityType determineType(Object value) {
         if (value == null)
@@ -53,13 +60,13 @@ enum EntityType implements Serializable {
         if (value instanceof char[])
             return CHAR_ARRAY;
         if (value instanceof double[])
-            return DOUBLE_ARRAY;
+            return PACKED_DOUBLE_ARRAY;
         if (value instanceof float[])
-            return FLOAT_ARRAY;
+            return PACKED_FLOAT_ARRAY;
         if (value instanceof int[])
-            return INT_ARRAY;
+            return PACKED_INT_ARRAY;
         if (value instanceof long[])
-            return LONG_ARRAY;
+            return PACKED_LONG_ARRAY;
         if (value instanceof Geometry)
             return GEOMETRY;
         if (value instanceof Serializable)
@@ -14,10 +14,14 @@ import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.TreeMap;
 
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
@@ -71,6 +75,15 @@ class HessianBlobPrinter extends HessianRevReader implements BlobPrinter {
         case COMMIT:
             printCommit(hin, out);
             break;
+        case REVTREE_V2:
+            printColumnarRevTree(hin, out);
+            break;
+        case FEATURE_V2:
+            printFeatureV2(hin, out);
+            break;
+        case SCHEMA:
+            printSchema(hin, out);
+            break;
         }
 
         hin.completeMessage();
@@ -106,6 +119,61 @@ class HessianBlobPrinter extends HessianRevReader implements BlobPrinter {
         closeTag(out);
     }
 
+    /**
+     * Prints a {@link BlobType#FEATURE_V2} feature same as {@link #printFeature}, with the id of
+     * its schema as the first element.
+     */
+    private void printFeatureV2(Hessian2Input hin, PrintStream out) throws IOException {
+        openTag("feature", out);
+        openTag("schema", out);
+        printObjectId(new ObjectId(hin.readBytes()), out);
+        closeTag(out);
+        int attrCount = hin.readInt();
+        for (int i = 0; i < attrCount; i++) {
+            Object obj = HessianFeatureReader.readValue(hin);
+            printObject(obj, out);
+        }
+        closeTag(out);
+    }
+
+    /**
+     * Prints an xml representation of a feature type schema.
+     * 
+     * The schema will be formatted similar to the following:
+     * 
+     * <pre>
+     * {@code
+     * <schema namespace="http://geogit.org" name="roads" defaultGeometry="geom">
+     *   <attribute name="geom" binding="com.vividsolutions.jts.geom.LineString" nillable="true" minOccurs="0" maxOccurs="1" crs="EPSG:4326"/>
+     *   <attribute name="name" binding="java.lang.String" nillable="true" minOccurs="0" maxOccurs="1" crs=""/>
+     * </schema>
+     * }
+     * </pre>
+     */
+    private void printSchema(Hessian2Input hin, PrintStream out) throws IOException {
+        Map<String, String> attr = new LinkedHashMap<String, String>();
+        attr.put("namespace", hin.readString());
+        attr.put("name", hin.readString());
+        int attrCount = hin.readInt();
+        List<Map<String, String>> attributes = new ArrayList<Map<String, String>>(attrCount);
+        for (int i = 0; i < attrCount; i++) {
+            Map<String, String> attribute = new LinkedHashMap<String, String>();
+            attribute.put("name", hin.readString());
+            attribute.put("binding", hin.readString());
+            attribute.put("nillable", String.valueOf(hin.readBoolean()));
+            attribute.put("minOccurs", String.valueOf(hin.readInt()));
+            attribute.put("maxOccurs", String.valueOf(hin.readInt()));
+            attribute.put("crs", hin.readString());
+            attributes.add(attribute);
+        }
+        attr.put("defaultGeometry", hin.readString());
+        openTag("schema", attr, out, true, false);
+        for (Map<String, String> attribute : attributes) {
+            openTag("attribute", attribute, out, true, true);
+        }
+        closeTag(out);
+    }
+
     /**
      * Prints an xml representation of the RevTree object.
      * 
@@ -153,6 +221,38 @@ class HessianBlobPrinter extends HessianRevReader implements BlobPrinter {
         closeTag(out);
     }
 
+    /**
+     * Prints an xml representation of a {@link BlobType#REVTREE_V2} tree, same as
+     * {@link #printRevTree}
+     * 
+     * @param hin Hessian input stream to parse the tree from
+     * @param out PrintStream to write into
+     * @throws IOException
+     */
+    private void printColumnarRevTree(Hessian2Input hin, PrintStream out) throws IOException {
+        BigInteger size = new BigInteger(hin.readBytes());
+        Map<String, String> attr = new HashMap<String, String>();
+        attr.put("size", size.toString());
+        openTag("tree", attr, out, true, false);
+        Map<Integer, Ref> subtrees = new TreeMap<Integer, Ref>();
+        ColumnarTreeLeaf.readBuckets(hin.readBytes(), subtrees);
+        ColumnarTreeLeaf leaf = ColumnarTreeLeaf.read(hin);
+        if (leaf != null) {
+            for (Ref entryRef : leaf) {
+                printRef(entryRef, out);
+            }
+        }
+        for (Map.Entry<Integer, Ref> subtree : subtrees.entrySet()) {
+            openTag("tree", out);
+            openTag("bucket", out, false);
+            out.print(subtree.getKey().toString());
+            closeTag(out);
+            printObjectId(subtree.getValue().getObjectId(), out);
+            closeTag(out);
+        }
+        closeTag(out);
+    }
+
     private class EntityState {
         boolean wrap;
 
@@ -6,17 +6,28 @@ package org.geogit.storage.hessian;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.geogit.api.ObjectId;
 import org.geogit.api.RevCommit;
 import org.geogit.repository.CommitBuilder;
-import org.geogit.storage.ObjectReader;
+import org.geogit.storage.BufferObjectReader;
+import org.geogit.storage.ByteBufferInputStream;
 
 import com.caucho.hessian.io.Hessian2Input;
 
-class HessianCommitReader extends HessianRevReader implements ObjectReader<RevCommit> {
+class HessianCommitReader extends HessianRevReader implements BufferObjectReader<RevCommit> {
+
+    /**
+     * @see org.geogit.storage.BufferObjectReader#read(org.geogit.api.ObjectId,
+     *      java.nio.ByteBuffer)
+     */
+    @Override
+    public RevCommit read(ObjectId id, ByteBuffer data) throws IOException, IllegalArgumentException {
+        return read(id, new ByteBufferInputStream(data));
+    }
 
     @Override
     public RevCommit read(ObjectId id, InputStream rawData) throws IOException,
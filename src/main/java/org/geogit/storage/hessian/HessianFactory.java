@@ -4,6 +4,7 @@
  */
 package org.geogit.storage.hessian;
 
+import org.geogit.api.ObjectId;
 import org.geogit.api.RevCommit;
 import org.geogit.api.RevTree;
 import org.geogit.storage.BlobPrinter;
@@ -13,6 +14,7 @@ import org.geogit.storage.ObjectSerialisingFactory;
 import org.geogit.storage.ObjectWriter;
 import org.geotools.factory.Hints;
 import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.FeatureType;
 
 public class HessianFactory implements ObjectSerialisingFactory {
@@ -47,6 +49,32 @@ public class HessianFactory implements ObjectSerialisingFactory {
         return new HessianFeatureWriter(feature);
     }
 
+    /**
+     * @return {@code true} for simple feature types, complex features still carry their type name
+     */
+    @Override
+    public boolean supportsSchemas(FeatureType featureType) {
+        return featureType instanceof SimpleFeatureType;
+    }
+
+    @Override
+    public ObjectWriter<FeatureType> createFeatureTypeWriter(FeatureType featureType) {
+        if (!supportsSchemas(featureType)) {
+            return null;
+        }
+        return new HessianFeatureTypeWriter(featureType);
+    }
+
+    @Override
+    public ObjectReader<FeatureType> createFeatureTypeReader() {
+        return new HessianFeatureTypeReader();
+    }
+
+    @Override
+    public ObjectId getFeatureSchemaId(byte[] blob) {
+        return HessianFeatureReader.schemaId(blob);
+    }
+
     @Override
     public ObjectReader<RevTree> createRevTreeReader(ObjectDatabase objectDb) {
         return new HessianRevTreeReader(objectDb);
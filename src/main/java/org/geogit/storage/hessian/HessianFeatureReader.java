@@ -4,15 +4,21 @@
  */
 package org.geogit.storage.hessian;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.geogit.api.ObjectId;
-import org.geogit.storage.ObjectReader;
+import org.geogit.storage.BufferObjectReader;
+import org.geogit.storage.ByteBufferInputStream;
+import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.ObjectSerialisingFactory;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.factory.Hints;
 import org.geotools.feature.simple.SimpleFeatureImpl;
@@ -36,7 +42,7 @@ import com.vividsolutions.jts.io.WKBReader;
  * 
  * @author mleslie
  */
-class HessianFeatureReader implements ObjectReader<Feature> {
+class HessianFeatureReader implements BufferObjectReader<Feature> {
 
     private static final FilterFactory2 FILTER_FAC = CommonFactoryFinder.getFilterFactory2(null);
 
@@ -46,6 +52,15 @@ class HessianFeatureReader implements ObjectReader<Feature> {
 
     private static GeometryFactory geometryFactory = new GeometryFactory();
 
+    private final boolean lazy;
+
+    private final boolean envelopeOnly;
+
+    /**
+     * Where to look up the schemas of the features being read, may be {@code null}
+     */
+    private final ObjectDatabase schemaDatabase;
+
     public HessianFeatureReader(final FeatureType featureType, final String featureId,
             final Hints hints) {
         this.featureType = featureType;
@@ -56,6 +71,23 @@ class HessianFeatureReader implements ObjectReader<Feature> {
                 geometryFactory = gf;
             }
         }
+        this.envelopeOnly = isSet(hints, ObjectSerialisingFactory.ENVELOPE_GEOMETRIES);
+        this.lazy = envelopeOnly || isSet(hints, ObjectSerialisingFactory.LAZY_FEATURES);
+        this.schemaDatabase = hints == null ? null : (ObjectDatabase) hints
+                .get(ObjectSerialisingFactory.SCHEMA_DATABASE);
+    }
+
+    private static boolean isSet(final Hints hints, final Hints.Key key) {
+        return hints != null && Boolean.TRUE.equals(hints.get(key));
+    }
+
+    /**
+     * @see org.geogit.storage.BufferObjectReader#read(org.geogit.api.ObjectId,
+     *      java.nio.ByteBuffer)
+     */
+    @Override
+    public Feature read(ObjectId id, ByteBuffer data) throws IOException, IllegalArgumentException {
+        return read(id, new ByteBufferInputStream(data));
     }
 
     public Feature read(ObjectId id, InputStream rawData) throws IOException,
@@ -63,26 +95,109 @@ class HessianFeatureReader implements ObjectReader<Feature> {
         Hessian2Input in = new Hessian2Input(rawData);
         in.startMessage();
         BlobType type = BlobType.fromValue(in.readInt());
-        if (type != BlobType.FEATURE)
+        final SimpleFeatureType schema;
+        final int attrCount;
+        if (type == BlobType.FEATURE_V2) {
+            ObjectId schemaId = new ObjectId(in.readBytes());
+            attrCount = in.readInt();
+            schema = resolveSchema(schemaId);
+        } else if (type == BlobType.FEATURE) {
+            in.readString();// type name, features are built with the provided type
+            schema = (SimpleFeatureType) featureType;
+            attrCount = in.readInt();
+        } else {
             throw new IllegalArgumentException("Could not parse blob of type " + type
                     + " as a feature.");
+        }
         List<Object> values = new ArrayList<Object>();
-        String typeString = in.readString();
-        int attrCount = in.readInt();
+        if (type == BlobType.FEATURE_V2 && attrCount != schema.getAttributeCount()) {
+            throw new IOException("Feature has " + attrCount + " attributes but its schema has "
+                    + schema.getAttributeCount());
+        }
+        // the WKB of the geometries left unparsed, if lazy
+        byte[][] wkb = lazy ? new byte[attrCount][] : null;
         for (int i = 0; i < attrCount; i++) {
-            Object obj = readValue(in);
-            values.add(obj);
+            EntityType attrType = readType(in);
+            if (lazy && attrType == EntityType.GEOMETRY) {
+                in.readString();
+                // the WKB is followed by a single padding byte the WKBReader won't get to
+                wkb[i] = in.readBytes();
+                values.add(null);
+            } else {
+                values.add(readValue(in, attrType));
+            }
         }
         in.completeMessage();
         FeatureId fid = FILTER_FAC.featureId(featureId, id.toString());
-        SimpleFeature feat = new SimpleFeatureImpl(values, (SimpleFeatureType) featureType, fid);
+        SimpleFeature feat;
+        if (lazy) {
+            feat = new LazyFeature(values, wkb, schema, fid, geometryFactory, envelopeOnly);
+        } else {
+            feat = new SimpleFeatureImpl(values, schema, fid);
+        }
         return feat;
     }
 
+    /**
+     * Finds out the feature type a feature blob refers to, being the one provided to this reader
+     * if it matches, or otherwise a known one or the one stored in the schema database.
+     * <p>
+     * The provided feature type is not used if its id doesn't match, since the id is computed
+     * out of the attribute names and bindings, and binding the values to a different type would
+     * silently assign them to the wrong attributes.
+     * </p>
+     * 
+     * @throws IllegalArgumentException if the schema can't be found
+     */
+    private SimpleFeatureType resolveSchema(final ObjectId schemaId) throws IOException {
+        SimpleFeatureType provided = null;
+        if (featureType instanceof SimpleFeatureType) {
+            provided = (SimpleFeatureType) featureType;
+        }
+        if (provided != null && schemaId.equals(SchemaRegistry.idOf(provided))) {
+            return provided;
+        }
+        SimpleFeatureType schema = SchemaRegistry.get(schemaId);
+        if (schema == null && schemaDatabase != null && schemaDatabase.exists(schemaId)) {
+            schema = (SimpleFeatureType) schemaDatabase.get(schemaId,
+                    new HessianFeatureTypeReader());
+        }
+        if (schema == null) {
+            throw new IllegalArgumentException("Feature schema " + schemaId + " not found");
+        }
+        return schema;
+    }
+
+    /**
+     * @return the id of the schema a {@link BlobType#FEATURE_V2} blob refers to, or {@code null}
+     *         if {@code blob} is not one
+     */
+    static ObjectId schemaId(final byte[] blob) {
+        try {
+            Hessian2Input in = new Hessian2Input(new ByteArrayInputStream(blob));
+            in.startMessage();
+            if (BlobType.fromValue(in.readInt()) != BlobType.FEATURE_V2) {
+                return null;
+            }
+            return new ObjectId(in.readBytes());
+        } catch (Exception notAHessianMessage) {
+            return null;
+        }
+    }
+
     static Object readValue(final Hessian2Input in) throws IOException {
+        return readValue(in, readType(in));
+    }
+
+    private static EntityType readType(final Hessian2Input in) throws IOException {
         EntityType type = EntityType.fromValue(in.readInt());
         if (type == null)
             throw new IOException("Illegal format in data stream");
+        return type;
+    }
+
+    private static Object readValue(final Hessian2Input in, final EntityType type)
+            throws IOException {
         switch (type) {
         case STRING:
             String str = in.readString();
@@ -132,6 +247,30 @@ class HessianFeatureReader implements ObjectReader<Feature> {
         case LONG_ARRAY:
             in.readNull();
             break;
+        case PACKED_DOUBLE_ARRAY: {
+            ByteBuffer block = readLittleEndian(in, 8);
+            double[] doubles = new double[block.remaining() / 8];
+            block.asDoubleBuffer().get(doubles);
+            return doubles;
+        }
+        case PACKED_FLOAT_ARRAY: {
+            ByteBuffer block = readLittleEndian(in, 4);
+            float[] floats = new float[block.remaining() / 4];
+            block.asFloatBuffer().get(floats);
+            return floats;
+        }
+        case PACKED_INT_ARRAY: {
+            ByteBuffer block = readLittleEndian(in, 4);
+            int[] ints = new int[block.remaining() / 4];
+            block.asIntBuffer().get(ints);
+            return ints;
+        }
+        case PACKED_LONG_ARRAY: {
+            ByteBuffer block = readLittleEndian(in, 8);
+            long[] longs = new long[block.remaining() / 8];
+            block.asLongBuffer().get(longs);
+            return longs;
+        }
         case BIGDECIMAL:
             String bdString = in.readString();
             return new BigDecimal(bdString);
@@ -169,4 +308,16 @@ class HessianFeatureReader implements ObjectReader<Feature> {
         }
         return null;
     }
+
+    /**
+     * Reads a block of little endian array elements of {@code elementSize} bytes each
+     */
+    private static ByteBuffer readLittleEndian(final Hessian2Input in, final int elementSize)
+            throws IOException {
+        byte[] block = in.readBytes();
+        if (block.length % elementSize != 0) {
+            throw new IOException("Illegal array length in data stream: " + block.length);
+        }
+        return ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+    }
 }
@@ -0,0 +1,86 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.hessian;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.geogit.api.ObjectId;
+import org.geogit.storage.BufferObjectReader;
+import org.geogit.storage.ByteBufferInputStream;
+import org.geotools.feature.NameImpl;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.FeatureType;
+
+import com.caucho.hessian.io.Hessian2Input;
+
+/**
+ * Reads the feature types written by {@link HessianFeatureTypeWriter}, registering them in the
+ * {@link SchemaRegistry} so features referencing them are decoded without looking them up again.
+ * 
+ * @author groldan
+ */
+class HessianFeatureTypeReader implements BufferObjectReader<FeatureType> {
+
+    /**
+     * @see org.geogit.storage.BufferObjectReader#read(org.geogit.api.ObjectId,
+     *      java.nio.ByteBuffer)
+     */
+    @Override
+    public FeatureType read(ObjectId id, ByteBuffer data) throws IOException,
+            IllegalArgumentException {
+        return read(id, new ByteBufferInputStream(data));
+    }
+
+    @Override
+    public FeatureType read(ObjectId id, InputStream rawData) throws IOException,
+            IllegalArgumentException {
+        Hessian2Input hin = new Hessian2Input(rawData);
+        hin.startMessage();
+        BlobType type = BlobType.fromValue(hin.readInt());
+        if (type != BlobType.SCHEMA)
+            throw new IllegalArgumentException("Could not parse blob of type " + type
+                    + " as a feature type.");
+
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        String namespace = hin.readString();
+        String localName = hin.readString();
+        builder.setName(new NameImpl(namespace.length() == 0 ? null : namespace, localName));
+
+        final int attributeCount = hin.readInt();
+        for (int i = 0; i < attributeCount; i++) {
+            String name = hin.readString();
+            String bindingName = hin.readString();
+            Class<?> binding;
+            try {
+                binding = Class.forName(bindingName);
+            } catch (ClassNotFoundException e) {
+                throw (IOException) new IOException("Unknown binding " + bindingName
+                        + " for attribute " + name).initCause(e);
+            }
+            builder.nillable(hin.readBoolean());
+            builder.minOccurs(hin.readInt());
+            builder.maxOccurs(hin.readInt());
+            String srs = hin.readString();
+            if (srs.length() > 0) {
+                builder.crs(HessianRevReader.lookupCrs(srs));
+            }
+            builder.add(name, binding);
+        }
+        String defaultGeometry = hin.readString();
+        if (defaultGeometry.length() > 0) {
+            builder.setDefaultGeometry(defaultGeometry);
+        }
+        hin.completeMessage();
+
+        SimpleFeatureType featureType = builder.buildFeatureType();
+        if (id != null) {
+            SchemaRegistry.register(id, featureType);
+        }
+        return featureType;
+    }
+}
@@ -0,0 +1,88 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.hessian;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.geogit.storage.ObjectWriter;
+import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.feature.type.Name;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.caucho.hessian.io.Hessian2Output;
+import com.google.common.base.Preconditions;
+
+/**
+ * Encodes a simple feature type as a binary stream.
+ * 
+ * The encoding takes the following form:
+ * <ul>
+ * <li>message start</li>
+ * <li>blob type (BlobType.SCHEMA)</li>
+ * <li>type name namespace (String, empty if none)</li>
+ * <li>type name local part (String)</li>
+ * <li>attribute count (integer)</li>
+ * <li>for each attribute: its name (String), binding class name (String), whether it's nillable
+ * (boolean), min and max occurrences (integers) and CRS identifier (String, empty if not a
+ * geometry or it has no CRS)</li>
+ * <li>default geometry attribute name (String, empty if none)</li>
+ * <li>message end</li>
+ * </ul>
+ * 
+ * @author groldan
+ * @see HessianFeatureTypeReader
+ */
+class HessianFeatureTypeWriter implements ObjectWriter<FeatureType> {
+
+    private final SimpleFeatureType type;
+
+    public HessianFeatureTypeWriter(final FeatureType type) {
+        Preconditions.checkArgument(type instanceof SimpleFeatureType,
+                "Only simple feature types are supported");
+        this.type = (SimpleFeatureType) type;
+    }
+
+    @Override
+    public void write(final OutputStream out) throws IOException {
+        Hessian2Output hout = new Hessian2Output(out);
+        try {
+            hout.startMessage();
+            hout.writeInt(BlobType.SCHEMA.getValue());
+
+            Name name = type.getName();
+            hout.writeString(name.getNamespaceURI() == null ? "" : name.getNamespaceURI());
+            hout.writeString(name.getLocalPart());
+
+            hout.writeInt(type.getAttributeCount());
+            for (AttributeDescriptor descriptor : type.getAttributeDescriptors()) {
+                hout.writeString(descriptor.getLocalName());
+                hout.writeString(descriptor.getType().getBinding().getName());
+                hout.writeBoolean(descriptor.isNillable());
+                hout.writeInt(descriptor.getMinOccurs());
+                hout.writeInt(descriptor.getMaxOccurs());
+                String srs = "";
+                if (descriptor instanceof GeometryDescriptor) {
+                    CoordinateReferenceSystem crs = ((GeometryDescriptor) descriptor)
+                            .getCoordinateReferenceSystem();
+                    if (crs != null) {
+                        srs = CRS.toSRS(crs);
+                    }
+                }
+                hout.writeString(srs == null ? "" : srs);
+            }
+            GeometryDescriptor geometry = type.getGeometryDescriptor();
+            hout.writeString(geometry == null ? "" : geometry.getLocalName());
+
+            hout.completeMessage();
+        } finally {
+            hout.flush();
+        }
+    }
+}
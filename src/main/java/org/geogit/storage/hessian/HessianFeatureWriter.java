@@ -8,12 +8,16 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Collection;
 
+import org.geogit.api.ObjectId;
 import org.geogit.storage.ObjectWriter;
 import org.geotools.referencing.CRS;
 import org.opengis.feature.Feature;
 import org.opengis.feature.Property;
+import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import com.caucho.hessian.io.Hessian2Output;
@@ -27,8 +31,8 @@ import com.vividsolutions.jts.io.WKBWriter;
  * The encoding takes the following form:
  * <ul>
  * <li>message start</li>
- * <li>blob type (BlobType.FEATURE)</li>
- * <li>feature type name (String)</li>
+ * <li>blob type (BlobType.FEATURE_V2)</li>
+ * <li>id of the feature type {@link HessianFeatureTypeWriter schema} (byte array)</li>
  * <li>property count (integer)</li>
  * <li>encoded properties</li>
  * <li>message end</li>
@@ -36,6 +40,9 @@ import com.vividsolutions.jts.io.WKBWriter;
  * 
  * For the encoding details of each property, refer to HessianFeatureWriter.writeProperty
  * 
+ * Features of complex types are written as BlobType.FEATURE, with the feature type name instead of
+ * the schema id.
+ * 
  * @author mleslie
  */
 class HessianFeatureWriter implements ObjectWriter<Feature> {
@@ -49,10 +56,15 @@ class HessianFeatureWriter implements ObjectWriter<Feature> {
         Hessian2Output hout = new Hessian2Output(out);
         try {
             hout.startMessage();
-            hout.writeInt(BlobType.FEATURE.getValue());
             Collection<Property> props = feat.getProperties();
-
-            hout.writeString(feat.getType().getName().getURI());
+            if (feat.getType() instanceof SimpleFeatureType) {
+                ObjectId schemaId = SchemaRegistry.idOf((SimpleFeatureType) feat.getType());
+                hout.writeInt(BlobType.FEATURE_V2.getValue());
+                hout.writeBytes(schemaId.getRawValue());
+            } else {
+                hout.writeInt(BlobType.FEATURE.getValue());
+                hout.writeString(feat.getType().getName().getURI());
+            }
             hout.writeInt(props.size());
             for (Property p : props) {
                 writeProperty(hout, p);
@@ -70,7 +82,7 @@ class HessianFeatureWriter implements ObjectWriter<Feature> {
      * approach incurs a pretty big overhead. As such, many objects are encoded using native
      * formatting calls to convert them to supported formats such as byte arrays or Strings.
      * 
-     * Most array types are not currently supported.
+     * Numeric arrays are written as a single block of little endian elements.
      * 
      * @param out
      * @param prop
@@ -133,6 +145,34 @@ class HessianFeatureWriter implements ObjectWriter<Feature> {
         case LONG_ARRAY:
             out.writeNull();
             break;
+        case PACKED_DOUBLE_ARRAY: {
+            double[] doubles = (double[]) value;
+            ByteBuffer block = littleEndian(doubles.length * 8);
+            block.asDoubleBuffer().put(doubles);
+            out.writeBytes(block.array());
+            break;
+        }
+        case PACKED_FLOAT_ARRAY: {
+            float[] floats = (float[]) value;
+            ByteBuffer block = littleEndian(floats.length * 4);
+            block.asFloatBuffer().put(floats);
+            out.writeBytes(block.array());
+            break;
+        }
+        case PACKED_INT_ARRAY: {
+            int[] ints = (int[]) value;
+            ByteBuffer block = littleEndian(ints.length * 4);
+            block.asIntBuffer().put(ints);
+            out.writeBytes(block.array());
+            break;
+        }
+        case PACKED_LONG_ARRAY: {
+            long[] longs = (long[]) value;
+            ByteBuffer block = littleEndian(longs.length * 8);
+            block.asLongBuffer().put(longs);
+            out.writeBytes(block.array());
+            break;
+        }
         case BIGDECIMAL:
             String bdString = ((BigDecimal) value).toEngineeringString();
             out.writeString(bdString);
@@ -182,4 +222,8 @@ class HessianFeatureWriter implements ObjectWriter<Feature> {
             break;
         }
     }
+
+    private static ByteBuffer littleEndian(final int length) {
+        return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    }
 }
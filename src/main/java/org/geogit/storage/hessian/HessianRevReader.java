@@ -118,7 +118,7 @@ abstract class HessianRevReader {
         return bbox;
     }
 
-    private static CoordinateReferenceSystem lookupCrs(final String epsgCode) {
+    static CoordinateReferenceSystem lookupCrs(final String epsgCode) {
         CoordinateReferenceSystem crs = crsCache.get(epsgCode);
         if (crs == null) {
             try {
@@ -3,20 +3,22 @@ package org.geogit.storage.hessian;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.TreeMap;
 
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevObject.TYPE;
 import org.geogit.api.RevTree;
+import org.geogit.storage.BufferObjectReader;
+import org.geogit.storage.ByteBufferInputStream;
 import org.geogit.storage.ObjectDatabase;
-import org.geogit.storage.ObjectReader;
 import org.geogit.storage.RevSHA1Tree;
 
 import com.caucho.hessian.io.Hessian2Input;
 import com.caucho.hessian.io.HessianProtocolException;
 
-class HessianRevTreeReader extends HessianRevReader implements ObjectReader<RevTree> {
+class HessianRevTreeReader extends HessianRevReader implements BufferObjectReader<RevTree> {
 
     private ObjectDatabase objectDb;
 
@@ -31,12 +33,25 @@ class HessianRevTreeReader extends HessianRevReader implements ObjectReader<RevT
         this.order = order;
     }
 
+
+    /**
+     * @see org.geogit.storage.BufferObjectReader#read(org.geogit.api.ObjectId,
+     *      java.nio.ByteBuffer)
+     */
+    @Override
+    public RevTree read(ObjectId id, ByteBuffer data) throws IOException, IllegalArgumentException {
+        return read(id, new ByteBufferInputStream(data));
+    }
+
     @Override
     public RevTree read(ObjectId id, InputStream rawData) throws IOException,
             IllegalArgumentException {
         Hessian2Input hin = new Hessian2Input(rawData);
         hin.startMessage();
         BlobType blobType = BlobType.fromValue(hin.readInt());
+        if (blobType == BlobType.REVTREE_V2) {
+            return readColumnar(id, hin);
+        }
         if (blobType != BlobType.REVTREE)
             throw new IllegalArgumentException("Could not parse blob of type " + blobType
                     + " as rev tree.");
@@ -69,6 +84,23 @@ class HessianRevTreeReader extends HessianRevReader implements ObjectReader<RevT
         return tree;
     }
 
+    /**
+     * Reads a {@link BlobType#REVTREE_V2} tree, whose entries are left encoded and looked up on
+     * demand
+     */
+    private RevTree readColumnar(ObjectId id, Hessian2Input hin) throws IOException {
+        BigInteger size = new BigInteger(hin.readBytes());
+        TreeMap<Integer, Ref> subtrees = new TreeMap<Integer, Ref>();
+        ColumnarTreeLeaf.readBuckets(hin.readBytes(), subtrees);
+        ColumnarTreeLeaf leaf = ColumnarTreeLeaf.read(hin);
+        hin.completeMessage();
+
+        if (leaf == null) {
+            return new RevSHA1Tree(id, objectDb, order, new TreeMap<String, Ref>(), subtrees, size);
+        }
+        return new RevSHA1Tree(id, objectDb, order, leaf, subtrees, size);
+    }
+
     private void parseAndSetSubTree(Hessian2Input hin, TreeMap<Integer, Ref> subtrees)
             throws IOException {
         int bucket = hin.readInt();
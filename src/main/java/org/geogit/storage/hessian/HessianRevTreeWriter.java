@@ -4,21 +4,55 @@
  */
 package org.geogit.storage.hessian;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import org.geogit.api.MutableTree;
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevTree;
+import org.geogit.api.SpatialRef;
 import org.geogit.api.TreeVisitor;
 import org.geogit.storage.ObjectWriter;
 import org.geogit.storage.RevSHA1Tree;
+import org.opengis.geometry.BoundingBox;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import com.caucho.hessian.io.Hessian2Output;
-import com.google.common.base.Throwables;
+import com.google.common.base.Preconditions;
 
+/**
+ * Writes trees in the {@link BlobType#REVTREE_V2} format.
+ *
+ * @see ColumnarTreeLeaf
+ */
 class HessianRevTreeWriter extends HessianRevWriter implements ObjectWriter<RevTree> {
+
+    private static final Comparator<Ref> NAME_ORDER = new Comparator<Ref>() {
+        @Override
+        public int compare(Ref o1, Ref o2) {
+            return o1.getName().compareTo(o2.getName());
+        }
+    };
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Entries are indexed by unsigned shorts in the hash order column
+     */
+    private static final int MAX_ENTRIES = 0x10000;
+
     private final RevSHA1Tree tree;
 
     public HessianRevTreeWriter(RevTree tree) {
@@ -32,17 +66,24 @@ class HessianRevTreeWriter extends HessianRevWriter implements ObjectWriter<RevT
             revTree = revTree.mutable();
             ((MutableTree) revTree).normalize();
         }
+        final List<Ref> entries = new ArrayList<Ref>();
+        final SortedMap<Integer, ObjectId> buckets = new TreeMap<Integer, ObjectId>();
+        revTree.accept(new CollectingTreeVisitor(entries, buckets));
+        Collections.sort(entries, NAME_ORDER);
+
         Hessian2Output hout = new Hessian2Output(out);
         try {
             hout.startMessage();
-            hout.writeInt(BlobType.REVTREE.getValue());
+            hout.writeInt(BlobType.REVTREE_V2.getValue());
 
             byte[] size = revTree.size().toByteArray();
             hout.writeBytes(size);
 
-            TreeVisitor v = new WritingTreeVisitor(hout);
-            revTree.accept(v);
-            hout.writeInt(HessianRevTreeReader.Node.END.getValue());
+            hout.writeBytes(encodeBuckets(buckets));
+            hout.writeInt(entries.size());
+            if (!entries.isEmpty()) {
+                writeEntries(hout, entries);
+            }
 
             hout.completeMessage();
         } finally {
@@ -50,32 +91,148 @@ class HessianRevTreeWriter extends HessianRevWriter implements ObjectWriter<RevT
         }
     }
 
-    private final class WritingTreeVisitor implements TreeVisitor {
-        private Hessian2Output hout;
+    private byte[] encodeBuckets(final SortedMap<Integer, ObjectId> buckets) {
+        byte[] column = new byte[buckets.size() * ColumnarTreeLeaf.BUCKET_RECORD_SIZE];
+        int offset = 0;
+        for (Map.Entry<Integer, ObjectId> e : buckets.entrySet()) {
+            final int bucket = e.getKey().intValue();
+            Preconditions.checkState(bucket >= 0 && bucket <= 0xFF, "Invalid bucket: %s", bucket);
+            column[offset] = (byte) bucket;
+            e.getValue().copyRawValue(column, offset + 1);
+            offset += ColumnarTreeLeaf.BUCKET_RECORD_SIZE;
+        }
+        return column;
+    }
+
+    private void writeEntries(final Hessian2Output hout, final List<Ref> entries)
+            throws IOException {
+        final int size = entries.size();
+        final ByteArrayOutputStream names = new ByteArrayOutputStream(16 * size);
+        final byte[] types = new byte[size];
+        final byte[] ids = new byte[size * ObjectId.NUM_BYTES];
+        final ByteBuffer crsIndexes = ByteBuffer.allocate(2 * size);
+        final ByteBuffer bounds = ByteBuffer.allocate(size * ColumnarTreeLeaf.BOUNDS_RECORD_SIZE);
+        final Map<String, Integer> crsDictionary = new LinkedHashMap<String, Integer>();
+        boolean hasBounds = false;
+
+        byte[] previous = EMPTY;
+        for (int i = 0; i < size; i++) {
+            final Ref ref = entries.get(i);
+
+            final byte[] name = ref.getName().getBytes(ColumnarTreeLeaf.UTF8);
+            int shared = 0;
+            if (i % ColumnarTreeLeaf.RESTART_INTERVAL != 0) {
+                final int max = Math.min(previous.length, name.length);
+                while (shared < max && previous[shared] == name[shared]) {
+                    shared++;
+                }
+            }
+            ColumnarTreeLeaf.writeVarInt(names, shared);
+            ColumnarTreeLeaf.writeVarInt(names, name.length - shared);
+            names.write(name, shared, name.length - shared);
+            previous = name;
+
+            types[i] = (byte) ref.getType().value();
+            ref.getObjectId().copyRawValue(ids, i * ObjectId.NUM_BYTES);
 
-        public WritingTreeVisitor(Hessian2Output out) {
-            this.hout = out;
+            BoundingBox bbox = ref instanceof SpatialRef ? ((SpatialRef) ref).getBounds() : null;
+            if (bbox == null) {
+                crsIndexes.putShort((short) 0);
+                bounds.putFloat(0f).putFloat(0f).putFloat(0f).putFloat(0f);
+            } else {
+                hasBounds = true;
+                crsIndexes.putShort((short) dictionaryIndex(crsDictionary, bbox));
+                bounds.putFloat(roundDown(bbox.getMinX())).putFloat(roundUp(bbox.getMaxX()));
+                bounds.putFloat(roundDown(bbox.getMinY())).putFloat(roundUp(bbox.getMaxY()));
+            }
+        }
+
+        hout.writeBytes(names.toByteArray());
+        hout.writeBytes(types);
+        hout.writeBytes(ids);
+        hout.writeInt(crsDictionary.size());
+        for (String code : crsDictionary.keySet()) {
+            hout.writeString(code);
+        }
+        hout.writeBytes(hasBounds ? crsIndexes.array() : EMPTY);
+        hout.writeBytes(hasBounds ? bounds.array() : EMPTY);
+        hout.writeBytes(encodeHashOrder(entries));
+    }
+
+    /**
+     * @param entries
+     *            the entries in name order
+     * @return the hash order column, the entry indexes sorted by name hash
+     */
+    private byte[] encodeHashOrder(final List<Ref> entries) {
+        final int size = entries.size();
+        Preconditions.checkState(size <= MAX_ENTRIES, "Too many entries in a tree leaf: %s", size);
+        final ObjectId[] hashes = new ObjectId[size];
+        final Integer[] indexes = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            hashes[i] = entries.get(i).getNameHash();
+            indexes[i] = Integer.valueOf(i);
+        }
+        Arrays.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return hashes[o1.intValue()].compareTo(hashes[o2.intValue()]);
+            }
+        });
+        ByteBuffer column = ByteBuffer.allocate(2 * size);
+        for (Integer index : indexes) {
+            column.putShort((short) index.intValue());
+        }
+        return column.array();
+    }
+
+    /**
+     * @return the 1 based index of the bounds CRS identifier in {@code crsDictionary}, adding it
+     *         if needed
+     */
+    private int dictionaryIndex(final Map<String, Integer> crsDictionary, final BoundingBox bbox) {
+        CoordinateReferenceSystem crs = bbox.getCoordinateReferenceSystem();
+        String code = crs == null ? "" : lookupIdentifier(crs);
+        Integer index = crsDictionary.get(code);
+        if (index == null) {
+            Preconditions.checkState(crsDictionary.size() < 0xFFFF,
+                    "Too many distinct CRS in a single tree");
+            index = Integer.valueOf(crsDictionary.size() + 1);
+            crsDictionary.put(code, index);
+        }
+        return index.intValue();
+    }
+
+    private static float roundDown(final double value) {
+        float f = (float) value;
+        return f > value ? Math.nextAfter(f, Double.NEGATIVE_INFINITY) : f;
+    }
+
+    private static float roundUp(final double value) {
+        float f = (float) value;
+        return f < value ? Math.nextAfter(f, Double.POSITIVE_INFINITY) : f;
+    }
+
+    private static final class CollectingTreeVisitor implements TreeVisitor {
+
+        private final List<Ref> entries;
+
+        private final Map<Integer, ObjectId> buckets;
+
+        public CollectingTreeVisitor(List<Ref> entries, Map<Integer, ObjectId> buckets) {
+            this.entries = entries;
+            this.buckets = buckets;
         }
 
         @Override
         public boolean visitEntry(Ref ref) {
-            try {
-                HessianRevTreeWriter.this.writeRef(hout, ref);
-            } catch (IOException ex) {
-                Throwables.propagate(ex);
-            }
+            entries.add(ref);
             return true;
         }
 
         @Override
         public boolean visitSubTree(int bucket, ObjectId treeId) {
-            try {
-                hout.writeInt(HessianRevReader.Node.TREE.getValue());
-                hout.writeInt(bucket);
-                HessianRevTreeWriter.this.writeObjectId(hout, treeId);
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
+            buckets.put(Integer.valueOf(bucket), treeId);
             return false;
         }
     }
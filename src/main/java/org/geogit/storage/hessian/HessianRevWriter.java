@@ -88,7 +88,7 @@ class HessianRevWriter {
         hout.writeString(epsgCode);
     }
 
-    private String lookupIdentifier(CoordinateReferenceSystem crs) {
+    protected String lookupIdentifier(CoordinateReferenceSystem crs) {
         String epsgCode = crsIdCache.get(crs);
         if (epsgCode == null) {
             try {
@@ -0,0 +1,329 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.hessian;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.List;
+
+import org.geotools.feature.simple.SimpleFeatureImpl;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.Property;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.feature.type.Name;
+import org.opengis.filter.identity.FeatureId;
+import org.opengis.geometry.BoundingBox;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+
+/**
+ * A feature whose geometry attributes are held as WKB and only parsed when first accessed.
+ * <p>
+ * {@link #getBounds()} doesn't parse the geometries at all but scans their WKB coordinates. If
+ * created in envelope mode, geometry attributes are never parsed but resolve to their envelope as
+ * a geometry, the same through every accessor, {@link #equals(Object) equals} and
+ * {@link #hashCode() hashCode} included, so such a feature is not equal to the one it was read
+ * from.
+ * </p>
+ * <p>
+ * Any method that exposes all the attribute values at once resolves all the pending geometries
+ * first.
+ * </p>
+ *
+ * @author groldan
+ * @see HessianFeatureReader
+ */
+class LazyFeature extends SimpleFeatureImpl {
+
+    private static final int WKB_Z_FLAG = 0x80000000;
+
+    private static final int WKB_SRID_FLAG = 0x20000000;
+
+    /**
+     * The WKB of the geometry attributes not parsed yet, indexed by attribute index
+     */
+    private final byte[][] wkb;
+
+    private final GeometryFactory geometryFactory;
+
+    private final boolean envelopeOnly;
+
+    /**
+     * @param values
+     *            the attribute values, {@code null} for the ones in {@code wkb}
+     * @param wkb
+     *            the WKB of the geometry attributes, {@code null} for non geometry attributes
+     */
+    public LazyFeature(final List<Object> values, final byte[][] wkb,
+            final SimpleFeatureType featureType, final FeatureId id,
+            final GeometryFactory geometryFactory, final boolean envelopeOnly) {
+        super(values, featureType, id);
+        this.wkb = wkb;
+        this.geometryFactory = geometryFactory;
+        this.envelopeOnly = envelopeOnly;
+    }
+
+    @Override
+    public Object getAttribute(final int index) {
+        resolve(index);
+        return super.getAttribute(index);
+    }
+
+    @Override
+    public Object getAttribute(final String name) {
+        final int index = getFeatureType().indexOf(name);
+        return index == -1 ? null : getAttribute(index);
+    }
+
+    @Override
+    public Object getAttribute(final Name name) {
+        final int index = getFeatureType().indexOf(name);
+        return index == -1 ? null : getAttribute(index);
+    }
+
+    @Override
+    public Object getDefaultGeometry() {
+        GeometryDescriptor descriptor = getFeatureType().getGeometryDescriptor();
+        if (descriptor == null) {
+            return null;
+        }
+        return getAttribute(descriptor.getName());
+    }
+
+    /**
+     * Computes the bounds out of the WKB of the geometries not parsed yet.
+     *
+     * @see org.geotools.feature.simple.SimpleFeatureImpl#getBounds()
+     */
+    @Override
+    public synchronized BoundingBox getBounds() {
+        ReferencedEnvelope bounds = new ReferencedEnvelope(getFeatureType()
+                .getCoordinateReferenceSystem());
+        for (int i = 0; i < wkb.length; i++) {
+            Envelope envelope = null;
+            if (wkb[i] != null) {
+                envelope = envelope(wkb[i]);
+            } else {
+                Object value = super.getAttribute(i);
+                if (value instanceof Geometry) {
+                    envelope = ((Geometry) value).getEnvelopeInternal();
+                }
+            }
+            if (envelope != null && !envelope.isNull()) {
+                bounds.expandToInclude(envelope);
+            }
+        }
+        return bounds;
+    }
+
+    @Override
+    public List<Object> getAttributes() {
+        resolveAll();
+        return super.getAttributes();
+    }
+
+    @Override
+    public Collection<Property> getProperties() {
+        resolveAll();
+        return super.getProperties();
+    }
+
+    @Override
+    public Collection<Property> getProperties(final Name name) {
+        resolveAll();
+        return super.getProperties(name);
+    }
+
+    @Override
+    public Collection<Property> getProperties(final String name) {
+        resolveAll();
+        return super.getProperties(name);
+    }
+
+    @Override
+    public Property getProperty(final Name name) {
+        resolveAll();
+        return super.getProperty(name);
+    }
+
+    @Override
+    public Property getProperty(final String name) {
+        resolveAll();
+        return super.getProperty(name);
+    }
+
+    @Override
+    public synchronized void setAttribute(final int index, final Object value) {
+        super.setAttribute(index, value);
+        wkb[index] = null;
+    }
+
+    @Override
+    public synchronized void setAttribute(final String name, final Object value) {
+        super.setAttribute(name, value);
+        final int index = getFeatureType().indexOf(name);
+        if (index != -1) {
+            wkb[index] = null;
+        }
+    }
+
+    @Override
+    public synchronized void setAttribute(final Name name, final Object value) {
+        super.setAttribute(name, value);
+        final int index = getFeatureType().indexOf(name);
+        if (index != -1) {
+            wkb[index] = null;
+        }
+    }
+
+    @Override
+    public synchronized void setAttributes(final List<Object> values) {
+        super.setAttributes(values);
+        clearPending();
+    }
+
+    @Override
+    public synchronized void setAttributes(final Object[] values) {
+        super.setAttributes(values);
+        clearPending();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        resolveAll();
+        if (obj instanceof LazyFeature) {
+            ((LazyFeature) obj).resolveAll();
+        }
+        return super.equals(obj);
+    }
+
+    @Override
+    public int hashCode() {
+        resolveAll();
+        return super.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        resolveAll();
+        return super.toString();
+    }
+
+    private synchronized void clearPending() {
+        for (int i = 0; i < wkb.length; i++) {
+            wkb[i] = null;
+        }
+    }
+
+    private synchronized void resolveAll() {
+        for (int i = 0; i < wkb.length; i++) {
+            resolve(i);
+        }
+    }
+
+    /**
+     * Replaces the WKB of geometry attribute {@code index}, if still pending, by the geometry, or
+     * by its envelope in envelope mode.
+     * <p>
+     * Features may be shared among threads, so this is done under the feature's lock, which also
+     * makes the resolved value visible to the threads that find the WKB cleared.
+     * </p>
+     */
+    private synchronized void resolve(final int index) {
+        final byte[] pending = wkb[index];
+        if (pending == null) {
+            return;
+        }
+        if (envelopeOnly) {
+            Envelope envelope = envelope(pending);
+            // set straight away, the envelope doesn't need to match the attribute binding
+            values[index] = envelope == null ? null : geometryFactory.toGeometry(envelope);
+        } else {
+            Geometry geometry;
+            try {
+                geometry = new WKBReader(geometryFactory).read(pending);
+            } catch (ParseException e) {
+                throw new IllegalStateException("Unable to parse geometry attribute " + index
+                        + " of feature " + getID(), e);
+            }
+            super.setAttribute(index, geometry);
+        }
+        // cleared once the value is in place
+        wkb[index] = null;
+    }
+
+    /**
+     * Computes the envelope of a WKB encoded geometry by scanning its coordinates, without
+     * building the geometry.
+     *
+     * @return the envelope, or {@code null} if the geometry is empty
+     */
+    static Envelope envelope(final byte[] wkb) {
+        Envelope envelope = new Envelope();
+        try {
+            scan(ByteBuffer.wrap(wkb), envelope);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated WKB geometry", e);
+        }
+        return envelope.isNull() ? null : envelope;
+    }
+
+    private static void scan(final ByteBuffer wkb, final Envelope envelope) {
+        wkb.order(wkb.get() == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        final int typeInt = wkb.getInt();
+        final int dimension = (typeInt & WKB_Z_FLAG) != 0 ? 3 : 2;
+        if ((typeInt & WKB_SRID_FLAG) != 0) {
+            wkb.getInt();
+        }
+        final int geometryType = typeInt & 0xFF;
+        switch (geometryType) {
+        case 1:// point
+            scanCoordinates(wkb, 1, dimension, envelope);
+            break;
+        case 2:// linestring
+            scanCoordinates(wkb, wkb.getInt(), dimension, envelope);
+            break;
+        case 3:// polygon
+            final int numRings = wkb.getInt();
+            for (int i = 0; i < numRings; i++) {
+                scanCoordinates(wkb, wkb.getInt(), dimension, envelope);
+            }
+            break;
+        case 4:// multipoint
+        case 5:// multilinestring
+        case 6:// multipolygon
+        case 7:// geometrycollection
+            final int numGeometries = wkb.getInt();
+            for (int i = 0; i < numGeometries; i++) {
+                scan(wkb, envelope);
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown WKB geometry type: " + geometryType);
+        }
+    }
+
+    private static void scanCoordinates(final ByteBuffer wkb, final int numCoordinates,
+            final int dimension, final Envelope envelope) {
+        for (int i = 0; i < numCoordinates; i++) {
+            final double x = wkb.getDouble();
+            final double y = wkb.getDouble();
+            if (dimension == 3) {
+                wkb.getDouble();
+            }
+            // empty points are encoded with NaN coordinates
+            if (!Double.isNaN(x) && !Double.isNaN(y)) {
+                envelope.expandToInclude(x, y);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.hessian;
+
+import java.util.concurrent.ConcurrentMap;
+
+import org.geogit.api.ObjectId;
+import org.geogit.storage.EncodedObject;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Process wide cache of the ids of the feature types written as {@link BlobType#SCHEMA schema}
+ * objects, and of the feature types known by id.
+ * <p>
+ * The id of a feature type is computed once per type instance, so writing a feature costs an
+ * identity lookup rather than encoding or comparing its type.
+ * </p>
+ * 
+ * @author groldan
+ */
+final class SchemaRegistry {
+
+    /**
+     * Weak keys are compared by identity
+     */
+    private static final ConcurrentMap<SimpleFeatureType, ObjectId> IDS = new MapMaker()
+            .weakKeys().makeMap();
+
+    private static final ConcurrentMap<ObjectId, SimpleFeatureType> SCHEMAS = new MapMaker()
+            .softValues().makeMap();
+
+    private SchemaRegistry() {
+        // utility class
+    }
+
+    /**
+     * @return the id of the schema object {@code type} is stored as
+     */
+    public static ObjectId idOf(final SimpleFeatureType type) {
+        ObjectId id = IDS.get(type);
+        if (id == null) {
+            try {
+                id = EncodedObject.encode(new HessianFeatureTypeWriter(type)).getId();
+            } catch (Exception e) {
+                throw Throwables.propagate(e);
+            }
+            register(id, type);
+        }
+        return id;
+    }
+
+    public static void register(final ObjectId id, final SimpleFeatureType type) {
+        IDS.put(type, id);
+        SCHEMAS.putIfAbsent(id, type);
+    }
+
+    /**
+     * @return the feature type stored as {@code id}, or {@code null} if it's not known
+     */
+    public static SimpleFeatureType get(final ObjectId id) {
+        return SCHEMAS.get(id);
+    }
+}
@@ -0,0 +1,310 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.pack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.geogit.api.ObjectId;
+import org.geotools.util.logging.Logging;
+
+/**
+ * An append only file of objects.
+ * <p>
+ * A pack file starts with a header ({@code GGPK} magic number and version) followed by a sequence
+ * of records of the form:
+ * <ul>
+ * <li>object id (20 bytes)
+ * <li>data length (int), {@code -1} for a deletion mark with no data
+ * <li>data (the LZF compressed object, as handed over by the object database)
+ * </ul>
+ * </p>
+ * <p>
+ * Only the last pack of a {@link PackObjectDatabase} is written to. Once it grows beyond the
+ * configured size it's sealed by writing its {@link PackIndex index} and a new pack is started.
+ * Reads are served from a read only memory mapping of the file, which is extended as needed while
+ * the pack is being appended to.
+ * </p>
+ * 
+ * @author groldan
+ */
+class PackFile {
+
+    private static final Logger LOGGER = Logging.getLogger(PackFile.class);
+
+    static final int MAGIC = 0x4747504B;// GGPK
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 8;
+
+    static final int RECORD_HEADER_SIZE = 20 + 4;
+
+    static final int DELETED = -1;
+
+    /**
+     * Location of an object's data in a pack
+     */
+    static final class Location {
+
+        private final PackFile pack;
+
+        private final long offset;
+
+        private final int length;
+
+        Location(final PackFile pack, final long offset, final int length) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        PackFile getPack() {
+            return pack;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        boolean isDeleted() {
+            return length == DELETED;
+        }
+    }
+
+    private final int number;
+
+    private final File file;
+
+    private final RandomAccessFile raf;
+
+    private final FileChannel channel;
+
+    private volatile ByteBuffer mapped;
+
+    private volatile PackIndex index;
+
+    private long size;
+
+    private PackFile(final int number, final File file, final RandomAccessFile raf) {
+        this.number = number;
+        this.file = file;
+        this.raf = raf;
+        this.channel = raf.getChannel();
+    }
+
+    /**
+     * Creates a new, empty, pack file to be appended to.
+     */
+    static PackFile create(final int number, final File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        PackFile pack = new PackFile(number, file, raf);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        pack.writeFully(header, 0);
+        pack.size = HEADER_SIZE;
+        return pack;
+    }
+
+    /**
+     * Opens a sealed pack, given its index
+     */
+    static PackFile openSealed(final int number, final File file, final PackIndex index)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        PackFile pack = new PackFile(number, file, raf);
+        pack.size = pack.channel.size();
+        pack.checkHeader();
+        pack.index = index;
+        return pack;
+    }
+
+    /**
+     * Opens an unsealed pack to be appended to, scanning its records into {@code entries}. A
+     * trailing incomplete record, as left by an interrupted write, is truncated.
+     */
+    static PackFile openForAppend(final int number, final File file,
+            final Map<ObjectId, Location> entries) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        PackFile pack = new PackFile(number, file, raf);
+        pack.size = pack.channel.size();
+        pack.checkHeader();
+
+        final ByteBuffer buffer = pack.map(pack.size);
+        long position = HEADER_SIZE;
+        final byte[] rawId = new byte[20];
+        while (position + RECORD_HEADER_SIZE <= pack.size) {
+            buffer.position((int) position);
+            buffer.get(rawId);
+            final int length = buffer.getInt();
+            final long dataOffset = position + RECORD_HEADER_SIZE;
+            final long next = dataOffset + (length == DELETED ? 0 : length);
+            if (length < DELETED || next > pack.size) {
+                break;
+            }
+            entries.put(new ObjectId(rawId.clone()), new Location(pack, dataOffset, length));
+            position = next;
+        }
+        if (position < pack.size) {
+            LOGGER.warning("Truncating incomplete record at the end of " + file.getName());
+            pack.channel.truncate(position);
+            pack.size = position;
+            pack.mapped = null;
+        }
+        return pack;
+    }
+
+    private void checkHeader() throws IOException {
+        if (size < HEADER_SIZE) {
+            throw new IOException(file.getName() + " is not a pack file");
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException(file.getName() + " is not a pack file");
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException("Unsupported pack version: " + header.getInt(4));
+        }
+    }
+
+    int getNumber() {
+        return number;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the index of the pack if it's sealed, {@code null} otherwise
+     */
+    PackIndex getIndex() {
+        return index;
+    }
+
+    boolean isSealed() {
+        return index != null;
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Appends the given records, as formatted by {@link #writeRecord}, to the end of the pack.
+     * 
+     * @return the offset at which the records were written
+     */
+    synchronized long append(final ByteBuffer records) throws IOException {
+        if (isSealed()) {
+            throw new IllegalStateException("Pack is sealed: " + file.getName());
+        }
+        final long offset = size;
+        writeFully(records, offset);
+        size = offset + records.limit();
+        return offset;
+    }
+
+    /**
+     * Writes a record in {@code buffer}
+     * 
+     * @param data
+     *            the object data, or {@code null} for a deletion mark
+     */
+    static void writeRecord(final ByteBuffer buffer, final ObjectId id, final byte[] data) {
+        buffer.put(id.getRawValue());
+        if (data == null) {
+            buffer.putInt(DELETED);
+        } else {
+            buffer.putInt(data.length);
+            buffer.put(data);
+        }
+    }
+
+    static int recordSize(final byte[] data) {
+        return RECORD_HEADER_SIZE + (data == null ? 0 : data.length);
+    }
+
+    private void writeFully(final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Returns a view of the given region of the pack, straight out of the memory mapped file.
+     */
+    ByteBuffer slice(final long offset, final int length) throws IOException {
+        final long end = offset + length;
+        ByteBuffer buffer = mapped;
+        if (buffer == null || end > buffer.capacity()) {
+            buffer = map(end);
+        }
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit((int) end);
+        slice.position((int) offset);
+        return slice.slice();
+    }
+
+    /**
+     * Makes sure the mapping covers at least up to {@code end}
+     */
+    private synchronized ByteBuffer map(final long end) throws IOException {
+        ByteBuffer buffer = mapped;
+        if (buffer == null || end > buffer.capacity()) {
+            final long mapSize = isSealed() ? size : channel.size();
+            if (end > mapSize) {
+                throw new IOException("Attempt to read past the end of " + file.getName());
+            }
+            buffer = channel.map(MapMode.READ_ONLY, 0, mapSize);
+            mapped = buffer;
+        }
+        return buffer;
+    }
+
+    /**
+     * Seals the pack, forcing its contents to disk and writing its index
+     */
+    synchronized void seal(final File indexFile, final Map<ObjectId, Location> entries)
+            throws IOException {
+        channel.force(false);
+        this.index = PackIndex.write(indexFile, entries);
+        this.mapped = null;
+    }
+
+    synchronized void flush() throws IOException {
+        if (!isSealed()) {
+            channel.force(false);
+        }
+    }
+
+    synchronized void close() {
+        try {
+            if (!isSealed() && channel.isOpen()) {
+                channel.force(false);
+            }
+            raf.close();
+        } catch (IOException e) {
+            LOGGER.warning("Error closing " + file.getName() + ": " + e.getMessage());
+        }
+        mapped = null;
+    }
+
+    @Override
+    public String toString() {
+        return "PackFile[" + file.getName() + "]";
+    }
+}
@@ -0,0 +1,219 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.pack;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.geogit.api.ObjectId;
+
+/**
+ * The sorted, memory mapped, index of a sealed {@link PackFile}.
+ * <p>
+ * The index file is made of a header ({@code GGIX} magic number, version and entry count) followed
+ * by fixed size entries, sorted by object id in unsigned byte order:
+ * <ul>
+ * <li>object id (20 bytes)
+ * <li>offset of the object data in the pack file (long)
+ * <li>length of the object data (int), {@code -1} for deleted objects
+ * </ul>
+ * Look ups are binary searches over the mapped file.
+ * </p>
+ * 
+ * @author groldan
+ */
+class PackIndex {
+
+    static final int MAGIC = 0x47474958;// GGIX
+
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final int ID_SIZE = 20;
+
+    private static final int ENTRY_SIZE = ID_SIZE + 8 + 4;
+
+    /**
+     * Orders raw object ids in unsigned byte order
+     */
+    static final Comparator<byte[]> RAW_ID_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(final byte[] o1, final byte[] o2) {
+            for (int i = 0; i < ID_SIZE; i++) {
+                int c = (o1[i] & 0xFF) - (o2[i] & 0xFF);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+    };
+
+    private final ByteBuffer buffer;
+
+    private final int size;
+
+    private PackIndex(final ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a pack index file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported pack index version: " + buffer.getInt(4));
+        }
+        this.size = buffer.getInt(8);
+    }
+
+    /**
+     * Maps an existing index file.
+     */
+    static PackIndex open(final File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            return new PackIndex(buffer);
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes an index file for the given entries and maps it.
+     * 
+     * @param entries
+     *            object location in the pack, keyed by object id
+     */
+    static PackIndex write(final File file, final Map<ObjectId, PackFile.Location> entries)
+            throws IOException {
+
+        List<byte[]> ids = new ArrayList<byte[]>(entries.size());
+        for (ObjectId id : entries.keySet()) {
+            ids.add(id.getRawValue());
+        }
+        Collections.sort(ids, RAW_ID_ORDER);
+
+        final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ids.size());
+            for (byte[] rawId : ids) {
+                PackFile.Location location = entries.get(new ObjectId(rawId));
+                out.write(rawId);
+                out.writeLong(location.getOffset());
+                out.writeInt(location.getLength());
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Can't rename " + tmp.getAbsolutePath() + " to "
+                    + file.getAbsolutePath());
+        }
+        return open(file);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the index of the entry for {@code rawId}, or {@code -1} if not found
+     */
+    int find(final byte[] rawId) {
+        int low = lowerBound(rawId, ID_SIZE);
+        if (low < size && compare(low, rawId, ID_SIZE) == 0) {
+            return low;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the ids of all the entries (including deleted ones) starting with {@code prefix}
+     */
+    List<ObjectId> find(final byte[] prefix, final int prefixLength) {
+        int index = lowerBound(prefix, prefixLength);
+        if (index >= size || compare(index, prefix, prefixLength) != 0) {
+            return Collections.emptyList();
+        }
+        List<ObjectId> matches = new ArrayList<ObjectId>(2);
+        while (index < size && compare(index, prefix, prefixLength) == 0) {
+            matches.add(getId(index));
+            index++;
+        }
+        return matches;
+    }
+
+    ObjectId getId(final int index) {
+        byte[] raw = new byte[ID_SIZE];
+        ByteBuffer entry = buffer.duplicate();
+        entry.position(HEADER_SIZE + index * ENTRY_SIZE);
+        entry.get(raw);
+        return new ObjectId(raw);
+    }
+
+    long getOffset(final int index) {
+        return buffer.getLong(HEADER_SIZE + index * ENTRY_SIZE + ID_SIZE);
+    }
+
+    int getLength(final int index) {
+        return buffer.getInt(HEADER_SIZE + index * ENTRY_SIZE + ID_SIZE + 8);
+    }
+
+    /**
+     * @return the index of the first entry not lower than {@code key} in its first {@code length}
+     *         bytes
+     */
+    private int lowerBound(final byte[] key, final int length) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compare(mid, key, length) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compares the first {@code length} bytes of the id at the given entry index against
+     * {@code key}, in place
+     */
+    private int compare(final int index, final byte[] key, final int length) {
+        final int base = HEADER_SIZE + index * ENTRY_SIZE;
+        for (int i = 0; i < length; i++) {
+            int c = (buffer.get(base + i) & 0xFF) - (key[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "PackIndex[" + size + " entries]";
+    }
+}
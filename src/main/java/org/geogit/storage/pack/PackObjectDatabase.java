@@ -0,0 +1,448 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.pack;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geogit.api.ObjectId;
+import org.geogit.storage.AbstractObjectDatabase;
+import org.geogit.storage.ByteBufferInputStream;
+import org.geogit.storage.ObjectCache;
+import org.geogit.storage.ObjectDatabase;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+/**
+ * An {@link ObjectDatabase} that appends objects to large pack files instead of storing each one on
+ * its own file like {@link org.geogit.storage.fs.FileObjectDatabase} does.
+ * <p>
+ * Objects are appended to the current (last) pack file. Once it grows beyond the maximum pack size
+ * it is sealed, writing a sorted index of the objects it contains, and a new pack file is started.
+ * The locations of the objects in the current pack are kept in memory, and are recovered by
+ * scanning it when the database is opened. Objects are looked up from the newest to the oldest
+ * pack, so that overridden and deleted objects (which are recorded as new records) shadow their
+ * older versions.
+ * </p>
+ * <p>
+ * Reads are served out of memory mapped files, so {@link #getRawInternal(ObjectId)} involves no
+ * system calls once a pack is mapped.
+ * </p>
+ * 
+ * @author groldan
+ * @see PackRepositoryDatabase
+ */
+public class PackObjectDatabase extends AbstractObjectDatabase implements ObjectDatabase {
+
+    private static final Logger LOGGER = Logging.getLogger(PackObjectDatabase.class);
+
+    public static final long DEFAULT_MAX_PACK_SIZE = 256 * 1024 * 1024;
+
+    /**
+     * Packs are mapped as a whole, so they can't exceed the maximum size of a {@link ByteBuffer}
+     */
+    private static final long MAX_MAPPABLE_SIZE = Integer.MAX_VALUE;
+
+    private static final String PACK_PREFIX = "pack-";
+
+    private static final String PACK_SUFFIX = ".pack";
+
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final File directory;
+
+    private final long maxPackSize;
+
+    /**
+     * Sealed packs, newest first
+     */
+    private final List<PackFile> sealedPacks = new CopyOnWriteArrayList<PackFile>();
+
+    /**
+     * Location of the objects in the active pack, including deletion marks
+     */
+    private final Map<ObjectId, PackFile.Location> activeEntries = new ConcurrentHashMap<ObjectId, PackFile.Location>();
+
+    private volatile PackFile activePack;
+
+    public PackObjectDatabase(final File directory) {
+        this(directory, DEFAULT_MAX_PACK_SIZE);
+    }
+
+    public PackObjectDatabase(final File directory, final long maxPackSize) {
+        super();
+        Preconditions.checkNotNull(directory, "directory");
+        Preconditions.checkArgument(maxPackSize > 0 && maxPackSize < MAX_MAPPABLE_SIZE,
+                "maxPackSize shall be positive and lower than 2GB");
+        this.directory = directory;
+        this.maxPackSize = maxPackSize;
+    }
+
+    public PackObjectDatabase(final File directory, final long maxPackSize,
+            final ObjectCache cache) {
+        super(cache);
+        Preconditions.checkNotNull(directory, "directory");
+        Preconditions.checkArgument(maxPackSize > 0 && maxPackSize < MAX_MAPPABLE_SIZE,
+                "maxPackSize shall be positive and lower than 2GB");
+        this.directory = directory;
+        this.maxPackSize = maxPackSize;
+    }
+
+    /**
+     * @return the directory holding the pack files
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @see org.geogit.storage.ObjectDatabase#create()
+     */
+    @Override
+    public synchronized void create() {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IllegalStateException("Can't create environment: "
+                    + directory.getAbsolutePath());
+        }
+        if (!directory.isDirectory()) {
+            throw new IllegalStateException("Environment but is not a directory: "
+                    + directory.getAbsolutePath());
+        }
+        try {
+            open();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private void open() throws IOException {
+        final int[] packNumbers = listPacks();
+        final List<PackFile> sealed = new ArrayList<PackFile>();
+        PackFile active = null;
+        for (int i = 0; i < packNumbers.length; i++) {
+            final int number = packNumbers[i];
+            final File packFile = packFile(number);
+            final File indexFile = indexFile(number);
+            if (indexFile.exists()) {
+                sealed.add(PackFile.openSealed(number, packFile, PackIndex.open(indexFile)));
+                continue;
+            }
+            Map<ObjectId, PackFile.Location> entries = new TreeMap<ObjectId, PackFile.Location>();
+            PackFile pack = PackFile.openForAppend(number, packFile, entries);
+            if (i == packNumbers.length - 1) {
+                active = pack;
+                activeEntries.putAll(entries);
+            } else {
+                // interrupted while sealing
+                LOGGER.info("Sealing " + packFile.getName());
+                pack.seal(indexFile, entries);
+                pack.close();
+                sealed.add(PackFile.openSealed(number, packFile, PackIndex.open(indexFile)));
+            }
+        }
+        if (active == null) {
+            int number = packNumbers.length == 0 ? 1 : packNumbers[packNumbers.length - 1] + 1;
+            active = PackFile.create(number, packFile(number));
+        }
+        Collections.reverse(sealed);
+        sealedPacks.addAll(sealed);
+        activePack = active;
+    }
+
+    private int[] listPacks() {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PACK_PREFIX) && name.endsWith(PACK_SUFFIX);
+            }
+        });
+        int[] numbers = new int[names == null ? 0 : names.length];
+        for (int i = 0; i < numbers.length; i++) {
+            String number = names[i].substring(PACK_PREFIX.length(), names[i].length()
+                    - PACK_SUFFIX.length());
+            numbers[i] = Integer.parseInt(number);
+        }
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    private File packFile(final int number) {
+        return new File(directory, PACK_PREFIX + String.format("%08d", number) + PACK_SUFFIX);
+    }
+
+    private File indexFile(final int number) {
+        return new File(directory, PACK_PREFIX + String.format("%08d", number) + INDEX_SUFFIX);
+    }
+
+    /**
+     * @see org.geogit.storage.ObjectDatabase#close()
+     */
+    @Override
+    public synchronized void close() {
+        if (activePack != null) {
+            activePack.close();
+            activePack = null;
+        }
+        for (PackFile pack : sealedPacks) {
+            pack.close();
+        }
+        sealedPacks.clear();
+        activeEntries.clear();
+    }
+
+    /**
+     * Forces the contents of the current pack to disk
+     */
+    public void flush() throws IOException {
+        PackFile active = activePack;
+        if (active != null) {
+            active.flush();
+        }
+    }
+
+    /**
+     * @return the location of the given object, or {@code null} if it doesn't exist or has been
+     *         deleted
+     */
+    private PackFile.Location find(final ObjectId id) {
+        PackFile.Location location = activeEntries.get(id);
+        if (location != null) {
+            return location.isDeleted() ? null : location;
+        }
+        byte[] rawId = null;
+        for (PackFile pack : sealedPacks) {
+            if (rawId == null) {
+                rawId = id.getRawValue();
+            }
+            PackIndex index = pack.getIndex();
+            int entry = index.find(rawId);
+            if (entry != -1) {
+                int length = index.getLength(entry);
+                if (length == PackFile.DELETED) {
+                    return null;
+                }
+                return new PackFile.Location(pack, index.getOffset(entry), length);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @see org.geogit.storage.ObjectDatabase#exists(org.geogit.api.ObjectId)
+     */
+    @Override
+    public boolean exists(final ObjectId id) {
+        Preconditions.checkNotNull(id, "id");
+        return find(id) != null;
+    }
+
+    @Override
+    protected List<ObjectId> lookUpInternal(final byte[] raw) {
+        Set<ObjectId> candidates = new LinkedHashSet<ObjectId>();
+        for (ObjectId id : activeEntries.keySet()) {
+            if (startsWith(id, raw)) {
+                candidates.add(id);
+            }
+        }
+        for (PackFile pack : sealedPacks) {
+            candidates.addAll(pack.getIndex().find(raw, raw.length));
+        }
+        List<ObjectId> matches = new ArrayList<ObjectId>(candidates.size());
+        for (ObjectId id : candidates) {
+            if (find(id) != null) {
+                matches.add(id);
+            }
+        }
+        return matches;
+    }
+
+    private static boolean startsWith(final ObjectId id, final byte[] prefix) {
+        byte[] rawId = id.getRawValue();
+        for (int i = 0; i < prefix.length; i++) {
+            if (rawId[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @see org.geogit.storage.AbstractObjectDatabase#getRawInternal(org.geogit.api.ObjectId)
+     */
+    @Override
+    protected InputStream getRawInternal(final ObjectId id) throws IOException {
+        Preconditions.checkNotNull(id, "id");
+        PackFile.Location location = find(id);
+        if (location == null) {
+            throw new IllegalArgumentException("Object does not exist: " + id.toString());
+        }
+        ByteBuffer data = location.getPack().slice(location.getOffset(), location.getLength());
+        return new ByteBufferInputStream(data);
+    }
+
+    /**
+     * Overrides to bulk copy the record out of the mapped pack file.
+     * 
+     * @see org.geogit.storage.AbstractObjectDatabase#getCompressed(org.geogit.api.ObjectId)
+     */
+    @Override
+    public byte[] getCompressed(final ObjectId id) throws IOException {
+        Preconditions.checkNotNull(id, "id");
+        PackFile.Location location = find(id);
+        if (location == null) {
+            throw new IllegalArgumentException("Object does not exist: " + id.toString());
+        }
+        byte[] compressed = new byte[location.getLength()];
+        location.getPack().slice(location.getOffset(), location.getLength()).get(compressed);
+        return compressed;
+    }
+
+    /**
+     * @see org.geogit.storage.AbstractObjectDatabase#putInternal(org.geogit.api.ObjectId, byte[],
+     *      boolean)
+     */
+    @Override
+    protected synchronized boolean putInternal(final ObjectId id, final byte[] rawData,
+            final boolean override) throws IOException {
+        if (!override && exists(id)) {
+            return false;
+        }
+        append(Collections.singletonMap(id, rawData));
+        return true;
+    }
+
+    /**
+     * Appends the whole batch to the current pack with a single write.
+     * 
+     * @see org.geogit.storage.AbstractObjectDatabase#putAllInternal(java.util.Map)
+     */
+    @Override
+    protected synchronized int putAllInternal(final Map<ObjectId, byte[]> objects)
+            throws IOException {
+        Map<ObjectId, byte[]> missing = new TreeMap<ObjectId, byte[]>();
+        for (Map.Entry<ObjectId, byte[]> e : objects.entrySet()) {
+            if (!exists(e.getKey())) {
+                missing.put(e.getKey(), e.getValue());
+            }
+        }
+        if (!missing.isEmpty()) {
+            append(missing);
+        }
+        return missing.size();
+    }
+
+    /**
+     * @see org.geogit.storage.ObjectDatabase#delete(org.geogit.api.ObjectId)
+     */
+    @Override
+    public synchronized boolean delete(final ObjectId id) {
+        cache.invalidate(id);
+        if (!exists(id)) {
+            return false;
+        }
+        try {
+            append(Collections.singletonMap(id, (byte[]) null));
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        return true;
+    }
+
+    /**
+     * Appends the given records to the current pack, rolling over to a new pack when the maximum
+     * pack size is reached. Shall be called while holding this object's lock.
+     * 
+     * @param records
+     *            object data keyed by object id, {@code null} data meaning a deletion mark
+     */
+    private void append(final Map<ObjectId, byte[]> records) throws IOException {
+        Preconditions.checkState(activePack != null, "database is closed");
+        final int maxBufferSize = (int) Math.min(maxPackSize, MAX_MAPPABLE_SIZE / 2);
+
+        List<Map.Entry<ObjectId, byte[]>> pending = new ArrayList<Map.Entry<ObjectId, byte[]>>(
+                records.entrySet());
+        int start = 0;
+        while (start < pending.size()) {
+            // gather as many records as fit in the current pack
+            long available = MAX_MAPPABLE_SIZE - activePack.size();
+            long bufferSize = 0;
+            int end = start;
+            while (end < pending.size()) {
+                int recordSize = PackFile.recordSize(pending.get(end).getValue());
+                if (end > start
+                        && (bufferSize + recordSize > available || bufferSize + recordSize > maxBufferSize)) {
+                    break;
+                }
+                bufferSize += recordSize;
+                end++;
+            }
+            if (bufferSize > available) {
+                if (activePack.size() == PackFile.HEADER_SIZE) {
+                    throw new IOException("Object too large for a pack file: "
+                            + pending.get(start).getKey());
+                }
+                rollOver();
+                continue;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) bufferSize);
+            for (int i = start; i < end; i++) {
+                Map.Entry<ObjectId, byte[]> record = pending.get(i);
+                PackFile.writeRecord(buffer, record.getKey(), record.getValue());
+            }
+            buffer.flip();
+            final PackFile pack = activePack;
+            long offset = pack.append(buffer);
+            for (int i = start; i < end; i++) {
+                Map.Entry<ObjectId, byte[]> record = pending.get(i);
+                byte[] data = record.getValue();
+                int length = data == null ? PackFile.DELETED : data.length;
+                activeEntries.put(record.getKey(), new PackFile.Location(pack, offset
+                        + PackFile.RECORD_HEADER_SIZE, length));
+                offset += PackFile.recordSize(data);
+            }
+            start = end;
+
+            if (pack.size() >= maxPackSize) {
+                rollOver();
+            }
+        }
+    }
+
+    /**
+     * Seals the current pack and starts a new one
+     */
+    private void rollOver() throws IOException {
+        final PackFile pack = activePack;
+        final int number = pack.getNumber();
+        pack.seal(indexFile(number), new TreeMap<ObjectId, PackFile.Location>(activeEntries));
+        // publish the sealed pack before forgetting about its entries, so that concurrent
+        // readers always find them
+        sealedPacks.add(0, pack);
+        activePack = PackFile.create(number + 1, packFile(number + 1));
+        activeEntries.clear();
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Sealed " + pack.getFile().getName() + " with "
+                    + pack.getIndex().size() + " objects");
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.pack;
+
+import java.io.File;
+
+import org.geogit.storage.RefDatabase;
+import org.geogit.storage.RepositoryDatabase;
+import org.geogit.storage.SpatialIndexStore;
+import org.geogit.storage.StagingDatabase;
+import org.geogit.storage.bdbje.JEObjectDatabase;
+
+import com.sleepycat.je.Environment;
+
+/**
+ * A {@link RepositoryDatabase} whose repository objects are stored in pack files by a
+ * {@link PackObjectDatabase}.
+ * <p>
+ * The staging area, whose objects are short lived and get deleted once committed, is still held
+ * in a Berkeley DB JE environment, as for {@link org.geogit.storage.bdbje.JERepositoryDatabase}.
+ * </p>
+ * 
+ * @author groldan
+ */
+public class PackRepositoryDatabase implements RepositoryDatabase {
+
+    private final Environment stagingEnvironment;
+
+    private final PackObjectDatabase repositoryObjectDb;
+
+    private final RefDatabase referenceDatabase;
+
+    private final StagingDatabase stagingDatabase;
+
+    /**
+     * @param repositoryDirectory
+     *            the directory where to store the pack files
+     * @param stagingEnvironment
+     *            the environment for the staging area
+     */
+    public PackRepositoryDatabase(final File repositoryDirectory,
+            final Environment stagingEnvironment) {
+        this(new PackObjectDatabase(repositoryDirectory), stagingEnvironment);
+    }
+
+    public PackRepositoryDatabase(final PackObjectDatabase repositoryObjectDb,
+            final Environment stagingEnvironment) {
+        this.stagingEnvironment = stagingEnvironment;
+        this.repositoryObjectDb = repositoryObjectDb;
+        this.repositoryObjectDb.setSpatialIndexStore(new SpatialIndexStore(new File(
+                repositoryObjectDb.getDirectory(), SpatialIndexStore.DIRECTORY_NAME)));
+        this.referenceDatabase = new RefDatabase(repositoryObjectDb, new File(
+                repositoryObjectDb.getDirectory(), RefDatabase.JOURNAL_FILE_NAME));
+
+        JEObjectDatabase stagingObjectDb = new JEObjectDatabase(stagingEnvironment);
+        // most lookups through the staging database are for repository objects
+        stagingObjectDb.setUseIdFilter(true);
+        this.stagingDatabase = new StagingDatabase(repositoryObjectDb, stagingObjectDb,
+                stagingEnvironment);
+    }
+
+    /**
+     * @see org.geogit.storage.RepositoryDatabase#create()
+     */
+    @Override
+    public void create() {
+        repositoryObjectDb.create();
+        referenceDatabase.create();
+        stagingDatabase.create();
+    }
+
+    /**
+     * @see org.geogit.storage.RepositoryDatabase#close()
+     */
+    @Override
+    public void close() {
+        stagingDatabase.close();
+        stagingEnvironment.close();
+
+        referenceDatabase.close();
+        repositoryObjectDb.close();
+    }
+
+    /**
+     * @see org.geogit.storage.RepositoryDatabase#getReferenceDatabase()
+     */
+    @Override
+    public RefDatabase getReferenceDatabase() {
+        return referenceDatabase;
+    }
+
+    /**
+     * @see org.geogit.storage.RepositoryDatabase#getObjectDatabase()
+     */
+    @Override
+    public PackObjectDatabase getObjectDatabase() {
+        return repositoryObjectDb;
+    }
+
+    /**
+     * @see org.geogit.storage.RepositoryDatabase#getStagingDatabase()
+     */
+    @Override
+    public StagingDatabase getStagingDatabase() {
+        return stagingDatabase;
+    }
+
+    @Override
+    public void beginTransaction() {
+        // nothing to do, pack files are append only
+    }
+
+    @Override
+    public void commitTransaction() {
+        // nothing to do, pack files are append only
+    }
+
+    @Override
+    public void rollbackTransaction() {
+        // nothing to do, pack files are append only
+    }
+}
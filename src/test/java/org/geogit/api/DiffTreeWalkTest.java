@@ -0,0 +1,105 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.api;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.geogit.api.DiffEntry.ChangeType;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.RevSHA1Tree;
+import org.geogit.storage.WrappedSerialisingFactory;
+import org.geogit.test.RepositoryTestCase;
+
+/**
+ * Covers {@link DiffTreeWalk} on trees big enough to be split into bucket subtrees.
+ * 
+ * @author groldan
+ */
+public class DiffTreeWalkTest extends RepositoryTestCase {
+
+    private static final int NUM_ENTRIES = 5000;
+
+    private ObjectDatabase odb;
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        odb = getRepository().getObjectDatabase();
+    }
+
+    private MutableTree createTree() {
+        MutableTree tree = odb.newTree();
+        for (int i = 0; i < NUM_ENTRIES; i++) {
+            tree.put(new Ref("entry" + i, ObjectId.forString("content" + i), TYPE.BLOB));
+        }
+        return tree;
+    }
+
+    private Ref write(final MutableTree tree) throws Exception {
+        tree.normalize();
+        ObjectId treeId = odb.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(
+                tree));
+        RevTree stored = odb.getTree(treeId);
+        assertTrue(stored instanceof RevSHA1Tree);
+        assertTrue(((RevSHA1Tree) stored).isSplit());
+        return new Ref("", treeId, TYPE.TREE);
+    }
+
+    private List<DiffEntry> diff(final Ref oldTree, final Ref newTree) {
+        Iterator<DiffEntry> it = new DiffTreeWalk(odb, oldTree, newTree).get();
+        List<DiffEntry> entries = new ArrayList<DiffEntry>();
+        while (it.hasNext()) {
+            entries.add(it.next());
+        }
+        return entries;
+    }
+
+    public void testSameTree() throws Exception {
+        Ref tree = write(createTree());
+        assertTrue(diff(tree, tree).isEmpty());
+    }
+
+    public void testChangesInSplitTrees() throws Exception {
+        final Ref oldTree = write(createTree());
+
+        MutableTree changed = createTree();
+        changed.put(new Ref("entry10", ObjectId.forString("modified"), TYPE.BLOB));
+        changed.remove("entry20");
+        changed.put(new Ref("newEntry", ObjectId.forString("new content"), TYPE.BLOB));
+        final Ref newTree = write(changed);
+
+        List<DiffEntry> entries = diff(oldTree, newTree);
+        assertEquals(3, entries.size());
+        for (DiffEntry entry : entries) {
+            String name = entry.getPath().get(entry.getPath().size() - 1);
+            switch (entry.getType()) {
+            case MODIFY:
+                assertEquals("entry10", name);
+                break;
+            case DELETE:
+                assertEquals("entry20", name);
+                break;
+            case ADD:
+                assertEquals("newEntry", name);
+                break;
+            default:
+                fail();
+            }
+        }
+
+        List<DiffEntry> reverse = diff(newTree, oldTree);
+        assertEquals(3, reverse.size());
+        int adds = 0;
+        for (DiffEntry entry : reverse) {
+            if (ChangeType.ADD.equals(entry.getType())) {
+                adds++;
+                assertEquals("entry20", entry.getPath().get(0));
+            }
+        }
+        assertEquals(1, adds);
+    }
+}
@@ -1,5 +1,11 @@
 package org.geogit.api;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import junit.framework.TestCase;
 
 import org.junit.Test;
@@ -27,4 +33,52 @@ public class ObjectIdTest extends TestCase {
         ObjectId valueOf = ObjectId.valueOf(stringRep);
         assertEquals(id1, valueOf);
     }
+
+    @Test
+    public void testCompareToMatchesHexOrder() {
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        for (int i = 0; i < 1000; i++) {
+            ids.add(ObjectId.forString("content " + i));
+        }
+        Collections.sort(ids);
+        for (int i = 1; i < ids.size(); i++) {
+            assertTrue(ids.get(i - 1).toString().compareTo(ids.get(i).toString()) < 0);
+        }
+        assertEquals(0, ids.get(0).compareTo(ObjectId.valueOf(ids.get(0).toString())));
+    }
+
+    @Test
+    public void testRawValue() {
+        byte[] raw = new byte[20];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = (byte) (250 - i);
+        }
+        ObjectId id = new ObjectId(raw);
+        assertTrue(Arrays.equals(raw, id.getRawValue()));
+        assertNotSame(id.getRawValue(), id.getRawValue());
+        for (int i = 0; i < raw.length; i++) {
+            assertEquals(raw[i] & 0xFF, id.byteN(i));
+        }
+        assertEquals(ObjectId.toString(raw), id.toString());
+
+        byte[] target = new byte[25];
+        id.copyRawValue(target, 5);
+        assertEquals(id, ObjectId.fromRaw(target, 5));
+
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        id.writeTo(buffer);
+        buffer.flip();
+        assertEquals(id, ObjectId.readFrom(buffer));
+    }
+
+    @Test
+    public void testToRaw() {
+        assertTrue(Arrays.equals(new byte[] { (byte) 0xab, 0x0f }, ObjectId.toRaw("AB0f")));
+        try {
+            ObjectId.toRaw("abxz");
+            fail("expected IAE");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(true);
+        }
+    }
 }
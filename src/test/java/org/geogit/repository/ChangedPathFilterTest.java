@@ -0,0 +1,76 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.repository;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.geogit.api.DiffEntry;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevObject.TYPE;
+
+public class ChangedPathFilterTest extends TestCase {
+
+    private List<DiffEntry> changes(final String ns, final String type, final int count) {
+        List<DiffEntry> changes = new ArrayList<DiffEntry>();
+        for (int i = 0; i < count; i++) {
+            String fid = type + "." + i;
+            Ref added = new Ref(fid, ObjectId.forString(fid), TYPE.BLOB);
+            changes.add(DiffEntry.newInstance(null, added, Arrays.asList(ns, type, fid)));
+        }
+        return changes;
+    }
+
+    public void testMightContain() {
+        ChangedPathFilter filter = ChangedPathFilter.build(changes("ns", "Points", 100)
+                .iterator());
+        assertEquals(ChangedPathFilter.DEFAULT_MAX_DEPTH, filter.getMaxDepth());
+
+        assertTrue(filter.mightContain(Arrays.asList("ns")));
+        assertTrue(filter.mightContain(Arrays.asList("ns", "Points")));
+        assertTrue(filter.mightContain(Arrays.asList("ns", "Points", "Points.10")));
+        assertTrue(filter.mightContain(new ArrayList<String>()));
+
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (filter.mightContain(Arrays.asList("ns", "Lines" + i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("too many false positives: " + falsePositives, falsePositives < 50);
+    }
+
+    public void testDepthReduction() {
+        ChangedPathFilter filter = ChangedPathFilter.build(changes("ns", "Points",
+                ChangedPathFilter.MAX_ENTRIES + 1).iterator());
+        assertEquals(2, filter.getMaxDepth());
+        assertTrue(filter.mightContain(Arrays.asList("ns", "Points")));
+        // deeper paths are checked by their prefix
+        assertTrue(filter.mightContain(Arrays.asList("ns", "Points", "not.changed")));
+    }
+
+    public void testWriteRead() throws Exception {
+        ChangedPathFilter filter = ChangedPathFilter.build(changes("ns", "Points", 10)
+                .iterator());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        filter.write(new DataOutputStream(out));
+        assertEquals(filter.serializedSize(), out.size());
+
+        ChangedPathFilter read = ChangedPathFilter.read(new DataInputStream(
+                new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(filter.getMaxDepth(), read.getMaxDepth());
+        for (DiffEntry change : changes("ns", "Points", 10)) {
+            assertTrue(read.mightContain(change.getPath()));
+        }
+    }
+}
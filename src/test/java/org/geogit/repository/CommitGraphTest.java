@@ -0,0 +1,130 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.repository;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.geogit.api.ObjectId;
+import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.WrappedSerialisingFactory;
+import org.geogit.test.RepositoryTestCase;
+
+public class CommitGraphTest extends RepositoryTestCase {
+
+    private ObjectDatabase odb;
+
+    private ObjectId c1, c2, c3, c4, c5, unrelated;
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        odb = getRepository().getObjectDatabase();
+        // c1 <- c2 <- c4 <- c5
+        // c1 <- c3 <-/
+        c1 = commit(1000, ObjectId.NULL);
+        c2 = commit(2000, c1);
+        c3 = commit(3000, c1);
+        c4 = commit(4000, c2, c3);
+        c5 = commit(5000, c4);
+        unrelated = commit(6000, ObjectId.NULL);
+    }
+
+    private ObjectId commit(final long timestamp, final ObjectId... parents) throws Exception {
+        CommitBuilder cb = new CommitBuilder();
+        cb.setTreeId(ObjectId.NULL);
+        cb.setParentIds(Arrays.asList(parents));
+        cb.setMessage("commit at " + timestamp);
+        cb.setTimestamp(timestamp);
+        return odb.put(WrappedSerialisingFactory.getInstance().createCommitWriter(
+                cb.build(ObjectId.NULL)));
+    }
+
+    public void testAncestry() {
+        CommitGraph graph = new CommitGraph(odb);
+        assertTrue(graph.isAncestor(c1, c5));
+        assertTrue(graph.isAncestor(c3, c5));
+        assertTrue(graph.isAncestor(c5, c5));
+        assertFalse(graph.isAncestor(c5, c1));
+        assertFalse(graph.isAncestor(c2, c3));
+        assertFalse(graph.isAncestor(unrelated, c5));
+
+        assertEquals(1, graph.getGeneration(c1));
+        assertEquals(2, graph.getGeneration(c3));
+        assertEquals(3, graph.getGeneration(c4));
+        assertEquals(4000, graph.getTimestamp(c4));
+        assertEquals(Arrays.asList(c2, c3), graph.getParents(c4));
+        assertEquals(ObjectId.NULL, graph.getFirstParent(c1));
+    }
+
+    public void testMergeBase() {
+        CommitGraph graph = new CommitGraph(odb);
+        assertEquals(c1, graph.mergeBase(c2, c3));
+        assertEquals(c3, graph.mergeBase(c5, c3));
+        assertEquals(c4, graph.mergeBase(c4, c5));
+        assertEquals(ObjectId.NULL, graph.mergeBase(c5, unrelated));
+    }
+
+    public void testMissingCommits() {
+        CommitGraph graph = new CommitGraph(odb);
+        List<ObjectId> wants = Arrays.asList(c5);
+
+        assertEquals(Arrays.asList(c5, c4, c3, c2, c1),
+                sortByGeneration(graph, graph.missingCommits(wants, new ArrayList<ObjectId>())));
+        assertEquals(Arrays.asList(c5, c4, c3),
+                sortByGeneration(graph, graph.missingCommits(wants, Arrays.asList(c2))));
+        assertEquals(Arrays.asList(c5),
+                graph.missingCommits(wants, Arrays.asList(c4, unrelated)));
+        assertTrue(graph.missingCommits(wants, Arrays.asList(c5)).isEmpty());
+        assertTrue(graph.missingCommits(Arrays.asList(c2), Arrays.asList(c5)).isEmpty());
+    }
+
+    private List<ObjectId> sortByGeneration(final CommitGraph graph, final List<ObjectId> commits) {
+        List<ObjectId> sorted = new ArrayList<ObjectId>(commits);
+        Collections.sort(sorted, new Comparator<ObjectId>() {
+            @Override
+            public int compare(ObjectId o1, ObjectId o2) {
+                int c = graph.getGeneration(o2) - graph.getGeneration(o1);
+                return c != 0 ? c : Long.signum(graph.getTimestamp(o2) - graph.getTimestamp(o1));
+            }
+        });
+        return sorted;
+    }
+
+    public void testFirstParentHistory() {
+        CommitGraph graph = new CommitGraph(odb);
+        Iterator<ObjectId> history = graph.firstParentHistory(c5);
+        assertEquals(c5, history.next());
+        assertEquals(c4, history.next());
+        assertEquals(c2, history.next());
+        assertEquals(c1, history.next());
+        assertFalse(history.hasNext());
+    }
+
+    public void testPersistence() throws Exception {
+        File file = new File(getRepository().getRepositoryHome(), "test-commit-graph");
+        file.delete();
+        CommitGraph graph = new CommitGraph(odb, file);
+        assertTrue(graph.isAncestor(c1, c5));
+        assertEquals(5, graph.size());
+        graph.close();
+
+        graph = new CommitGraph(odb, file);
+        assertEquals(5, graph.size());
+        assertTrue(graph.contains(c3));
+        assertEquals(3, graph.getGeneration(c4));
+        assertEquals(c1, graph.mergeBase(c2, c3));
+        graph.getGeneration(unrelated);
+        graph.close();
+
+        graph = new CommitGraph(odb, file);
+        assertEquals(6, graph.size());
+        graph.close();
+    }
+}
@@ -5,6 +5,7 @@
 package org.geogit.repository;
 
 import java.io.PrintWriter;
+import java.util.Arrays;
 
 import org.geogit.api.DiffEntry;
 import org.geogit.api.ObjectId;
@@ -13,6 +14,7 @@ import org.geogit.api.Ref;
 import org.geogit.api.RevCommit;
 import org.geogit.api.RevObject.TYPE;
 import org.geogit.api.RevTree;
+import org.geogit.api.SpatialRef;
 import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.ObjectInserter;
 import org.geogit.storage.StagingDatabase;
@@ -128,6 +130,97 @@ public class IndexTest extends RepositoryTestCase {
 
     }
 
+    public void testWriteTreeNestedChanges() throws Exception {
+        insertAndAdd(points1);
+        index.created("root", "to", "path1");
+        index.created("root", "to", "path2");
+        index.created("root", "to2", "path3");
+        index.stage(new NullProgressListener());
+
+        Tuple<ObjectId, BoundingBox> result = index.writeTree(repo.getHead());
+        RevTree tree = repo.getTree(result.getFirst());
+
+        ObjectDatabase odb = repo.getObjectDatabase();
+        assertNotNull(odb.getTreeChild(tree, pointsNs, pointsName, points1.getIdentifier().getID()));
+        assertNotNull(odb.getTreeChild(tree, "root", "to", "path1"));
+        assertNotNull(odb.getTreeChild(tree, "root", "to", "path2"));
+        assertNotNull(odb.getTreeChild(tree, "root", "to2", "path3"));
+
+        // every ancestor of a changed tree points to the written version of its children
+        Ref to = odb.getTreeChild(tree, "root", "to");
+        RevTree toTree = odb.getTree(to.getObjectId());
+        assertEquals(odb.getTreeChild(tree, "root", "to", "path1"), toTree.get("path1"));
+    }
+
+    public void testCounts() throws Exception {
+        final StagingDatabase indexDb = index.getDatabase();
+        insert(points1, points2, lines1);
+
+        assertEquals(3, indexDb.countUnstaged(null));
+        assertEquals(2, indexDb.countUnstaged(Arrays.asList(pointsNs)));
+        assertEquals(2, indexDb.countUnstaged(Arrays.asList(pointsNs, pointsName)));
+        assertEquals(1, indexDb.countUnstaged(Arrays.asList(pointsNs, pointsName, idP1)));
+        assertEquals(1, indexDb.countUnstaged(Arrays.asList(linesNs, linesName)));
+        assertEquals(0, indexDb.countStaged(null));
+
+        index.stage(new NullProgressListener());
+        assertEquals(0, indexDb.countUnstaged(null));
+        assertEquals(3, indexDb.countStaged(null));
+        assertEquals(2, indexDb.countStaged(Arrays.asList(pointsNs, pointsName)));
+        assertEquals(1, indexDb.countStaged(Arrays.asList(linesNs)));
+
+        // staging the same path again doesn't count it twice
+        insert(points1, points3);
+        assertEquals(2, indexDb.countUnstaged(null));
+        index.stage(new NullProgressListener());
+        assertEquals(0, indexDb.countUnstaged(null));
+        assertEquals(4, indexDb.countStaged(null));
+        assertEquals(3, indexDb.countStaged(Arrays.asList(pointsNs)));
+
+        index.writeTree(repo.getHead());
+        assertEquals(0, indexDb.countStaged(null));
+        assertEquals(0, indexDb.countStaged(Arrays.asList(pointsNs)));
+    }
+
+    public void testRemoveUnderPath() throws Exception {
+        final StagingDatabase indexDb = index.getDatabase();
+        insert(points1, points2, lines1);
+        index.stage(new NullProgressListener());
+        insert(points3, lines2);
+
+        // only what's at or under the path goes, points sort after lines but are kept
+        assertEquals(1, indexDb.removeStaged(Arrays.asList(linesNs, linesName)));
+        assertEquals(2, indexDb.countStaged(null));
+        assertEquals(0, indexDb.countStaged(Arrays.asList(linesNs)));
+        assertNull(indexDb.findStaged(linesNs, linesName, idL1));
+        assertNotNull(indexDb.findStaged(pointsNs, pointsName, idP1));
+        assertEquals(2, indexDb.countUnstaged(null));
+
+        assertEquals(1, indexDb.removeUnStaged(Arrays.asList(linesNs, linesName, idL2)));
+        assertNull(indexDb.findUnstaged(linesNs, linesName, idL2));
+        assertNotNull(indexDb.findUnstaged(pointsNs, pointsName, idP3));
+        assertEquals(1, indexDb.countUnstaged(null));
+        assertEquals(2, indexDb.countStaged(null));
+    }
+
+    public void testStagePath() throws Exception {
+        final StagingDatabase indexDb = index.getDatabase();
+        final ObjectId oId1 = insert(points1);
+        insert(lines1);
+
+        index.stage(new NullProgressListener(), pointsNs);
+
+        Ref staged = indexDb.findStaged(pointsNs, pointsName, idP1).getNewObject();
+        assertEquals(oId1, staged.getObjectId());
+        assertTrue(staged instanceof SpatialRef);
+        assertNull(indexDb.findUnstaged(pointsNs, pointsName, idP1));
+
+        assertNull(indexDb.findStaged(linesNs, linesName, idL1));
+        assertNotNull(indexDb.findUnstaged(linesNs, linesName, idL1));
+        assertEquals(1, indexDb.countStaged(null));
+        assertEquals(1, indexDb.countUnstaged(null));
+    }
+
     public void testMultipleStaging() throws Exception {
 
         final StagingDatabase indexDb = index.getDatabase();
@@ -0,0 +1,52 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.geogit.storage.BlobWriter;
+import org.geogit.storage.EncodedObject;
+import org.geogit.storage.ObjectWriter;
+import org.junit.Test;
+import org.opengis.geometry.BoundingBox;
+
+public class ParallelEncodingIteratorTest extends TestCase {
+
+    @Test
+    public void testPreservesOrder() throws Exception {
+        final int count = 500;
+        List<Triplet<ObjectWriter<?>, BoundingBox, List<String>>> objects;
+        objects = new ArrayList<Triplet<ObjectWriter<?>, BoundingBox, List<String>>>();
+        for (int i = 0; i < count; i++) {
+            ObjectWriter<?> writer = new BlobWriter(("blob " + i).getBytes());
+            objects.add(new Triplet<ObjectWriter<?>, BoundingBox, List<String>>(writer, null,
+                    Arrays.asList("ns", "type", String.valueOf(i))));
+        }
+
+        ParallelEncodingIterator encoded = new ParallelEncodingIterator(objects.iterator(), 4);
+        try {
+            Iterator<Triplet<ObjectWriter<?>, BoundingBox, List<String>>> expected;
+            expected = objects.iterator();
+            int i = 0;
+            while (encoded.hasNext()) {
+                Triplet<ObjectWriter<?>, BoundingBox, List<String>> next = encoded.next();
+                Triplet<ObjectWriter<?>, BoundingBox, List<String>> orig = expected.next();
+                assertEquals(orig.getLast(), next.getLast());
+                assertTrue(next.getFirst() instanceof EncodedObject);
+                assertEquals(EncodedObject.encode(orig.getFirst()).getId(),
+                        ((EncodedObject) next.getFirst()).getId());
+                i++;
+            }
+            assertEquals(count, i);
+        } finally {
+            encoded.close();
+        }
+    }
+}
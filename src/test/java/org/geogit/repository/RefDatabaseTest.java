@@ -4,13 +4,18 @@
  */
 package org.geogit.repository;
 
+import java.io.File;
 import java.util.Arrays;
 
 import org.geogit.api.GeoGIT;
+import org.geogit.api.MutableTree;
 import org.geogit.api.ObjectId;
 import org.geogit.api.Ref;
 import org.geogit.api.RevObject.TYPE;
+import org.geogit.storage.ObjectDatabase;
 import org.geogit.storage.RefDatabase;
+import org.geogit.storage.RevSHA1Tree;
+import org.geogit.storage.WrappedSerialisingFactory;
 import org.geogit.test.RepositoryTestCase;
 
 public class RefDatabaseTest extends RepositoryTestCase {
@@ -54,4 +59,94 @@ public class RefDatabaseTest extends RepositoryTestCase {
         assertEquals(ref, read);
     }
 
+    private static ObjectId id(final int b) {
+        byte[] raw = new byte[20];
+        Arrays.fill(raw, (byte) b);
+        return new ObjectId(raw);
+    }
+
+    public void testCompareAndPut() {
+        Ref master = refDb.getRef(Ref.MASTER);
+        Ref update = new Ref(Ref.MASTER, id(1), TYPE.COMMIT);
+        assertTrue(refDb.compareAndPut(master, update));
+        assertFalse(refDb.compareAndPut(master, new Ref(Ref.MASTER, id(2), TYPE.COMMIT)));
+        assertEquals(update, refDb.getRef(Ref.MASTER));
+
+        assertFalse(refDb.compareAndPut(null, new Ref(Ref.MASTER, id(3), TYPE.COMMIT)));
+        assertTrue(refDb.compareAndPut(null, new Ref("refs/heads/new", id(3), TYPE.COMMIT)));
+        assertEquals(id(3), refDb.getRef("refs/heads/new").getObjectId());
+    }
+
+    public void testGetRefsPointingTo() {
+        refDb.put(new Ref("refs/heads/a", id(1), TYPE.COMMIT));
+        refDb.put(new Ref("refs/heads/b", id(1), TYPE.COMMIT));
+        refDb.put(new Ref("refs/heads/c", id(2), TYPE.COMMIT));
+        assertEquals(2, refDb.getRefsPontingTo(id(1)).size());
+        assertEquals(3, refDb.getRefs("refs/heads/").size());
+    }
+
+    public void testJournalReplay() throws Exception {
+        File journal = new File(new File("target", "refs-journal-test"), "refs");
+        journal.delete();
+        ObjectDatabase odb = repo.getObjectDatabase();
+
+        RefDatabase journaled = new RefDatabase(odb, journal);
+        journaled.create();
+        journaled.put(new Ref(Ref.MASTER, id(1), TYPE.COMMIT));
+        journaled.put(new Ref(Ref.MASTER, id(2), TYPE.COMMIT));
+        journaled.put(new Ref("refs/heads/topic", id(3), TYPE.COMMIT));
+        journaled.close();
+
+        RefDatabase reopened = new RefDatabase(odb, journal);
+        reopened.create();
+        try {
+            assertEquals(id(2), reopened.getRef(Ref.MASTER).getObjectId());
+            assertEquals(id(3), reopened.getRef("refs/heads/topic").getObjectId());
+            assertEquals(ObjectId.NULL, reopened.getRef(Ref.HEAD).getObjectId());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    public void testImportsLegacyRefsTree() throws Exception {
+        File journal = new File(new File("target", "refs-legacy-test"), "refs");
+        journal.delete();
+        ObjectDatabase odb = repo.getObjectDatabase();
+
+        RevSHA1Tree legacy = new RevSHA1Tree(odb);
+        MutableTree mutable = legacy.mutable();
+        mutable.put(new Ref("refs/heads/legacy", id(4), TYPE.COMMIT));
+        odb.put(ObjectId.forString(".geogit/refs"), WrappedSerialisingFactory.getInstance()
+                .createRevTreeWriter(mutable));
+
+        RefDatabase imported = new RefDatabase(odb, journal);
+        imported.create();
+        try {
+            assertEquals(id(4), imported.getRef("refs/heads/legacy").getObjectId());
+        } finally {
+            imported.close();
+        }
+    }
+
+    public void testConcurrentPuts() throws Exception {
+        final int threads = 4;
+        final int updates = 200;
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            writers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < updates; i++) {
+                        refDb.put(new Ref("refs/heads/t" + thread + "-" + i, id(i), TYPE.COMMIT));
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(threads * updates, refDb.getRefs("refs/heads/t").size());
+    }
 }
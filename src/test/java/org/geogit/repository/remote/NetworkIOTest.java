@@ -0,0 +1,149 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the LGPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.repository.remote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevBlob;
+import org.geogit.api.RevCommit;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.repository.CommitBuilder;
+import org.geogit.repository.remote.payload.Payload;
+import org.geogit.storage.BlobWriter;
+import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.WrappedSerialisingFactory;
+import org.geogit.test.RepositoryTestCase;
+
+public class NetworkIOTest extends RepositoryTestCase {
+
+    private ObjectDatabase odb;
+
+    private ObjectId commitId;
+
+    private ObjectId blobId;
+
+    private Payload payload;
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        odb = getRepository().getObjectDatabase();
+
+        CommitBuilder cb = new CommitBuilder();
+        cb.setTreeId(ObjectId.NULL);
+        cb.setParentIds(Arrays.asList(ObjectId.NULL));
+        cb.setMessage("initial commit");
+        cb.setTimestamp(1000);
+        commitId = odb.put(WrappedSerialisingFactory.getInstance().createCommitWriter(
+                cb.build(ObjectId.NULL)));
+        blobId = odb.put(new BlobWriter("blob contents".getBytes()));
+
+        payload = new Payload();
+        payload.addCommits(odb.getCommit(commitId));
+        payload.addBlobs(odb.getBlob(blobId));
+        payload.addBranches("master", new Ref(Ref.MASTER, commitId, TYPE.COMMIT));
+    }
+
+    public void testRoundTrip() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NetworkIO.sendPayload(payload, odb, out);
+
+        Payload received = NetworkIO.receivePayload(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(1, received.getCommitUpdates().size());
+        RevCommit commit = received.getCommitUpdates().get(0);
+        assertEquals(commitId, commit.getId());
+        assertEquals("initial commit", commit.getMessage());
+
+        assertEquals(1, received.getBlobUpdates().size());
+        assertEquals(blobId, received.getBlobUpdates().get(0).getId());
+        assertEquals("blob contents",
+                new String((byte[]) received.getBlobUpdates().get(0).getParsed()));
+
+        Ref master = received.getBranchUpdates().get(Ref.MASTER);
+        assertNotNull(master);
+        assertEquals(commitId, master.getObjectId());
+    }
+
+    public void testEncodedOnceMatchesStored() throws Exception {
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        NetworkIO.sendPayload(payload, odb, stored);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        NetworkIO.sendPayload(payload, encoded);
+        // same frames, maybe in a different order
+        assertEquals(stored.size(), encoded.size());
+
+        Payload fromStored = NetworkIO.receivePayload(new ByteArrayInputStream(stored
+                .toByteArray()));
+        Payload fromEncoded = NetworkIO.receivePayload(new ByteArrayInputStream(encoded
+                .toByteArray()));
+        assertEquals(fromEncoded.getCommitUpdates().get(0).getId(), fromStored
+                .getCommitUpdates().get(0).getId());
+        assertEquals(fromEncoded.getBlobUpdates().get(0).getId(), fromStored.getBlobUpdates()
+                .get(0).getId());
+    }
+
+    public void testSendsObjectsMissingFromSource() throws Exception {
+        ObjectId missingId = ObjectId.forString("missing");
+        assertFalse(odb.exists(missingId));
+        payload.addBlobs(new RevBlob(missingId, "not stored".getBytes()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NetworkIO.sendPayload(payload, odb, out);
+
+        Payload received = NetworkIO.receivePayload(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(2, received.getBlobUpdates().size());
+        assertEquals(1, received.getCommitUpdates().size());
+    }
+
+    public void testReceiveIntoDatabase() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NetworkIO.sendPayload(payload, odb, out);
+
+        assertTrue(odb.delete(commitId));
+        assertTrue(odb.delete(blobId));
+
+        Payload received = NetworkIO.receivePayload(new ByteArrayInputStream(out.toByteArray()),
+                odb);
+        assertTrue(received.getCommitUpdates().isEmpty());
+        assertEquals(commitId, received.getBranchUpdates().get(Ref.MASTER).getObjectId());
+
+        assertTrue(odb.exists(commitId));
+        assertTrue(odb.exists(blobId));
+        assertEquals("initial commit", odb.getCommit(commitId).getMessage());
+    }
+
+    public void testRejectsCorruptObjects() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NetworkIO.sendPayload(payload, odb, out);
+        byte[] stream = out.toByteArray();
+        // flip a byte of the first frame body: 8 bytes header, 2 bytes type and flags, 20 bytes
+        // id and 4 bytes length
+        stream[8 + 2 + 20 + 4] ^= 0xFF;
+
+        odb.delete(commitId);
+        try {
+            NetworkIO.receivePayload(new ByteArrayInputStream(stream), odb);
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().startsWith("Corrupt object"));
+        }
+        assertFalse(odb.exists(commitId));
+    }
+
+    public void testTruncatedStream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NetworkIO.sendPayload(payload, odb, out);
+        byte[] stream = Arrays.copyOf(out.toByteArray(), out.size() - 10);
+        try {
+            NetworkIO.receivePayload(new ByteArrayInputStream(stream));
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertTrue(true);
+        }
+    }
+}
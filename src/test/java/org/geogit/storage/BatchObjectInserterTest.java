@@ -0,0 +1,74 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.geogit.api.ObjectId;
+import org.geogit.test.RepositoryTestCase;
+
+public class BatchObjectInserterTest extends RepositoryTestCase {
+
+    private AbstractObjectDatabase odb;
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        odb = (AbstractObjectDatabase) repositoryDatabase.getObjectDatabase();
+    }
+
+    public void testFlushesOnBatchSize() throws Exception {
+        BatchObjectInserter inserter = new BatchObjectInserter(odb, 10, Long.MAX_VALUE);
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        for (int i = 0; i < 15; i++) {
+            ids.add(inserter.insert(new BlobWriter(("blob " + i).getBytes())));
+        }
+        assertEquals(5, inserter.getPendingCount());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(odb.exists(ids.get(i)));
+        }
+        for (int i = 10; i < 15; i++) {
+            assertFalse(odb.exists(ids.get(i)));
+        }
+        inserter.close();
+        for (ObjectId id : ids) {
+            assertTrue(odb.exists(id));
+        }
+    }
+
+    public void testInsertAll() throws Exception {
+        ObjectDatabase source = repositoryDatabase.getStagingDatabase().getObjectDatabase();
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        for (int i = 0; i < 25; i++) {
+            ids.add(source.put(new BlobWriter(("blob to copy " + i).getBytes())));
+        }
+
+        BatchObjectInserter inserter = new BatchObjectInserter(odb, 10, Long.MAX_VALUE);
+        assertEquals(ids.size(), inserter.insertAll(source, ids));
+        inserter.close();
+        for (ObjectId id : ids) {
+            assertTrue(odb.exists(id));
+            assertTrue(Arrays.equals(source.getCompressed(id), odb.getCompressed(id)));
+        }
+
+        assertEquals(ids.size(), source.deleteAll(ids));
+        for (ObjectId id : ids) {
+            assertFalse(source.exists(id));
+        }
+        assertEquals(0, source.deleteAll(ids));
+    }
+
+    public void testSameIdsAsPut() throws Exception {
+        byte[] content = "some content".getBytes();
+        BatchObjectInserter inserter = odb.newBatchInserter();
+        ObjectId batchId = inserter.insert(new BlobWriter(content));
+        inserter.close();
+
+        ObjectId putId = odb.put(new BlobWriter(content));
+        assertEquals(putId, batchId);
+        assertEquals(new String(content), new String((byte[]) odb.getBlob(batchId).getParsed()));
+    }
+}
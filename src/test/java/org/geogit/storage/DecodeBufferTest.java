@@ -0,0 +1,90 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.geogit.api.ObjectId;
+import org.geogit.api.RevBlob;
+
+public class DecodeBufferTest extends TestCase {
+
+    private static byte[] compress(final byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AbstractObjectDatabase.writeCompressed(new BlobWriter(data), out);
+        return out.toByteArray();
+    }
+
+    private static byte[] content(final int length) {
+        byte[] data = new byte[length];
+        Random random = new Random(length);
+        // half random, half repetitive, so both compressed and non compressed chunks are produced
+        for (int i = 0; i < length; i++) {
+            data[i] = i % 2 == 0 ? (byte) random.nextInt() : (byte) (i / 100);
+        }
+        return data;
+    }
+
+    public void testUncompressedLength() throws Exception {
+        for (int length : new int[] { 0, 1, 100, 64 * 1024, 64 * 1024 + 1, 300 * 1000 }) {
+            assertEquals(length, DecodeBuffer.uncompressedLength(compress(content(length))));
+        }
+    }
+
+    public void testAcquire() throws Exception {
+        byte[] data = content(200 * 1000);
+        ByteBuffer decoded = DecodeBuffer.acquire(compress(data));
+        try {
+            assertEquals(0, decoded.position());
+            assertEquals(data.length, decoded.remaining());
+            byte[] copy = new byte[decoded.remaining()];
+            decoded.get(copy);
+            assertTrue(Arrays.equals(data, copy));
+        } finally {
+            DecodeBuffer.release(decoded);
+        }
+    }
+
+    public void testBufferIsReused() throws Exception {
+        ByteBuffer first = DecodeBuffer.acquire(compress(content(1000)));
+        DecodeBuffer.release(first);
+        ByteBuffer second = DecodeBuffer.acquire(compress(content(500)));
+        DecodeBuffer.release(second);
+        assertSame(first.array(), second.array());
+    }
+
+    public void testNestedAcquire() throws Exception {
+        byte[] outerData = content(1000);
+        byte[] innerData = content(2000);
+        ByteBuffer outer = DecodeBuffer.acquire(compress(outerData));
+        try {
+            ByteBuffer inner = DecodeBuffer.acquire(compress(innerData));
+            assertNotSame(outer.array(), inner.array());
+            DecodeBuffer.release(inner);
+            byte[] copy = new byte[outer.remaining()];
+            outer.get(copy);
+            assertTrue(Arrays.equals(outerData, copy));
+        } finally {
+            DecodeBuffer.release(outer);
+        }
+    }
+
+    public void testBlobReader() throws Exception {
+        byte[] data = content(5000);
+        ByteBuffer decoded = DecodeBuffer.acquire(compress(data));
+        RevBlob blob;
+        try {
+            blob = new BlobReader().read(ObjectId.NULL, decoded);
+        } finally {
+            DecodeBuffer.release(decoded);
+        }
+        assertTrue(Arrays.equals(data, (byte[]) blob.getParsed()));
+    }
+}
@@ -0,0 +1,57 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import junit.framework.TestCase;
+
+import org.geogit.api.ObjectId;
+
+public class ObjectIdFilterTest extends TestCase {
+
+    public void testNoFalseNegatives() {
+        ObjectIdFilter filter = new ObjectIdFilter(1000);
+        for (int i = 0; i < 1000; i++) {
+            filter.add(ObjectId.forString("added " + i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain(ObjectId.forString("added " + i)));
+        }
+    }
+
+    public void testFalsePositiveRate() {
+        ObjectIdFilter filter = new ObjectIdFilter(10000);
+        for (int i = 0; i < 10000; i++) {
+            filter.add(ObjectId.forString("added " + i));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain(ObjectId.forString("not added " + i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("too many false positives: " + falsePositives, falsePositives < 300);
+    }
+
+    public void testIsFull() {
+        ObjectIdFilter filter = new ObjectIdFilter(1000);
+        assertTrue(filter.getCapacity() >= 1000);
+        for (int i = 0; i < 1000; i++) {
+            filter.add(ObjectId.forString("added " + i));
+            // re-adding doesn't count
+            filter.add(ObjectId.forString("added " + i));
+        }
+        assertFalse(filter.isFull());
+        for (int i = 0; !filter.isFull(); i++) {
+            assertTrue("filter never got full", i < 10 * filter.getCapacity());
+            filter.add(ObjectId.forString("more " + i));
+        }
+    }
+
+    public void testEmpty() {
+        ObjectIdFilter filter = new ObjectIdFilter(0);
+        assertFalse(filter.mightContain(ObjectId.forString("any")));
+        assertFalse(filter.mightContain(ObjectId.NULL));
+    }
+}
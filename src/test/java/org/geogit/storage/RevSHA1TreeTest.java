@@ -9,8 +9,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -242,6 +245,65 @@ public class RevSHA1TreeTest extends RepositoryTestCase {
         assertEquals(treeId1, treeId2);
     }
 
+    /**
+     * Assert normalizing bucket subtrees in parallel produces the same tree as doing it
+     * sequentially
+     */
+    public void testParallelNormalize() throws Exception {
+        final int numEntries = 100 + RevSHA1Tree.SPLIT_FACTOR;
+        final int threads = RevSHA1Tree.getNormalizeThreads();
+        final ObjectId sequentialId;
+        final ObjectId parallelId;
+        try {
+            RevSHA1Tree.setNormalizeThreads(1);
+            sequentialId = createAndSaveTree(numEntries, true);
+            RevSHA1Tree.setNormalizeThreads(4);
+            parallelId = createAndSaveTree(numEntries, false);
+        } finally {
+            RevSHA1Tree.setNormalizeThreads(threads);
+        }
+        assertEquals(sequentialId, parallelId);
+
+        RevTree tree = odb.get(parallelId,
+                WrappedSerialisingFactory.getInstance().createRevTreeReader(odb, 0));
+        assertEquals(numEntries, tree.size().intValue());
+    }
+
+    public void testConcurrentGet() throws Exception {
+        final int numEntries = 100 + RevSHA1Tree.SPLIT_FACTOR;
+        final ObjectId treeId = createAndSaveTree(numEntries, true);
+        final RevTree tree = odb.get(treeId,
+                WrappedSerialisingFactory.getInstance().createRevTreeReader(odb, 0));
+
+        final int numThreads = 4;
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = offset; i < numEntries; i += numThreads) {
+                            String key = "Feature." + i;
+                            Ref ref = tree.get(key);
+                            assertNotNull(key, ref);
+                            assertEquals(ObjectId.forString(key), ref.getObjectId());
+                            assertEquals(ObjectId.forString(key), ref.getNameHash());
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
     private ObjectId createAndSaveTree(final int numEntries, final boolean insertInAscendingKeyOrder)
             throws Exception {
         final ObjectId treeId;
@@ -0,0 +1,151 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.geogit.api.MutableTree;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.RevTree;
+import org.geogit.api.SpatialRef;
+import org.geogit.test.RepositoryTestCase;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.geometry.BoundingBox;
+
+public class SpatialIndexTest extends RepositoryTestCase {
+
+    private static final int GRID_SIZE = 50;
+
+    private ObjectDatabase odb;
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        odb = getRepository().getObjectDatabase();
+    }
+
+    private RevTree createGridTree() throws Exception {
+        return createGridTree(odb);
+    }
+
+    private RevTree createGridTree(final ObjectDatabase db) throws Exception {
+        MutableTree tree = db.newTree();
+        for (int x = 0; x < GRID_SIZE; x++) {
+            for (int y = 0; y < GRID_SIZE; y++) {
+                String name = x + "_" + y;
+                BoundingBox bounds = new ReferencedEnvelope(x, x + 0.5, y, y + 0.5, null);
+                tree.put(new SpatialRef(name, ObjectId.forString(name), TYPE.BLOB, bounds));
+            }
+        }
+        tree.put(new Ref("non spatial", ObjectId.forString("non spatial"), TYPE.BLOB));
+        ObjectId treeId = db.put(WrappedSerialisingFactory.getInstance().createRevTreeWriter(
+                tree));
+        return db.getTree(treeId);
+    }
+
+    private Set<String> names(Iterator<Ref> refs) {
+        Set<String> names = new HashSet<String>();
+        while (refs.hasNext()) {
+            assertTrue(names.add(refs.next().getName()));
+        }
+        return names;
+    }
+
+    private Set<String> expected(double minx, double maxx, double miny, double maxy) {
+        Set<String> names = new HashSet<String>();
+        for (int x = 0; x < GRID_SIZE; x++) {
+            for (int y = 0; y < GRID_SIZE; y++) {
+                if (x <= maxx && x + 0.5 >= minx && y <= maxy && y + 0.5 >= miny) {
+                    names.add(x + "_" + y);
+                }
+            }
+        }
+        return names;
+    }
+
+    public void testQueryStoredTree() throws Exception {
+        RevTree tree = createGridTree();
+        final SpatialIndexStore store = odb.getSpatialIndexStore();
+        assertNull(store.get(tree.getId()));
+
+        BoundingBox query = new ReferencedEnvelope(10.2, 20.7, 5, 5.1, null);
+        assertEquals(expected(10.2, 20.7, 5, 5.1), names(tree.iterator(query, null)));
+        assertNotNull(store.get(tree.getId()));
+
+        // served from the stored index now
+        query = new ReferencedEnvelope(-10, 3.3, 47.6, 100, null);
+        assertEquals(expected(-10, 3.3, 47.6, 100), names(tree.iterator(query, null)));
+
+        query = new ReferencedEnvelope(100, 200, 100, 200, null);
+        assertTrue(names(tree.iterator(query, null)).isEmpty());
+    }
+
+    public void testStorePersistsIndexes() throws Exception {
+        RevTree tree = createGridTree();
+        File directory = new File(getRepository().getRepositoryHome(), "test-spatial-index");
+        SpatialIndexStore store = new SpatialIndexStore(directory);
+        SpatialIndex index = SpatialIndex.get(store, tree);
+        assertSame(index, SpatialIndex.get(store, tree));
+
+        SpatialIndex read = new SpatialIndexStore(directory).get(tree.getId());
+        assertNotNull(read);
+        BoundingBox query = new ReferencedEnvelope(7, 9, 30, 33, null);
+        assertEquals(names(index.query(query)), names(read.query(query)));
+
+        assertNull(new SpatialIndexStore().get(tree.getId()));
+    }
+
+    public void testStagedTreeIndexesStayInMemory() throws Exception {
+        final StagingDatabase staging = repositoryDatabase.getStagingDatabase();
+        final BoundingBox query = new ReferencedEnvelope(7, 9, 30, 33, null);
+
+        // differs from the repository grid tree
+        MutableTree tree = createGridTree(staging).mutable();
+        tree.put(new Ref("staged", ObjectId.forString("staged"), TYPE.BLOB));
+        RevTree staged = staging.getTree(staging.put(WrappedSerialisingFactory.getInstance()
+                .createRevTreeWriter(tree)));
+        assertFalse(odb.exists(staged.getId()));
+        assertEquals(expected(7, 9, 30, 33), names(staged.iterator(query, null)));
+        assertNotNull(staging.getSpatialIndexStore().get(staged.getId()));
+        assertNull(odb.getSpatialIndexStore().get(staged.getId()));
+
+        // repository trees read through the staging database use the repository store
+        RevTree committed = staging.getTree(createGridTree().getId());
+        assertEquals(expected(7, 9, 30, 33), names(committed.iterator(query, null)));
+        assertNotNull(odb.getSpatialIndexStore().get(committed.getId()));
+    }
+
+    public void testMutableTreeScans() throws Exception {
+        MutableTree tree = createGridTree().mutable();
+        tree.remove("1_1");
+        BoundingBox query = new ReferencedEnvelope(0, 2, 0, 2, null);
+        Set<String> expected = expected(0, 2, 0, 2);
+        expected.remove("1_1");
+        assertEquals(expected, names(tree.iterator(query, null)));
+    }
+
+    public void testWriteRead() throws Exception {
+        RevTree tree = createGridTree();
+        SpatialIndex index = SpatialIndex.build(tree.iterator(null), 4);
+        assertEquals(GRID_SIZE * GRID_SIZE, index.size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new SpatialIndex.SpatialIndexWriter(index).write(out);
+        SpatialIndex read = new SpatialIndex.SpatialIndexReader().read(null,
+                new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(index.size(), read.size());
+        assertEquals(4, read.getNodeCapacity());
+
+        BoundingBox query = new ReferencedEnvelope(7, 9, 30, 33, null);
+        assertEquals(expected(7, 9, 30, 33), names(read.query(query)));
+        assertEquals(names(index.query(query)), names(read.query(query)));
+    }
+}
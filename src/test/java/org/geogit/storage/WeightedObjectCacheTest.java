@@ -0,0 +1,71 @@
+package org.geogit.storage;
+
+import junit.framework.TestCase;
+
+import org.geogit.api.ObjectId;
+import org.junit.Test;
+
+public class WeightedObjectCacheTest extends TestCase {
+
+    @Test
+    public void testHitsAndMisses() {
+        WeightedObjectCache cache = new WeightedObjectCache(1000, 1);
+        ObjectId id = ObjectId.forString("object");
+        assertNull(cache.getIfPresent(id));
+        cache.put(id, "value", 10, 5);
+        assertEquals("value", cache.getIfPresent(id));
+
+        ObjectCacheStats stats = cache.getStats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(1, stats.getLoadCount());
+        assertEquals(5, stats.getTotalLoadTime());
+        assertEquals(1, stats.getSize());
+        assertEquals(10, stats.getWeight());
+    }
+
+    @Test
+    public void testEvictsByWeight() {
+        WeightedObjectCache cache = new WeightedObjectCache(100, 1);
+        ObjectId id1 = ObjectId.forString("1");
+        ObjectId id2 = ObjectId.forString("2");
+        ObjectId id3 = ObjectId.forString("3");
+        cache.put(id1, "1", 40, 0);
+        cache.put(id2, "2", 40, 0);
+        // access id1 so that id2 becomes the least recently used
+        assertNotNull(cache.getIfPresent(id1));
+        cache.put(id3, "3", 40, 0);
+
+        assertNotNull(cache.getIfPresent(id1));
+        assertNull(cache.getIfPresent(id2));
+        assertNotNull(cache.getIfPresent(id3));
+        assertEquals(1, cache.getStats().getEvictionCount());
+        assertEquals(80, cache.getStats().getWeight());
+    }
+
+    @Test
+    public void testRejectsOverweight() {
+        WeightedObjectCache cache = new WeightedObjectCache(100, 1);
+        ObjectId id1 = ObjectId.forString("1");
+        ObjectId id2 = ObjectId.forString("2");
+        cache.put(id1, "1", 40, 0);
+        cache.put(id2, "2", 101, 0);
+        assertNotNull(cache.getIfPresent(id1));
+        assertNull(cache.getIfPresent(id2));
+    }
+
+    @Test
+    public void testInvalidate() {
+        WeightedObjectCache cache = new WeightedObjectCache(100, 4);
+        ObjectId id1 = ObjectId.forString("1");
+        ObjectId id2 = ObjectId.forString("2");
+        cache.put(id1, "1", 10, 0);
+        cache.put(id2, "2", 10, 0);
+        cache.invalidate(id1);
+        assertNull(cache.getIfPresent(id1));
+        assertNotNull(cache.getIfPresent(id2));
+        cache.invalidateAll();
+        assertNull(cache.getIfPresent(id2));
+        assertEquals(0, cache.getStats().getWeight());
+    }
+}
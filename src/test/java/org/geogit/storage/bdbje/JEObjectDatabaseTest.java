@@ -0,0 +1,148 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.bdbje;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.geogit.api.ObjectId;
+import org.geogit.storage.BlobWriter;
+import org.geogit.storage.ObjectDatabase;
+import org.geogit.storage.ObjectVisitor;
+import org.geogit.storage.StagingDatabase;
+import org.geogit.test.RepositoryTestCase;
+
+public class JEObjectDatabaseTest extends RepositoryTestCase {
+
+    private ObjectDatabase odb;
+
+    private List<ObjectId> stored;
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        odb = repositoryDatabase.getObjectDatabase();
+        assertTrue(odb instanceof JEObjectDatabase);
+        stored = new ArrayList<ObjectId>();
+        for (int i = 0; i < 100; i++) {
+            stored.add(odb.put(new BlobWriter(("blob " + i).getBytes())));
+        }
+    }
+
+    public void testExistsAll() throws Exception {
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        List<ObjectId> missing = new ArrayList<ObjectId>();
+        for (int i = 0; i < stored.size(); i += 3) {
+            ids.add(stored.get(i));
+            ObjectId notStored = ObjectId.forString("missing " + i);
+            ids.add(notStored);
+            missing.add(notStored);
+        }
+        ids.add(stored.get(0));
+        Collections.shuffle(ids);
+
+        Set<ObjectId> found = odb.existsAll(ids);
+        for (int i = 0; i < stored.size(); i++) {
+            assertEquals(i % 3 == 0, found.contains(stored.get(i)));
+        }
+        for (ObjectId id : missing) {
+            assertFalse(found.contains(id));
+        }
+        assertTrue(odb.existsAll(Collections.<ObjectId> emptyList()).isEmpty());
+    }
+
+    public void testGetAll() throws Exception {
+        List<ObjectId> ids = new ArrayList<ObjectId>(stored);
+        ids.add(ObjectId.forString("missing"));
+        ids.add(ObjectId.NULL);
+        Collections.shuffle(ids);
+
+        final List<ObjectId> visited = new ArrayList<ObjectId>();
+        odb.getAll(ids, new ObjectVisitor() {
+            @Override
+            public boolean visit(ObjectId id, byte[] compressed) {
+                try {
+                    assertTrue(Arrays.equals(odb.getCompressed(id), compressed));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                visited.add(id);
+                return true;
+            }
+        });
+
+        List<ObjectId> expected = new ArrayList<ObjectId>(stored);
+        Collections.sort(expected);
+        assertEquals(expected, visited);
+    }
+
+    public void testGetAllStops() throws Exception {
+        final List<ObjectId> visited = new ArrayList<ObjectId>();
+        odb.getAll(stored, new ObjectVisitor() {
+            @Override
+            public boolean visit(ObjectId id, byte[] compressed) {
+                visited.add(id);
+                return visited.size() < 10;
+            }
+        });
+        assertEquals(10, visited.size());
+    }
+
+    public void testGetCompressedIfPresent() throws Exception {
+        ObjectId id = stored.get(7);
+        assertTrue(Arrays.equals(odb.getCompressed(id), odb.getCompressedIfPresent(id)));
+        assertNull(odb.getCompressedIfPresent(ObjectId.forString("missing")));
+    }
+
+    public void testIdFilter() throws Exception {
+        StagingDatabase staging = repositoryDatabase.getStagingDatabase();
+        ObjectDatabase stagingDb = staging.getObjectDatabase();
+        ObjectId stagedId = stagingDb.put(new BlobWriter("staged".getBytes()));
+        ObjectId repoId = stored.get(3);
+
+        assertTrue(stagingDb.exists(stagedId));
+        assertFalse(stagingDb.exists(repoId));
+        assertNotNull(stagingDb.getCompressedIfPresent(stagedId));
+        assertNull(stagingDb.getCompressedIfPresent(repoId));
+
+        // the layered view finds both
+        assertTrue(Arrays.equals(stagingDb.getCompressed(stagedId),
+                staging.getCompressed(stagedId)));
+        assertTrue(Arrays.equals(odb.getCompressed(repoId), staging.getCompressed(repoId)));
+        assertEquals("staged", new String((byte[]) staging.getBlob(stagedId).getParsed()));
+        assertNull(staging.getCompressedIfPresent(ObjectId.forString("missing")));
+    }
+
+    public void testIdFilterAfterEmptying() throws Exception {
+        ObjectDatabase stagingDb = repositoryDatabase.getStagingDatabase().getObjectDatabase();
+        ObjectId first = stagingDb.put(new BlobWriter("first".getBytes()));
+        ObjectId second = stagingDb.put(new BlobWriter("second".getBytes()));
+        assertEquals(2, stagingDb.deleteAll(Arrays.asList(first, second)));
+        assertFalse(stagingDb.exists(first));
+        assertFalse(stagingDb.exists(second));
+
+        // the filter was reset with the database emptied, it still has to take new objects
+        assertEquals(first, stagingDb.put(new BlobWriter("first".getBytes())));
+        assertTrue(stagingDb.exists(first));
+        assertFalse(stagingDb.exists(second));
+        assertTrue(stagingDb.delete(first));
+        assertFalse(stagingDb.exists(first));
+    }
+
+    public void testCachesAreNotShared() throws Exception {
+        ObjectDatabase stagingDb = repositoryDatabase.getStagingDatabase().getObjectDatabase();
+        assertNotSame(((JEObjectDatabase) odb).getCache(),
+                ((JEObjectDatabase) stagingDb).getCache());
+    }
+
+    public void testLookUp() throws Exception {
+        ObjectId id = stored.get(42);
+        String prefix = id.toString().substring(0, 8);
+        assertTrue(odb.lookUp(prefix).contains(id));
+        assertEquals(Collections.singletonList(id), odb.lookUp(id.toString()));
+    }
+}
@@ -4,18 +4,32 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import junit.framework.TestCase;
 
 import org.geogit.api.ObjectId;
+import org.geogit.storage.ObjectSerialisingFactory;
 import org.geotools.data.DataUtilities;
+import org.geotools.factory.Hints;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geometry.jts.WKTReader2;
 import org.opengis.feature.Feature;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.GeometryDescriptor;
 
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.io.ParseException;
 
 public class HessianFeatureSerialisationTest extends TestCase {
@@ -65,6 +79,183 @@ public class HessianFeatureSerialisationTest extends TestCase {
 
     }
 
+    public void testLazyRead() throws Exception {
+        SimpleFeature expected = (SimpleFeature) feature1_1;
+        SimpleFeature lazy = readBack(expected, new Hints(ObjectSerialisingFactory.LAZY_FEATURES,
+                Boolean.TRUE));
+        assertTrue(lazy instanceof LazyFeature);
+
+        assertEquals(expected.getAttribute("str"), lazy.getAttribute("str"));
+        assertEquals(expected.getAttribute("bint"), lazy.getAttribute(7));
+        assertEquals(new ReferencedEnvelope(expected.getBounds()),
+                new ReferencedEnvelope(lazy.getBounds()));
+        assertTrue(((Geometry) expected.getDefaultGeometry()).equalsExact((Geometry) lazy
+                .getDefaultGeometry()));
+        assertEquals(expected.getAttributes(), lazy.getAttributes());
+    }
+
+    public void testConcurrentLazyRead() throws Exception {
+        final SimpleFeature expected = (SimpleFeature) feature1_1;
+        final Hints hints = new Hints(ObjectSerialisingFactory.LAZY_FEATURES, Boolean.TRUE);
+        final int numThreads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (int round = 0; round < 100; round++) {
+                final SimpleFeature lazy = readBack(expected, hints);
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Future<Object>> geometries = new ArrayList<Future<Object>>();
+                for (int i = 0; i < numThreads; i++) {
+                    geometries.add(executor.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            start.await();
+                            return lazy.getDefaultGeometry();
+                        }
+                    }));
+                }
+                start.countDown();
+                for (Future<Object> geometry : geometries) {
+                    assertNotNull(geometry.get());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testEnvelopeGeometries() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType(namespace1, "Lines",
+                "name:String,geom:LineString:srid=4326");
+        SimpleFeature expected = (SimpleFeature) feature(type, "Lines.1", "line1",
+                "LINESTRING(1 2, 5 3, -2 8)");
+        SimpleFeature lazy = readBack(expected, new Hints(
+                ObjectSerialisingFactory.ENVELOPE_GEOMETRIES, Boolean.TRUE));
+
+        Envelope envelope = new Envelope(-2, 5, 2, 8);
+        assertEquals(envelope, new ReferencedEnvelope(lazy.getBounds()));
+        assertEquals(envelope, ((Geometry) lazy.getDefaultGeometry()).getEnvelopeInternal());
+        assertEquals("line1", lazy.getAttribute("name"));
+
+        // every accessor sees the envelope, not the real geometry
+        Geometry geometry = (Geometry) lazy.getAttribute("geom");
+        assertEquals("Polygon", geometry.getGeometryType());
+        assertSame(geometry, lazy.getAttributes().get(1));
+        assertSame(geometry, lazy.getProperty("geom").getValue());
+        assertEquals(Arrays.asList("line1", geometry), lazy.getAttributes());
+        assertFalse(lazy.equals(expected));
+        assertEquals(lazy, readBack(expected, new Hints(
+                ObjectSerialisingFactory.ENVELOPE_GEOMETRIES, Boolean.TRUE)));
+    }
+
+    public void testNumericArrays() throws Exception {
+        SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+        typeBuilder.setName("Arrays");
+        typeBuilder.add("doubles", double[].class);
+        typeBuilder.add("floats", float[].class);
+        typeBuilder.add("ints", int[].class);
+        typeBuilder.add("longs", long[].class);
+        typeBuilder.add("empty", int[].class);
+        SimpleFeatureType type = typeBuilder.buildFeatureType();
+
+        double[] doubles = { 1.5, -2.25, Double.MAX_VALUE, Double.NaN };
+        float[] floats = { 0.1f, -3f, Float.MIN_VALUE };
+        int[] ints = new int[10000];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = i * 31 - 5000;
+        }
+        long[] longs = { Long.MIN_VALUE, 0L, Long.MAX_VALUE };
+        SimpleFeature expected = (SimpleFeature) feature(type, "Arrays.1", doubles, floats, ints,
+                longs, new int[0]);
+
+        SimpleFeature read = readBack(expected, null);
+        assertTrue(Arrays.equals(doubles, (double[]) read.getAttribute("doubles")));
+        assertTrue(Arrays.equals(floats, (float[]) read.getAttribute("floats")));
+        assertTrue(Arrays.equals(ints, (int[]) read.getAttribute("ints")));
+        assertTrue(Arrays.equals(longs, (long[]) read.getAttribute("longs")));
+        assertEquals(0, ((int[]) read.getAttribute("empty")).length);
+    }
+
+    public void testSchemaRoundTrip() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new HessianFeatureTypeWriter(featureType1).write(output);
+        ObjectId id = ObjectId.forString("schema");
+        SimpleFeatureType read = (SimpleFeatureType) new HessianFeatureTypeReader().read(id,
+                new ByteArrayInputStream(output.toByteArray()));
+
+        assertEquals(featureType1.getName(), read.getName());
+        assertEquals(featureType1.getAttributeCount(), read.getAttributeCount());
+        for (int i = 0; i < featureType1.getAttributeCount(); i++) {
+            assertEquals(featureType1.getDescriptor(i).getLocalName(), read.getDescriptor(i)
+                    .getLocalName());
+            assertEquals(featureType1.getDescriptor(i).getType().getBinding(), read
+                    .getDescriptor(i).getType().getBinding());
+        }
+        assertEquals("pp", read.getGeometryDescriptor().getLocalName());
+        assertNotNull(read.getCoordinateReferenceSystem());
+        assertSame(read, SchemaRegistry.get(id));
+    }
+
+    public void testFeaturesReferToTheirSchema() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new HessianFeatureWriter(feature1_1).write(output);
+        // the type name is no longer written with every feature
+        assertFalse(new String(output.toByteArray(), "ISO-8859-1").contains(namespace1));
+
+        // the schema is resolved even if the reader isn't given the feature type
+        HessianFeatureReader reader = new HessianFeatureReader(null, feature1_1.getIdentifier()
+                .getID(), null);
+        Feature read = reader.read(ObjectId.forString(feature1_1.getIdentifier().getID()),
+                new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(featureType1.getName(), read.getType().getName());
+        assertEquals(((SimpleFeature) feature1_1).getAttributes(),
+                ((SimpleFeature) read).getAttributes());
+    }
+
+    public void testUnknownSchemaFails() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new HessianFeatureWriter(feature1_1).write(output);
+        byte[] data = output.toByteArray();
+        assertEquals(SchemaRegistry.idOf(featureType1), HessianFeatureReader.schemaId(data));
+
+        // make it refer to a schema that's nowhere to be found
+        byte[] schemaId = SchemaRegistry.idOf(featureType1).getRawValue();
+        byte[] unknownId = ObjectId.forString("unknown schema").getRawValue();
+        int offset = indexOf(data, schemaId);
+        assertTrue(offset > 0);
+        System.arraycopy(unknownId, 0, data, offset, unknownId.length);
+
+        // not even bound to a provided type with as many attributes
+        String fid = feature1_1.getIdentifier().getID();
+        try {
+            new HessianFeatureReader(featureType1, fid, null).read(ObjectId.forString(fid),
+                    new ByteArrayInputStream(data));
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(true);
+        }
+        assertNull(HessianFeatureReader.schemaId("not a feature".getBytes()));
+    }
+
+    private static int indexOf(byte[] data, byte[] target) {
+        for (int i = 0; i <= data.length - target.length; i++) {
+            if (Arrays.equals(target, Arrays.copyOfRange(data, i, i + target.length))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private SimpleFeature readBack(SimpleFeature feature, Hints hints) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new HessianFeatureWriter(feature).write(output);
+
+        HessianFeatureReader reader = new HessianFeatureReader(feature.getFeatureType(), feature
+                .getIdentifier().getID(), hints);
+        ByteArrayInputStream input = new ByteArrayInputStream(output.toByteArray());
+        return (SimpleFeature) reader.read(ObjectId.forString(feature.getIdentifier().getID()),
+                input);
+    }
+
     protected Feature feature(SimpleFeatureType type, String id, Object... values)
             throws ParseException {
         SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
@@ -1,8 +1,26 @@
 package org.geogit.storage.hessian;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+
 import junit.framework.TestCase;
 
+import org.geogit.api.MutableTree;
+import org.geogit.api.ObjectId;
+import org.geogit.api.Ref;
+import org.geogit.api.RevObject.TYPE;
+import org.geogit.api.RevTree;
+import org.geogit.api.SpatialRef;
+import org.geogit.storage.RevSHA1Tree;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.junit.Before;
+import org.opengis.geometry.BoundingBox;
+
+import com.caucho.hessian.io.Hessian2Output;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 
 public class HessianRevTreeSerialisationTest extends TestCase {
 
@@ -11,7 +29,80 @@ public class HessianRevTreeSerialisationTest extends TestCase {
     }
 
     public void testRevTreeRoundTrippin() throws Exception {
+        final int numEntries = 1000;
+        MutableTree tree = new RevSHA1Tree(null).mutable();
+        for (int i = 0; i < numEntries; i++) {
+            tree.put(ref(i));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new HessianRevTreeWriter(tree).write(out);
+
+        RevTree read = new HessianRevTreeReader(null).read(null,
+                new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(BigInteger.valueOf(numEntries), read.size());
+        for (int i = 0; i < numEntries; i++) {
+            Ref expected = ref(i);
+            Ref actual = read.get(expected.getName());
+            assertEquals(expected, actual);
+            if (expected instanceof SpatialRef) {
+                BoundingBox expectedBounds = ((SpatialRef) expected).getBounds();
+                BoundingBox actualBounds = ((SpatialRef) actual).getBounds();
+                assertTrue(actualBounds.contains(expectedBounds));
+                assertEquals(expectedBounds.getMinX(), actualBounds.getMinX(), 1E-3);
+                assertEquals(expectedBounds.getMaxY(), actualBounds.getMaxY(), 1E-3);
+            } else {
+                assertFalse(actual instanceof SpatialRef);
+            }
+        }
+        assertNull(read.get("Feature."));
+        assertNull(read.get("Feature.99999"));
+        assertNull(read.get(""));
 
+        // iterated in the same name hash order as the in memory tree
+        assertEquals(Lists.newArrayList(tree.iterator(null)),
+                Lists.newArrayList(read.iterator(null)));
+        assertEquals(numEntries, Iterators.size(read.iterator(null)));
+
+        // writing it back produces the same blob
+        ByteArrayOutputStream out2 = new ByteArrayOutputStream();
+        new HessianRevTreeWriter(read).write(out2);
+        assertTrue(Arrays.equals(out.toByteArray(), out2.toByteArray()));
     }
 
+    public void testReadLegacyFormat() throws Exception {
+        final int numEntries = 100;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Hessian2Output hout = new Hessian2Output(out);
+        HessianRevWriter refWriter = new HessianRevWriter();
+        hout.startMessage();
+        hout.writeInt(BlobType.REVTREE.getValue());
+        hout.writeBytes(BigInteger.valueOf(numEntries).toByteArray());
+        for (int i = 0; i < numEntries; i++) {
+            refWriter.writeRef(hout, ref(i));
+        }
+        hout.writeInt(HessianRevReader.Node.END.getValue());
+        hout.completeMessage();
+        hout.flush();
+
+        RevTree read = new HessianRevTreeReader(null).read(null,
+                new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(BigInteger.valueOf(numEntries), read.size());
+        for (int i = 0; i < numEntries; i++) {
+            Ref expected = ref(i);
+            assertEquals(expected, read.get(expected.getName()));
+        }
+    }
+
+    private Ref ref(final int i) {
+        String name = "Feature." + i;
+        ObjectId id = ObjectId.forString(name);
+        if (i % 2 == 0) {
+            return new Ref(name, id, TYPE.BLOB);
+        }
+        ReferencedEnvelope bounds = new ReferencedEnvelope(i + 0.1, i + 1.3, -i - 0.7, i / 3.0,
+                null);
+        return new SpatialRef(name, id, TYPE.BLOB, bounds);
+    }
 }
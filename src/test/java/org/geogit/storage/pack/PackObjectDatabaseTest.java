@@ -0,0 +1,91 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geogit.storage.pack;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geogit.api.ObjectId;
+import org.geogit.storage.BatchObjectInserter;
+import org.geogit.storage.BlobWriter;
+
+public class PackObjectDatabaseTest extends TestCase {
+
+    private File directory;
+
+    private PackObjectDatabase db;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = new File(new File("target"), "packdb");
+        FileUtils.deleteDirectory(directory);
+        db = new PackObjectDatabase(directory, 4096);
+        db.create();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private String read(ObjectId id) {
+        return new String((byte[]) db.getBlob(id).getParsed());
+    }
+
+    public void testPutGet() throws Exception {
+        ObjectId id = db.put(new BlobWriter("blob 1".getBytes()));
+        assertTrue(db.exists(id));
+        assertEquals("blob 1", read(id));
+        assertFalse(db.exists(ObjectId.forString("not there")));
+    }
+
+    public void testOverrideAndDelete() throws Exception {
+        ObjectId id = ObjectId.forString("fixed id");
+        db.put(id, new BlobWriter("first".getBytes()));
+        db.put(id, new BlobWriter("second".getBytes()));
+        assertEquals("second", read(id));
+        assertTrue(db.delete(id));
+        assertFalse(db.exists(id));
+        assertFalse(db.delete(id));
+    }
+
+    public void testSealAndReopen() throws Exception {
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        BatchObjectInserter inserter = db.newBatchInserter();
+        for (int i = 0; i < 1000; i++) {
+            ids.add(inserter.insert(new BlobWriter(("blob number " + i).getBytes())));
+        }
+        inserter.close();
+        ObjectId deleted = ids.get(0);
+        assertTrue(db.delete(deleted));
+
+        // 4k packs shall have been rolled over a number of times
+        assertTrue(directory.list().length > 2);
+
+        db.close();
+        db = new PackObjectDatabase(directory, 4096);
+        db.create();
+
+        assertFalse(db.exists(deleted));
+        for (int i = 1; i < ids.size(); i++) {
+            assertEquals("blob number " + i, read(ids.get(i)));
+        }
+    }
+
+    public void testLookUp() throws Exception {
+        ObjectId id = db.put(new BlobWriter("blob 1".getBytes()));
+        for (int i = 0; i < 200; i++) {
+            db.put(new BlobWriter(("filler " + i).getBytes()));
+        }
+        List<ObjectId> found = db.lookUp(id.toString().substring(0, 8));
+        assertEquals(1, found.size());
+        assertEquals(id, found.get(0));
+    }
+}